@@ -19,6 +19,7 @@
 package org.xcmis.search;
 
 import org.apache.commons.lang.Validate;
+import org.xcmis.search.config.IndexConfiguration;
 import org.xcmis.search.config.SearchServiceConfiguration;
 import org.xcmis.search.content.ContentEntry;
 import org.xcmis.search.content.ContentModificationListener;
@@ -30,13 +31,17 @@ import org.xcmis.search.content.command.query.ProcessQueryCommand;
 import org.xcmis.search.content.interceptors.ContentReaderInterceptor;
 import org.xcmis.search.content.interceptors.InterceptorChain;
 import org.xcmis.search.content.interceptors.QueryProcessorInterceptor;
+import org.xcmis.search.content.interceptors.QueryProcessorInterceptor.PlanKey;
 import org.xcmis.search.content.interceptors.QueryableIndexStorage;
 import org.xcmis.search.model.Query;
+import org.xcmis.search.query.QueryCache;
 import org.xcmis.search.query.QueryExecutionException;
 import org.xcmis.search.query.Searcher;
 import org.xcmis.search.query.optimize.CriteriaBasedOptimizer;
+import org.xcmis.search.query.plan.QueryExecutionPlan;
 import org.xcmis.search.query.plan.SimplePlaner;
 import org.xcmis.search.result.ScoredRow;
+import org.xcmis.search.result.SearchAfter;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
@@ -66,6 +71,11 @@ public class SearchService implements Startable, ContentModificationListener, Se
     */
    private final InvocationContext defaultInvocationContext;
 
+   /**
+    * Optimized plans of recently executed queries.
+    */
+   private final QueryCache<PlanKey, QueryExecutionPlan> queryPlanCache;
+
    /**
     * @param configuration
     *           SearchServiceConfiguration
@@ -81,8 +91,12 @@ public class SearchService implements Startable, ContentModificationListener, Se
 
       addQueryableIndexStorageInterceptor(interceptorChain);
 
+      IndexConfiguration indexConfiguration = configuration.getIndexConfuguration();
+      this.queryPlanCache =
+         new QueryCache<PlanKey, QueryExecutionPlan>(indexConfiguration == null ? 0 : indexConfiguration
+            .getQueryPlanCacheSize());
       interceptorChain.addBeforeInterceptor(new QueryProcessorInterceptor(new SimplePlaner(),
-         new CriteriaBasedOptimizer()), QueryableIndexStorage.class);
+         new CriteriaBasedOptimizer(), queryPlanCache), QueryableIndexStorage.class);
 
    }
 
@@ -126,15 +140,85 @@ public class SearchService implements Startable, ContentModificationListener, Se
       return execute(query, bindVariablesValues, defaultInvocationContext);
    }
 
+   /**
+    * Execute sorted query starting from the row what follows the row given
+    * search after token was created from. Each next page may be requested
+    * by token of the last row of the previous page without fetching of the
+    * preceding rows.
+    * 
+    * @param query
+    *           Query with at least one ordering and single selector
+    * @param bindVariablesValues
+    *           Map<String, Object>
+    * @param searchAfter
+    *           position to resume result from, may be null to get first page
+    * @return List<ScoredRow>
+    * @throws InvalidQueryException
+    *            , QueryExecutionException
+    * @see SearchAfter
+    */
+   public List<ScoredRow> execute(Query query, Map<String, Object> bindVariablesValues, SearchAfter searchAfter)
+      throws InvalidQueryException, QueryExecutionException
+   {
+      if (defaultInvocationContext == null)
+      {
+         throw new QueryExecutionException("DefaultInvocationContext can't be null");
+      }
+      return execute(query, bindVariablesValues, defaultInvocationContext, searchAfter);
+   }
+
    /**
     * @see org.xcmis.search.query.Searcher#execute(org.xcmis.search.model.Query,
     *      java.util.Map, org.xcmis.search.content.command.InvocationContext)
     */
-   @SuppressWarnings("unchecked")
    public List<ScoredRow> execute(Query query, Map<String, Object> bindVariablesValues,
       InvocationContext invocationContext) throws InvalidQueryException, QueryExecutionException
    {
-      ProcessQueryCommand processQueryCommand = new ProcessQueryCommand(query, bindVariablesValues);
+      return execute(query, bindVariablesValues, invocationContext, null);
+   }
+
+   /**
+    * Execute query and trim result to the entries readable by given
+    * principals. Trimming is done by index together with query constraints,
+    * so limit and offset of query are applied to the readable entries only.
+    * 
+    * @param query
+    *           Query
+    * @param bindVariablesValues
+    *           Map<String, Object>
+    * @param searchAfter
+    *           position to resume result from, may be null to get first page
+    * @param principals
+    *           principals of the caller, may be null to get all entries
+    * @return List<ScoredRow>
+    * @throws InvalidQueryException
+    *            , QueryExecutionException
+    * @see ContentEntry#getPrincipals()
+    */
+   public List<ScoredRow> execute(Query query, Map<String, Object> bindVariablesValues, SearchAfter searchAfter,
+      Set<String> principals) throws InvalidQueryException, QueryExecutionException
+   {
+      if (defaultInvocationContext == null)
+      {
+         throw new QueryExecutionException("DefaultInvocationContext can't be null");
+      }
+      return execute(query, bindVariablesValues, defaultInvocationContext, searchAfter, principals);
+   }
+
+   private List<ScoredRow> execute(Query query, Map<String, Object> bindVariablesValues,
+      InvocationContext invocationContext, SearchAfter searchAfter) throws InvalidQueryException,
+      QueryExecutionException
+   {
+      return execute(query, bindVariablesValues, invocationContext, searchAfter, null);
+   }
+
+   @SuppressWarnings("unchecked")
+   private List<ScoredRow> execute(Query query, Map<String, Object> bindVariablesValues,
+      InvocationContext invocationContext, SearchAfter searchAfter, Set<String> principals)
+      throws InvalidQueryException, QueryExecutionException
+   {
+      ProcessQueryCommand processQueryCommand =
+         new ProcessQueryCommand(query, bindVariablesValues, searchAfter, principals);
 
       try
       {
@@ -146,6 +230,17 @@ public class SearchService implements Startable, ContentModificationListener, Se
       }
    }
 
+   /**
+    * Cache of optimized query plans. Cache must be cleared after change of
+    * schema, e.g. when type is added or removed.
+    *
+    * @return cache of query plans
+    */
+   public QueryCache<PlanKey, QueryExecutionPlan> getQueryPlanCache()
+   {
+      return queryPlanCache;
+   }
+
    /**
     * @see org.xcmis.search.Startable#start()
     */
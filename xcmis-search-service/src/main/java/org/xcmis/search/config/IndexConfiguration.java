@@ -21,6 +21,8 @@ package org.xcmis.search.config;
 import org.apache.tika.config.TikaConfig;
 import org.apache.tika.mime.MimeTypeException;
 import org.xcmis.search.content.interceptors.QueryableIndexStorage;
+import org.xcmis.search.lucene.index.TransactionLogSyncPolicy;
+import org.xcmis.search.lucene.index.TrieNumberTools;
 
 import java.io.IOException;
 
@@ -60,6 +62,59 @@ public class IndexConfiguration
     */
    private final String queryableIndexStorage;
 
+   /**
+    * Number of threads what extract text from binary values.
+    */
+   private int textExtractorPoolSize = Runtime.getRuntime().availableProcessors();
+
+   /**
+    * Max time of text extraction of one binary value in milliseconds.
+    */
+   private long textExtractionTimeout = 60 * 1000;
+
+   /**
+    * Max number of characters extracted from one binary value. Rest of text is
+    * not indexed, so full-text search doesn't find words after the limit.
+    */
+   private int maxExtractedChars = 100 * 1000;
+
+   /**
+    * When transaction log is forced to the storage device.
+    */
+   private TransactionLogSyncPolicy transactionLogSyncPolicy = TransactionLogSyncPolicy.ALWAYS;
+
+   /**
+    * Min time between two forces of transaction log in milliseconds, used by
+    * {@link TransactionLogSyncPolicy#INTERVAL}.
+    */
+   private long transactionLogSyncInterval = 1000;
+
+   /**
+    * Size of transaction log segment after which new segment is started.
+    */
+   private long transactionLogSegmentSize = 4 * 1024 * 1024;
+
+   /**
+    * Number of similar sized persisted indexes merged at once.
+    */
+   private int mergeFactor = 10;
+
+   /**
+    * Max rate of writing of merged persisted indexes in bytes per second, 0
+    * if not limited.
+    */
+   private long maxMergeBytesPerSecond = 20 * 1024 * 1024;
+
+   /**
+    * Number of bits per precision step of trie encoded numbers and dates.
+    */
+   private int numericPrecisionStep = TrieNumberTools.DEFAULT_PRECISION_STEP;
+
+   /**
+    * Max number of cached query execution plans, 0 to disable cache.
+    */
+   private int queryPlanCacheSize = 256;
+
    /**
     * In memory index storage with default Tika configuration
     * 
@@ -146,4 +201,180 @@ public class IndexConfiguration
       return tikaConfiguration;
    }
 
+   /**
+    * @return number of threads what extract text from binary values
+    */
+   public int getTextExtractorPoolSize()
+   {
+      return textExtractorPoolSize;
+   }
+
+   /**
+    * @param textExtractorPoolSize number of threads what extract text from
+    *           binary values, text is extracted by indexing thread if 0 or if
+    *           all threads are busy and queue of waiting values is full
+    */
+   public void setTextExtractorPoolSize(int textExtractorPoolSize)
+   {
+      this.textExtractorPoolSize = textExtractorPoolSize;
+   }
+
+   /**
+    * @return max time of text extraction of one binary value in milliseconds
+    */
+   public long getTextExtractionTimeout()
+   {
+      return textExtractionTimeout;
+   }
+
+   /**
+    * @param textExtractionTimeout max time of text extraction of one binary
+    *           value in milliseconds, time of waiting for free thread is not
+    *           counted
+    */
+   public void setTextExtractionTimeout(long textExtractionTimeout)
+   {
+      this.textExtractionTimeout = textExtractionTimeout;
+   }
+
+   /**
+    * @return max number of characters extracted from one binary value
+    */
+   public int getMaxExtractedChars()
+   {
+      return maxExtractedChars;
+   }
+
+   /**
+    * @param maxExtractedChars max number of characters extracted from one
+    *           binary value. Text after the limit is not indexed, truncation
+    *           is logged as warning
+    */
+   public void setMaxExtractedChars(int maxExtractedChars)
+   {
+      this.maxExtractedChars = maxExtractedChars;
+   }
+
+   /**
+    * @return when transaction log is forced to the storage device
+    */
+   public TransactionLogSyncPolicy getTransactionLogSyncPolicy()
+   {
+      return transactionLogSyncPolicy;
+   }
+
+   /**
+    * @param transactionLogSyncPolicy when transaction log is forced to the
+    *           storage device
+    */
+   public void setTransactionLogSyncPolicy(TransactionLogSyncPolicy transactionLogSyncPolicy)
+   {
+      this.transactionLogSyncPolicy = transactionLogSyncPolicy;
+   }
+
+   /**
+    * @return min time between two forces of transaction log in milliseconds
+    */
+   public long getTransactionLogSyncInterval()
+   {
+      return transactionLogSyncInterval;
+   }
+
+   /**
+    * @param transactionLogSyncInterval min time between two forces of
+    *           transaction log in milliseconds
+    */
+   public void setTransactionLogSyncInterval(long transactionLogSyncInterval)
+   {
+      this.transactionLogSyncInterval = transactionLogSyncInterval;
+   }
+
+   /**
+    * @return size of transaction log segment in bytes
+    */
+   public long getTransactionLogSegmentSize()
+   {
+      return transactionLogSegmentSize;
+   }
+
+   /**
+    * @param transactionLogSegmentSize size of transaction log segment in bytes
+    */
+   public void setTransactionLogSegmentSize(long transactionLogSegmentSize)
+   {
+      this.transactionLogSegmentSize = transactionLogSegmentSize;
+   }
+
+   /**
+    * @return number of similar sized persisted indexes merged at once
+    */
+   public int getMergeFactor()
+   {
+      return mergeFactor;
+   }
+
+   /**
+    * @param mergeFactor number of similar sized persisted indexes merged at
+    *           once
+    */
+   public void setMergeFactor(int mergeFactor)
+   {
+      this.mergeFactor = mergeFactor;
+   }
+
+   /**
+    * @return max rate of writing of merged indexes in bytes per second, 0 if
+    *         not limited
+    */
+   public long getMaxMergeBytesPerSecond()
+   {
+      return maxMergeBytesPerSecond;
+   }
+
+   /**
+    * @param maxMergeBytesPerSecond max rate of writing of merged indexes in
+    *           bytes per second, 0 if not limited
+    */
+   public void setMaxMergeBytesPerSecond(long maxMergeBytesPerSecond)
+   {
+      this.maxMergeBytesPerSecond = maxMergeBytesPerSecond;
+   }
+
+   /**
+    * @return number of bits per precision step of trie encoded numbers and
+    *         dates
+    */
+   public int getNumericPrecisionStep()
+   {
+      return numericPrecisionStep;
+   }
+
+   /**
+    * @param numericPrecisionStep number of bits per precision step of trie
+    *           encoded numbers and dates. Range queries use trie terms only if
+    *           all documents are indexed with this step, index should be
+    *           rebuilt after change
+    */
+   public void setNumericPrecisionStep(int numericPrecisionStep)
+   {
+      this.numericPrecisionStep = numericPrecisionStep;
+   }
+
+   /**
+    * @return max number of cached query execution plans, 0 if cache is
+    *         disabled
+    */
+   public int getQueryPlanCacheSize()
+   {
+      return queryPlanCacheSize;
+   }
+
+   /**
+    * @param queryPlanCacheSize max number of cached query execution plans, 0
+    *           to disable cache
+    */
+   public void setQueryPlanCacheSize(int queryPlanCacheSize)
+   {
+      this.queryPlanCacheSize = queryPlanCacheSize;
+   }
 }
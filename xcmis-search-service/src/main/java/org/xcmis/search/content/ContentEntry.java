@@ -50,6 +50,11 @@ public class ContentEntry
     */
    private final Property[] properties;
 
+   /**
+    * Principals allowed to read entry, null if entry is readable by everyone.
+    */
+   private final String[] principals;
+
    /**
     * @param name String name
     * @param tableNames String[]
@@ -59,6 +64,21 @@ public class ContentEntry
     */
    public ContentEntry(String name, String[] tableNames, String identifer, String[] parentIdentifiers,
       Property[] properties)
+   {
+      this(name, tableNames, identifer, parentIdentifiers, properties, null);
+   }
+
+   /**
+    * @param name String name
+    * @param tableNames String[]
+    * @param identifier String
+    * @param parentIdentifiers String[]
+    * @param properties Property[]
+    * @param principals principals allowed to read entry, null if entry is
+    *           readable by everyone
+    */
+   public ContentEntry(String name, String[] tableNames, String identifer, String[] parentIdentifiers,
+      Property[] properties, String[] principals)
    {
       Validate.notNull(name, "The value argument may not be null");
       Validate.notEmpty(tableNames, "The tableNames may not be empty");
@@ -68,6 +88,7 @@ public class ContentEntry
       this.identifier = identifer;
       this.parentIdentifiers = parentIdentifiers;
       this.properties = properties;
+      this.principals = principals;
    }
 
    /**
@@ -110,4 +131,13 @@ public class ContentEntry
       return properties;
    }
 
+   /**
+    * @return the principals allowed to read entry, null if entry is readable by
+    *         everyone
+    */
+   public String[] getPrincipals()
+   {
+      return principals;
+   }
+
 }
@@ -27,9 +27,11 @@ import org.xcmis.search.model.constraint.Constraint;
 import org.xcmis.search.model.ordering.Ordering;
 import org.xcmis.search.model.source.Selector;
 import org.xcmis.search.model.source.SelectorName;
+import org.xcmis.search.result.SearchAfter;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Command for execution query with one single {@link Selector} filtered by
@@ -50,6 +52,10 @@ public class ExecuteSelectorCommand implements VisitableCommand
 
    private final Map<String, Object> bindVariablesValues;
 
+   private final SearchAfter searchAfter;
+
+   private final Set<String> principals;
+
    /**
     * @param source
     * @param constrain
@@ -58,6 +64,35 @@ public class ExecuteSelectorCommand implements VisitableCommand
     */
    public ExecuteSelectorCommand(SelectorName name, SelectorName alias, List<Constraint> constrains, Limit limit,
       List<Ordering> orderings, Map<String, Object> bindVariablesValues)
+   {
+      this(name, alias, constrains, limit, orderings, bindVariablesValues, null);
+   }
+
+   /**
+    * @param source
+    * @param constrain
+    * @param limit
+    * @param orderings
+    * @param searchAfter position to resume sorted result from, may be null
+    */
+   public ExecuteSelectorCommand(SelectorName name, SelectorName alias, List<Constraint> constrains, Limit limit,
+      List<Ordering> orderings, Map<String, Object> bindVariablesValues, SearchAfter searchAfter)
+   {
+      this(name, alias, constrains, limit, orderings, bindVariablesValues, searchAfter, null);
+   }
+
+   /**
+    * @param source
+    * @param constrain
+    * @param limit
+    * @param orderings
+    * @param searchAfter position to resume sorted result from, may be null
+    * @param principals principals of the caller, may be null to select all
+    *           entries
+    */
+   public ExecuteSelectorCommand(SelectorName name, SelectorName alias, List<Constraint> constrains, Limit limit,
+      List<Ordering> orderings, Map<String, Object> bindVariablesValues, SearchAfter searchAfter,
+      Set<String> principals)
    {
       Validate.notNull(name, "The name argument may not be null");
       //alias can be null
@@ -69,6 +104,8 @@ public class ExecuteSelectorCommand implements VisitableCommand
       this.constrains = constrains;
       this.limit = limit;
       this.orderings = orderings;
+      this.searchAfter = searchAfter;
+      this.principals = principals;
    }
 
    /**
@@ -119,6 +156,24 @@ public class ExecuteSelectorCommand implements VisitableCommand
       return orderings;
    }
 
+   /**
+    * @return the position to resume sorted result from, null if result
+    *         should be started from the first row
+    */
+   public SearchAfter getSearchAfter()
+   {
+      return searchAfter;
+   }
+
+   /**
+    * @return the principals of the caller, only entries readable by them
+    *         should be selected, null if all entries should be selected
+    */
+   public Set<String> getPrincipals()
+   {
+      return principals;
+   }
+
    /**
     * @see org.xcmis.search.content.command.VisitableCommand#acceptVisitor(org.xcmis.search.content.command.InvocationContext,
     *      org.xcmis.search.content.interceptors.Visitor)
@@ -22,8 +22,10 @@ import org.xcmis.search.content.command.InvocationContext;
 import org.xcmis.search.content.command.VisitableCommand;
 import org.xcmis.search.content.interceptors.Visitor;
 import org.xcmis.search.model.Query;
+import org.xcmis.search.result.SearchAfter;
 
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Process {@link Query} for execution.
@@ -35,14 +37,41 @@ public class ProcessQueryCommand implements VisitableCommand
 
    private final Map<String, Object> bindVariablesValues;
 
+   private final SearchAfter searchAfter;
+
+   private final Set<String> principals;
+
    /**
     * @param query
     */
    public ProcessQueryCommand(Query query, Map<String, Object> bindVariablesValues)
+   {
+      this(query, bindVariablesValues, null);
+   }
+
+   /**
+    * @param query
+    * @param searchAfter position to resume sorted result from, may be null
+    */
+   public ProcessQueryCommand(Query query, Map<String, Object> bindVariablesValues, SearchAfter searchAfter)
+   {
+      this(query, bindVariablesValues, searchAfter, null);
+   }
+
+   /**
+    * @param query
+    * @param searchAfter position to resume sorted result from, may be null
+    * @param principals principals of the caller, result is trimmed to entries
+    *           readable by them, may be null to get all entries
+    */
+   public ProcessQueryCommand(Query query, Map<String, Object> bindVariablesValues, SearchAfter searchAfter,
+      Set<String> principals)
    {
       super();
       this.query = query;
       this.bindVariablesValues = bindVariablesValues;
+      this.searchAfter = searchAfter;
+      this.principals = principals;
    }
 
    /**
@@ -61,6 +90,23 @@ public class ProcessQueryCommand implements VisitableCommand
       return bindVariablesValues;
    }
 
+   /**
+    * @return the position to resume sorted result from, null if result
+    *         should be started from the first row
+    */
+   public SearchAfter getSearchAfter()
+   {
+      return searchAfter;
+   }
+
+   /**
+    * @return the principals of the caller, null if result is not trimmed
+    */
+   public Set<String> getPrincipals()
+   {
+      return principals;
+   }
+
    /**
     * @see org.xcmis.search.content.command.appendIntereceptorVisitableCommand#acceptVisitor(org.xcmis.search.content.command.InvocationContext, org.xcmis.search.content.interceptors.Visitor)
     */
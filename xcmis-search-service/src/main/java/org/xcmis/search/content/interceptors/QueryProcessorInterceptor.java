@@ -20,30 +20,57 @@ package org.xcmis.search.content.interceptors;
 
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.commons.lang.Validate;
+import org.xcmis.search.VisitException;
+import org.xcmis.search.Visitors;
+import org.xcmis.search.content.ContentEntry;
+import org.xcmis.search.content.Property;
+import org.xcmis.search.content.Property.ContentValue;
+import org.xcmis.search.content.Schema;
 import org.xcmis.search.content.command.InvocationContext;
 import org.xcmis.search.content.command.query.ExecuteSelectorCommand;
 import org.xcmis.search.content.command.query.ProcessQueryCommand;
+import org.xcmis.search.content.command.read.GetContentEntryCommand;
 import org.xcmis.search.model.Limit;
 import org.xcmis.search.model.Query;
 import org.xcmis.search.model.constraint.Constraint;
 import org.xcmis.search.model.ordering.Ordering;
+import org.xcmis.search.model.source.SelectorName;
+import org.xcmis.search.model.source.join.ChildNodeJoinCondition;
+import org.xcmis.search.model.source.join.DescendantNodeJoinCondition;
+import org.xcmis.search.model.source.join.EquiJoinCondition;
+import org.xcmis.search.model.source.join.JoinType;
+import org.xcmis.search.model.source.join.SameNodeJoinCondition;
+import org.xcmis.search.query.QueryCache;
 import org.xcmis.search.query.QueryExecutionContext;
+import org.xcmis.search.query.QueryExecutionException;
 import org.xcmis.search.query.QueryExecutionExceptions;
 import org.xcmis.search.query.Statistics;
+import org.xcmis.search.query.join.JoinKeyResolver;
+import org.xcmis.search.query.join.RowJoiner;
+import org.xcmis.search.query.plan.JoinAlgorithm;
 import org.xcmis.search.query.plan.Optimizer;
 import org.xcmis.search.query.plan.QueryExecutionPlan;
 import org.xcmis.search.query.plan.QueryExecutionPlaner;
 import org.xcmis.search.query.plan.QueryExecutionPlan.JoinExecutionPlan;
 import org.xcmis.search.query.plan.QueryExecutionPlan.LimitExecutionPlan;
+import org.xcmis.search.query.plan.QueryExecutionPlan.NestedExecutionPlan;
 import org.xcmis.search.query.plan.QueryExecutionPlan.ProjectExecutionPlan;
 import org.xcmis.search.query.plan.QueryExecutionPlan.SelectorExecutionPlan;
 import org.xcmis.search.query.plan.QueryExecutionPlan.SortExecutionPlan;
 import org.xcmis.search.query.plan.QueryExecutionPlan.WhereExecutionPlan;
 import org.xcmis.search.result.ScoredRow;
+import org.xcmis.search.result.SearchAfter;
 
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * A query engine that is able to execute formal queries expressed in the
@@ -55,6 +82,11 @@ public class QueryProcessorInterceptor extends CommandInterceptor
 
    private final Optimizer optimizer;
 
+   /**
+    * Optimized plans of recently executed queries.
+    */
+   private final QueryCache<PlanKey, QueryExecutionPlan> planCache;
+
    /**
     * Create a new query engine given the {@link QueryExecutionPlaner planner},
     * {@link Optimizer optimizer}, {@link QueryProcessor processor}.
@@ -69,11 +101,30 @@ public class QueryProcessorInterceptor extends CommandInterceptor
     *            if the processor reference is null
     */
    public QueryProcessorInterceptor(QueryExecutionPlaner planner, Optimizer optimizer)
+   {
+      this(planner, optimizer, new QueryCache<PlanKey, QueryExecutionPlan>(0));
+   }
+
+   /**
+    * Create a new query engine what reuses optimized plans of the same
+    * queries.
+    *
+    * @param planner
+    *           the planner that should be used to generate canonical query
+    *           plans for the queries;
+    * @param optimizer
+    *           the optimizer that should be used to optimize the canonical
+    *           query plan
+    * @param planCache
+    *           cache of optimized plans
+    */
+   public QueryProcessorInterceptor(QueryExecutionPlaner planner, Optimizer optimizer,
+      QueryCache<PlanKey, QueryExecutionPlan> planCache)
    {
       super();
       this.planner = planner;
       this.optimizer = optimizer;
-
+      this.planCache = planCache;
    }
 
    /**
@@ -88,7 +139,7 @@ public class QueryProcessorInterceptor extends CommandInterceptor
       try
       {
          return execute(ctx, new QueryExecutionContext(ctx.getSchema(), executionExceptions, command
-            .getBindVariablesValues()), command.getQuery());
+            .getBindVariablesValues(), command.getPrincipals()), command.getQuery(), command.getSearchAfter());
       }
       finally
       {
@@ -110,10 +161,33 @@ public class QueryProcessorInterceptor extends CommandInterceptor
     * @throws IllegalArgumentException if the context or query references are null
     */
    public List<ScoredRow> execute(InvocationContext ctx, QueryExecutionContext context, Query query)
+   {
+      return execute(ctx, context, query, null);
+   }
+
+   /**
+    * Execute the supplied query by planning, optimizing, and then processing it.
+    * @param ctx 
+    * 
+    * @param context the context in which the query should be executed
+    * @param query the query that is to be executed
+    * @param searchAfter position to resume sorted result from, may be null
+    * @return the query results; never null
+    * @throws IllegalArgumentException if the context or query references are null
+    */
+   public List<ScoredRow> execute(InvocationContext ctx, QueryExecutionContext context, Query query,
+      SearchAfter searchAfter)
    {
       Validate.notNull(context, "The context argument may not be null");
       Validate.notNull(query, "The query argument may not be null");
 
+      PlanKey planKey = new PlanKey(context.getSchema(), query);
+      QueryExecutionPlan cachedPlan = planCache.get(planKey);
+      if (cachedPlan != null)
+      {
+         return execute(ctx, context, query, new Statistics(0), cachedPlan, searchAfter);
+      }
+
       // Create the plan ...
       long start = System.currentTimeMillis();
       QueryExecutionPlan executionPlan = planner.createPlan(context, query);
@@ -129,12 +203,13 @@ public class QueryProcessorInterceptor extends CommandInterceptor
          stats = stats.withOptimizationTime(duration);
          if (!context.getExecutionExceptions().hasProblems())
          {
+            planCache.put(planKey, optimizedPlan);
 
             // Execute the plan ...
             try
             {
                start = System.currentTimeMillis();
-               return execute(ctx, context, query, stats, optimizedPlan);
+               return execute(ctx, context, query, stats, optimizedPlan, searchAfter);
             }
             finally
             {
@@ -153,11 +228,22 @@ public class QueryProcessorInterceptor extends CommandInterceptor
     * @param query
     * @param stats
     * @param queryPlan
+    * @param searchAfter
     */
    private List<ScoredRow> execute(InvocationContext ctx, QueryExecutionContext context, Query query, Statistics stats,
-      QueryExecutionPlan queryPlan)
+      QueryExecutionPlan queryPlan, SearchAfter searchAfter)
    {
       QueryExecuteableComponent component = createQueryExecuteableComponent(queryPlan);
+      if (searchAfter != null)
+      {
+         if (!(component instanceof SelectorExecuteableComponent))
+         {
+            context.getExecutionExceptions().addException(
+               new QueryExecutionException("Search after is supported only for single selector queries."));
+            return null;
+         }
+         ((SelectorExecuteableComponent)component).setSearchAfter(searchAfter);
+      }
       return component.executeComponent(ctx, context);
    };
 
@@ -205,7 +291,9 @@ public class QueryProcessorInterceptor extends CommandInterceptor
                   + " not implemented");
          }
 
-         nextPlan = nextPlan.next();
+         // don't use next(), it can be called only once and plan may be cached
+         nextPlan =
+            nextPlan instanceof NestedExecutionPlan ? ((NestedExecutionPlan)nextPlan).getChildPlan() : null;
       }
       while (nextPlan != null);
       return null;
@@ -219,7 +307,7 @@ public class QueryProcessorInterceptor extends CommandInterceptor
    {
       private final LimitExecutionPlan limitPlan;
 
-      private final SortExecutionPlan sortPlan;
+      private SortExecutionPlan sortPlan;
 
       private final ProjectExecutionPlan projectPlan;
 
@@ -276,6 +364,14 @@ public class QueryProcessorInterceptor extends CommandInterceptor
          return sortPlan;
       }
 
+      /**
+       * @param sortPlan the sortPlan to set
+       */
+      public void setSortPlan(SortExecutionPlan sortPlan)
+      {
+         this.sortPlan = sortPlan;
+      }
+
       /**
        * @return the sortPlan
        */
@@ -322,6 +418,10 @@ public class QueryProcessorInterceptor extends CommandInterceptor
     */
    private class SelectorExecuteableComponent extends QueryExecuteableComponent
    {
+      /**
+       * Position to resume sorted result from.
+       */
+      private SearchAfter searchAfter;
 
       private final SelectorExecutionPlan selectorExecutionPlan;
 
@@ -347,6 +447,14 @@ public class QueryProcessorInterceptor extends CommandInterceptor
          return selectorExecutionPlan;
       }
 
+      /**
+       * @param searchAfter the position to resume sorted result from
+       */
+      public void setSearchAfter(SearchAfter searchAfter)
+      {
+         this.searchAfter = searchAfter;
+      }
+
       /**
        * 
        * @see org.xcmis.search.content.interceptors.QueryProcessorInterceptor.QueryExecuteableComponent#executeComponent(org.xcmis.search.query.QueryExecutionContext)
@@ -358,7 +466,8 @@ public class QueryProcessorInterceptor extends CommandInterceptor
          {
             ExecuteSelectorCommand command =
                new ExecuteSelectorCommand(selectorExecutionPlan.getName(), selectorExecutionPlan.getAlias(),
-                  getConstraints(), getLimit(), getOrder(), context.getVariables());
+                  getConstraints(), getLimit(), getOrder(), context.getVariables(), searchAfter, context
+                     .getPrincipals());
             return (List<ScoredRow>)getInterceptor().invokeNextInterceptor(ctx, command);
          }
          catch (Throwable e)
@@ -374,6 +483,26 @@ public class QueryProcessorInterceptor extends CommandInterceptor
 
       private final JoinExecutionPlan joinPlan;
 
+      private final QueryExecuteableComponent left;
+
+      private final QueryExecuteableComponent right;
+
+      /**
+       * Constraints what reference selectors of both sides.
+       */
+      private final List<WhereExecutionPlan> crossConstraints;
+
+      /**
+       * Side of the join what define result order, null if orderings is not
+       * specified or it reference both sides.
+       */
+      private QueryExecuteableComponent orderedSide;
+
+      /**
+       * Loaded content entries.
+       */
+      private final Map<String, ContentEntry> entries;
+
       /**
        * @param projectPlan
        * @param constraintsPlan
@@ -386,6 +515,12 @@ public class QueryProcessorInterceptor extends CommandInterceptor
       {
          super(interceptor, projectPlan, constraintsPlan, sortPlan, limitPlan);
          this.joinPlan = joinPlan;
+         this.left = left;
+         this.right = right;
+         this.crossConstraints = new ArrayList<WhereExecutionPlan>();
+         this.entries = new HashMap<String, ContentEntry>();
+         pushDownConstraints();
+         pushDownOrderings();
       }
 
       /**
@@ -395,7 +530,74 @@ public class QueryProcessorInterceptor extends CommandInterceptor
       @Override
       public List<ScoredRow> executeComponent(InvocationContext ctx, QueryExecutionContext context)
       {
-         throw new NotImplementedException("Method not implemented");
+         try
+         {
+            if (!crossConstraints.isEmpty())
+            {
+               throw new QueryExecutionException("Constraint " + crossConstraints.get(0).getConstraint()
+                  + " reference more then one side of join.");
+            }
+            if (getSortPlan() != null && orderedSide == null)
+            {
+               throw new QueryExecutionException("Orderings reference more then one side of join.");
+            }
+
+            List<ScoredRow> leftRows = left.executeComponent(ctx, context);
+            List<ScoredRow> rightRows = right.executeComponent(ctx, context);
+            if (leftRows == null || rightRows == null)
+            {
+               // exception already added to the context
+               return null;
+            }
+            JoinKeyResolver leftKeys = createKeyResolver(ctx, left);
+            JoinKeyResolver rightKeys = createKeyResolver(ctx, right);
+
+            JoinAlgorithm algorithm = joinPlan.getJoinAlgorithm();
+            if (algorithm == null)
+            {
+               algorithm = JoinAlgorithm.forCardinality(leftRows.size(), rightRows.size());
+            }
+            else if (algorithm == JoinAlgorithm.MERGE && orderedSide != null)
+            {
+               // merge join doesn't keep order of rows
+               algorithm = JoinAlgorithm.HASH;
+            }
+
+            // RowJoiner keep order of the left side and build hash table by the right side,
+            // so swap sides if order of the right side should be kept or if right side is bigger.
+            boolean swap =
+               orderedSide == right
+                  || (orderedSide == null && algorithm == JoinAlgorithm.HASH && leftRows.size() < rightRows.size());
+
+            List<ScoredRow> result;
+            if (swap)
+            {
+               JoinType joinType = joinPlan.getJoinType();
+               if (joinType == JoinType.LEFT_OUTER)
+               {
+                  joinType = JoinType.RIGHT_OUTER;
+               }
+               else if (joinType == JoinType.RIGHT_OUTER)
+               {
+                  joinType = JoinType.LEFT_OUTER;
+               }
+               result = new RowJoiner(joinType, algorithm).join(rightRows, rightKeys, leftRows, leftKeys);
+            }
+            else
+            {
+               result = new RowJoiner(joinPlan.getJoinType(), algorithm).join(leftRows, leftKeys, rightRows, rightKeys);
+            }
+            return applyLimit(result);
+         }
+         catch (Throwable e)
+         {
+            context.getExecutionExceptions().addException(e);
+         }
+         finally
+         {
+            entries.clear();
+         }
+         return null;
       }
 
       /**
@@ -406,5 +608,340 @@ public class QueryProcessorInterceptor extends CommandInterceptor
          return joinPlan;
       }
 
+      /**
+       * Move constraints what reference only one side of the join to that
+       * side.
+       */
+      private void pushDownConstraints()
+      {
+         for (WhereExecutionPlan constraintPlan : getConstraintsPlan())
+         {
+            Set<SelectorName> selectors = constraintPlan.getSelectors();
+            if (getSelectors(left).containsAll(selectors))
+            {
+               left.getConstraintsPlan().add(constraintPlan);
+            }
+            else if (getSelectors(right).containsAll(selectors))
+            {
+               right.getConstraintsPlan().add(constraintPlan);
+            }
+            else
+            {
+               crossConstraints.add(constraintPlan);
+            }
+         }
+      }
+
+      /**
+       * Move orderings to the side of the join if all of them reference only
+       * that side.
+       */
+      private void pushDownOrderings()
+      {
+         SortExecutionPlan sortPlan = getSortPlan();
+         if (sortPlan != null)
+         {
+            Set<SelectorName> selectors = new HashSet<SelectorName>();
+            for (Ordering ordering : sortPlan.getOrderings())
+            {
+               selectors.addAll(Visitors.getSelectorsReferencedBy(ordering));
+            }
+            if (getSelectors(left).containsAll(selectors))
+            {
+               orderedSide = left;
+            }
+            else if (getSelectors(right).containsAll(selectors))
+            {
+               orderedSide = right;
+            }
+            if (orderedSide != null)
+            {
+               orderedSide.setSortPlan(sortPlan);
+            }
+         }
+      }
+
+      /**
+       * @return result rows without skipped by offset and row limit
+       */
+      private List<ScoredRow> applyLimit(List<ScoredRow> rows)
+      {
+         Limit limit = getLimit();
+         if (limit.isUnlimited())
+         {
+            return rows;
+         }
+         int from = Math.min(limit.getOffset(), rows.size());
+         int to = (int)Math.min((long)from + limit.getRowLimit(), rows.size());
+         return new ArrayList<ScoredRow>(rows.subList(from, to));
+      }
+
+      /**
+       * Create resolver of the join keys for given side of join.
+       */
+      private JoinKeyResolver createKeyResolver(final InvocationContext ctx, QueryExecuteableComponent side)
+         throws VisitException
+      {
+         final Set<SelectorName> sideSelectors = getSelectors(side);
+         final JoinKeyResolver[] resolver = new JoinKeyResolver[1];
+         Visitors.visit(joinPlan.getJoinCondition(), new Visitors.AbstractModelVisitor()
+         {
+            @Override
+            public void visit(EquiJoinCondition node) throws VisitException
+            {
+               if (sideSelectors.contains(node.getSelector1Name()))
+               {
+                  resolver[0] = new PropertyKeyResolver(ctx, node.getSelector1Name(), node.getProperty1Name());
+               }
+               else
+               {
+                  resolver[0] = new PropertyKeyResolver(ctx, node.getSelector2Name(), node.getProperty2Name());
+               }
+            }
+
+            @Override
+            public void visit(ChildNodeJoinCondition node) throws VisitException
+            {
+               if (sideSelectors.contains(node.getParentSelectorName()))
+               {
+                  resolver[0] = new IdentifierKeyResolver(node.getParentSelectorName());
+               }
+               else
+               {
+                  resolver[0] = new ParentKeyResolver(ctx, node.getChildSelectorName(), false);
+               }
+            }
+
+            @Override
+            public void visit(DescendantNodeJoinCondition node) throws VisitException
+            {
+               if (sideSelectors.contains(node.getAncestorSelectorName()))
+               {
+                  resolver[0] = new IdentifierKeyResolver(node.getAncestorSelectorName());
+               }
+               else
+               {
+                  resolver[0] = new ParentKeyResolver(ctx, node.getDescendantSelectorName(), true);
+               }
+            }
+
+            @Override
+            public void visit(SameNodeJoinCondition node) throws VisitException
+            {
+               if (node.getSelector2Path() != null)
+               {
+                  throw new VisitException("SameNodeJoinCondition with path is not supported.");
+               }
+               resolver[0] =
+                  new IdentifierKeyResolver(sideSelectors.contains(node.getSelector1Name()) ? node.getSelector1Name()
+                     : node.getSelector2Name());
+            }
+         });
+         if (resolver[0] == null)
+         {
+            throw new VisitException("Join condition " + joinPlan.getJoinCondition() + " is not supported.");
+         }
+         return resolver[0];
+      }
+
+      private Set<SelectorName> getSelectors(QueryExecuteableComponent side)
+      {
+         if (side == left)
+         {
+            return joinPlan.getLeftPlan().getSelectors();
+         }
+         return joinPlan.getRightPlan().getSelectors();
+      }
+
+      /**
+       * Load content entry using next interceptors.
+       */
+      private ContentEntry getEntry(InvocationContext ctx, String identifier) throws QueryExecutionException
+      {
+         if (entries.containsKey(identifier))
+         {
+            return entries.get(identifier);
+         }
+         try
+         {
+            ContentEntry entry =
+               (ContentEntry)getInterceptor().invokeNextInterceptor(ctx, new GetContentEntryCommand(identifier));
+            entries.put(identifier, entry);
+            return entry;
+         }
+         catch (Throwable e)
+         {
+            throw new QueryExecutionException(e.getLocalizedMessage(), e);
+         }
+      }
+
+      /**
+       * Key is identifier of the selector node.
+       */
+      private class IdentifierKeyResolver implements JoinKeyResolver
+      {
+         private final SelectorName selectorName;
+
+         public IdentifierKeyResolver(SelectorName selectorName)
+         {
+            this.selectorName = selectorName;
+         }
+
+         public Collection<Object> getKeys(ScoredRow row)
+         {
+            String identifier = row.getNodeIdentifer(selectorName.getName());
+            if (identifier == null)
+            {
+               return Collections.emptyList();
+            }
+            return Collections.<Object> singletonList(identifier);
+         }
+      }
+
+      /**
+       * Keys are identifiers of the parents or all ancestors of the selector
+       * node.
+       */
+      private class ParentKeyResolver implements JoinKeyResolver
+      {
+         private final InvocationContext ctx;
+
+         private final SelectorName selectorName;
+
+         private final boolean isDeep;
+
+         public ParentKeyResolver(InvocationContext ctx, SelectorName selectorName, boolean isDeep)
+         {
+            this.ctx = ctx;
+            this.selectorName = selectorName;
+            this.isDeep = isDeep;
+         }
+
+         public Collection<Object> getKeys(ScoredRow row) throws QueryExecutionException
+         {
+            Set<Object> keys = new HashSet<Object>();
+            String identifier = row.getNodeIdentifer(selectorName.getName());
+            if (identifier == null)
+            {
+               return keys;
+            }
+            LinkedList<String> queue = new LinkedList<String>();
+            queue.add(identifier);
+            while (!queue.isEmpty())
+            {
+               ContentEntry entry = getEntry(ctx, queue.removeFirst());
+               if (entry != null && entry.getParentIdentifiers() != null)
+               {
+                  for (String parentIdentifier : entry.getParentIdentifiers())
+                  {
+                     if (keys.add(parentIdentifier) && isDeep)
+                     {
+                        queue.add(parentIdentifier);
+                     }
+                  }
+               }
+            }
+            return keys;
+         }
+      }
+
+      /**
+       * Keys are values of the selector node property.
+       */
+      private class PropertyKeyResolver implements JoinKeyResolver
+      {
+         private final InvocationContext ctx;
+
+         private final SelectorName selectorName;
+
+         private final String propertyName;
+
+         public PropertyKeyResolver(InvocationContext ctx, SelectorName selectorName, String propertyName)
+         {
+            this.ctx = ctx;
+            this.selectorName = selectorName;
+            this.propertyName = propertyName;
+         }
+
+         public Collection<Object> getKeys(ScoredRow row) throws QueryExecutionException
+         {
+            Set<Object> keys = new HashSet<Object>();
+            String identifier = row.getNodeIdentifer(selectorName.getName());
+            ContentEntry entry = identifier == null ? null : getEntry(ctx, identifier);
+            if (entry != null && entry.getProperties() != null)
+            {
+               for (Property<?> property : entry.getProperties())
+               {
+                  if (propertyName.equals(property.getName()))
+                  {
+                     for (ContentValue<?> value : property.getValue())
+                     {
+                        Object key = value.getValue();
+                        if (key instanceof Calendar)
+                        {
+                           // calendars in different time zones should be equal
+                           key = ((Calendar)key).getTimeInMillis();
+                        }
+                        if (key != null)
+                        {
+                           keys.add(key);
+                        }
+                     }
+                  }
+               }
+            }
+            return keys;
+         }
+      }
+   }
+
+   /**
+    * Key of cached plan. Plan depends on schema and on query including its
+    * orderings, but not on values of bind variables.
+    */
+   public static final class PlanKey
+   {
+      private final Schema schema;
+
+      private final Query query;
+
+      private final List<Ordering> orderings;
+
+      private final int hash;
+
+      PlanKey(Schema schema, Query query)
+      {
+         this.schema = schema;
+         this.query = query;
+         this.orderings = query.getOrderings();
+         this.hash = (31 * System.identityHashCode(schema) + query.hashCode()) * 31 + orderings.hashCode();
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (obj == this)
+         {
+            return true;
+         }
+         if (!(obj instanceof PlanKey))
+         {
+            return false;
+         }
+         PlanKey other = (PlanKey)obj;
+         return schema == other.schema && query.equals(other.query) && orderings.equals(other.orderings);
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public int hashCode()
+      {
+         return hash;
+      }
    }
 }
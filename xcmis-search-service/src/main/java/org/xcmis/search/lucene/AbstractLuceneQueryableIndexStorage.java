@@ -24,8 +24,11 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopFieldDocs;
@@ -46,7 +49,10 @@ import org.xcmis.search.lucene.index.IndexException;
 import org.xcmis.search.lucene.index.IndexTransactionException;
 import org.xcmis.search.lucene.index.LuceneIndexTransaction;
 import org.xcmis.search.lucene.index.LuceneIndexer;
-import org.xcmis.search.lucene.search.UUIDFieldSelector;
+import org.xcmis.search.lucene.search.LazyScoredRowList;
+import org.xcmis.search.lucene.search.PrincipalFilter;
+import org.xcmis.search.lucene.search.SearchAfterCollector;
+import org.xcmis.search.lucene.search.SearcherManager;
 import org.xcmis.search.model.Limit;
 import org.xcmis.search.model.constraint.Constraint;
 import org.xcmis.search.model.operand.FullTextSearchScore;
@@ -59,15 +65,16 @@ import org.xcmis.search.model.operand.PropertyValue;
 import org.xcmis.search.model.operand.UpperCase;
 import org.xcmis.search.model.ordering.Order;
 import org.xcmis.search.model.ordering.Ordering;
+import org.xcmis.search.query.QueryExecutionException;
 import org.xcmis.search.result.ScoredRow;
 import org.xcmis.search.value.NameConverter;
 import org.xcmis.search.value.PathSplitter;
 import org.xcmis.spi.utils.Logger;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -84,9 +91,10 @@ public abstract class AbstractLuceneQueryableIndexStorage extends QueryableIndex
    private static final Logger LOG = Logger.getLogger(AbstractLuceneQueryableIndexStorage.class);
 
    /**
-    * The upper limit for the initial fetch size.
+    * Number of the hits fetched by one search, rows after the window are
+    * fetched when they are accessed.
     */
-   protected static final int MAX_FETCH_SIZE = 32 * 1024;
+   private static final int FETCH_SIZE = 1024;
 
    /**
     * Convert one Sting name to other String name.
@@ -113,6 +121,11 @@ public abstract class AbstractLuceneQueryableIndexStorage extends QueryableIndex
     */
    protected IndexConfiguration indexConfuguration;
 
+   /**
+    * Shared searcher over last committed state of the index.
+    */
+   protected final SearcherManager searcherManager;
+
    /**
     * @param serviceConfiguration
     * @throws IndexException
@@ -143,14 +156,51 @@ public abstract class AbstractLuceneQueryableIndexStorage extends QueryableIndex
       this.indexConfuguration = serviceConfiguration.getIndexConfuguration();
 
       this.nodeIndexer = new LuceneIndexer(indexConfuguration);
+      this.searcherManager = new SearcherManager(new SearcherManager.IndexReaderSource()
+      {
+         public IndexReader openIndexReader() throws IndexException
+         {
+            return AbstractLuceneQueryableIndexStorage.this.openIndexReader();
+         }
+      });
+   }
 
+   /**
+    * @see org.xcmis.search.content.interceptors.CommandInterceptor#stop()
+    */
+   @Override
+   public void stop()
+   {
+      super.stop();
+      try
+      {
+         searcherManager.close();
+      }
+      catch (IndexException e)
+      {
+         LOG.error(e.getLocalizedMessage(), e);
+      }
    }
 
    public Query getConstrainQuery(Constraint constraint, Map<String, Object> bindVariablesValues)
       throws VisitException, IndexException
+   {
+      IndexSearcher searcher = searcherManager.acquire();
+      try
+      {
+         return getConstrainQuery(constraint, bindVariablesValues, searcher.getIndexReader());
+      }
+      finally
+      {
+         searcherManager.release(searcher);
+      }
+   }
+
+   private Query getConstrainQuery(Constraint constraint, Map<String, Object> bindVariablesValues,
+      IndexReader indexReader) throws VisitException, IndexException
    {
       LuceneQueryBuilder luceneQueryBuilder =
-         new LuceneQueryBuilder(getIndexReader(), nameConverter, pathSplitter, bindVariablesValues, indexConfuguration);
+         new LuceneQueryBuilder(indexReader, nameConverter, pathSplitter, bindVariablesValues, indexConfuguration);
       Visitors.visit(constraint, luceneQueryBuilder);
       return luceneQueryBuilder.getQuery();
    }
@@ -163,45 +213,74 @@ public abstract class AbstractLuceneQueryableIndexStorage extends QueryableIndex
    public Object visitExecuteSelectorCommand(InvocationContext ctx, ExecuteSelectorCommand command) throws Throwable
    {
 
-      List<ScoredRow> resultNodes = new ArrayList<ScoredRow>();
-      Query query = (Query)ctx.getTableResolver().resolve(command.getSelector().getName(), true);
-      if (command.getConstrains().size() > 0)
-      {
-         BooleanQuery booleanQuery = new BooleanQuery();
-
-         for (Constraint constrain : command.getConstrains())
-         {
-            booleanQuery.add(getConstrainQuery(constrain, command.getBindVariablesValues()), Occur.MUST);
-         }
-
-         booleanQuery.add(query, Occur.MUST);
-         query = booleanQuery;
-      }
-      // Open writer
-
-      IndexSearcher searcher = null;
+      List<ScoredRow> resultNodes = Collections.emptyList();
+      // the same snapshot is used to build query and to search
+      IndexSearcher searcher = searcherManager.acquire();
       try
       {
-         // get result
-         IndexReader indexReader = getIndexReader();
-         if (indexReader != null)
+         IndexReader indexReader = searcher.getIndexReader();
+         Query query = (Query)ctx.getTableResolver().resolve(command.getSelector().getName(), true);
+         if (command.getConstrains().size() > 0)
          {
-            searcher = new IndexSearcher(indexReader);
+            BooleanQuery booleanQuery = new BooleanQuery();
 
-            // query
-            Limit limit = command.getLimit();
-            int hits = Math.min(MAX_FETCH_SIZE, limit.getOffset() + limit.getRowLimit());
-            TopFieldDocs topDocs = searcher.search(query, null, hits, getSort(command.getOrderings()));
+            for (Constraint constrain : command.getConstrains())
+            {
+               booleanQuery.add(getConstrainQuery(constrain, command.getBindVariablesValues(), indexReader),
+                  Occur.MUST);
+            }
 
-            resultNodes = new LinkedList<ScoredRow>();
-            for (int i = limit.getOffset(); i < topDocs.scoreDocs.length; i++)
+            booleanQuery.add(query, Occur.MUST);
+            query = booleanQuery;
+         }
+         // security trimming, readable documents are resolved once per reader
+         Filter filter = command.getPrincipals() == null ? null : new PrincipalFilter(command.getPrincipals());
+
+         // query
+         Limit limit = command.getLimit();
+         Sort sort = getSort(command.getOrderings());
+         boolean sorted = command.getOrderings().size() > 0;
+         if (command.getSearchAfter() != null)
+         {
+            if (!sorted)
+            {
+               throw new QueryExecutionException("Search after is supported only for sorted queries.");
+            }
+            // rows after position, offset is already applied by position
+            int window = Math.min(indexReader.maxDoc(), Math.min(limit.getRowLimit(), FETCH_SIZE));
+            if (window > 0)
             {
-               // get identifiers
-               final Document doc = searcher.doc(topDocs.scoreDocs[i].doc, new UUIDFieldSelector());
-               final String id = doc.get(FieldNames.UUID);
-               resultNodes.add(new ScoredRow(command.getAlias().getName(), id, topDocs.scoreDocs[i].score));
+               SearchAfterCollector collector =
+                  searchAfter(searcher, query, filter, sort, command.getSearchAfter().getSortValues(), window);
+               int size = Math.min(collector.getTotalHits(), limit.getRowLimit());
+               resultNodes =
+                  new LazyScoredRowList(indexReader, command.getAlias().getName(), Arrays.asList(collector
+                     .getScoreDocs()), size, true, new WindowedHits(searcher, query, filter, sort, true, 0));
             }
          }
+         else
+         {
+            // first window only, next windows are fetched when rows are accessed
+            int end = (int)Math.min(Integer.MAX_VALUE, (long)limit.getOffset() + limit.getRowLimit());
+            int hits = Math.min(indexReader.maxDoc(), (int)Math.min(end, (long)limit.getOffset() + FETCH_SIZE));
+            if (hits > limit.getOffset())
+            {
+               TopFieldDocs topDocs = searcher.search(query, filter, hits, sort);
+               int size = Math.max(0, Math.min(topDocs.totalHits, end) - limit.getOffset());
+               List<ScoreDoc> first = Arrays.asList(topDocs.scoreDocs);
+               first = first.subList(Math.min(limit.getOffset(), first.size()), first.size());
+               // identifiers are loaded lazily, skipped hits are never loaded
+               resultNodes =
+                  new LazyScoredRowList(indexReader, command.getAlias().getName(), first, size, sorted,
+                     new WindowedHits(searcher, query, filter, sort, sorted, limit.getOffset()));
+            }
+         }
+         if (!resultNodes.isEmpty())
+         {
+            // rows are read after searcher is released, until list is exhausted or closed
+            LazyScoredRowList rows = (LazyScoredRowList)resultNodes;
+            rows.setLease(searcherManager.lease(rows, searcher));
+         }
       }
       catch (final CorruptIndexException e)
       {
@@ -213,19 +292,72 @@ public abstract class AbstractLuceneQueryableIndexStorage extends QueryableIndex
       }
       finally
       {
-         try
+         searcherManager.release(searcher);
+      }
+      return resultNodes;
+   }
+
+   private static SearchAfterCollector searchAfter(IndexSearcher searcher, Query query, Filter filter, Sort sort,
+      Comparable<?>[] after, int size) throws IOException
+   {
+      SearchAfterCollector collector = new SearchAfterCollector(searcher.getIndexReader(), sort.getSort(), after, size);
+      searcher.search(query, filter, collector);
+      return collector;
+   }
+
+   /**
+    * Fetch hits of the selector query by windows. Sorted result is resumed
+    * after the last fetched hit, so each window costs the same. Relevance order
+    * can't be resumed, so window is at least doubled and preceding hits are
+    * fetched again.
+    */
+   private static class WindowedHits implements LazyScoredRowList.HitSource
+   {
+      private final IndexSearcher searcher;
+
+      private final Query query;
+
+      private final Filter filter;
+
+      private final Sort sort;
+
+      private final boolean sorted;
+
+      private final int offset;
+
+      WindowedHits(IndexSearcher searcher, Query query, Filter filter, Sort sort, boolean sorted, int offset)
+      {
+         this.searcher = searcher;
+         this.query = query;
+         this.filter = filter;
+         this.sort = sort;
+         this.sorted = sorted;
+         this.offset = offset;
+      }
+
+      public ScoreDoc[] fetch(ScoreDoc last, int fetched, int count) throws IOException
+      {
+         int maxDoc = searcher.getIndexReader().maxDoc();
+         int window = Math.min(maxDoc, Math.max(count, FETCH_SIZE));
+         if (sorted && last != null)
          {
-            if (searcher != null)
-            {
-               searcher.close();
-            }
+            return searchAfter(searcher, query, filter, sort, ((FieldDoc)last).fields, window).getScoreDocs();
          }
-         catch (final IOException e)
+         int from = offset + fetched;
+         int hits = (int)Math.min(maxDoc, (long)from + Math.max(window, fetched));
+         if (hits <= from)
          {
-            throw new IndexException(e.getLocalizedMessage(), e);
+            return new ScoreDoc[0];
          }
+         ScoreDoc[] scoreDocs = searcher.search(query, filter, hits, sort).scoreDocs;
+         if (scoreDocs.length <= from)
+         {
+            return new ScoreDoc[0];
+         }
+         ScoreDoc[] next = new ScoreDoc[scoreDocs.length - from];
+         System.arraycopy(scoreDocs, from, next, 0, next.length);
+         return next;
       }
-      return resultNodes;
    }
 
    /**
@@ -236,16 +368,21 @@ public abstract class AbstractLuceneQueryableIndexStorage extends QueryableIndex
    public Object visitModifyIndexCommand(InvocationContext ctx, ModifyIndexCommand command) throws Throwable
    {
       Map<String, Document> addedDocuments = new HashMap<String, Document>();
-      // indexing content
-      for (ContentEntry entry : command.getAddedDocuments())
+      // indexing content, binary values of all entries are extracted concurrently
+      List<ContentEntry> entries = command.getAddedDocuments();
+      List<Document> documents = nodeIndexer.createDocuments(entries);
+      for (int i = 0; i < entries.size(); i++)
       {
-         addedDocuments.put(entry.getIdentifier(), nodeIndexer.createDocument(entry));
+         addedDocuments.put(entries.get(i).getIdentifier(), documents.get(i));
       }
 
       LuceneIndexTransaction indexTransaction =
          new LuceneIndexTransaction(addedDocuments, command.getDeletedDocuments());
 
-      return save(indexTransaction);
+      Object result = save(indexTransaction);
+      // publish committed changes to the next queries
+      searcherManager.refresh();
+      return result;
    }
 
    /**
@@ -253,6 +390,22 @@ public abstract class AbstractLuceneQueryableIndexStorage extends QueryableIndex
     */
    protected abstract IndexReader getIndexReader() throws IndexException;
 
+   /**
+    * Open reader for the new searcher snapshot. Caller owns one reference of
+    * the returned reader. By default reference of the
+    * {@link #getIndexReader()} is taken, storages what create new reader on
+    * each call should override this method.
+    * 
+    * @return index reader
+    * @throws IndexException
+    */
+   protected IndexReader openIndexReader() throws IndexException
+   {
+      IndexReader reader = getIndexReader();
+      reader.incRef();
+      return reader;
+   }
+
    /**
     * @param indexTransaction
     * @return
@@ -273,7 +426,7 @@ public abstract class AbstractLuceneQueryableIndexStorage extends QueryableIndex
    {
       if (list.size() > 0)
       {
-         SortField[] fields = new SortField[list.size()];
+         SortField[] fields = new SortField[list.size() + 1];
          SortFieldVisitor sortVisitor = new SortFieldVisitor();
          int i = 0;
          for (Ordering ordering : list)
@@ -281,6 +434,9 @@ public abstract class AbstractLuceneQueryableIndexStorage extends QueryableIndex
             Visitors.visitAll(ordering, sortVisitor);
             fields[i++] = sortVisitor.getSortField();
          }
+         // make order of the equal rows stable between index modifications, so
+         // sorted result may be resumed by search after position
+         fields[i] = new SortField(FieldNames.UUID, SortField.STRING);
          return new Sort(fields);
 
       }
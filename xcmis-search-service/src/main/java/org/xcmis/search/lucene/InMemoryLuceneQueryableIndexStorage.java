@@ -86,7 +86,7 @@ public class InMemoryLuceneQueryableIndexStorage extends AbstractLuceneQueryable
     * @see org.xcmis.search.lucene.AbstractLuceneQueryableIndexStorage#getIndexReader()
     */
    @Override
-   protected IndexReader getIndexReader() throws IndexException
+   protected synchronized IndexReader getIndexReader() throws IndexException
    {
       try
       {
@@ -97,7 +97,10 @@ public class InMemoryLuceneQueryableIndexStorage extends AbstractLuceneQueryable
          }
          else if (!this.indexReader.isCurrent())
          {
-            this.indexReader = this.indexReader.reopen();
+            IndexReader oldReader = this.indexReader;
+            this.indexReader = oldReader.reopen();
+            // searchers of the previous snapshot keep own references
+            oldReader.close();
          }
       }
       catch (CorruptIndexException e)
@@ -31,6 +31,7 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.RangeQuery;
@@ -49,11 +50,13 @@ import org.xcmis.search.lucene.content.ErrorReporterImpl;
 import org.xcmis.search.lucene.index.ExtendedNumberTools;
 import org.xcmis.search.lucene.index.FieldNames;
 import org.xcmis.search.lucene.index.IndexException;
+import org.xcmis.search.lucene.index.TrieNumberTools;
 import org.xcmis.search.lucene.search.CaseInsensitiveRangeQuery;
 import org.xcmis.search.lucene.search.CaseInsensitiveRegexCapImpl;
 import org.xcmis.search.lucene.search.CaseInsensitiveTermQuery;
-import org.xcmis.search.lucene.search.ChildTraversingQueryNode;
 import org.xcmis.search.lucene.search.DescendantQueryNode;
+import org.xcmis.search.lucene.search.TreeScopeFilter;
+import org.xcmis.search.lucene.search.TrieRangeQuery;
 import org.xcmis.search.model.Limit;
 import org.xcmis.search.model.column.Column;
 import org.xcmis.search.model.constraint.And;
@@ -86,6 +89,7 @@ import org.xcmis.search.model.source.join.SameNodeJoinCondition;
 import org.xcmis.search.value.NameConverter;
 import org.xcmis.search.value.PathSplitter;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
@@ -128,6 +132,12 @@ public class LuceneQueryBuilder implements QueryObjectModelVisitor
 
    private final IndexConfiguration indexConfiguration;
 
+   /**
+    * All documents of index have trie terms of configured precision step,
+    * <code>null</code> if not checked yet.
+    */
+   private Boolean trieIndexed;
+
    /**
     * @param indexReader 
     * @param nameConverter 
@@ -216,7 +226,7 @@ public class LuceneQueryBuilder implements QueryObjectModelVisitor
       {
          //uuid based absolute path
          Query parentQuery = new TermQuery(new Term(FieldNames.UUID, parentPath.substring(1, parentPath.length() - 1)));
-         Query childNodeQuery = new ChildTraversingQueryNode(parentQuery, false);
+         Query childNodeQuery = new ConstantScoreQuery(new TreeScopeFilter(parentQuery, false));
          queryBuilderStack.push(childNodeQuery);
 
       }
@@ -242,7 +252,7 @@ public class LuceneQueryBuilder implements QueryObjectModelVisitor
             }
 
             // all child
-            childNodeQuery = new ChildTraversingQueryNode(childNodeQuery, false);
+            childNodeQuery = new ConstantScoreQuery(new TreeScopeFilter(childNodeQuery, false));
             queryBuilderStack.push(childNodeQuery);
          }
          else
@@ -298,7 +308,7 @@ public class LuceneQueryBuilder implements QueryObjectModelVisitor
       {
          //uuid based absolute path
          Query parentQuery = new TermQuery(new Term(FieldNames.UUID, parentPath.substring(1, parentPath.length() - 1)));
-         Query childNodeQuery = new ChildTraversingQueryNode(parentQuery, true);
+         Query childNodeQuery = new ConstantScoreQuery(new TreeScopeFilter(parentQuery, true));
          queryBuilderStack.push(childNodeQuery);
       }
       else
@@ -315,7 +325,7 @@ public class LuceneQueryBuilder implements QueryObjectModelVisitor
          }
          // all childs
 
-         descendantQuery = new ChildTraversingQueryNode(descendantQuery, true);
+         descendantQuery = new ConstantScoreQuery(new TreeScopeFilter(descendantQuery, true));
 
          queryBuilderStack.push(descendantQuery);
       }
@@ -831,6 +841,18 @@ public class LuceneQueryBuilder implements QueryObjectModelVisitor
          staticStingValue = staticValue.toString();
       }
 
+      // numbers and dates are compared by trie terms
+      if ((staticValue instanceof Double || staticValue instanceof Long || staticValue instanceof Calendar)
+         && isTrieIndexed())
+      {
+         Query trieRangeQuery = createTrieRangeQuery(node.getPropertyName(), operator, staticValue);
+         if (trieRangeQuery != null)
+         {
+            queryBuilderStack.push(trieRangeQuery);
+            return;
+         }
+      }
+
       Term propertyValueTerm = new Term(FieldNames.createPropertyFieldName(node.getPropertyName()), staticStingValue);
       TermQuery propertyValueQuery = new TermQuery(propertyValueTerm);
       Term maxFildValue = new Term(FieldNames.createPropertyFieldName(node.getPropertyName()), "\uFFFF");
@@ -1099,4 +1121,64 @@ public class LuceneQueryBuilder implements QueryObjectModelVisitor
       regexp.append("$");
       return regexp.toString();
    }
+
+   /**
+    * Documents indexed before trie terms were added or with other precision
+    * step have no trie terms of configured precision step. Range queries over
+    * such index use string encoded terms of properties until index is rebuilt.
+    * 
+    * @return <code>true</code> if all documents of index have trie terms of
+    *         configured precision step
+    * @throws VisitException if index can't be read
+    */
+   private boolean isTrieIndexed() throws VisitException
+   {
+      if (trieIndexed == null)
+      {
+         try
+         {
+            final Term format =
+               new Term(FieldNames.NUMERIC_FORMAT, FieldNames.createNumericFormat(indexConfiguration
+                  .getNumericPrecisionStep()));
+            // deleted documents are counted by both
+            trieIndexed = indexReader.docFreq(format) == indexReader.maxDoc();
+         }
+         catch (final IOException e)
+         {
+            throw new VisitException(e.getLocalizedMessage());
+         }
+      }
+      return trieIndexed;
+   }
+
+   /**
+    * Create range query over trie encoded terms of the number or date
+    * property.
+    * 
+    * @param propertyName name of the property
+    * @param operator comparison operator
+    * @param staticValue Long, Double or Calendar value
+    * @return range query or null if operator isn't range comparison
+    */
+   private Query createTrieRangeQuery(String propertyName, Operator operator, Object staticValue)
+   {
+      final long value =
+         staticValue instanceof Calendar ? ((Calendar)staticValue).getTimeInMillis() : TrieNumberTools
+            .doubleToSortableLong(((Number)staticValue).doubleValue());
+      final String field = FieldNames.createNumericFieldName(propertyName);
+      final int precisionStep = indexConfiguration.getNumericPrecisionStep();
+      switch (operator)
+      {
+         case GREATER_THAN :
+            return new TrieRangeQuery(field, value, null, false, true, precisionStep);
+         case GREATER_THAN_OR_EQUAL_TO :
+            return new TrieRangeQuery(field, value, null, true, true, precisionStep);
+         case LESS_THAN :
+            return new TrieRangeQuery(field, null, value, true, false, precisionStep);
+         case LESS_THAN_OR_EQUAL_TO :
+            return new TrieRangeQuery(field, null, value, true, true, precisionStep);
+         default :
+            return null;
+      }
+   }
 }
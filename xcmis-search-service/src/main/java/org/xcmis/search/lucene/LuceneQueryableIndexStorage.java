@@ -72,6 +72,15 @@ public class LuceneQueryableIndexStorage extends AbstractLuceneQueryableIndexSto
    {
       super.start();
       this.indexDataManager.start();
+      try
+      {
+         // open and warm first snapshot before queries
+         searcherManager.refresh();
+      }
+      catch (IndexException e)
+      {
+         LOG.error(e.getLocalizedMessage(), e);
+      }
    }
 
    /**
@@ -94,6 +103,15 @@ public class LuceneQueryableIndexStorage extends AbstractLuceneQueryableIndexSto
       return indexDataManager.getIndexReader();
    }
 
+   /**
+    * @see org.xcmis.search.lucene.AbstractLuceneQueryableIndexStorage#openIndexReader()
+    */
+   @Override
+   protected IndexReader openIndexReader() throws IndexException
+   {
+      return indexDataManager.openIndexReader();
+   }
+
    protected Document getDocument(String uuid, IndexReader reader) throws IndexException
    {
 
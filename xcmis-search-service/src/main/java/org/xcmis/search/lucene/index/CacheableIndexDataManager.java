@@ -292,25 +292,68 @@ public class CacheableIndexDataManager extends LocalIndexDataManagerProxy
             }
             if (result == null)
             {
-               try
-               {
-                  RAMDirectory directory = new RAMDirectory();
-                  IndexWriter.MaxFieldLength fieldLength =
-                     new IndexWriter.MaxFieldLength(IndexWriter.DEFAULT_MAX_FIELD_LENGTH);
-                  IndexWriter iw = new IndexWriter(directory, new SimpleAnalyzer(), true, fieldLength);
-                  iw.close();
-                  result = IndexReader.open(directory);
-               }
-               catch (IOException e)
+               result = openEmptyIndexReader();
+            }
+            return result;
+         }
+      }
+   }
+
+   /**
+    * Open new reader over all in-memory and persisted chains. Unlike
+    * {@link #getIndexReader()} returned reader is always new instance and
+    * caller owns one reference of it. Reader holds references of the chain
+    * readers, so it stays valid after chains are merged or flushed, until it is
+    * released by {@link IndexReader#decRef()}.
+    * 
+    * @return new reader
+    * @throws IndexException
+    */
+   public IndexReader openIndexReader() throws IndexException
+   {
+      final List<IndexReader> readers = new ArrayList<IndexReader>();
+      final List<PersistedIndex> retained = new ArrayList<PersistedIndex>();
+      synchronized (memoryChains)
+      {
+         synchronized (updateMonitor)
+         {
+            for (final LuceneIndexDataManager chain : memoryChains)
+            {
+               final IndexReader indexReader = chain.getIndexReader();
+               if (indexReader != null)
                {
-                  throw new IndexException("Unable to initialize index: empty index ");
+                  readers.add(indexReader);
                }
-
             }
-            return result;
+            collectIndexReaders(readers, retained);
+            if (readers.size() > 0)
+            {
+               // sub readers are referenced, not owned
+               return new SnapshotIndexReader(readers.toArray(new IndexReader[readers.size()]), retained);
+            }
          }
       }
+      return openEmptyIndexReader();
+   }
 
+   /**
+    * @return reader of the new empty index
+    * @throws IndexException
+    */
+   private IndexReader openEmptyIndexReader() throws IndexException
+   {
+      try
+      {
+         RAMDirectory directory = new RAMDirectory();
+         IndexWriter.MaxFieldLength fieldLength = new IndexWriter.MaxFieldLength(IndexWriter.DEFAULT_MAX_FIELD_LENGTH);
+         IndexWriter iw = new IndexWriter(directory, new SimpleAnalyzer(), true, fieldLength);
+         iw.close();
+         return IndexReader.open(directory);
+      }
+      catch (IOException e)
+      {
+         throw new IndexException("Unable to initialize index: empty index ");
+      }
    }
 
    /**
@@ -427,9 +470,8 @@ public class CacheableIndexDataManager extends LocalIndexDataManagerProxy
          {
             flushTask.cancel();
          }
-         // clear canceled tasks
+         // clear canceled tasks, timer is shared by all indexes and is not cancelled
          FLUSH_TIMER.purge();
-         FLUSH_TIMER.cancel();
       }
       catch (final ConcurrentModificationException e)
       {
@@ -21,10 +21,15 @@ package org.xcmis.search.lucene.index;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created by The eXo Platform SAS. <br/>
  * Date:
+ * <p>
+ * Keeps log of each transaction in separate file. Used to recover logs written
+ * by previous versions, new logs are written by
+ * {@link SegmentedIndexTransactionService}.
  * 
  * @author <a href="karpenko.sergiy@gmail.com">Karpenko Sergiy</a>
  * @version $Id: FSIndexTransactionService.java 2 2010-02-04 17:21:49Z andrew00x $
@@ -52,6 +57,17 @@ public class FSIndexTransactionService implements IndexTransactionService
       return storageDir;
    }
 
+   /**
+    * {@inheritDoc}
+    */
+   public TransactionLog createTransactionLog(final Set<String> addedDocuments, final Set<String> removedDocuments)
+   {
+      return new FileSystemTransactionLog(addedDocuments, removedDocuments, this);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
    public List<TransactionLog> getTransactionLogs() throws TransactionLogException
    {
       final List<File> logFileList = this.getFileList(storageDir);
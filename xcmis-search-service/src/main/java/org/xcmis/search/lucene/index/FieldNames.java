@@ -59,6 +59,19 @@ public class FieldNames
     */
    public static final String LENGTH_PREFIX = "LENGTH:";
 
+   /**
+    * Prefix for all field names that hold trie encoded terms of numeric and
+    * date properties.
+    */
+   public static final String NUMERIC_PREFIX = "NUM:";
+
+   /**
+    * Name of the field that contains format of trie terms the node is indexed
+    * with, see {@link #createNumericFormat(int)}. Terms are not tokenized and
+    * not stored, only indexed.
+    */
+   public static final String NUMERIC_FORMAT = "_:NUM_FORMAT".intern();
+
    /**
     * Name of the field that contains the UUID of the parent node. Terms are
     * stored and but not tokenized.
@@ -97,6 +110,18 @@ public class FieldNames
     */
    public static final String AGGREGATED_NODE_UUID = "_:AGGR_NODE_UUID".intern();
 
+   /**
+    * Name of the field that contains the principals allowed to read the node.
+    * Terms are not tokenized and not stored, only indexed.
+    */
+   public static final String PRINCIPAL = "_:PRINCIPAL".intern();
+
+   /**
+    * Term of the {@link #PRINCIPAL} field for nodes what are readable by
+    * everyone.
+    */
+   public static final String UNRESTRICTED = "_:UNRESTRICTED".intern();
+
    /**
     * Private constructor.
     */
@@ -160,6 +185,31 @@ public class FieldNames
       return propertyName.substring(0, idx + 1) + FieldNames.PROPERTY_PREFIX + propertyName.substring(idx + 1);
    }
 
+   /**
+    * Returns name of the field what holds trie encoded terms of numeric or
+    * date property.
+    * 
+    * @param propertyName the property name
+    * @return trie field name
+    */
+   public static String createNumericFieldName(String propertyName)
+   {
+      int idx = propertyName.indexOf(':');
+      return propertyName.substring(0, idx + 1) + FieldNames.NUMERIC_PREFIX + propertyName.substring(idx + 1);
+   }
+
+   /**
+    * Returns value of {@link #NUMERIC_FORMAT} field for nodes indexed with
+    * trie terms of given precision step.
+    * 
+    * @param precisionStep precision step of trie terms
+    * @return format of trie terms
+    */
+   public static String createNumericFormat(int precisionStep)
+   {
+      return "trie:" + precisionStep;
+   }
+
    /**
     * Returns the length of the field prefix in <code>namedValue</code>. See also
     * {@link #createNamedValue(String, String)}. If <code>namedValue</code> does
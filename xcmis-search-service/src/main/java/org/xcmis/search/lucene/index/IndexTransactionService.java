@@ -18,6 +18,9 @@
  */
 package org.xcmis.search.lucene.index;
 
+import java.util.List;
+import java.util.Set;
+
 /**
  * Created by The eXo Platform SAS.
  * 
@@ -28,5 +31,23 @@ package org.xcmis.search.lucene.index;
  */
 public interface IndexTransactionService
 {
+   /**
+    * Create log of new transaction.
+    *
+    * @param addedDocuments uuids of added documents
+    * @param removedDocuments uuids of removed documents
+    * @return not yet logged transaction log
+    */
+   TransactionLog createTransactionLog(Set<String> addedDocuments, Set<String> removedDocuments);
+
+   /**
+    * @return logs of transactions what were logged but not ended
+    * @throws TransactionLogException if logs can't be read
+    */
+   List<TransactionLog> getTransactionLogs() throws TransactionLogException;
 
+   /**
+    * @return <code>true</code> if there are logged but not ended transactions
+    */
+   boolean hasUncommitedTransactions();
 }
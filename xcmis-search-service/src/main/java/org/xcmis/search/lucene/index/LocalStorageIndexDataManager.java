@@ -18,30 +18,35 @@
  */
 package org.xcmis.search.lucene.index;
 
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.MultiReader;
-import org.apache.lucene.index.IndexWriter.MaxFieldLength;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.LockObtainFailedException;
 import org.xcmis.search.Startable;
 import org.xcmis.search.config.IndexConfiguration;
 import org.xcmis.search.config.IndexConfigurationException;
 import org.xcmis.search.content.IndexModificationException;
 import org.xcmis.search.lucene.index.merge.IndexAggregator;
+import org.xcmis.search.lucene.index.merge.MergeRateLimiter;
+import org.xcmis.search.lucene.index.merge.TieredAggregatePolicy;
 import org.xcmis.spi.utils.Logger;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created by The eXo Platform SAS.
+ * <p>
+ * Persisted documents are kept in chain of indexes. Each flush writes new
+ * small index, background merge thread merges similar sized indexes according
+ * to {@link TieredAggregatePolicy} with limited write rate. All indexes are
+ * merged into one only by explicit {@link #optimize()}.
  * 
  * @author <a href="mailto:Sergey.Kabashnyuk@gmail.com">Sergey Kabashnyuk</a>
  * @version $Id: LocalStorageIndexDataManager.java 2 2010-02-04 17:21:49Z andrew00x $
@@ -65,6 +70,37 @@ public class LocalStorageIndexDataManager implements LuceneIndexDataManager, Ind
 
    private final IndexConfiguration indexConfuguration;
 
+   private final TieredAggregatePolicy mergePolicy;
+
+   private final MergeRateLimiter mergeRateLimiter;
+
+   /**
+    * Only one merge at time.
+    */
+   private final Object mergeLock = new Object();
+
+   /**
+    * Indexes being merged. Guarded by chains.
+    */
+   private final Set<LuceneIndexDataManager> merging = new HashSet<LuceneIndexDataManager>();
+
+   /**
+    * Documents removed from indexes being merged, must be removed from merged
+    * index. Guarded by chains.
+    */
+   private final Set<String> removedWhileMerging = new HashSet<String>();
+
+   private final Object mergeMonitor = new Object();
+
+   /**
+    * Guarded by mergeMonitor.
+    */
+   private boolean mergeRequested;
+
+   private volatile boolean mergeStopped;
+
+   private Thread mergeThread;
+
    /**
     * @throws IndexConfigurationException
     * @throws IndexException
@@ -78,67 +114,150 @@ public class LocalStorageIndexDataManager implements LuceneIndexDataManager, Ind
 
       indexFactory = new PersistentIndexDataKeeperFactory(indexConfuguration);
 
+      mergePolicy = new TieredAggregatePolicy();
+      mergePolicy.setMergeFactor(indexConfuguration.getMergeFactor());
+      mergeRateLimiter = new MergeRateLimiter(indexConfuguration.getMaxMergeBytesPerSecond());
    }
 
+   /**
+    * Write indexes into new persisted index, merging is done later by
+    * background thread.
+    * 
+    * @see org.xcmis.search.lucene.index.merge.IndexAggregator#aggregate(java.util.Collection)
+    */
    public IndexTransactionModificationReport aggregate(final Collection<LuceneIndexDataManager> indexes)
       throws IndexException, IndexTransactionException
    {
-      if (chains.size() == 0)
+      final PersistedIndex flushed = (PersistedIndex)indexFactory.merge(indexes);
+      synchronized (chains)
       {
-         chains.add((PersistedIndex)indexFactory.merge(indexes));
+         chains.add(flushed);
       }
-      else
+      requestMerge();
+      return null;
+   }
+
+   /**
+    * Merge all persisted indexes into one. Waits for running background merge.
+    * 
+    * @throws IndexException if indexes can't be merged
+    */
+   public void optimize() throws IndexException
+   {
+      synchronized (mergeLock)
       {
-         IndexWriter writer = null;
-         try
+         List<LuceneIndexDataManager> candidates;
+         synchronized (chains)
+         {
+            candidates =
+               new ArrayList<LuceneIndexDataManager>(mergePolicy
+                  .findIndexDataManagerToOptimize(new ArrayList<LuceneIndexDataManager>(chains)));
+         }
+         if (candidates.size() > 1)
          {
-            final PersistedIndex index = chains.get(0);
+            merge(candidates);
+         }
+      }
+   }
+
+   /**
+    * @return number of persisted indexes
+    */
+   public int getPersistedIndexCount()
+   {
+      synchronized (chains)
+      {
+         return chains.size();
+      }
+   }
 
-            writer = new IndexWriter(index.getDirectory(), new StandardAnalyzer(), MaxFieldLength.UNLIMITED);
-            final List<Directory> dirs = new ArrayList<Directory>();
-            for (final LuceneIndexDataManager luceneIndexDataManager : indexes)
+   /**
+    * Wake up merge thread.
+    */
+   protected void requestMerge()
+   {
+      synchronized (mergeMonitor)
+      {
+         mergeRequested = true;
+         mergeMonitor.notifyAll();
+      }
+   }
+
+   /**
+    * Merge indexes selected by merge policy until there is nothing to merge.
+    */
+   private void mergeAll() throws IndexException
+   {
+      while (!mergeStopped)
+      {
+         synchronized (mergeLock)
+         {
+            List<LuceneIndexDataManager> candidates;
+            synchronized (chains)
             {
-               // TODO remove get reader
-               luceneIndexDataManager.getIndexReader();
-               dirs.add(luceneIndexDataManager.getDirectory());
+               candidates =
+                  new ArrayList<LuceneIndexDataManager>(mergePolicy.findIndexDataManagerToAggrigate(
+                     new ArrayList<LuceneIndexDataManager>(chains), 0, 0));
             }
-            final Directory[] dirsToMerge = new Directory[dirs.size()];
-            writer.addIndexesNoOptimize(dirs.toArray(dirsToMerge));
-            writer.optimize();
+            if (candidates.size() < 2)
+            {
+               return;
+            }
+            merge(candidates);
          }
-         catch (final CorruptIndexException e)
+      }
+   }
+
+   /**
+    * Merge indexes into new one and replace them in chain. Must be called with
+    * mergeLock held.
+    */
+   private void merge(final List<LuceneIndexDataManager> candidates) throws IndexException
+   {
+      synchronized (chains)
+      {
+         merging.addAll(candidates);
+      }
+      LuceneIndexDataManager merged = null;
+      try
+      {
+         merged = indexFactory.merge(candidates, mergeRateLimiter);
+         synchronized (chains)
          {
-            throw new IndexException(e.getLocalizedMessage(), e);
+            if (removedWhileMerging.size() > 0)
+            {
+               merged.save(new LuceneIndexTransaction(new HashMap<String, Document>(), new HashSet<String>(
+                  removedWhileMerging)));
+            }
+            final int position = Math.min(chains.indexOf(candidates.get(0)), chains.size() - candidates.size());
+            chains.removeAll(candidates);
+            if (merged.getDocumentCount() > 0)
+            {
+               chains.add(Math.max(position, 0), (PersistedIndex)merged);
+            }
+            else
+            {
+               indexFactory.dispose(merged);
+            }
+            merged = null;
+            for (final LuceneIndexDataManager candidate : candidates)
+            {
+               indexFactory.dispose(candidate);
+            }
          }
-         catch (final LockObtainFailedException e)
+      }
+      finally
+      {
+         synchronized (chains)
          {
-            throw new IndexException(e.getLocalizedMessage(), e);
+            merging.clear();
+            removedWhileMerging.clear();
          }
-         catch (final IOException e)
+         if (merged != null)
          {
-            throw new IndexException(e.getLocalizedMessage(), e);
-         }
-         finally
-         {
-            if (writer != null)
-            {
-               try
-               {
-                  writer.close();
-               }
-               catch (CorruptIndexException e)
-               {
-                  throw new IndexException(e.getLocalizedMessage(), e);
-               }
-               catch (IOException e)
-               {
-                  throw new IndexException(e.getLocalizedMessage(), e);
-               }
-            }
-
+            indexFactory.dispose(merged);
          }
       }
-      return null;
    }
 
    public Directory getDirectory() throws IndexException
@@ -187,49 +306,70 @@ public class LocalStorageIndexDataManager implements LuceneIndexDataManager, Ind
       IndexReader result = null;
       if (chains.size() > 0)
       {
-         synchronized (chains)
+         final List<IndexReader> readers = new ArrayList<IndexReader>(chains.size());
+         collectIndexReaders(readers);
+         if (readers.size() > 1)
          {
-            if (chains.size() > 0)
-            {
-               final List<IndexReader> readers = new ArrayList<IndexReader>(chains.size());
-               final Iterator<PersistedIndex> it = chains.iterator();
+            final IndexReader[] indexReaders = new IndexReader[readers.size()];
+            result = new MultiReader(readers.toArray(indexReaders));
+         }
+         else if (readers.size() == 1)
+         {
+            result = readers.get(0);
+         }
+         else
+         {
+            throw new RuntimeException("No readers found");
+         }
+      }
+      return result;
+   }
 
-               while (it.hasNext())
-               {
-                  final LuceneIndexDataManager chain = it.next();
+   /**
+    * Add readers of the persisted chains to the list.
+    * 
+    * @param readers - list of the readers
+    * @throws IndexException
+    */
+   protected void collectIndexReaders(final List<IndexReader> readers) throws IndexException
+   {
+      collectIndexReaders(readers, null);
+   }
 
-                  final IndexReader indexReader = chain.getIndexReader();
-                  if (indexReader != null)
+   /**
+    * Add readers of the persisted chains to the list and retain chains, so
+    * chains what are merged or removed meanwhile are not closed until retained
+    * references are released.
+    * 
+    * @param readers - list of the readers
+    * @param retained - list of the retained chains, may be null if chains
+    *           should not be retained
+    * @throws IndexException
+    */
+   protected void collectIndexReaders(final List<IndexReader> readers, final List<PersistedIndex> retained)
+      throws IndexException
+   {
+      synchronized (chains)
+      {
+         final Iterator<PersistedIndex> it = chains.iterator();
+         while (it.hasNext())
+         {
+            final PersistedIndex chain = it.next();
+            final IndexReader indexReader = chain.getIndexReader();
+            if (indexReader != null)
+            {
+               if (retained != null)
+               {
+                  if (!chain.retain())
                   {
-                     readers.add(indexReader);
+                     continue;
                   }
-
-               }
-               if (result != null)
-               {
-                  readers.add(result);
-               }
-               if (readers.size() > 1)
-               {
-                  final IndexReader[] indexReaders = new IndexReader[readers.size()];
-                  result = new MultiReader(readers.toArray(indexReaders));
-               }
-               else if (readers.size() == 1)
-               {
-                  result = readers.get(0);
-               }
-               else
-               {
-                  throw new RuntimeException("No readers found");
+                  retained.add(chain);
                }
+               readers.add(indexReader);
             }
          }
-         if (result == null)
-         {
-            throw new RuntimeException("No readers found");
-         }
       }
-      return result;
    }
 
    public long getLastModifedTime()
@@ -287,6 +427,46 @@ public class LocalStorageIndexDataManager implements LuceneIndexDataManager, Ind
       {
          throw new RuntimeException(e.getLocalizedMessage(), e);
       }
+      mergeStopped = false;
+      mergeThread = new Thread(new Runnable()
+      {
+         public void run()
+         {
+            while (!mergeStopped)
+            {
+               synchronized (mergeMonitor)
+               {
+                  while (!mergeRequested && !mergeStopped)
+                  {
+                     try
+                     {
+                        mergeMonitor.wait();
+                     }
+                     catch (final InterruptedException e)
+                     {
+                        return;
+                     }
+                  }
+                  mergeRequested = false;
+               }
+               try
+               {
+                  mergeAll();
+               }
+               catch (final IndexException e)
+               {
+                  if (!mergeStopped)
+                  {
+                     LOG.error("Fail to merge persisted indexes " + e.getLocalizedMessage(), e);
+                  }
+               }
+            }
+         }
+      }, "xcmis-index-merge");
+      mergeThread.setDaemon(true);
+      mergeThread.start();
+      // indexes left from previous run
+      requestMerge();
    }
 
    /**
@@ -294,6 +474,21 @@ public class LocalStorageIndexDataManager implements LuceneIndexDataManager, Ind
     */
    public void stop()
    {
+      mergeStopped = true;
+      if (mergeThread != null)
+      {
+         // abort throttled merge
+         mergeThread.interrupt();
+         try
+         {
+            mergeThread.join();
+         }
+         catch (final InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+         mergeThread = null;
+      }
       for (final PersistedIndex index : chains)
       {
          try
@@ -323,21 +518,14 @@ public class LocalStorageIndexDataManager implements LuceneIndexDataManager, Ind
    {
       if (changes.getAddedDocuments().size() > 0)
       {
+         // new index, indexes being merged are not modified
+         final LuceneIndexDataManager indexDataKeeper = indexFactory.createNewIndexDataKeeper(changes);
+         indexDataKeeper.start();
          synchronized (chains)
          {
-            if (chains.size() == 0)
-            {
-               final LuceneIndexDataManager indexDataKeeper = indexFactory.createNewIndexDataKeeper(changes);
-               indexDataKeeper.start();
-               chains.add((PersistedIndex)indexDataKeeper);
-            }
-            else
-            {
-               final LuceneIndexDataManager indexDataKeeper = chains.get(0);
-               indexDataKeeper.save(changes);
-            }
-
+            chains.add((PersistedIndex)indexDataKeeper);
          }
+         requestMerge();
       }
    }
 
@@ -363,7 +551,11 @@ public class LocalStorageIndexDataManager implements LuceneIndexDataManager, Ind
             if (report.isModifed())
             {
                changes = changes.apply(report);
-               if (chain.getDocumentCount() == 0)
+               if (merging.contains(chain))
+               {
+                  removedWhileMerging.addAll(report.getRemovedDocuments());
+               }
+               else if (chain.getDocumentCount() == 0)
                {
                   indexFactory.dispose(chain);
                   it.remove();
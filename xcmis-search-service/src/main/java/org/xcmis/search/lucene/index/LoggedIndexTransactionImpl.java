@@ -66,9 +66,7 @@ public class LoggedIndexTransactionImpl extends LuceneIndexTransaction implement
       final IndexTransactionService indexTransactionService)
    {
       super(addedDocuments, deletedDocuments);
-      this.transactionLog =
-         new FileSystemTransactionLog(addedDocuments.keySet(), deletedDocuments,
-            (FSIndexTransactionService)indexTransactionService);
+      this.transactionLog = indexTransactionService.createTransactionLog(addedDocuments.keySet(), deletedDocuments);
    }
 
    @Override
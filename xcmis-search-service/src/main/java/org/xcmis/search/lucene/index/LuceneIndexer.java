@@ -25,23 +25,21 @@ import org.apache.lucene.document.Field;
 import org.apache.lucene.document.NumberTools;
 import org.apache.lucene.document.Field.Index;
 import org.apache.lucene.document.Field.Store;
-import org.apache.tika.exception.TikaException;
-import org.apache.tika.metadata.Metadata;
-import org.apache.tika.parser.AutoDetectParser;
-import org.apache.tika.sax.BodyContentHandler;
 import org.xcmis.search.config.IndexConfiguration;
 import org.xcmis.search.content.ContentEntry;
 import org.xcmis.search.content.ContentIndexer;
 import org.xcmis.search.content.Property;
 import org.xcmis.search.content.Property.BinaryValue;
 import org.xcmis.search.content.Property.ContentValue;
+import org.xcmis.search.lucene.index.TextExtractor.Extraction;
 import org.xcmis.spi.utils.Logger;
-import org.xml.sax.SAXException;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Create {@link Document} from {@link ContentEntry}
@@ -51,7 +49,7 @@ public class LuceneIndexer implements ContentIndexer<Document>
 
    private final IndexConfiguration indexConfiguration;
 
-   private final AutoDetectParser parser;
+   private final TextExtractor textExtractor;
 
    /**
     * Class logger.
@@ -64,7 +62,9 @@ public class LuceneIndexer implements ContentIndexer<Document>
    public LuceneIndexer(IndexConfiguration indexConfiguration)
    {
       super();
-      this.parser = new AutoDetectParser(indexConfiguration.getTikaConfiguration());
+      this.textExtractor =
+         new TextExtractor(indexConfiguration.getTikaConfiguration(), indexConfiguration.getTextExtractorPoolSize(),
+            indexConfiguration.getTextExtractionTimeout(), indexConfiguration.getMaxExtractedChars());
       this.indexConfiguration = indexConfiguration;
    }
 
@@ -73,6 +73,37 @@ public class LuceneIndexer implements ContentIndexer<Document>
     * @see org.xcmis.search.content.ContentIndexer#createDocument(org.xcmis.search.content.ContentEntry)
     */
    public Document createDocument(ContentEntry contentEntry)
+   {
+      return createDocuments(Collections.singletonList(contentEntry)).get(0);
+   }
+
+   /**
+    * Create documents of the entries. Text of the binary values of all entries
+    * is extracted concurrently.
+    * 
+    * @param contentEntries entries
+    * @return documents in order of the entries
+    */
+   public List<Document> createDocuments(List<ContentEntry> contentEntries)
+   {
+      final List<PendingText> pendingTexts = new ArrayList<PendingText>();
+      final List<Document> documents = new ArrayList<Document>(contentEntries.size());
+      for (ContentEntry contentEntry : contentEntries)
+      {
+         documents.add(createDocument(contentEntry, pendingTexts));
+      }
+      for (PendingText pendingText : pendingTexts)
+      {
+         Reader text = textExtractor.getText(pendingText.extraction);
+         if (text != null)
+         {
+            pendingText.document.add(new Field(pendingText.fieldName, text, Field.TermVector.NO));
+         }
+      }
+      return documents;
+   }
+
+   private Document createDocument(ContentEntry contentEntry, List<PendingText> pendingTexts)
    {
       final Document doc = new Document();
 
@@ -80,6 +111,10 @@ public class LuceneIndexer implements ContentIndexer<Document>
       doc.add(new Field(FieldNames.UUID, contentEntry.getIdentifier(), Field.Store.YES,
          Field.Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO));
 
+      // format of trie terms of numbers and dates
+      doc.add(new Field(FieldNames.NUMERIC_FORMAT, FieldNames.createNumericFormat(indexConfiguration
+         .getNumericPrecisionStep()), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO));
+
       //root
       if (contentEntry.getParentIdentifiers().length == 0)
       {
@@ -109,94 +144,49 @@ public class LuceneIndexer implements ContentIndexer<Document>
             Field.Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO));
       }
 
+      //read principals
+      if (contentEntry.getPrincipals() == null)
+      {
+         doc.add(new Field(FieldNames.PRINCIPAL, FieldNames.UNRESTRICTED, Field.Store.NO,
+            Field.Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO));
+      }
+      else
+      {
+         for (int i = 0; i < contentEntry.getPrincipals().length; i++)
+         {
+            doc.add(new Field(FieldNames.PRINCIPAL, contentEntry.getPrincipals()[i], Field.Store.NO,
+               Field.Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO));
+         }
+      }
+
       for (int i = 0; i < contentEntry.getProperties().length; i++)
       {
          Property property = contentEntry.getProperties()[i];
          if (isIndexed(property.getName()))
          {
-            addProperty(doc, property);
+            addProperty(doc, property, pendingTexts);
          }
       }
       return doc;
    }
 
    /**
-    * Extract content of binary value.
+    * Start extraction of binary value content, text is added to document when
+    * extraction is finished.
     * 
     * @param doc
     * @param propName
     * @param data
+    * @param pendingTexts
     */
-   private void addBinaryProperty(final Document doc, String propName, BinaryValue data)
+   private void addBinaryProperty(final Document doc, String propName, BinaryValue data,
+      List<PendingText> pendingTexts)
    {
-
       if (data.getMimeType() != null)
       {
-
-         if (parser != null)
-         {
-            final InputStream is = data.getValue();
-
-            try
-            {
-               Metadata metadata = new Metadata();
-               metadata.set(Metadata.CONTENT_TYPE, data.getMimeType());
-               if (data.getEncoding() != null)
-               {
-                  metadata.set(Metadata.CONTENT_ENCODING, data.getEncoding());
-               }
-
-               BodyContentHandler handler = new BodyContentHandler();
-               parser.parse(is, handler, metadata);
-
-               final Field f =
-                  new Field(FieldNames.createFullTextFieldName(propName), handler.toString(), Field.Store.NO,
-                     Field.Index.ANALYZED, Field.TermVector.NO);
-               doc.add(f);
-            }
-            catch (IOException e)
-            {
-               // no data - no index
-               if (LOG.isDebugEnabled())
-               {
-                  LOG.warn("Binary value indexer IO error " + e, e);
-               }
-            }
-            catch (SAXException e)
-            {
-               // no data - no index
-               if (LOG.isDebugEnabled())
-               {
-                  LOG.warn("Binary value indexer IO error " + e, e);
-               }
-            }
-            catch (TikaException e)
-            { // no data - no index
-               if (LOG.isDebugEnabled())
-               {
-                  LOG.warn("Binary value indexer IO error " + e, e);
-               }
-            }
-            finally
-            {
-               if (is != null)
-               {
-                  try
-                  {
-                     is.close();
-                  }
-                  catch (IOException e)
-                  {
-                     if (LOG.isDebugEnabled())
-                     {
-                        LOG.warn("Binary value indexer IO error " + e, e);
-                     }
-                  }
-               }
-            }
-         }
+         pendingTexts.add(new PendingText(doc, FieldNames.createFullTextFieldName(propName), textExtractor
+            .submit(data)));
       }
-
    }
 
    /**
@@ -232,6 +222,7 @@ public class LuceneIndexer implements ContentIndexer<Document>
 
       doc.add(createFieldWithoutNorms(fieldName, DateTools.dateToString(value.getTime(),
          DateTools.Resolution.MILLISECOND), false));
+      addTrieTerms(doc, fieldName, value.getTimeInMillis());
    }
 
    /**
@@ -249,6 +240,7 @@ public class LuceneIndexer implements ContentIndexer<Document>
    private void addDoubleValue(final Document doc, final String fieldName, final Double doubleValue)
    {
       doc.add(createFieldWithoutNorms(fieldName, ExtendedNumberTools.doubleToString(doubleValue), false));
+      addTrieTerms(doc, fieldName, TrieNumberTools.doubleToSortableLong(doubleValue));
    }
 
    /**
@@ -284,6 +276,28 @@ public class LuceneIndexer implements ContentIndexer<Document>
    {
 
       doc.add(createFieldWithoutNorms(fieldName, NumberTools.longToString(longValue), false));
+      addTrieTerms(doc, fieldName, TrieNumberTools.doubleToSortableLong(longValue));
+   }
+
+   /**
+    * Adds trie encoded terms of the number for range queries. Integer and
+    * decimal values share one encoding, so they may be compared with each
+    * other.
+    * 
+    * @param doc
+    *           The document to which to add the field
+    * @param fieldName
+    *           The name of the property
+    * @param sortableValue
+    *           sortable long value, see {@link TrieNumberTools}
+    */
+   private void addTrieTerms(final Document doc, final String fieldName, final long sortableValue)
+   {
+      final String trieFieldName = FieldNames.createNumericFieldName(fieldName);
+      for (final String term : TrieNumberTools.trieTerms(sortableValue, indexConfiguration.getNumericPrecisionStep()))
+      {
+         doc.add(new Field(trieFieldName, term, Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS, Field.TermVector.NO));
+      }
    }
 
    /**
@@ -309,11 +323,13 @@ public class LuceneIndexer implements ContentIndexer<Document>
     *           the doc
     * @param propertyData
     *           the property data
+    * @param pendingTexts
+    *           extractions of the binary values
     * @throws RepositoryException
     *            the repository exception
     */
    @SuppressWarnings("unchecked")
-   private void addProperty(final Document doc, final Property propertyData)
+   private void addProperty(final Document doc, final Property propertyData, List<PendingText> pendingTexts)
    {
       final String propName = propertyData.getName();
 
@@ -325,7 +341,7 @@ public class LuceneIndexer implements ContentIndexer<Document>
          switch (propertyData.getType())
          {
             case BINARY :
-               addBinaryProperty(doc, propName, ((BinaryValue)value));
+               addBinaryProperty(doc, propName, ((BinaryValue)value), pendingTexts);
                break;
             case BOOLEAN :
                //property marked as boolean so it should be possible to convert it to boolean
@@ -447,4 +463,22 @@ public class LuceneIndexer implements ContentIndexer<Document>
       return true;
    }
 
+   /**
+    * Full text field what waits for extraction of text.
+    */
+   private static class PendingText
+   {
+      private final Document document;
+
+      private final String fieldName;
+
+      private final Extraction extraction;
+
+      PendingText(Document document, String fieldName, Extraction extraction)
+      {
+         this.document = document;
+         this.fieldName = fieldName;
+         this.extraction = extraction;
+      }
+   }
 }
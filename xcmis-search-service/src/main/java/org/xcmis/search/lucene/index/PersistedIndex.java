@@ -34,6 +34,7 @@ import java.io.IOException;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by The eXo Platform SAS.
@@ -57,6 +58,17 @@ public class PersistedIndex implements LuceneIndexDataManager, Startable
 
    private long lastModifedTime;
 
+   /**
+    * References of the owner and of the snapshot readers what read index.
+    * Index is closed when last reference is released.
+    */
+   private final AtomicInteger references = new AtomicInteger(1);
+
+   /**
+    * Called after index is closed by last reference, e.g. to delete files.
+    */
+   private volatile Runnable closeAction;
+
    public PersistedIndex(final Directory directory)
    {
       super();
@@ -78,7 +90,7 @@ public class PersistedIndex implements LuceneIndexDataManager, Startable
     */
    public long getDirectorySize(final boolean includeInherited)
    {
-      int result = 0;
+      long result = 0;
       try
       {
          final String[] list = this.indexDirectiry.list();
@@ -250,6 +262,62 @@ public class PersistedIndex implements LuceneIndexDataManager, Startable
          updatedDocuments);
    }
 
+   /**
+    * Add reference of the snapshot reader. Index is not closed until
+    * reference is released by {@link #release()}.
+    *
+    * @return false if index is already closed
+    */
+   public boolean retain()
+   {
+      while (true)
+      {
+         int count = references.get();
+         if (count <= 0)
+         {
+            return false;
+         }
+         if (references.compareAndSet(count, count + 1))
+         {
+            return true;
+         }
+      }
+   }
+
+   /**
+    * Release reference added by {@link #retain()}.
+    */
+   public void release()
+   {
+      int count = references.decrementAndGet();
+      if (count == 0)
+      {
+         stop();
+         Runnable action = closeAction;
+         if (action != null)
+         {
+            action.run();
+         }
+      }
+      else if (count < 0)
+      {
+         throw new IllegalStateException("The index is released more times than retained");
+      }
+   }
+
+   /**
+    * Release reference of the owner. Index is closed and
+    * <code>closeAction</code> is run when last snapshot reader releases
+    * index.
+    *
+    * @param closeAction action to run after index is closed, may be null
+    */
+   void dispose(final Runnable closeAction)
+   {
+      this.closeAction = closeAction;
+      release();
+   }
+
    /**
     * {@inheritDoc}
     */
@@ -264,7 +332,10 @@ public class PersistedIndex implements LuceneIndexDataManager, Startable
    {
       try
       {
-         this.indexReader.close();
+         if (this.indexReader != null)
+         {
+            this.indexReader.close();
+         }
          this.indexDirectiry.close();
       }
       catch (final IOException e)
@@ -26,6 +26,8 @@ import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.xcmis.search.config.IndexConfiguration;
 import org.xcmis.search.config.IndexConfigurationException;
+import org.xcmis.search.lucene.index.merge.MergeRateLimiter;
+import org.xcmis.search.lucene.index.merge.ThrottledDirectory;
 import org.xcmis.spi.utils.Logger;
 
 import java.io.File;
@@ -85,13 +87,16 @@ public class PersistentIndexDataKeeperFactory extends LuceneIndexDataKeeperFacto
    public LuceneIndexDataManager createNewIndexDataKeeper(final IndexTransaction<Document> changes)
       throws IndexException
    {
-      final String newIndexName = indexNames.newName();
       FSDirectory dir;
       try
       {
-         dir = FSDirectory.getDirectory(new File(indexDir, newIndexName));
-         indexNames.addName(newIndexName);
-         indexNames.write(indexDir);
+         synchronized (indexNames)
+         {
+            final String newIndexName = indexNames.newName();
+            dir = FSDirectory.getDirectory(new File(indexDir, newIndexName));
+            indexNames.addName(newIndexName);
+            indexNames.write(indexDir);
+         }
       }
       catch (final IOException e)
       {
@@ -148,32 +153,118 @@ public class PersistentIndexDataKeeperFactory extends LuceneIndexDataKeeperFacto
     * {@inheritDoc}
     */
    public LuceneIndexDataManager merge(final Collection<LuceneIndexDataManager> chains) throws IndexException
+   {
+      return merge(chains, null);
+   }
+
+   /**
+    * Merge chains into new optimized persisted index.
+    *
+    * @param chains indexes to merge
+    * @param rateLimiter limiter of writing rate, null if not limited
+    * @return new persisted index
+    * @throws IndexException if indexes can't be merged
+    */
+   public LuceneIndexDataManager merge(final Collection<LuceneIndexDataManager> chains,
+      final MergeRateLimiter rateLimiter) throws IndexException
    {
       Directory dir;
+      String newIndexName;
+      synchronized (indexNames)
+      {
+         newIndexName = indexNames.newName();
+      }
       try
       {
-         final String newIndexName = indexNames.newName();
          dir = FSDirectory.getDirectory(new File(indexDir, newIndexName));
-         final IndexWriter writer = new IndexWriter(dir, new StandardAnalyzer(), MaxFieldLength.UNLIMITED);
-         final List<Directory> dirs = new ArrayList<Directory>();
-         for (final LuceneIndexDataManager luceneIndexDataManager : chains)
+         final IndexWriter writer =
+            new IndexWriter(rateLimiter == null ? dir : new ThrottledDirectory(dir, rateLimiter),
+               new StandardAnalyzer(), MaxFieldLength.UNLIMITED);
+         try
          {
-            // TODO remove get reader
-            // luceneIndexDataManager.getIndexReader();
-            dirs.add(luceneIndexDataManager.getDirectory());
+            final List<Directory> dirs = new ArrayList<Directory>();
+            for (final LuceneIndexDataManager luceneIndexDataManager : chains)
+            {
+               // TODO remove get reader
+               // luceneIndexDataManager.getIndexReader();
+               dirs.add(luceneIndexDataManager.getDirectory());
+            }
+            final Directory[] dirsToMerge = new Directory[dirs.size()];
+            writer.addIndexesNoOptimize(dirs.toArray(dirsToMerge));
+            writer.optimize();
+         }
+         finally
+         {
+            writer.close();
+         }
+         synchronized (indexNames)
+         {
+            indexNames.addName(newIndexName);
+            indexNames.write(indexDir);
          }
-         final Directory[] dirsToMerge = new Directory[dirs.size()];
-         writer.addIndexesNoOptimize(dirs.toArray(dirsToMerge));
-         writer.optimize();
-         writer.close();
-         indexNames.addName(newIndexName);
-         indexNames.write(indexDir);
       }
       catch (final IOException e)
       {
+         deleteDirectory(new File(indexDir, newIndexName));
          throw new IndexException(e.getLocalizedMessage(), e);
       }
       return new PersistedIndex(dir);
    }
 
+   /**
+    * Remove index from the list of indexes, close index and delete its files.
+    * Snapshot readers may still read index, so it is closed and deleted when
+    * last of them is released.
+    *
+    * @see org.xcmis.search.lucene.index.LuceneIndexDataKeeperFactory#dispose(org.xcmis.search.lucene.index.IndexDataKeeper)
+    */
+   @Override
+   public void dispose(final IndexDataKeeper<Document> indexDataKeeper) throws IndexException
+   {
+      final PersistedIndex index = (PersistedIndex)indexDataKeeper;
+      final Directory directory = index.getDirectory();
+      final File file = directory instanceof FSDirectory ? ((FSDirectory)directory).getFile() : null;
+      if (file != null)
+      {
+         try
+         {
+            synchronized (indexNames)
+            {
+               indexNames.removeName(file.getName());
+               indexNames.write(indexDir);
+            }
+         }
+         catch (final IOException e)
+         {
+            throw new IndexException(e.getLocalizedMessage(), e);
+         }
+      }
+      index.dispose(file == null ? null : new Runnable()
+      {
+         public void run()
+         {
+            deleteDirectory(file);
+         }
+      });
+   }
+
+   private void deleteDirectory(final File dir)
+   {
+      final File[] files = dir.listFiles();
+      if (files != null)
+      {
+         for (final File file : files)
+         {
+            if (!file.delete())
+            {
+               LOG.warn("Fail to delete index file " + file.getAbsolutePath());
+            }
+         }
+      }
+      if (dir.exists() && !dir.delete())
+      {
+         LOG.warn("Fail to delete index directory " + dir.getAbsolutePath());
+      }
+   }
+
 }
@@ -0,0 +1,956 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.index;
+
+import org.apache.commons.lang.Validate;
+import org.xcmis.spi.utils.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append only write-ahead log of index transactions. Transactions are written
+ * as checksummed records to segment files. Concurrent transactions are
+ * committed in group: first waiting thread writes records of all waiting
+ * threads and forces log once according to {@link TransactionLogSyncPolicy}.
+ * End of transaction is written as retire record without waiting. Segment is
+ * deleted when all transactions of it and of older segments are retired.
+ * <p>
+ * Record format: length of payload (int), CRC32 of payload (int), payload.
+ * Payload: type (byte), transaction id (long), and for commit record added and
+ * removed uuids. Group what can't be written or forced is cut off the segment,
+ * if segment can't be truncated new segment is started with retire records of
+ * the group. Replay skips damaged bytes up to the next valid record, so torn
+ * write of last group is ignored.
+ *
+ * @version $Id$
+ */
+public class SegmentedIndexTransactionService implements IndexTransactionService
+{
+   /**
+    * Class logger.
+    */
+   private static final Logger LOG = Logger.getLogger(SegmentedIndexTransactionService.class);
+
+   static final String SEGMENT_PREFIX = "segment-";
+
+   static final String SEGMENT_SUFFIX = ".log";
+
+   private static final byte COMMIT = 1;
+
+   private static final byte RETIRE = 2;
+
+   /**
+    * Size of length and checksum of record.
+    */
+   private static final int HEADER_SIZE = 8;
+
+   /**
+    * Timer to force log periodically with {@link TransactionLogSyncPolicy#INTERVAL}.
+    */
+   private static final Timer SYNC_TIMER = new Timer("xcmis-transaction-log-sync", true);
+
+   private final File storageDir;
+
+   private final TransactionLogSyncPolicy syncPolicy;
+
+   private final long syncInterval;
+
+   private final long segmentSize;
+
+   private final AtomicLong nextTransactionId = new AtomicLong(1);
+
+   private final ReentrantLock lock = new ReentrantLock();
+
+   /**
+    * Signalled when group is written.
+    */
+   private final Condition flushed = lock.newCondition();
+
+   /**
+    * Not deleted segments ordered by number. Guarded by lock.
+    */
+   private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+   /**
+    * Segments of not retired transactions. Guarded by lock.
+    */
+   private final Map<Long, Segment> transactionSegments = new HashMap<Long, Segment>();
+
+   /**
+    * Transactions found not retired on open. Guarded by lock.
+    */
+   private final Map<Long, TransactionLog> uncommitted = new LinkedHashMap<Long, TransactionLog>();
+
+   /**
+    * Records waiting for writing. Guarded by lock.
+    */
+   private List<Record> pending = new ArrayList<Record>();
+
+   /**
+    * Some thread writes records. Guarded by lock.
+    */
+   private boolean flushing;
+
+   private Segment active;
+
+   private RandomAccessFile activeFile;
+
+   private FileChannel channel;
+
+   private long lastSync;
+
+   /**
+    * Records are written but not forced yet. Guarded by lock.
+    */
+   private boolean unsynced;
+
+   /**
+    * Tail of active segment may hold part of discarded group, segment must not
+    * be used anymore. Written by flushing thread.
+    */
+   private boolean activeDamaged;
+
+   private TimerTask syncTask;
+
+   private boolean opened;
+
+   /**
+    * @param storageDir directory of segments
+    * @param syncPolicy when log is forced to the storage device
+    * @param syncInterval min time between two forces in milliseconds for
+    *           {@link TransactionLogSyncPolicy#INTERVAL}
+    * @param segmentSize size of segment after which new segment is started
+    */
+   public SegmentedIndexTransactionService(File storageDir, TransactionLogSyncPolicy syncPolicy, long syncInterval,
+      long segmentSize)
+   {
+      Validate.notNull(storageDir, "The storageDir argument may not be null");
+      Validate.notNull(syncPolicy, "The syncPolicy argument may not be null");
+      Validate.isTrue(syncInterval >= 0, "The syncInterval argument may not be negative");
+      Validate.isTrue(segmentSize > 0, "The segmentSize argument must be positive");
+      this.storageDir = storageDir;
+      this.syncPolicy = syncPolicy;
+      this.syncInterval = syncInterval;
+      this.segmentSize = segmentSize;
+   }
+
+   /**
+    * Replay existed segments and start new segment.
+    *
+    * @throws TransactionLogException if log can't be read or created
+    */
+   public void open() throws TransactionLogException
+   {
+      lock.lock();
+      try
+      {
+         if (opened)
+         {
+            return;
+         }
+         if (!storageDir.exists() && !storageDir.mkdirs())
+         {
+            throw new TransactionLogException("Fail to create directory : " + storageDir.getAbsolutePath());
+         }
+         final File[] files = storageDir.listFiles(new FileFilter()
+         {
+            public boolean accept(File file)
+            {
+               return file.isFile() && parseSegmentNumber(file) > 0;
+            }
+         });
+         for (final File file : files)
+         {
+            final long number = parseSegmentNumber(file);
+            segments.put(number, new Segment(number, file));
+         }
+
+         final Map<Long, SegmentedTransactionLog> live = new LinkedHashMap<Long, SegmentedTransactionLog>();
+         final Map<Long, Segment> owners = new HashMap<Long, Segment>();
+         long maxTransactionId = 0;
+         for (final Segment segment : segments.values())
+         {
+            maxTransactionId = Math.max(maxTransactionId, replay(segment, live, owners));
+         }
+         for (final Map.Entry<Long, SegmentedTransactionLog> entry : live.entrySet())
+         {
+            final Segment segment = owners.get(entry.getKey());
+            segment.liveTransactions++;
+            transactionSegments.put(entry.getKey(), segment);
+            uncommitted.put(entry.getKey(), entry.getValue());
+         }
+         nextTransactionId.set(maxTransactionId + 1);
+         purge();
+         startSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+         opened = true;
+         if (syncPolicy == TransactionLogSyncPolicy.INTERVAL && syncInterval > 0)
+         {
+            syncTask = new TimerTask()
+            {
+               @Override
+               public void run()
+               {
+                  sync();
+               }
+            };
+            SYNC_TIMER.schedule(syncTask, syncInterval, syncInterval);
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Write pending records and close log.
+    *
+    * @throws TransactionLogException if log can't be written
+    */
+   public void close() throws TransactionLogException
+   {
+      lock.lock();
+      try
+      {
+         if (!opened)
+         {
+            return;
+         }
+         awaitFlushing();
+         if (syncTask != null)
+         {
+            syncTask.cancel();
+            syncTask = null;
+         }
+         final List<Record> batch = pending;
+         pending = new ArrayList<Record>();
+         try
+         {
+            if (activeDamaged)
+            {
+               throw new IOException("Transaction log segment " + active.file.getAbsolutePath() + " is damaged");
+            }
+            write(batch, true);
+            activeFile.close();
+            complete(batch, null);
+         }
+         catch (final IOException e)
+         {
+            if (activeDamaged)
+            {
+               restartSegment(batch);
+            }
+            complete(batch, e);
+            closeActiveFile();
+            throw new TransactionLogException(e.getLocalizedMessage(), e);
+         }
+         finally
+         {
+            opened = false;
+            flushed.signalAll();
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public TransactionLog createTransactionLog(final Set<String> addedDocuments, final Set<String> removedDocuments)
+   {
+      return new SegmentedTransactionLog(addedDocuments, removedDocuments, this);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public List<TransactionLog> getTransactionLogs() throws TransactionLogException
+   {
+      lock.lock();
+      try
+      {
+         return new ArrayList<TransactionLog>(uncommitted.values());
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public boolean hasUncommitedTransactions()
+   {
+      lock.lock();
+      try
+      {
+         return !uncommitted.isEmpty();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Write commit record of transaction and wait until it is written.
+    *
+    * @param addedDocuments added documents
+    * @param removedDocuments removed documents
+    * @return identifier of transaction
+    * @throws TransactionLogException if record can't be written
+    */
+   long commit(final Set<String> addedDocuments, final Set<String> removedDocuments) throws TransactionLogException
+   {
+      final long transactionId = nextTransactionId.getAndIncrement();
+      final Record record = new Record(encode(COMMIT, transactionId, addedDocuments, removedDocuments), transactionId);
+      lock.lock();
+      try
+      {
+         ensureOpened();
+         pending.add(record);
+         while (!record.done)
+         {
+            if (flushing)
+            {
+               awaitFlushing();
+            }
+            else
+            {
+               flush();
+            }
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+      if (record.error != null)
+      {
+         throw new TransactionLogException("Fail to write transaction log: " + record.error.getLocalizedMessage(),
+            record.error);
+      }
+      return transactionId;
+   }
+
+   /**
+    * Write retire record of transaction with next group, delete segments what
+    * have no more live transactions.
+    *
+    * @param transactionId identifier of transaction
+    * @throws TransactionLogException if log is closed
+    */
+   void retire(final long transactionId) throws TransactionLogException
+   {
+      final byte[] data = encode(RETIRE, transactionId, null, null);
+      lock.lock();
+      try
+      {
+         ensureOpened();
+         uncommitted.remove(transactionId);
+         final Segment segment = transactionSegments.remove(transactionId);
+         if (segment != null)
+         {
+            pending.add(new Record(data, 0));
+            segment.liveTransactions--;
+            purge();
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return number of not deleted segments
+    */
+   int getSegmentCount()
+   {
+      lock.lock();
+      try
+      {
+         return segments.size();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return channel of active segment
+    */
+   FileChannel getActiveChannel()
+   {
+      lock.lock();
+      try
+      {
+         return channel;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Become group leader: write all pending records with released lock, so
+    * other threads may enqueue records for next group meanwhile. Must be called
+    * with lock held.
+    */
+   private void flush()
+   {
+      flushing = true;
+      final List<Record> batch = pending;
+      pending = new ArrayList<Record>();
+      IOException error = null;
+      lock.unlock();
+      try
+      {
+         if (activeDamaged)
+         {
+            throw new IOException("Transaction log segment " + active.file.getAbsolutePath() + " is damaged");
+         }
+         write(batch, false);
+      }
+      catch (final IOException e)
+      {
+         error = e;
+      }
+      finally
+      {
+         lock.lock();
+      }
+      if (activeDamaged)
+      {
+         restartSegment(batch);
+      }
+      else if (error == null && active.size >= segmentSize)
+      {
+         try
+         {
+            activeFile.close();
+            startSegment(active.number + 1);
+         }
+         catch (final IOException e)
+         {
+            LOG.error("Fail to start new transaction log segment " + e.getLocalizedMessage(), e);
+         }
+         catch (final TransactionLogException e)
+         {
+            LOG.error("Fail to start new transaction log segment " + e.getLocalizedMessage(), e);
+         }
+      }
+      complete(batch, error);
+      purge();
+      flushing = false;
+      flushed.signalAll();
+   }
+
+   /**
+    * Mark records as done, account written commits in active segment.
+    */
+   private void complete(final List<Record> batch, final IOException error)
+   {
+      for (final Record record : batch)
+      {
+         if (error == null && record.transactionId != 0)
+         {
+            active.liveTransactions++;
+            transactionSegments.put(record.transactionId, active);
+         }
+         record.error = error;
+         record.done = true;
+      }
+   }
+
+   /**
+    * Write group at the end of active segment. If group can't be written or
+    * forced it is cut off the segment, so no record of failed group is
+    * replayed. Must be called by flushing thread.
+    *
+    * @param batch records of group
+    * @param force force log regardless of sync policy
+    * @throws IOException if group is not written
+    */
+   private void write(final List<Record> batch, final boolean force) throws IOException
+   {
+      if (batch.isEmpty() && !force)
+      {
+         return;
+      }
+      int total = 0;
+      for (final Record record : batch)
+      {
+         total += record.data.length;
+      }
+      final ByteBuffer buffer = ByteBuffer.allocate(total);
+      for (final Record record : batch)
+      {
+         buffer.put(record.data);
+      }
+      buffer.flip();
+      final long start = active.size;
+      try
+      {
+         while (buffer.hasRemaining())
+         {
+            channel.write(buffer);
+         }
+         final long now = System.currentTimeMillis();
+         if (force || syncPolicy == TransactionLogSyncPolicy.ALWAYS
+            || (syncPolicy == TransactionLogSyncPolicy.INTERVAL && now - lastSync >= syncInterval))
+         {
+            channel.force(false);
+            lastSync = now;
+            unsynced = false;
+         }
+         else if (total > 0)
+         {
+            unsynced = true;
+         }
+      }
+      catch (final IOException e)
+      {
+         try
+         {
+            channel.truncate(start);
+            channel.position(start);
+         }
+         catch (final IOException te)
+         {
+            LOG.error("Fail to truncate transaction log segment " + active.file.getAbsolutePath() + " "
+               + te.getLocalizedMessage(), te);
+            activeDamaged = true;
+         }
+         throw e;
+      }
+      active.size = start + total;
+   }
+
+   /**
+    * Start new segment instead of damaged one. Retire records of failed group
+    * are written at the begin of new segment, so commit records of group what
+    * are left in damaged segment are not replayed. Must be called with lock
+    * held.
+    *
+    * @param batch failed group
+    */
+   private void restartSegment(final List<Record> batch)
+   {
+      closeActiveFile();
+      try
+      {
+         startSegment(active.number + 1);
+         activeDamaged = false;
+         final List<Record> retires = new ArrayList<Record>();
+         for (final Record record : batch)
+         {
+            if (record.transactionId != 0)
+            {
+               retires.add(new Record(encode(RETIRE, record.transactionId, null, null), 0));
+            }
+         }
+         write(retires, true);
+      }
+      catch (final IOException e)
+      {
+         LOG.error("Fail to retire failed transactions " + e.getLocalizedMessage(), e);
+      }
+      catch (final TransactionLogException e)
+      {
+         LOG.error("Fail to start new transaction log segment " + e.getLocalizedMessage(), e);
+      }
+   }
+
+   /**
+    * Force written records if they are not forced yet. Called by
+    * {@link #SYNC_TIMER} with {@link TransactionLogSyncPolicy#INTERVAL}.
+    */
+   private void sync()
+   {
+      lock.lock();
+      try
+      {
+         if (!opened || flushing || !unsynced)
+         {
+            return;
+         }
+         // exclude writers while forcing
+         flushing = true;
+         unsynced = false;
+         lock.unlock();
+         try
+         {
+            channel.force(false);
+            lastSync = System.currentTimeMillis();
+         }
+         catch (final IOException e)
+         {
+            LOG.error("Fail to force transaction log " + e.getLocalizedMessage(), e);
+         }
+         finally
+         {
+            lock.lock();
+            flushing = false;
+            flushed.signalAll();
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   private void closeActiveFile()
+   {
+      try
+      {
+         activeFile.close();
+      }
+      catch (final IOException e)
+      {
+         LOG.warn("Fail to close transaction log segment " + e.getLocalizedMessage());
+      }
+   }
+
+   private void awaitFlushing() throws TransactionLogException
+   {
+      while (flushing)
+      {
+         try
+         {
+            flushed.await();
+         }
+         catch (final InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new TransactionLogException("Interrupted while waiting for transaction log", e);
+         }
+      }
+   }
+
+   private void ensureOpened() throws TransactionLogException
+   {
+      if (!opened)
+      {
+         throw new TransactionLogException("Transaction log is not opened");
+      }
+   }
+
+   /**
+    * Delete oldest segments what have no live transactions. Segment isn't
+    * deleted while older segment exists, because it may hold retire records of
+    * transactions of older segment.
+    */
+   private void purge()
+   {
+      while (!segments.isEmpty())
+      {
+         final Segment segment = segments.firstEntry().getValue();
+         if (segment == active || segment.liveTransactions > 0)
+         {
+            return;
+         }
+         if (!segment.file.delete() && segment.file.exists())
+         {
+            LOG.warn("Fail to delete transaction log segment " + segment.file.getAbsolutePath());
+            return;
+         }
+         segments.remove(segment.number);
+      }
+   }
+
+   private void startSegment(final long number) throws TransactionLogException
+   {
+      final Segment segment = new Segment(number, new File(storageDir, SEGMENT_PREFIX + number + SEGMENT_SUFFIX));
+      try
+      {
+         activeFile = new RandomAccessFile(segment.file, "rw");
+         activeFile.setLength(0);
+         channel = activeFile.getChannel();
+      }
+      catch (final IOException e)
+      {
+         throw new TransactionLogException("Fail to create transaction log segment " + segment.file.getAbsolutePath(),
+            e);
+      }
+      segments.put(number, segment);
+      active = segment;
+   }
+
+   /**
+    * Read records of segment. Damaged bytes are skipped up to the next valid
+    * record.
+    *
+    * @return max transaction id found in segment
+    */
+   private long replay(final Segment segment, final Map<Long, SegmentedTransactionLog> live,
+      final Map<Long, Segment> owners) throws TransactionLogException
+   {
+      final byte[] content = readSegment(segment);
+      long maxTransactionId = 0;
+      final CRC32 crc = new CRC32();
+      int position = 0;
+      while (position + HEADER_SIZE <= content.length)
+      {
+         final int size = checkRecord(content, position, crc);
+         if (size < 0)
+         {
+            int next = position + 1;
+            while (next + HEADER_SIZE <= content.length && checkRecord(content, next, crc) < 0)
+            {
+               next++;
+            }
+            if (next + HEADER_SIZE > content.length)
+            {
+               next = content.length;
+            }
+            LOG.warn("Transaction log segment " + segment.file.getAbsolutePath() + " is damaged at " + position
+               + ", " + (next - position) + " bytes are ignored");
+            position = next;
+            continue;
+         }
+         try
+         {
+            final DataInputStream record =
+               new DataInputStream(new ByteArrayInputStream(content, position + HEADER_SIZE, size));
+            final byte type = record.readByte();
+            final long transactionId = record.readLong();
+            if (type == COMMIT)
+            {
+               final Set<String> added = readSet(record);
+               final Set<String> removed = readSet(record);
+               live.put(transactionId, new SegmentedTransactionLog(transactionId, added, removed, this));
+               owners.put(transactionId, segment);
+            }
+            else
+            {
+               live.remove(transactionId);
+               owners.remove(transactionId);
+            }
+            maxTransactionId = Math.max(maxTransactionId, transactionId);
+         }
+         catch (final IOException e)
+         {
+            throw new TransactionLogException("Fail to read transaction log segment "
+               + segment.file.getAbsolutePath(), e);
+         }
+         position += HEADER_SIZE + size;
+      }
+      if (position < content.length)
+      {
+         LOG.warn("Transaction log segment " + segment.file.getAbsolutePath() + " is damaged at " + position + ", "
+            + (content.length - position) + " bytes are ignored");
+      }
+      segment.size = content.length;
+      return maxTransactionId;
+   }
+
+   /**
+    * @return size of payload of record at the position or -1 if there is no
+    *         valid record
+    */
+   private static int checkRecord(final byte[] content, final int position, final CRC32 crc)
+   {
+      final ByteBuffer header = ByteBuffer.wrap(content, position, HEADER_SIZE);
+      final int size = header.getInt();
+      final int checksum = header.getInt();
+      if (size <= 0 || size > content.length - position - HEADER_SIZE)
+      {
+         return -1;
+      }
+      final byte type = content[position + HEADER_SIZE];
+      if (type != COMMIT && type != RETIRE)
+      {
+         return -1;
+      }
+      crc.reset();
+      crc.update(content, position + HEADER_SIZE, size);
+      return (int)crc.getValue() == checksum ? size : -1;
+   }
+
+   private static byte[] readSegment(final Segment segment) throws TransactionLogException
+   {
+      RandomAccessFile file = null;
+      try
+      {
+         file = new RandomAccessFile(segment.file, "r");
+         final byte[] content = new byte[(int)file.length()];
+         file.readFully(content);
+         return content;
+      }
+      catch (final IOException e)
+      {
+         throw new TransactionLogException("Fail to read transaction log segment "
+            + segment.file.getAbsolutePath(), e);
+      }
+      finally
+      {
+         if (file != null)
+         {
+            try
+            {
+               file.close();
+            }
+            catch (final IOException e)
+            {
+               LOG.warn("Fail to close transaction log segment " + e.getLocalizedMessage());
+            }
+         }
+      }
+   }
+
+   private static byte[] encode(final byte type, final long transactionId, final Set<String> addedDocuments,
+      final Set<String> removedDocuments) throws TransactionLogException
+   {
+      try
+      {
+         final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         final DataOutputStream out = new DataOutputStream(bytes);
+         // place for header
+         out.writeLong(0);
+         out.writeByte(type);
+         out.writeLong(transactionId);
+         if (type == COMMIT)
+         {
+            writeSet(out, addedDocuments);
+            writeSet(out, removedDocuments);
+         }
+         out.flush();
+         final byte[] data = bytes.toByteArray();
+         final CRC32 crc = new CRC32();
+         crc.update(data, HEADER_SIZE, data.length - HEADER_SIZE);
+         ByteBuffer.wrap(data).putInt(data.length - HEADER_SIZE).putInt((int)crc.getValue());
+         return data;
+      }
+      catch (final IOException e)
+      {
+         throw new TransactionLogException(e.getLocalizedMessage(), e);
+      }
+   }
+
+   private static void writeSet(final DataOutputStream out, final Set<String> uuids) throws IOException
+   {
+      out.writeInt(uuids.size());
+      for (final String uuid : uuids)
+      {
+         out.writeUTF(uuid);
+      }
+   }
+
+   private static Set<String> readSet(final DataInputStream in) throws IOException
+   {
+      final int size = in.readInt();
+      final Set<String> uuids = new HashSet<String>(Math.max(16, size * 2));
+      for (int i = 0; i < size; i++)
+      {
+         uuids.add(in.readUTF());
+      }
+      return uuids;
+   }
+
+   private static long parseSegmentNumber(final File file)
+   {
+      final String name = file.getName();
+      if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+      {
+         try
+         {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+         }
+         catch (final NumberFormatException e)
+         {
+            // not a segment
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Segment file.
+    */
+   private static class Segment
+   {
+      private final long number;
+
+      private final File file;
+
+      private long size;
+
+      private int liveTransactions;
+
+      Segment(long number, File file)
+      {
+         this.number = number;
+         this.file = file;
+      }
+   }
+
+   /**
+    * Encoded record waiting for writing.
+    */
+   private static class Record
+   {
+      private final byte[] data;
+
+      /**
+       * Transaction id of commit record, 0 for retire record.
+       */
+      private final long transactionId;
+
+      private boolean done;
+
+      private IOException error;
+
+      Record(byte[] data, long transactionId)
+      {
+         this.data = data;
+         this.transactionId = transactionId;
+      }
+   }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.index;
+
+import java.util.Set;
+
+/**
+ * Log of one transaction stored as record of the
+ * {@link SegmentedIndexTransactionService}.
+ *
+ * @version $Id$
+ */
+public class SegmentedTransactionLog implements TransactionLog
+{
+   private final Set<String> addedDocumentsUuids;
+
+   private final Set<String> removedDocumentsUuids;
+
+   private final SegmentedIndexTransactionService storage;
+
+   /**
+    * Identifier of the logged transaction, 0 if transaction is not logged.
+    */
+   private long transactionId;
+
+   /**
+    * Constructor for ordinary case.
+    *
+    * @param addedDocumentsUuids added documents
+    * @param removedDocumentsUuids removed documents
+    * @param storage transaction storage
+    */
+   public SegmentedTransactionLog(final Set<String> addedDocumentsUuids, final Set<String> removedDocumentsUuids,
+      final SegmentedIndexTransactionService storage)
+   {
+      this(0, addedDocumentsUuids, removedDocumentsUuids, storage);
+   }
+
+   /**
+    * Constructor for recovery case.
+    *
+    * @param transactionId identifier of the logged transaction
+    * @param addedDocumentsUuids added documents
+    * @param removedDocumentsUuids removed documents
+    * @param storage transaction storage
+    */
+   SegmentedTransactionLog(final long transactionId, final Set<String> addedDocumentsUuids,
+      final Set<String> removedDocumentsUuids, final SegmentedIndexTransactionService storage)
+   {
+      this.transactionId = transactionId;
+      this.addedDocumentsUuids = addedDocumentsUuids;
+      this.removedDocumentsUuids = removedDocumentsUuids;
+      this.storage = storage;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public Set<String> getAddedList() throws TransactionLogException
+   {
+      return addedDocumentsUuids;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public Set<String> getRemovedList() throws TransactionLogException
+   {
+      return removedDocumentsUuids;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void load() throws TransactionLogException
+   {
+      // record is read by storage on start
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void log() throws TransactionLogException
+   {
+      if (transactionId != 0)
+      {
+         throw new TransactionLogException("Transaction " + transactionId + " is already logged");
+      }
+      transactionId = storage.commit(addedDocumentsUuids, removedDocumentsUuids);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void removeLog() throws TransactionLogException
+   {
+      if (transactionId == 0)
+      {
+         throw new TransactionLogException("Transaction is not logged");
+      }
+      storage.retire(transactionId);
+   }
+
+   /**
+    * @return identifier of the logged transaction, 0 if transaction is not
+    *         logged
+    */
+   public long getTransactionId()
+   {
+      return transactionId;
+   }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2009 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.index;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Snapshot of the index chains. Sub readers are referenced, not owned.
+ * Persisted chains of the snapshot are retained, so chains what are merged
+ * away or removed while snapshot is used are closed and deleted only after
+ * snapshot is closed.
+ * 
+ * @version $Id$
+ */
+public class SnapshotIndexReader extends MultiReader
+{
+   /**
+    * Retained persisted chains.
+    */
+   private final List<PersistedIndex> retained;
+
+   /**
+    * @param subReaders - readers of the chains
+    * @param retained - persisted chains retained for the snapshot
+    */
+   public SnapshotIndexReader(IndexReader[] subReaders, List<PersistedIndex> retained)
+   {
+      super(subReaders, false);
+      this.retained = retained;
+   }
+
+   /**
+    * @return readers of the chains, reader of unchanged chain is the same in
+    *         the consecutive snapshots
+    */
+   public IndexReader[] getChainReaders()
+   {
+      return subReaders.clone();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   protected synchronized void doClose() throws IOException
+   {
+      try
+      {
+         super.doClose();
+      }
+      finally
+      {
+         for (PersistedIndex chain : retained)
+         {
+            chain.release();
+         }
+      }
+   }
+}
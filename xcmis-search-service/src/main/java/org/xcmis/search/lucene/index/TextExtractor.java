@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.index;
+
+import org.apache.commons.lang.Validate;
+import org.apache.tika.config.TikaConfig;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.xcmis.search.content.Property.BinaryValue;
+import org.xcmis.spi.utils.Logger;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extract text of binary values by Tika. Values are parsed concurrently by
+ * pool of worker threads, so one large document doesn't stall other documents
+ * of the same index transaction. Queue of the pool is bounded, when it is full
+ * value is parsed by submitting thread. Extraction is aborted when it runs
+ * longer than timeout, time in queue is not counted. Text is truncated after
+ * max number of characters. Extracted text is kept in char buffer and given
+ * to index as {@link Reader}, no intermediate strings are created.
+ *
+ * @version $Id$
+ */
+public class TextExtractor
+{
+   /**
+    * Class logger.
+    */
+   private static final Logger LOG = Logger.getLogger(TextExtractor.class);
+
+   private static final AtomicInteger THREAD_NUMBER = new AtomicInteger(1);
+
+   /**
+    * Max number of waiting values per worker thread.
+    */
+   private static final int QUEUE_SIZE_PER_THREAD = 4;
+
+   /**
+    * Timer to abort extractions what run longer than timeout.
+    */
+   private static final Timer WATCHDOG = new Timer("xcmis-text-extractor-watchdog", true);
+
+   private final AutoDetectParser parser;
+
+   /**
+    * Pool of workers, null if text is extracted by caller thread.
+    */
+   private final ThreadPoolExecutor executor;
+
+   private final long timeout;
+
+   private final int maxChars;
+
+   /**
+    * @param tikaConfiguration Tika configuration
+    * @param poolSize number of worker threads, text is extracted by caller
+    *           thread if 0
+    * @param timeout max time of extraction of one value in milliseconds
+    * @param maxChars max number of the extracted characters of one value
+    */
+   public TextExtractor(TikaConfig tikaConfiguration, int poolSize, long timeout, int maxChars)
+   {
+      Validate.notNull(tikaConfiguration, "The tikaConfiguration argument may not be null");
+      Validate.isTrue(poolSize >= 0, "The poolSize argument may not be negative");
+      Validate.isTrue(timeout > 0, "The timeout argument must be positive");
+      Validate.isTrue(maxChars > 0, "The maxChars argument must be positive");
+      this.parser = new AutoDetectParser(tikaConfiguration);
+      this.timeout = timeout;
+      this.maxChars = maxChars;
+      if (poolSize > 0)
+      {
+         this.executor =
+            new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(poolSize
+               * QUEUE_SIZE_PER_THREAD), new ThreadFactory()
+            {
+               public Thread newThread(Runnable r)
+               {
+                  Thread thread = new Thread(r, "xcmis-text-extractor-" + THREAD_NUMBER.getAndIncrement());
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+         // don't keep idle threads
+         this.executor.allowCoreThreadTimeOut(true);
+      }
+      else
+      {
+         this.executor = null;
+      }
+   }
+
+   /**
+    * Start extraction of text.
+    *
+    * @param value binary value
+    * @return extraction, use {@link #getText(Extraction)} to get result
+    */
+   public Extraction submit(BinaryValue value)
+   {
+      Extraction extraction = new Extraction(value);
+      if (executor != null)
+      {
+         executor.execute(extraction.task);
+      }
+      return extraction;
+   }
+
+   /**
+    * Wait for extracted text.
+    *
+    * @param extraction extraction started by {@link #submit(BinaryValue)}
+    * @return reader of the extracted text or null if text can't be extracted
+    */
+   public Reader getText(Extraction extraction)
+   {
+      if (executor == null)
+      {
+         extraction.task.run();
+      }
+      try
+      {
+         return await(extraction);
+      }
+      catch (TimeoutException e)
+      {
+         // abort is logged by watchdog
+         extraction.cancel();
+         extraction.task.cancel(true);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         extraction.cancel();
+         extraction.task.cancel(true);
+      }
+      catch (ExecutionException e)
+      {
+         // no data - no index
+         if (LOG.isDebugEnabled())
+         {
+            LOG.warn("Binary value indexer error " + e.getCause(), e.getCause());
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Wait for result of extraction. Time of waiting in queue of pool is not
+    * counted, extraction is aborted when it runs longer than timeout.
+    */
+   private Reader await(Extraction extraction) throws InterruptedException, ExecutionException, TimeoutException
+   {
+      for (;;)
+      {
+         final long started = extraction.started;
+         final long wait = started == 0 ? timeout : started + timeout - System.currentTimeMillis();
+         try
+         {
+            return extraction.task.get(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+         }
+         catch (TimeoutException e)
+         {
+            if (started != 0)
+            {
+               throw e;
+            }
+            // still in queue or started while waiting
+         }
+      }
+   }
+
+   /**
+    * Pending text extraction of one value.
+    */
+   public class Extraction
+   {
+      private final BinaryValue value;
+
+      private final FutureTask<Reader> task;
+
+      private volatile InputStream stream;
+
+      /**
+       * Time when extraction is started, 0 if it is not started yet.
+       */
+      private volatile long started;
+
+      private volatile boolean cancelled;
+
+      Extraction(BinaryValue binaryValue)
+      {
+         this.value = binaryValue;
+         this.task = new FutureTask<Reader>(new Callable<Reader>()
+         {
+            public Reader call() throws IOException, SAXException, TikaException
+            {
+               started = System.currentTimeMillis();
+               // extraction may be run by caller thread, so it is not interrupted
+               TimerTask watchdog = new TimerTask()
+               {
+                  @Override
+                  public void run()
+                  {
+                     LOG.warn("Text extraction of " + value.getMimeType() + " value is aborted after " + timeout
+                        + " ms");
+                     Extraction.this.cancel();
+                  }
+               };
+               WATCHDOG.schedule(watchdog, timeout);
+               try
+               {
+                  return extract();
+               }
+               finally
+               {
+                  watchdog.cancel();
+               }
+            }
+         });
+      }
+
+      /**
+       * Abort extraction, close stream to interrupt blocked parser.
+       */
+      void cancel()
+      {
+         cancelled = true;
+         closeStream();
+      }
+
+      private Reader extract() throws IOException, SAXException, TikaException
+      {
+         stream = value.getValue();
+         try
+         {
+            Metadata metadata = new Metadata();
+            metadata.set(Metadata.CONTENT_TYPE, value.getMimeType());
+            if (value.getEncoding() != null)
+            {
+               metadata.set(Metadata.CONTENT_ENCODING, value.getEncoding());
+            }
+            TextBuffer buffer = new TextBuffer(maxChars, this);
+            try
+            {
+               parser.parse(stream, new BodyContentHandler(buffer), metadata);
+            }
+            catch (SAXException e)
+            {
+               if (!buffer.isLimitReached())
+               {
+                  throw e;
+               }
+               // text is truncated
+            }
+            catch (TikaException e)
+            {
+               // some parsers wrap exception of content handler
+               if (!buffer.isLimitReached())
+               {
+                  throw e;
+               }
+            }
+            if (buffer.isLimitReached())
+            {
+               LOG.warn("Text of " + value.getMimeType() + " value is truncated to " + maxChars
+                  + " characters, rest of text is not indexed");
+            }
+            return buffer.getReader();
+         }
+         finally
+         {
+            closeStream();
+         }
+      }
+
+      private void closeStream()
+      {
+         InputStream is = stream;
+         if (is != null)
+         {
+            try
+            {
+               is.close();
+            }
+            catch (IOException e)
+            {
+               if (LOG.isDebugEnabled())
+               {
+                  LOG.warn("Binary value indexer IO error " + e, e);
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Collect characters up to limit. Parsing is stopped when limit is reached
+    * or extraction is cancelled.
+    */
+   private static class TextBuffer extends DefaultHandler
+   {
+      private final int limit;
+
+      private final Extraction extraction;
+
+      private char[] chars = new char[1024];
+
+      private int length;
+
+      private boolean limitReached;
+
+      TextBuffer(int limit, Extraction extraction)
+      {
+         this.limit = limit;
+         this.extraction = extraction;
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void characters(char[] ch, int start, int len) throws SAXException
+      {
+         if (extraction.cancelled || Thread.currentThread().isInterrupted())
+         {
+            throw new SAXException("Text extraction is cancelled");
+         }
+         int count = Math.min(len, limit - length);
+         ensureCapacity(length + count);
+         System.arraycopy(ch, start, chars, length, count);
+         length += count;
+         if (count < len)
+         {
+            limitReached = true;
+            throw new SAXException("Text is truncated to " + limit + " characters");
+         }
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void ignorableWhitespace(char[] ch, int start, int len) throws SAXException
+      {
+         characters(ch, start, len);
+      }
+
+      boolean isLimitReached()
+      {
+         return limitReached;
+      }
+
+      Reader getReader()
+      {
+         return new CharArrayReader(chars, 0, length);
+      }
+
+      private void ensureCapacity(int capacity)
+      {
+         if (capacity > chars.length)
+         {
+            char[] newChars = new char[Math.min(limit, Math.max(capacity, chars.length * 2))];
+            System.arraycopy(chars, 0, newChars, 0, length);
+            chars = newChars;
+         }
+      }
+   }
+}
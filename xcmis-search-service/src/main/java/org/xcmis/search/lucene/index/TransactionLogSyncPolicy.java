@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.index;
+
+/**
+ * When transaction log is forced to the storage device.
+ *
+ * @version $Id$
+ */
+public enum TransactionLogSyncPolicy {
+
+   /**
+    * Force log on each group commit. Committed transaction survives power
+    * failure.
+    */
+   ALWAYS,
+
+   /**
+    * Force log not often than once per sync interval. Transactions committed
+    * during last interval may be lost on power failure.
+    */
+   INTERVAL,
+
+   /**
+    * Never force log, rely on operating system. Transactions survive crash of
+    * the application only.
+    */
+   NEVER
+}
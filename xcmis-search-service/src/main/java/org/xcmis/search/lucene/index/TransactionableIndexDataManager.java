@@ -38,8 +38,16 @@ import java.util.Set;
 public class TransactionableIndexDataManager extends CacheableIndexDataManager
 {
 
+   /**
+    * Directory of logs written by previous versions, one file per transaction.
+    */
    protected static final String TRANSACTION_LOG_STORAGE_NAME = "logs";
 
+   /**
+    * Directory of segmented write-ahead log.
+    */
+   protected static final String WRITE_AHEAD_LOG_STORAGE_NAME = "wal";
+
    /**
     * Class logger.
     */
@@ -47,7 +55,12 @@ public class TransactionableIndexDataManager extends CacheableIndexDataManager
 
    private final IndexRecoveryTool indexRecoveryTool;
 
-   private final FSIndexTransactionService transactionService;
+   private final SegmentedIndexTransactionService transactionService;
+
+   /**
+    * Service of old logs, null if there are no old logs.
+    */
+   private final FSIndexTransactionService legacyTransactionService;
 
    public TransactionableIndexDataManager(IndexConfiguration indexConfuguration, IndexRecoveryTool indexRecoveryTool)
       throws IndexException, IndexConfigurationException
@@ -62,14 +75,23 @@ public class TransactionableIndexDataManager extends CacheableIndexDataManager
          throw new IndexException("Fail to create index directory : " + indexDir.getAbsolutePath());
       }
 
-      final File storageDir = new File(indexDir, TRANSACTION_LOG_STORAGE_NAME);
-      if (!storageDir.exists() && !storageDir.mkdirs())
+      final File legacyStorageDir = new File(indexDir, TRANSACTION_LOG_STORAGE_NAME);
+      this.legacyTransactionService =
+         legacyStorageDir.exists() ? new FSIndexTransactionService(legacyStorageDir, new ReadWriteDirectoryFactory())
+            : null;
+
+      this.transactionService =
+         new SegmentedIndexTransactionService(new File(indexDir, WRITE_AHEAD_LOG_STORAGE_NAME), indexConfuguration
+            .getTransactionLogSyncPolicy(), indexConfuguration.getTransactionLogSyncInterval(), indexConfuguration
+            .getTransactionLogSegmentSize());
+      try
       {
-         throw new IndexException("Fail to create directory : " + storageDir.getAbsolutePath());
+         this.transactionService.open();
+      }
+      catch (final TransactionLogException e)
+      {
+         throw new IndexException(e.getLocalizedMessage(), e);
       }
-
-      this.transactionService = new FSIndexTransactionService(storageDir, new ReadWriteDirectoryFactory());
-
    }
 
    /**
@@ -109,27 +131,11 @@ public class TransactionableIndexDataManager extends CacheableIndexDataManager
       super.start();
       try
       {
-         if (this.transactionService.hasUncommitedTransactions())
+         if (legacyTransactionService != null)
          {
-            // get logs from storage
-            final List<TransactionLog> logs = this.transactionService.getTransactionLogs();
-
-            // load all logs
-            final CompositeTransactionLog compositeTransactionLog = new CompositeTransactionLog(logs);
-            // create list of compromised uuids of documents
-            final Set<String> compromisedUuids = new HashSet<String>();
-            compromisedUuids.addAll(compositeTransactionLog.getAddedList());
-            compromisedUuids.addAll(compositeTransactionLog.getRemovedList());
-
-            // start recovering process
-            indexRecoveryTool.recover(compromisedUuids.iterator());
-            //clear old logs
-            for (TransactionLog transactionLog : logs)
-            {
-               transactionLog.removeLog();
-            }
-
+            recover(legacyTransactionService);
          }
+         recover(transactionService);
       }
       catch (final TransactionLogException e)
       {
@@ -142,6 +148,33 @@ public class TransactionableIndexDataManager extends CacheableIndexDataManager
 
    }
 
+   /**
+    * Reindex documents of transactions what were logged but not ended.
+    */
+   private void recover(final IndexTransactionService service) throws TransactionLogException, IndexException
+   {
+      if (service.hasUncommitedTransactions())
+      {
+         // get logs from storage
+         final List<TransactionLog> logs = service.getTransactionLogs();
+
+         // load all logs
+         final CompositeTransactionLog compositeTransactionLog = new CompositeTransactionLog(logs);
+         // create list of compromised uuids of documents
+         final Set<String> compromisedUuids = new HashSet<String>();
+         compromisedUuids.addAll(compositeTransactionLog.getAddedList());
+         compromisedUuids.addAll(compositeTransactionLog.getRemovedList());
+
+         // start recovering process
+         indexRecoveryTool.recover(compromisedUuids.iterator());
+         //clear old logs
+         for (TransactionLog transactionLog : logs)
+         {
+            transactionLog.removeLog();
+         }
+      }
+   }
+
    /**
     * {@inheritDoc}
     */
@@ -149,5 +182,13 @@ public class TransactionableIndexDataManager extends CacheableIndexDataManager
    public void stop()
    {
       super.stop();
+      try
+      {
+         transactionService.close();
+      }
+      catch (final TransactionLogException e)
+      {
+         log.error("Fail to close transaction log " + e.getLocalizedMessage(), e);
+      }
    }
 }
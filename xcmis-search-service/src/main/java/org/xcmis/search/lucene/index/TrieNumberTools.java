@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.index;
+
+import java.io.IOException;
+
+/**
+ * Helper class. Encode numbers as trie of prefix coded terms. Each value is
+ * indexed with one term per precision step: full value, value without lowest
+ * precision step bits, and so on. Range is split to few sub-ranges of
+ * different precision, so number of terms visited by range query doesn't
+ * depend on number of distinct values in the index.
+ * <p>
+ * Numbers of all types are indexed as sortable long: integer and decimal
+ * values as sortable bits of double, dates as milliseconds.
+ */
+public class TrieNumberTools
+{
+   /**
+    * Default number of bits per precision step.
+    */
+   public static final int DEFAULT_PRECISION_STEP = 4;
+
+   /**
+    * First char of prefix coded term is shift plus this value.
+    */
+   private static final char SHIFT_START = 0x20;
+
+   /**
+    * Consumer of sub-ranges of split range.
+    */
+   public interface RangeConsumer
+   {
+      /**
+       * @param minPrefixCoded lower term of sub-range, inclusive
+       * @param maxPrefixCoded upper term of sub-range, inclusive
+       * @throws IOException if index can't be read
+       */
+      void addRange(String minPrefixCoded, String maxPrefixCoded) throws IOException;
+   }
+
+   /**
+    * Private constructor.
+    */
+   private TrieNumberTools()
+   {
+   }
+
+   /**
+    * Converts double to long what has the same sort order.
+    *
+    * @param value double value
+    * @return sortable long
+    */
+   public static long doubleToSortableLong(double value)
+   {
+      long bits = Double.doubleToLongBits(value);
+      if (bits < 0)
+      {
+         bits ^= 0x7fffffffffffffffL;
+      }
+      return bits;
+   }
+
+   /**
+    * Converts long value to prefix coded term.
+    *
+    * @param value sortable long
+    * @param shift number of removed lowest bits
+    * @return prefix coded term
+    */
+   public static String longToPrefixCoded(long value, int shift)
+   {
+      if (shift < 0 || shift > 63)
+      {
+         throw new IllegalArgumentException("Illegal shift value, must be 0..63");
+      }
+      int chars = (63 - shift) / 7 + 1;
+      final char[] result = new char[chars + 1];
+      result[0] = (char)(SHIFT_START + shift);
+      // flip sign bit, so negative values go first
+      long bits = (value ^ 0x8000000000000000L) >>> shift;
+      while (chars >= 1)
+      {
+         // 7 bits per char, so terms are one byte per char in UTF-8
+         result[chars--] = (char)(bits & 0x7fL);
+         bits >>>= 7;
+      }
+      return new String(result);
+   }
+
+   /**
+    * Returns terms of all precisions of the value.
+    *
+    * @param value sortable long
+    * @param precisionStep number of bits per precision step
+    * @return prefix coded terms
+    */
+   public static String[] trieTerms(long value, int precisionStep)
+   {
+      checkPrecisionStep(precisionStep);
+      final String[] result = new String[(63 / precisionStep) + 1];
+      for (int i = 0; i < result.length; i++)
+      {
+         result[i] = longToPrefixCoded(value, i * precisionStep);
+      }
+      return result;
+   }
+
+   /**
+    * Split range to sub-ranges of terms of different precision. Each
+    * sub-range holds at most 2^precisionStep terms.
+    *
+    * @param consumer consumer of sub-ranges
+    * @param precisionStep number of bits per precision step
+    * @param minBound lower bound, inclusive
+    * @param maxBound upper bound, inclusive
+    * @throws IOException if consumer fails
+    */
+   public static void splitRange(RangeConsumer consumer, int precisionStep, long minBound, long maxBound)
+      throws IOException
+   {
+      checkPrecisionStep(precisionStep);
+      if (minBound > maxBound)
+      {
+         return;
+      }
+      for (int shift = 0;; shift += precisionStep)
+      {
+         // calculate new bounds for inner precision
+         final long diff = 1L << (shift + precisionStep);
+         final long mask = ((1L << precisionStep) - 1L) << shift;
+         final boolean hasLower = (minBound & mask) != 0L;
+         final boolean hasUpper = (maxBound & mask) != mask;
+         final long nextMinBound = (hasLower ? (minBound + diff) : minBound) & ~mask;
+         final long nextMaxBound = (hasUpper ? (maxBound - diff) : maxBound) & ~mask;
+         final boolean lowerWrapped = nextMinBound < minBound;
+         final boolean upperWrapped = nextMaxBound > maxBound;
+
+         if (shift + precisionStep >= 64 || nextMinBound > nextMaxBound || lowerWrapped || upperWrapped)
+         {
+            // no more sub-ranges, add remaining range
+            addRange(consumer, minBound, maxBound, shift);
+            break;
+         }
+         if (hasLower)
+         {
+            addRange(consumer, minBound, minBound | mask, shift);
+         }
+         if (hasUpper)
+         {
+            addRange(consumer, maxBound & ~mask, maxBound, shift);
+         }
+         minBound = nextMinBound;
+         maxBound = nextMaxBound;
+      }
+   }
+
+   private static void addRange(RangeConsumer consumer, long minBound, long maxBound, int shift) throws IOException
+   {
+      // set all lower bits of max bound what were shifted away
+      maxBound |= (1L << shift) - 1L;
+      consumer.addRange(longToPrefixCoded(minBound, shift), longToPrefixCoded(maxBound, shift));
+   }
+
+   private static void checkPrecisionStep(int precisionStep)
+   {
+      if (precisionStep < 1 || precisionStep > 64)
+      {
+         throw new IllegalArgumentException("Precision step must be 1..64");
+      }
+   }
+}
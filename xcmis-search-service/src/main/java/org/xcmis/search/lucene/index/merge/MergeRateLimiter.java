@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.index.merge;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Limit rate of writing of merged index, so background merge doesn't take all
+ * I/O bandwidth from searches and flushes.
+ *
+ * @version $Id$
+ */
+public class MergeRateLimiter
+{
+   /**
+    * Bytes written between two checks of rate.
+    */
+   private static final long CHUNK_SIZE = 64 * 1024;
+
+   private final long bytesPerSecond;
+
+   private long chunkStart = System.nanoTime();
+
+   private long chunkBytes;
+
+   /**
+    * @param bytesPerSecond max rate, 0 if not limited
+    */
+   public MergeRateLimiter(long bytesPerSecond)
+   {
+      this.bytesPerSecond = bytesPerSecond;
+   }
+
+   /**
+    * @return max rate in bytes per second, 0 if not limited
+    */
+   public long getBytesPerSecond()
+   {
+      return bytesPerSecond;
+   }
+
+   /**
+    * Account written bytes and sleep if rate is exceeded.
+    *
+    * @param bytes number of written bytes
+    * @throws IOException if thread is interrupted while sleeping
+    */
+   public synchronized void pause(long bytes) throws IOException
+   {
+      if (bytesPerSecond <= 0)
+      {
+         return;
+      }
+      chunkBytes += bytes;
+      if (chunkBytes < CHUNK_SIZE)
+      {
+         return;
+      }
+      final long expected = chunkBytes * 1000000000L / bytesPerSecond;
+      final long elapsed = System.nanoTime() - chunkStart;
+      if (expected > elapsed)
+      {
+         final long sleep = expected - elapsed;
+         try
+         {
+            Thread.sleep(sleep / 1000000, (int)(sleep % 1000000));
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Merge is interrupted");
+         }
+      }
+      chunkBytes = 0;
+      chunkStart = System.nanoTime();
+   }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.index.merge;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockFactory;
+
+import java.io.IOException;
+
+/**
+ * Directory what limits rate of writing to the wrapped directory. Used as
+ * target of merge.
+ *
+ * @version $Id$
+ */
+public class ThrottledDirectory extends Directory
+{
+   private final Directory delegate;
+
+   private final MergeRateLimiter rateLimiter;
+
+   /**
+    * @param delegate wrapped directory
+    * @param rateLimiter limiter of writing rate
+    */
+   public ThrottledDirectory(Directory delegate, MergeRateLimiter rateLimiter)
+   {
+      this.delegate = delegate;
+      this.rateLimiter = rateLimiter;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public IndexOutput createOutput(String name) throws IOException
+   {
+      return new ThrottledIndexOutput(delegate.createOutput(name));
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String[] list() throws IOException
+   {
+      return delegate.list();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean fileExists(String name) throws IOException
+   {
+      return delegate.fileExists(name);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public long fileModified(String name) throws IOException
+   {
+      return delegate.fileModified(name);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void touchFile(String name) throws IOException
+   {
+      delegate.touchFile(name);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void deleteFile(String name) throws IOException
+   {
+      delegate.deleteFile(name);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   @SuppressWarnings("deprecation")
+   public void renameFile(String from, String to) throws IOException
+   {
+      delegate.renameFile(from, to);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public long fileLength(String name) throws IOException
+   {
+      return delegate.fileLength(name);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void sync(String name) throws IOException
+   {
+      delegate.sync(name);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public IndexInput openInput(String name) throws IOException
+   {
+      return delegate.openInput(name);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public IndexInput openInput(String name, int bufferSize) throws IOException
+   {
+      return delegate.openInput(name, bufferSize);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public Lock makeLock(String name)
+   {
+      return delegate.makeLock(name);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void clearLock(String name) throws IOException
+   {
+      delegate.clearLock(name);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void setLockFactory(LockFactory lockFactory)
+   {
+      delegate.setLockFactory(lockFactory);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public LockFactory getLockFactory()
+   {
+      return delegate.getLockFactory();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String getLockID()
+   {
+      return delegate.getLockID();
+   }
+
+   /**
+    * Wrapped directory is not closed.
+    *
+    * @see org.apache.lucene.store.Directory#close()
+    */
+   @Override
+   public void close() throws IOException
+   {
+   }
+
+   /**
+    * Output what pauses after writing of each portion of bytes.
+    */
+   private class ThrottledIndexOutput extends IndexOutput
+   {
+      private final IndexOutput output;
+
+      ThrottledIndexOutput(IndexOutput output)
+      {
+         this.output = output;
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void writeByte(byte b) throws IOException
+      {
+         output.writeByte(b);
+         rateLimiter.pause(1);
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void writeBytes(byte[] b, int offset, int length) throws IOException
+      {
+         output.writeBytes(b, offset, length);
+         rateLimiter.pause(length);
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void flush() throws IOException
+      {
+         output.flush();
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void close() throws IOException
+      {
+         output.close();
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public long getFilePointer()
+      {
+         return output.getFilePointer();
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void seek(long pos) throws IOException
+      {
+         output.seek(pos);
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public long length() throws IOException
+      {
+         return output.length();
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void setLength(long length) throws IOException
+      {
+         output.setLength(length);
+      }
+   }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.index.merge;
+
+import org.xcmis.search.lucene.index.LuceneIndexDataManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Log structured policy of merging of persisted indexes. Indexes are grouped
+ * into tiers by size, each tier holds indexes up to merge factor times bigger
+ * than indexes of previous tier. Indexes of tier are merged when tier holds
+ * merge factor indexes, so each document is rewritten about log(N) times and
+ * cost of merge doesn't depend on total index size.
+ *
+ * @version $Id$
+ */
+public class TieredAggregatePolicy implements AggregatePolicy
+{
+   /**
+    * Default number of indexes merged at once.
+    */
+   public static final int DEFAULT_MERGE_FACTOR = 10;
+
+   /**
+    * Indexes smaller than this size belong to the lowest tier.
+    */
+   public static final long DEFAULT_MIN_DIR_SIZE = 1024 * 1024;
+
+   /**
+    * Indexes bigger than this size are not merged, except of optimize.
+    */
+   public static final long DEFAULT_MAX_MERGED_DIR_SIZE = 5L * 1024 * 1024 * 1024;
+
+   private int mergeFactor;
+
+   private long minDirSize;
+
+   private long maxMergedDirSize;
+
+   public TieredAggregatePolicy()
+   {
+      super();
+      this.mergeFactor = DEFAULT_MERGE_FACTOR;
+      this.minDirSize = DEFAULT_MIN_DIR_SIZE;
+      this.maxMergedDirSize = DEFAULT_MAX_MERGED_DIR_SIZE;
+   }
+
+   /**
+    * @return number of indexes merged at once
+    */
+   public int getMergeFactor()
+   {
+      return mergeFactor;
+   }
+
+   /**
+    * @param mergeFactor number of indexes merged at once, at least 2
+    */
+   public void setMergeFactor(int mergeFactor)
+   {
+      if (mergeFactor < 2)
+      {
+         throw new IllegalArgumentException("Merge factor must be at least 2");
+      }
+      this.mergeFactor = mergeFactor;
+   }
+
+   /**
+    * @return size of indexes of the lowest tier
+    */
+   public long getMinDirSize()
+   {
+      return minDirSize;
+   }
+
+   /**
+    * @param minDirSize size of indexes of the lowest tier
+    */
+   public void setMinDirSize(long minDirSize)
+   {
+      this.minDirSize = minDirSize;
+   }
+
+   /**
+    * @return max size of merged index
+    */
+   public long getMaxMergedDirSize()
+   {
+      return maxMergedDirSize;
+   }
+
+   /**
+    * @param maxMergedDirSize max size of merged index
+    */
+   public void setMaxMergedDirSize(long maxMergedDirSize)
+   {
+      this.maxMergedDirSize = maxMergedDirSize;
+   }
+
+   /**
+    * Find merge factor smallest indexes of the lowest full tier. If required
+    * candidate count is set, return that number of smallest indexes.
+    *
+    * @see org.xcmis.search.lucene.index.merge.AggregatePolicy#findIndexDataManagerToAggrigate(java.util.Collection,
+    *      long, long)
+    */
+   public Collection<LuceneIndexDataManager> findIndexDataManagerToAggrigate(
+      Collection<LuceneIndexDataManager> aggregateCandidat, long requiredCandidatCount, long reguiredTotalCandidatSize)
+   {
+      final List<SizedIndex> indexes = new ArrayList<SizedIndex>(aggregateCandidat.size());
+      for (final LuceneIndexDataManager index : aggregateCandidat)
+      {
+         indexes.add(new SizedIndex(index));
+      }
+      Collections.sort(indexes, new Comparator<SizedIndex>()
+      {
+         public int compare(SizedIndex o1, SizedIndex o2)
+         {
+            return o1.size < o2.size ? -1 : (o1.size == o2.size ? 0 : 1);
+         }
+      });
+
+      final List<LuceneIndexDataManager> result = new ArrayList<LuceneIndexDataManager>();
+      if (requiredCandidatCount > 0)
+      {
+         for (int i = 0; i < indexes.size() && i < requiredCandidatCount; i++)
+         {
+            result.add(indexes.get(i).index);
+         }
+         return result;
+      }
+
+      int tierStart = 0;
+      while (tierStart < indexes.size())
+      {
+         final int tier = tier(indexes.get(tierStart).size);
+         int tierEnd = tierStart;
+         while (tierEnd < indexes.size() && tier(indexes.get(tierEnd).size) == tier)
+         {
+            tierEnd++;
+         }
+         if (tierEnd - tierStart >= mergeFactor)
+         {
+            long totalSize = 0;
+            for (int i = tierStart; i < tierStart + mergeFactor; i++)
+            {
+               totalSize += indexes.get(i).size;
+            }
+            // higher tiers are even bigger, so don't look further
+            if (totalSize <= maxMergedDirSize)
+            {
+               for (int i = tierStart; i < tierStart + mergeFactor; i++)
+               {
+                  result.add(indexes.get(i).index);
+               }
+            }
+            return result;
+         }
+         tierStart = tierEnd;
+      }
+      return result;
+   }
+
+   /**
+    * Optimize merges all indexes into one.
+    *
+    * @see org.xcmis.search.lucene.index.merge.AggregatePolicy#findIndexDataManagerToOptimize(java.util.Collection)
+    */
+   public Collection<LuceneIndexDataManager> findIndexDataManagerToOptimize(
+      Collection<LuceneIndexDataManager> aggregateCandidat)
+   {
+      if (aggregateCandidat.size() > 1)
+      {
+         return new ArrayList<LuceneIndexDataManager>(aggregateCandidat);
+      }
+      return new ArrayList<LuceneIndexDataManager>();
+   }
+
+   /**
+    * @return tier of index, 0 for indexes smaller than min size
+    */
+   private int tier(long size)
+   {
+      if (size <= minDirSize)
+      {
+         return 0;
+      }
+      return (int)(Math.log((double)size / minDirSize) / Math.log(mergeFactor)) + 1;
+   }
+
+   /**
+    * Index with size computed once.
+    */
+   private static class SizedIndex
+   {
+      private final LuceneIndexDataManager index;
+
+      private final long size;
+
+      SizedIndex(LuceneIndexDataManager index)
+      {
+         this.index = index;
+         this.size = index.getDirectorySize(false);
+      }
+   }
+}
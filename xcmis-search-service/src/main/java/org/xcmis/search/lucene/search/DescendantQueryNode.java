@@ -90,6 +90,34 @@ public class DescendantQueryNode extends Query
       return new DescendantQueryNode(cQuery, pQuery);
    }
 
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean equals(Object obj)
+   {
+      if (this == obj)
+      {
+         return true;
+      }
+      if (!(obj instanceof DescendantQueryNode))
+      {
+         return false;
+      }
+      DescendantQueryNode other = (DescendantQueryNode)obj;
+      return (context == null ? other.context == null : context.equals(other.context))
+         && parentQuery.equals(other.parentQuery);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public int hashCode()
+   {
+      return (context == null ? 0 : context.hashCode()) * 31 + parentQuery.hashCode();
+   }
+
    @Override
    public String toString()
    {
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.OpenBitSet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Bounded cache of the docid sets resolved by filters. Sets are kept per
+ * {@link IndexReader} instance, readers are weakly referenced, so sets of the
+ * outdated readers are released together with readers. Least recently used
+ * sets of a reader are evicted when number of its sets or their total size
+ * exceeds the limit.
+ *
+ * @version $Id$
+ */
+final class DocIdSetCache
+{
+   /**
+    * Cache shared by all filters.
+    */
+   static final DocIdSetCache SHARED = new DocIdSetCache(128, 32L * 1024 * 1024);
+
+   /**
+    * Max number of sets per reader.
+    */
+   private final int maxEntries;
+
+   /**
+    * Max total size of sets per reader in bytes.
+    */
+   private final long maxBytes;
+
+   /**
+    * Sets of the readers.
+    */
+   private final Map<IndexReader, ReaderSets> cache = new WeakHashMap<IndexReader, ReaderSets>();
+
+   /**
+    * @param maxEntries max number of sets per reader
+    * @param maxBytes max total size of sets per reader in bytes
+    */
+   DocIdSetCache(int maxEntries, long maxBytes)
+   {
+      this.maxEntries = maxEntries;
+      this.maxBytes = maxBytes;
+   }
+
+   /**
+    * @param reader index reader
+    * @param key filter what resolved set
+    * @return cached set or null
+    */
+   synchronized OpenBitSet get(IndexReader reader, Object key)
+   {
+      ReaderSets sets = cache.get(reader);
+      return sets == null ? null : sets.get(key);
+   }
+
+   /**
+    * @param reader index reader
+    * @param key filter what resolved set
+    * @param set resolved set
+    */
+   synchronized void put(IndexReader reader, Object key, OpenBitSet set)
+   {
+      ReaderSets sets = cache.get(reader);
+      if (sets == null)
+      {
+         sets = new ReaderSets();
+         cache.put(reader, sets);
+      }
+      OpenBitSet previous = sets.put(key, set);
+      if (previous != null)
+      {
+         sets.bytes -= sizeOf(previous);
+      }
+      sets.bytes += sizeOf(set);
+      // most recently used set is always kept
+      for (Iterator<OpenBitSet> it = sets.values().iterator(); sets.size() > 1
+         && (sets.size() > maxEntries || sets.bytes > maxBytes);)
+      {
+         sets.bytes -= sizeOf(it.next());
+         it.remove();
+      }
+   }
+
+   /**
+    * @param reader index reader
+    * @return number of sets cached for reader
+    */
+   synchronized int size(IndexReader reader)
+   {
+      ReaderSets sets = cache.get(reader);
+      return sets == null ? 0 : sets.size();
+   }
+
+   private static long sizeOf(OpenBitSet set)
+   {
+      return set.getBits().length * 8L;
+   }
+
+   /**
+    * Sets of one reader in access order.
+    */
+   private static class ReaderSets extends LinkedHashMap<Object, OpenBitSet>
+   {
+      private static final long serialVersionUID = 1L;
+
+      long bytes;
+
+      ReaderSets()
+      {
+         super(16, 0.75f, true);
+      }
+   }
+}
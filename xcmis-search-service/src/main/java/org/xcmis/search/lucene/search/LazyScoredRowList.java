@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.xcmis.search.lucene.index.FieldNames;
+import org.xcmis.search.result.ScoredRow;
+import org.xcmis.spi.utils.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * List of {@link ScoredRow} over Lucene hits. Only document numbers and scores
+ * are kept after search, node identifiers are loaded from index when row is
+ * accessed first time. So skipping of rows to get deep page doesn't load
+ * stored fields of the skipped documents. Hits may be fetched by windows, next
+ * window is requested from {@link HitSource} when row after the last fetched
+ * hit is accessed.
+ * <p>
+ * List is valid while {@link IndexReader} is not closed. Lease of the reader
+ * is released when all rows are loaded or when list is closed, after that
+ * only already loaded rows are available.
+ * 
+ * @version $Id$
+ */
+public class LazyScoredRowList extends AbstractList<ScoredRow> implements RandomAccess, Closeable
+{
+   /**
+    * Class logger.
+    */
+   private static final Logger LOG = Logger.getLogger(LazyScoredRowList.class);
+
+   /**
+    * Source of the hits what are not fetched yet.
+    */
+   public interface HitSource
+   {
+      /**
+       * Fetch hits what follow the already fetched ones.
+       * 
+       * @param last - last fetched hit or null if nothing is fetched yet
+       * @param fetched - number of the fetched hits
+       * @param count - min number of the hits to fetch
+       * @return next hits in order, less then <code>count</code> only if there
+       *         are no more hits
+       * @throws IOException if index can't be read
+       */
+      ScoreDoc[] fetch(ScoreDoc last, int fetched, int count) throws IOException;
+   }
+
+   /**
+    * Shared field selector.
+    */
+   private static final UUIDFieldSelector UUID_SELECTOR = new UUIDFieldSelector();
+
+   /**
+    * Reader used for search.
+    */
+   private final IndexReader reader;
+
+   /**
+    * Name of the selector.
+    */
+   private final String selectorName;
+
+   /**
+    * Total number of the rows.
+    */
+   private final int size;
+
+   /**
+    * If true values of the sort fields are added to the rows.
+    */
+   private final boolean sorted;
+
+   /**
+    * Source of the hits what are not fetched yet, null if all hits are fetched.
+    */
+   private final HitSource source;
+
+   /**
+    * Fetched hits.
+    */
+   private final List<ScoreDoc> scoreDocs;
+
+   /**
+    * Loaded or replaced rows of the fetched hits.
+    */
+   private final List<ScoredRow> rows;
+
+   /**
+    * Number of the loaded rows.
+    */
+   private int loaded;
+
+   /**
+    * Lease of the reader, null if reader is not leased or already released.
+    */
+   private Closeable lease;
+
+   private boolean closed;
+
+   /**
+    * @param reader - index reader used for search
+    * @param selectorName - name of the selector
+    * @param scoreDocs - hits
+    * @param offset - number of the hits to skip
+    * @param sorted - if true hits are {@link FieldDoc} and values of the sort
+    *           fields should be added to rows
+    */
+   public LazyScoredRowList(IndexReader reader, String selectorName, ScoreDoc[] scoreDocs, int offset,
+      boolean sorted)
+   {
+      this(reader, selectorName, Arrays.asList(scoreDocs).subList(Math.min(offset, scoreDocs.length),
+         scoreDocs.length), Math.max(scoreDocs.length - offset, 0), sorted, null);
+   }
+
+   /**
+    * @param reader - index reader used for search
+    * @param selectorName - name of the selector
+    * @param first - hits of the first window
+    * @param size - total number of the rows
+    * @param sorted - if true hits are {@link FieldDoc} and values of the sort
+    *           fields should be added to rows
+    * @param source - source of the next windows, may be null if
+    *           <code>first</code> contains all hits
+    */
+   public LazyScoredRowList(IndexReader reader, String selectorName, List<ScoreDoc> first, int size,
+      boolean sorted, HitSource source)
+   {
+      this.reader = reader;
+      this.selectorName = selectorName;
+      this.size = source == null ? Math.min(size, first.size()) : size;
+      this.sorted = sorted;
+      this.source = source;
+      this.scoreDocs = new ArrayList<ScoreDoc>(Math.min(first.size(), this.size));
+      this.scoreDocs.addAll(first.subList(0, Math.min(first.size(), this.size)));
+      this.rows = new ArrayList<ScoredRow>(Collections.<ScoredRow> nCopies(scoreDocs.size(), null));
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public ScoredRow get(int index)
+   {
+      if (index < 0 || index >= size)
+      {
+         throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+      }
+      while (index >= scoreDocs.size())
+      {
+         fetch(index + 1 - scoreDocs.size());
+      }
+      ScoredRow row = rows.get(index);
+      if (row == null)
+      {
+         if (closed)
+         {
+            throw new IllegalStateException("The list is closed, row " + index + " is not loaded");
+         }
+         ScoreDoc scoreDoc = scoreDocs.get(index);
+         try
+         {
+            String uuid = reader.document(scoreDoc.doc, UUID_SELECTOR).get(FieldNames.UUID);
+            row = new ScoredRow(selectorName, uuid, scoreDoc.score);
+         }
+         catch (IOException e)
+         {
+            throw new IllegalStateException("Unable to load identifier of the document " + scoreDoc.doc + ": "
+               + e.getLocalizedMessage(), e);
+         }
+         if (sorted)
+         {
+            row.setSortValues(((FieldDoc)scoreDoc).fields);
+         }
+         rows.set(index, row);
+         if (++loaded == size)
+         {
+            // reader is not needed any more
+            close();
+         }
+      }
+      return row;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public ScoredRow set(int index, ScoredRow element)
+   {
+      ScoredRow previous = get(index);
+      rows.set(index, element);
+      return previous;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public int size()
+   {
+      return size;
+   }
+
+   /**
+    * @param lease lease of the reader, released when list is exhausted or
+    *           closed
+    */
+   public void setLease(Closeable lease)
+   {
+      this.lease = lease;
+      if (closed)
+      {
+         release();
+      }
+   }
+
+   /**
+    * Release reader. Rows what are not loaded yet are not available after
+    * closing.
+    */
+   public void close()
+   {
+      closed = true;
+      release();
+   }
+
+   /**
+    * @return number of the fetched hits
+    */
+   int getFetchedCount()
+   {
+      return scoreDocs.size();
+   }
+
+   private void release()
+   {
+      if (lease != null)
+      {
+         try
+         {
+            lease.close();
+         }
+         catch (IOException e)
+         {
+            LOG.error("Unable to release index reader: " + e.getLocalizedMessage(), e);
+         }
+         lease = null;
+      }
+   }
+
+   private void fetch(int count)
+   {
+      if (closed)
+      {
+         throw new IllegalStateException("The list is closed, hits after " + scoreDocs.size() + " are not fetched");
+      }
+      ScoreDoc[] next;
+      try
+      {
+         next =
+            source == null ? new ScoreDoc[0] : source.fetch(scoreDocs.isEmpty() ? null : scoreDocs.get(scoreDocs
+               .size() - 1), scoreDocs.size(), count);
+      }
+      catch (IOException e)
+      {
+         throw new IllegalStateException("Unable to fetch hits after " + scoreDocs.size() + ": "
+            + e.getLocalizedMessage(), e);
+      }
+      if (next.length == 0)
+      {
+         throw new IllegalStateException("Only " + scoreDocs.size() + " of " + size + " hits are found");
+      }
+      int n = Math.min(next.length, size - scoreDocs.size());
+      for (int i = 0; i < n; i++)
+      {
+         scoreDocs.add(next[i]);
+         rows.add(null);
+      }
+   }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.OpenBitSet;
+import org.xcmis.search.lucene.index.FieldNames;
+import org.xcmis.search.lucene.index.SnapshotIndexReader;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Filter what selects documents readable by any of the given principals, i.e.
+ * documents what have one of principals or {@link FieldNames#UNRESTRICTED} in
+ * {@link FieldNames#PRINCIPAL} field. Resolved sets are kept in the bounded
+ * per reader cache shared with {@link TreeScopeFilter}. Set of the snapshot
+ * reader is composed from sets of its chains, so after reopen only changed
+ * chains are resolved again.
+ *
+ * @version $Id$
+ */
+public class PrincipalFilter extends Filter
+{
+
+   /** The serialVersionUID. */
+   private static final long serialVersionUID = 4626341795203640870L;
+
+   /**
+    * Principals of the caller.
+    */
+   private final Set<String> principals;
+
+   /**
+    * @param principals principals of the caller
+    */
+   public PrincipalFilter(Set<String> principals)
+   {
+      this.principals = Collections.unmodifiableSet(new HashSet<String>(principals));
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public DocIdSet getDocIdSet(IndexReader reader) throws IOException
+   {
+      return getDocs(reader);
+   }
+
+   /**
+    * @return principals of the caller
+    */
+   public Set<String> getPrincipals()
+   {
+      return principals;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean equals(Object obj)
+   {
+      if (this == obj)
+      {
+         return true;
+      }
+      if (!(obj instanceof PrincipalFilter))
+      {
+         return false;
+      }
+      return principals.equals(((PrincipalFilter)obj).principals);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public int hashCode()
+   {
+      return principals.hashCode();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String toString()
+   {
+      return "(PrincipalFilter:" + principals + ")";
+   }
+
+   /**
+    * Get cached set of the reader or resolve it.
+    *
+    * @param reader - index reader
+    * @return bitset of the readable documents
+    * @throws IOException
+    */
+   private OpenBitSet getDocs(IndexReader reader) throws IOException
+   {
+      OpenBitSet docs = DocIdSetCache.SHARED.get(reader, this);
+      if (docs == null)
+      {
+         if (reader instanceof SnapshotIndexReader)
+         {
+            docs = compose(((SnapshotIndexReader)reader).getChainReaders(), reader.maxDoc());
+         }
+         else
+         {
+            docs = resolve(reader);
+         }
+         DocIdSetCache.SHARED.put(reader, this, docs);
+      }
+      return docs;
+   }
+
+   /**
+    * Compose set of the snapshot from sets of its chains.
+    *
+    * @param chains - readers of the chains in order of snapshot
+    * @param maxDoc - max doc of the snapshot
+    * @return bitset of the readable documents
+    * @throws IOException
+    */
+   private OpenBitSet compose(IndexReader[] chains, int maxDoc) throws IOException
+   {
+      OpenBitSet docs = new OpenBitSet(maxDoc);
+      int start = 0;
+      for (IndexReader chain : chains)
+      {
+         OpenBitSet chainDocs = getDocs(chain);
+         for (int doc = chainDocs.nextSetBit(0); doc >= 0; doc = chainDocs.nextSetBit(doc + 1))
+         {
+            docs.fastSet(start + doc);
+         }
+         start += chain.maxDoc();
+      }
+      return docs;
+   }
+
+   /**
+    * Collect documents readable by principals.
+    *
+    * @param reader - index reader
+    * @return bitset of the readable documents
+    * @throws IOException
+    */
+   private OpenBitSet resolve(IndexReader reader) throws IOException
+   {
+      OpenBitSet docs = new OpenBitSet(reader.maxDoc());
+      TermDocs termDocs = reader.termDocs();
+      try
+      {
+         termDocs.seek(new Term(FieldNames.PRINCIPAL, FieldNames.UNRESTRICTED));
+         while (termDocs.next())
+         {
+            docs.fastSet(termDocs.doc());
+         }
+         for (String principal : principals)
+         {
+            termDocs.seek(new Term(FieldNames.PRINCIPAL, principal));
+            while (termDocs.next())
+            {
+               docs.fastSet(termDocs.doc());
+            }
+         }
+      }
+      finally
+      {
+         termDocs.close();
+      }
+      return docs;
+   }
+}
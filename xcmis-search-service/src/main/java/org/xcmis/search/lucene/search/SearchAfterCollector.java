@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.FieldSortedHitQueue;
+import org.apache.lucene.search.HitCollector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SortField;
+
+import java.io.IOException;
+
+/**
+ * Collect sorted hits what follow the given position. Only <code>size</code>
+ * best hits after position are kept in the queue, so memory and time don't
+ * depend on how deep the requested page is.
+ * 
+ * @version $Id$
+ */
+public class SearchAfterCollector extends HitCollector
+{
+   /**
+    * Sorted hits.
+    */
+   private final AfterHitQueue queue;
+
+   /**
+    * Values of the sort fields of the last row of the previous page.
+    */
+   private final Comparable<?>[] after;
+
+   /**
+    * Number of the hits what follow the position.
+    */
+   private int totalHits;
+
+   /**
+    * @param reader - index reader
+    * @param fields - sort fields
+    * @param after - values of the sort fields of the last row of the previous
+    *           page
+    * @param size - maximum number of the hits to collect
+    * @throws IOException
+    */
+   public SearchAfterCollector(IndexReader reader, SortField[] fields, Comparable<?>[] after, int size)
+      throws IOException
+   {
+      if (after.length != fields.length)
+      {
+         throw new IllegalArgumentException("Search after position contains " + after.length
+            + " values, but query is sorted by " + fields.length + " fields");
+      }
+      this.queue = new AfterHitQueue(reader, fields, size);
+      this.after = after;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public void collect(int doc, float score)
+   {
+      if (score > 0.0f)
+      {
+         FieldDoc fieldDoc = new FieldDoc(doc, score);
+         if (queue.isAfter(fieldDoc, after))
+         {
+            totalHits++;
+            queue.insertWithOverflow(fieldDoc);
+         }
+      }
+   }
+
+   /**
+    * @return number of the hits what follow the position
+    */
+   public int getTotalHits()
+   {
+      return totalHits;
+   }
+
+   /**
+    * @return collected hits in sort order, each hit is {@link FieldDoc} with
+    *         values of the sort fields
+    */
+   public ScoreDoc[] getScoreDocs()
+   {
+      ScoreDoc[] scoreDocs = new ScoreDoc[queue.size()];
+      for (int i = scoreDocs.length - 1; i >= 0; i--)
+      {
+         scoreDocs[i] = queue.fillValues((FieldDoc)queue.pop());
+      }
+      return scoreDocs;
+   }
+
+   /**
+    * Hit queue what compare hits with the given position.
+    */
+   private static class AfterHitQueue extends FieldSortedHitQueue
+   {
+      AfterHitQueue(IndexReader reader, SortField[] fields, int size) throws IOException
+      {
+         super(reader, fields, size);
+      }
+
+      /**
+       * @return true if document is sorted after the given position
+       */
+      boolean isAfter(FieldDoc doc, Comparable<?>[] after)
+      {
+         for (int i = 0; i < comparators.length; i++)
+         {
+            int c = compareValues(comparators[i].sortValue(doc), after[i]);
+            if (comparators[i].sortType() == SortField.SCORE)
+            {
+               // relevance is sorted by descending score
+               c = -c;
+            }
+            if (fields[i].getReverse())
+            {
+               c = -c;
+            }
+            if (c != 0)
+            {
+               return c > 0;
+            }
+         }
+         // the same position
+         return false;
+      }
+
+      /**
+       * Set values of the sort fields.
+       */
+      FieldDoc fillValues(FieldDoc doc)
+      {
+         Comparable<?>[] values = new Comparable<?>[comparators.length];
+         for (int i = 0; i < comparators.length; i++)
+         {
+            values[i] = comparators[i].sortValue(doc);
+         }
+         doc.fields = values;
+         return doc;
+      }
+
+      /**
+       * Compare values, null is less then any other value.
+       */
+      @SuppressWarnings("unchecked")
+      private int compareValues(Comparable value, Comparable other)
+      {
+         if (value == null || other == null)
+         {
+            return value == null ? (other == null ? 0 : -1) : 1;
+         }
+         if (value.getClass() != other.getClass())
+         {
+            // type of the field may be changed by AUTO sort field
+            return value.toString().compareTo(other.toString());
+         }
+         return value.compareTo(other);
+      }
+   }
+}
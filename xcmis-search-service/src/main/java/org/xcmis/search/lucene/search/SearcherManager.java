@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.search;
+
+import org.apache.commons.lang.Validate;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.xcmis.search.lucene.index.IndexException;
+import org.xcmis.spi.utils.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Share one {@link IndexSearcher} between all queries. Searcher is an
+ * immutable snapshot of the index, it is replaced by {@link #refresh()} after
+ * index modification. New snapshot is warmed by registered
+ * {@link SearcherWarmer}s before it becomes visible to the queries.
+ * <p>
+ * Snapshots are reference counted. {@link #acquire()} doesn't block, each
+ * acquired searcher must be returned by {@link #release(IndexSearcher)}. The
+ * reader of the replaced snapshot is released when last query returns it.
+ * Results what read index after searcher is released (lazy lists of rows) may
+ * keep snapshot open by {@link #lease(Object, IndexSearcher)}. Lease is
+ * released by its holder when it is closed or exhausted, lease of the holder
+ * what is collected without closing is released as leak.
+ *
+ * @version $Id$
+ */
+public class SearcherManager
+{
+   /**
+    * Class logger.
+    */
+   private static final Logger LOG = Logger.getLogger(SearcherManager.class);
+
+   /**
+    * Source of the index readers.
+    */
+   public interface IndexReaderSource
+   {
+      /**
+       * Open reader over current state of index. One reference of the returned
+       * reader is owned by caller and released by {@link IndexReader#decRef()}.
+       *
+       * @return index reader
+       * @throws IndexException if reader can't be opened
+       */
+      IndexReader openIndexReader() throws IndexException;
+   }
+
+   /**
+    * Prepare new searcher before it becomes visible, e.g. load field caches.
+    */
+   public interface SearcherWarmer
+   {
+      /**
+       * @param searcher new searcher
+       * @throws IOException if index can't be read
+       */
+      void warm(IndexSearcher searcher) throws IOException;
+   }
+
+   /**
+    * Source of the readers.
+    */
+   private final IndexReaderSource readerSource;
+
+   /**
+    * Current snapshot.
+    */
+   private final AtomicReference<ManagedSearcher> current = new AtomicReference<ManagedSearcher>();
+
+   /**
+    * Warmers.
+    */
+   private final List<SearcherWarmer> warmers = new CopyOnWriteArrayList<SearcherWarmer>();
+
+   /**
+    * Serialize refreshes, queries never take this lock while snapshot is
+    * available.
+    */
+   private final Object refreshLock = new Object();
+
+   /**
+    * Queue of the leases what holders are collected.
+    */
+   private final ReferenceQueue<Object> leaseQueue = new ReferenceQueue<Object>();
+
+   /**
+    * Active leases, keep references reachable until holders are collected.
+    */
+   private final Set<Lease> leases = Collections.synchronizedSet(new HashSet<Lease>());
+
+   /**
+    * True if last refresh failed, so current snapshot may be outdated.
+    */
+   private volatile boolean stale;
+
+   private volatile boolean closed;
+
+   /**
+    * @param readerSource source of the index readers
+    */
+   public SearcherManager(IndexReaderSource readerSource)
+   {
+      Validate.notNull(readerSource, "The readerSource argument may not be null");
+      this.readerSource = readerSource;
+   }
+
+   /**
+    * @param warmer warmer of the new snapshots
+    */
+   public void addWarmer(SearcherWarmer warmer)
+   {
+      Validate.notNull(warmer, "The warmer argument may not be null");
+      warmers.add(warmer);
+   }
+
+   /**
+    * @param warmer warmer to remove
+    */
+   public void removeWarmer(SearcherWarmer warmer)
+   {
+      warmers.remove(warmer);
+   }
+
+   /**
+    * Get current searcher. Searcher must be returned by
+    * {@link #release(IndexSearcher)}.
+    *
+    * @return searcher
+    * @throws IndexException if snapshot is not opened yet and can't be opened
+    */
+   public IndexSearcher acquire() throws IndexException
+   {
+      expireLeases();
+      if (stale)
+      {
+         try
+         {
+            refresh();
+         }
+         catch (IndexException e)
+         {
+            LOG.error("Unable to refresh index searcher, previous snapshot is used: " + e.getLocalizedMessage(), e);
+         }
+      }
+      while (true)
+      {
+         ManagedSearcher searcher = current.get();
+         if (searcher == null)
+         {
+            if (closed)
+            {
+               throw new IndexException("Searcher manager is closed");
+            }
+            refresh();
+         }
+         else if (searcher.tryIncRef())
+         {
+            return searcher;
+         }
+         // snapshot is replaced and released concurrently, try next one
+      }
+   }
+
+   /**
+    * Return searcher given by {@link #acquire()}.
+    *
+    * @param searcher searcher
+    * @throws IndexException if reader of released snapshot can't be closed
+    */
+   public void release(IndexSearcher searcher) throws IndexException
+   {
+      Validate.isTrue(searcher instanceof ManagedSearcher, "The searcher is not acquired from the searcher manager");
+      ((ManagedSearcher)searcher).decRef();
+   }
+
+   /**
+    * Keep snapshot of the acquired searcher open until returned lease is
+    * closed. If holder is collected before lease is closed snapshot is
+    * released at next {@link #acquire()} or {@link #refresh()}.
+    *
+    * @param holder object what uses snapshot
+    * @param searcher acquired searcher
+    * @return lease, holder must close it when snapshot is not needed any more
+    */
+   public Closeable lease(Object holder, IndexSearcher searcher)
+   {
+      Validate.notNull(holder, "The holder argument may not be null");
+      Validate.isTrue(searcher instanceof ManagedSearcher, "The searcher is not acquired from the searcher manager");
+      ManagedSearcher managedSearcher = (ManagedSearcher)searcher;
+      if (!managedSearcher.tryIncRef())
+      {
+         throw new IllegalStateException("The searcher is already released");
+      }
+      Lease lease = new Lease(holder, managedSearcher, leaseQueue);
+      leases.add(lease);
+      return lease;
+   }
+
+   /**
+    * Publish snapshot of current index state. Called after each index
+    * modification.
+    *
+    * @throws IndexException if reader can't be opened
+    */
+   public void refresh() throws IndexException
+   {
+      synchronized (refreshLock)
+      {
+         if (closed)
+         {
+            return;
+         }
+         boolean refreshed = false;
+         try
+         {
+            IndexReader reader = readerSource.openIndexReader();
+            ManagedSearcher old = current.get();
+            if (old != null && old.getIndexReader() == reader)
+            {
+               // nothing changed
+               decRef(reader);
+            }
+            else
+            {
+               ManagedSearcher searcher = new ManagedSearcher(reader);
+               warm(searcher);
+               current.set(searcher);
+               if (old != null)
+               {
+                  old.decRef();
+               }
+            }
+            refreshed = true;
+         }
+         finally
+         {
+            stale = !refreshed;
+         }
+      }
+      expireLeases();
+   }
+
+   /**
+    * Release current snapshot and all leases.
+    *
+    * @throws IndexException if reader can't be closed
+    */
+   public void close() throws IndexException
+   {
+      synchronized (refreshLock)
+      {
+         closed = true;
+         ManagedSearcher old = current.getAndSet(null);
+         if (old != null)
+         {
+            old.decRef();
+         }
+      }
+      List<Lease> active;
+      synchronized (leases)
+      {
+         active = new ArrayList<Lease>(leases);
+         leases.clear();
+      }
+      for (Lease lease : active)
+      {
+         lease.searcher.decRef();
+      }
+   }
+
+   /**
+    * @return number of the active leases
+    */
+   int getLeaseCount()
+   {
+      return leases.size();
+   }
+
+   private void warm(ManagedSearcher searcher)
+   {
+      for (SearcherWarmer warmer : warmers)
+      {
+         try
+         {
+            warmer.warm(searcher);
+         }
+         catch (IOException e)
+         {
+            // snapshot is still usable, only first queries will be slower
+            LOG.error("Unable to warm index searcher: " + e.getLocalizedMessage(), e);
+         }
+      }
+   }
+
+   /**
+    * Release snapshots of the collected lease holders.
+    */
+   private void expireLeases()
+   {
+      Reference<? extends Object> reference;
+      while ((reference = leaseQueue.poll()) != null)
+      {
+         Lease lease = (Lease)reference;
+         if (leases.contains(lease))
+         {
+            LOG.warn("Index snapshot is not released by result, release it after result is collected.");
+            try
+            {
+               lease.close();
+            }
+            catch (IOException e)
+            {
+               LOG.error(e.getLocalizedMessage(), e);
+            }
+         }
+      }
+   }
+
+   private static void decRef(IndexReader reader) throws IndexException
+   {
+      try
+      {
+         reader.decRef();
+      }
+      catch (IOException e)
+      {
+         throw new IndexException(e.getLocalizedMessage(), e);
+      }
+   }
+
+   /**
+    * Searcher over snapshot reader. It owns one reference of the reader and
+    * releases it when searcher itself is not referenced any more.
+    */
+   private static class ManagedSearcher extends IndexSearcher
+   {
+      /**
+       * Initial reference is owned by manager while snapshot is current.
+       */
+      private final AtomicInteger refCount = new AtomicInteger(1);
+
+      ManagedSearcher(IndexReader reader)
+      {
+         super(reader);
+      }
+
+      /**
+       * @return false if snapshot is already released
+       */
+      boolean tryIncRef()
+      {
+         while (true)
+         {
+            int count = refCount.get();
+            if (count <= 0)
+            {
+               return false;
+            }
+            if (refCount.compareAndSet(count, count + 1))
+            {
+               return true;
+            }
+         }
+      }
+
+      void decRef() throws IndexException
+      {
+         int count = refCount.decrementAndGet();
+         if (count == 0)
+         {
+            SearcherManager.decRef(getIndexReader());
+         }
+         else if (count < 0)
+         {
+            throw new IllegalStateException("The searcher is released more times than acquired");
+         }
+      }
+   }
+
+   /**
+    * Reference of the snapshot held by lazily evaluated result. Phantom
+    * reference only detects holders what are collected without closing the
+    * lease.
+    */
+   private class Lease extends PhantomReference<Object> implements Closeable
+   {
+      private final ManagedSearcher searcher;
+
+      Lease(Object holder, ManagedSearcher searcher, ReferenceQueue<Object> queue)
+      {
+         super(holder, queue);
+         this.searcher = searcher;
+      }
+
+      /**
+       * Release snapshot, next calls do nothing.
+       *
+       * @throws IOException if reader of released snapshot can't be closed
+       */
+      public void close() throws IOException
+      {
+         if (leases.remove(this))
+         {
+            clear();
+            try
+            {
+               searcher.decRef();
+            }
+            catch (IndexException e)
+            {
+               throw new IOException(e.getLocalizedMessage(), e);
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.HitCollector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.OpenBitSet;
+import org.xcmis.search.lucene.index.FieldNames;
+import org.xcmis.spi.utils.Logger;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * Filter what selects children (or all descendants) of the documents matched
+ * by parent query. Scope is resolved into docid bitset by walking
+ * {@link FieldNames#PARENT} postings breadth-first, so cost is linear in the
+ * size of the subtree. Resolved scopes are kept in bounded
+ * {@link DocIdSetCache} per {@link IndexReader} instance, i.e. scope is
+ * resolved once per reader generation unless it is evicted.
+ *
+ * @version $Id$
+ */
+public class TreeScopeFilter extends Filter
+{
+
+   /** The serialVersionUID. */
+   private static final long serialVersionUID = -2386127306455734573L;
+
+   /**
+    * Class logger.
+    */
+   private static final Logger LOG = Logger.getLogger(TreeScopeFilter.class);
+
+   /**
+    * Query what return parent node.
+    */
+   private final Query parentQuery;
+
+   /**
+    * If isDeep=false return only first level child.
+    */
+   private final boolean isDeep;
+
+   /**
+    * @param parentQuery - parent query.
+    * @param isDeep - if false return only first level child.
+    */
+   public TreeScopeFilter(Query parentQuery, boolean isDeep)
+   {
+      this.parentQuery = parentQuery;
+      this.isDeep = isDeep;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public DocIdSet getDocIdSet(IndexReader reader) throws IOException
+   {
+      OpenBitSet scope = DocIdSetCache.SHARED.get(reader, this);
+      if (scope == null)
+      {
+         scope = resolveScope(reader);
+         DocIdSetCache.SHARED.put(reader, this, scope);
+      }
+      return scope;
+   }
+
+   /**
+    * @return parent query
+    */
+   public Query getParentQuery()
+   {
+      return parentQuery;
+   }
+
+   /**
+    * @return true if all descendants selected, false if only first level
+    *         child
+    */
+   public boolean isDeep()
+   {
+      return isDeep;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean equals(Object obj)
+   {
+      if (this == obj)
+      {
+         return true;
+      }
+      if (!(obj instanceof TreeScopeFilter))
+      {
+         return false;
+      }
+      TreeScopeFilter other = (TreeScopeFilter)obj;
+      return isDeep == other.isDeep && parentQuery.equals(other.parentQuery);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public int hashCode()
+   {
+      return parentQuery.hashCode() * 31 + (isDeep ? 1 : 0);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String toString()
+   {
+      return "(TreeScopeFilter:" + parentQuery + " isDeep:" + isDeep + ")";
+   }
+
+   /**
+    * Walk the tree from the parents selected by parent query.
+    *
+    * @param reader - index reader
+    * @return bitset of the children or descendants
+    * @throws IOException
+    */
+   private OpenBitSet resolveScope(final IndexReader reader) throws IOException
+   {
+      final OpenBitSet scope = new OpenBitSet(reader.maxDoc());
+      final LinkedList<String> parents = new LinkedList<String>();
+      final UUIDFieldSelector uuidSelector = new UUIDFieldSelector();
+
+      final OpenBitSet parentDocs = new OpenBitSet(reader.maxDoc());
+      IndexSearcher searcher = new IndexSearcher(reader);
+      try
+      {
+         searcher.search(parentQuery, new HitCollector()
+         {
+            @Override
+            public void collect(int doc, float score)
+            {
+               parentDocs.fastSet(doc);
+            }
+         });
+      }
+      finally
+      {
+         searcher.close();
+      }
+      for (int doc = parentDocs.nextSetBit(0); doc >= 0; doc = parentDocs.nextSetBit(doc + 1))
+      {
+         parents.add(reader.document(doc, uuidSelector).get(FieldNames.UUID));
+      }
+
+      TermDocs termDocs = reader.termDocs();
+      try
+      {
+         while (!parents.isEmpty())
+         {
+            termDocs.seek(new Term(FieldNames.PARENT, parents.removeFirst()));
+            while (termDocs.next())
+            {
+               int doc = termDocs.doc();
+               // doc may be reached more than once if it is multi-filed
+               if (!scope.getAndSet(doc) && isDeep)
+               {
+                  parents.add(reader.document(doc, uuidSelector).get(FieldNames.UUID));
+               }
+            }
+         }
+      }
+      finally
+      {
+         termDocs.close();
+      }
+      if (LOG.isDebugEnabled())
+      {
+         LOG.debug(this + " resolved to " + scope.cardinality() + " documents");
+      }
+      return scope;
+   }
+}
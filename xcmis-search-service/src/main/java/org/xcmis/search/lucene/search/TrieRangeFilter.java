@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.OpenBitSet;
+import org.xcmis.search.lucene.index.TrieNumberTools;
+
+import java.io.IOException;
+
+/**
+ * Filter what selects documents with trie encoded number in range. Range is
+ * split by {@link TrieNumberTools#splitRange} to sub-ranges of different
+ * precision, so filter visits at most about 2^precisionStep terms per
+ * precision step regardless of number of distinct values.
+ *
+ * @version $Id$
+ */
+public class TrieRangeFilter extends Filter
+{
+
+   /** The serialVersionUID. */
+   private static final long serialVersionUID = -4530924823471093518L;
+
+   private final String field;
+
+   private final long min;
+
+   private final long max;
+
+   private final int precisionStep;
+
+   /**
+    * @param field name of trie field
+    * @param min lower bound, inclusive
+    * @param max upper bound, inclusive
+    * @param precisionStep precision step used to index field
+    */
+   public TrieRangeFilter(String field, long min, long max, int precisionStep)
+   {
+      this.field = field.intern();
+      this.min = min;
+      this.max = max;
+      this.precisionStep = precisionStep;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public DocIdSet getDocIdSet(final IndexReader reader) throws IOException
+   {
+      final OpenBitSet result = new OpenBitSet(reader.maxDoc());
+      final TermDocs termDocs = reader.termDocs();
+      try
+      {
+         TrieNumberTools.splitRange(new TrieNumberTools.RangeConsumer()
+         {
+            public void addRange(String minPrefixCoded, String maxPrefixCoded) throws IOException
+            {
+               final TermEnum terms = reader.terms(new Term(field, minPrefixCoded));
+               try
+               {
+                  do
+                  {
+                     final Term term = terms.term();
+                     // interned comparison
+                     if (term == null || term.field() != field || term.text().compareTo(maxPrefixCoded) > 0)
+                     {
+                        break;
+                     }
+                     termDocs.seek(terms);
+                     while (termDocs.next())
+                     {
+                        result.fastSet(termDocs.doc());
+                     }
+                  }
+                  while (terms.next());
+               }
+               finally
+               {
+                  terms.close();
+               }
+            }
+         }, precisionStep, min, max);
+      }
+      finally
+      {
+         termDocs.close();
+      }
+      return result;
+   }
+
+   /**
+    * @return name of trie field
+    */
+   public String getField()
+   {
+      return field;
+   }
+
+   /**
+    * @return lower bound, inclusive
+    */
+   public long getMin()
+   {
+      return min;
+   }
+
+   /**
+    * @return upper bound, inclusive
+    */
+   public long getMax()
+   {
+      return max;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public boolean equals(Object obj)
+   {
+      if (this == obj)
+      {
+         return true;
+      }
+      if (!(obj instanceof TrieRangeFilter))
+      {
+         return false;
+      }
+      TrieRangeFilter other = (TrieRangeFilter)obj;
+      return field == other.field && min == other.min && max == other.max && precisionStep == other.precisionStep;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public int hashCode()
+   {
+      int hash = field.hashCode();
+      hash = hash * 31 + (int)(min ^ (min >>> 32));
+      hash = hash * 31 + (int)(max ^ (max >>> 32));
+      return hash * 31 + precisionStep;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String toString()
+   {
+      return "(TrieRangeFilter:" + field + " [" + min + " TO " + max + "])";
+   }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.search;
+
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.xcmis.search.lucene.index.TrieNumberTools;
+
+/**
+ * Constant score range query over trie encoded numbers. Bounds are sortable
+ * longs as produced by {@link TrieNumberTools}.
+ *
+ * @version $Id$
+ */
+public class TrieRangeQuery extends ConstantScoreQuery
+{
+
+   /** The serialVersionUID. */
+   private static final long serialVersionUID = 2212658117434391227L;
+
+   /**
+    * @param field name of trie field
+    * @param min lower bound, null if unbounded
+    * @param max upper bound, null if unbounded
+    * @param minInclusive include lower bound
+    * @param maxInclusive include upper bound
+    * @param precisionStep precision step used to index field
+    */
+   public TrieRangeQuery(String field, Long min, Long max, boolean minInclusive, boolean maxInclusive,
+      int precisionStep)
+   {
+      super(createFilter(field, min, max, minInclusive, maxInclusive, precisionStep));
+   }
+
+   private static TrieRangeFilter createFilter(String field, Long min, Long max, boolean minInclusive,
+      boolean maxInclusive, int precisionStep)
+   {
+      long lower = min == null ? Long.MIN_VALUE : min;
+      long upper = max == null ? Long.MAX_VALUE : max;
+      if ((min != null && !minInclusive && lower == Long.MAX_VALUE)
+         || (max != null && !maxInclusive && upper == Long.MIN_VALUE))
+      {
+         // nothing after max value or before min value
+         return new TrieRangeFilter(field, 1, 0, precisionStep);
+      }
+      if (min != null && !minInclusive)
+      {
+         lower++;
+      }
+      if (max != null && !maxInclusive)
+      {
+         upper--;
+      }
+      return new TrieRangeFilter(field, lower, upper, precisionStep);
+   }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded least recently used cache of parsed queries and query execution
+ * plans. Cached values must be immutable, they are shared between threads.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class QueryCache<K, V>
+{
+   private final int maxSize;
+
+   private final Map<K, V> entries;
+
+   private final AtomicLong hits = new AtomicLong();
+
+   private final AtomicLong misses = new AtomicLong();
+
+   /**
+    * @param maxSize max number of cached entries, 0 to disable cache
+    */
+   public QueryCache(final int maxSize)
+   {
+      if (maxSize < 0)
+      {
+         throw new IllegalArgumentException("Cache size may not be negative");
+      }
+      this.maxSize = maxSize;
+      this.entries = new LinkedHashMap<K, V>(16, 0.75f, true)
+      {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+         {
+            return size() > maxSize;
+         }
+      };
+   }
+
+   /**
+    * @param key key
+    * @return cached value or null if there is no value for key
+    */
+   public V get(K key)
+   {
+      V value;
+      synchronized (entries)
+      {
+         value = entries.get(key);
+      }
+      if (value == null)
+      {
+         misses.incrementAndGet();
+      }
+      else
+      {
+         hits.incrementAndGet();
+      }
+      return value;
+   }
+
+   /**
+    * @param key key
+    * @param value value to cache
+    */
+   public void put(K key, V value)
+   {
+      if (maxSize == 0)
+      {
+         return;
+      }
+      synchronized (entries)
+      {
+         entries.put(key, value);
+      }
+   }
+
+   /**
+    * Remove all cached entries. Hit and miss counters are not reset.
+    */
+   public void clear()
+   {
+      synchronized (entries)
+      {
+         entries.clear();
+      }
+   }
+
+   /**
+    * @return number of cached entries
+    */
+   public int size()
+   {
+      synchronized (entries)
+      {
+         return entries.size();
+      }
+   }
+
+   /**
+    * @return max number of cached entries
+    */
+   public int getMaxSize()
+   {
+      return maxSize;
+   }
+
+   /**
+    * @return number of lookups what found cached value
+    */
+   public long getHitCount()
+   {
+      return hits.get();
+   }
+
+   /**
+    * @return number of lookups what didn't find cached value
+    */
+   public long getMissCount()
+   {
+      return misses.get();
+   }
+}
@@ -22,6 +22,7 @@ import org.xcmis.search.content.Schema;
 import org.xcmis.search.model.operand.BindVariableName;
 
 import java.util.Map;
+import java.util.Set;
 
 /**
  * An immutable context in which queries are to be executed. 
@@ -36,15 +37,28 @@ public class QueryExecutionContext
 
    private final QueryExecutionExceptions executionExceptions;
 
+   private final Set<String> principals;
+
    /**
     * @param variables the mapping of variables and values, or null if there are no such variables
     */
    public QueryExecutionContext(Schema schema, QueryExecutionExceptions executionExceptions,
       Map<String, Object> variables)
+   {
+      this(schema, executionExceptions, variables, null);
+   }
+
+   /**
+    * @param variables the mapping of variables and values, or null if there are no such variables
+    * @param principals the principals of the caller, or null if result should not be trimmed
+    */
+   public QueryExecutionContext(Schema schema, QueryExecutionExceptions executionExceptions,
+      Map<String, Object> variables, Set<String> principals)
    {
       this.schema = schema;
       this.executionExceptions = executionExceptions;
       this.variables = variables;
+      this.principals = principals;
    }
 
    /**
@@ -81,4 +95,14 @@ public class QueryExecutionContext
       return variables;
    }
 
+   /**
+    * Get the principals of the caller. Each selector selects only entries readable by them.
+    * 
+    * @return the principals or null if entries are not trimmed
+    */
+   public Set<String> getPrincipals()
+   {
+      return principals;
+   }
+
 }
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.query.join;
+
+import org.apache.commons.lang.Validate;
+import org.xcmis.search.SearchServiceException;
+import org.xcmis.search.model.source.join.JoinType;
+import org.xcmis.search.query.QueryExecutionException;
+import org.xcmis.search.query.plan.JoinAlgorithm;
+import org.xcmis.search.result.ScoredRow;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Join rows of two sources. Each result row contains selectors of both sides.
+ * Rows are matched by keys given by {@link JoinKeyResolver}.
+ * <p>
+ * {@link JoinAlgorithm#NESTED_LOOP} and {@link JoinAlgorithm#HASH} keep order
+ * of the left rows, {@link JoinAlgorithm#MERGE} return rows ordered by join
+ * key. Unmatched rows of the outer side are added to the result with selectors
+ * of the outer side only.
+ */
+public class RowJoiner
+{
+   /**
+    * Join type.
+    */
+   private final JoinType joinType;
+
+   /**
+    * Join algorithm.
+    */
+   private final JoinAlgorithm joinAlgorithm;
+
+   /**
+    * @param joinType join type
+    * @param joinAlgorithm join algorithm
+    */
+   public RowJoiner(JoinType joinType, JoinAlgorithm joinAlgorithm)
+   {
+      Validate.notNull(joinType, "The joinType argument may not be null");
+      Validate.notNull(joinAlgorithm, "The joinAlgorithm argument may not be null");
+      this.joinType = joinType;
+      this.joinAlgorithm = joinAlgorithm;
+   }
+
+   /**
+    * Join rows.
+    *
+    * @param left rows of the left side
+    * @param leftKeyResolver keys of the left rows
+    * @param right rows of the right side
+    * @param rightKeyResolver keys of the right rows
+    * @return joined rows
+    * @throws QueryExecutionException if join keys can't be resolved
+    */
+   public List<ScoredRow> join(List<ScoredRow> left, JoinKeyResolver leftKeyResolver, List<ScoredRow> right,
+      JoinKeyResolver rightKeyResolver) throws QueryExecutionException
+   {
+      List<Collection<Object>> leftKeys = resolveKeys(left, leftKeyResolver);
+      List<Collection<Object>> rightKeys = resolveKeys(right, rightKeyResolver);
+
+      boolean[] rightMatched = new boolean[right.size()];
+      List<ScoredRow> result = new ArrayList<ScoredRow>();
+      switch (joinAlgorithm)
+      {
+         case NESTED_LOOP :
+            nestedLoopJoin(left, leftKeys, right, rightKeys, rightMatched, result);
+            break;
+         case HASH :
+            hashJoin(left, leftKeys, right, rightKeys, rightMatched, result);
+            break;
+         case MERGE :
+            mergeJoin(left, leftKeys, right, rightKeys, rightMatched, result);
+            break;
+         default :
+            throw new QueryExecutionException("Join algorithm " + joinAlgorithm + " is not supported");
+      }
+
+      if (joinType == JoinType.RIGHT_OUTER)
+      {
+         for (int j = 0; j < right.size(); j++)
+         {
+            if (!rightMatched[j])
+            {
+               result.add(right.get(j));
+            }
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Compare each left row with each right row.
+    */
+   private void nestedLoopJoin(List<ScoredRow> left, List<Collection<Object>> leftKeys, List<ScoredRow> right,
+      List<Collection<Object>> rightKeys, boolean[] rightMatched, List<ScoredRow> result)
+   {
+      for (int i = 0; i < left.size(); i++)
+      {
+         boolean matched = false;
+         for (int j = 0; j < right.size(); j++)
+         {
+            if (!Collections.disjoint(leftKeys.get(i), rightKeys.get(j)))
+            {
+               result.add(merge(left.get(i), right.get(j)));
+               rightMatched[j] = true;
+               matched = true;
+            }
+         }
+         addUnmatchedLeft(left.get(i), matched, result);
+      }
+   }
+
+   /**
+    * Build hash table by right keys and probe it with left keys.
+    */
+   private void hashJoin(List<ScoredRow> left, List<Collection<Object>> leftKeys, List<ScoredRow> right,
+      List<Collection<Object>> rightKeys, boolean[] rightMatched, List<ScoredRow> result)
+   {
+      Map<Object, List<Integer>> table = new HashMap<Object, List<Integer>>();
+      for (int j = 0; j < right.size(); j++)
+      {
+         for (Object key : rightKeys.get(j))
+         {
+            List<Integer> rows = table.get(key);
+            if (rows == null)
+            {
+               rows = new ArrayList<Integer>(1);
+               table.put(key, rows);
+            }
+            rows.add(j);
+         }
+      }
+
+      for (int i = 0; i < left.size(); i++)
+      {
+         // the same pair may be reached by more then one key
+         Set<Integer> matches = new LinkedHashSet<Integer>();
+         for (Object key : leftKeys.get(i))
+         {
+            List<Integer> rows = table.get(key);
+            if (rows != null)
+            {
+               matches.addAll(rows);
+            }
+         }
+         for (Integer j : matches)
+         {
+            result.add(merge(left.get(i), right.get(j)));
+            rightMatched[j] = true;
+         }
+         addUnmatchedLeft(left.get(i), !matches.isEmpty(), result);
+      }
+   }
+
+   /**
+    * Sort both sides by key and merge them.
+    */
+   private void mergeJoin(List<ScoredRow> left, List<Collection<Object>> leftKeys, List<ScoredRow> right,
+      List<Collection<Object>> rightKeys, boolean[] rightMatched, List<ScoredRow> result)
+   {
+      List<KeyedRow> sortedLeft = sortByKey(leftKeys);
+      List<KeyedRow> sortedRight = sortByKey(rightKeys);
+      boolean[] leftMatched = new boolean[left.size()];
+      Set<Long> joinedPairs = new HashSet<Long>();
+
+      int i = 0;
+      int j = 0;
+      while (i < sortedLeft.size() && j < sortedRight.size())
+      {
+         int cmp = KEY_COMPARATOR.compare(sortedLeft.get(i).key, sortedRight.get(j).key);
+         if (cmp < 0)
+         {
+            i++;
+         }
+         else if (cmp > 0)
+         {
+            j++;
+         }
+         else
+         {
+            Object key = sortedLeft.get(i).key;
+            int leftEnd = i;
+            while (leftEnd < sortedLeft.size() && KEY_COMPARATOR.compare(sortedLeft.get(leftEnd).key, key) == 0)
+            {
+               leftEnd++;
+            }
+            int rightEnd = j;
+            while (rightEnd < sortedRight.size() && KEY_COMPARATOR.compare(sortedRight.get(rightEnd).key, key) == 0)
+            {
+               rightEnd++;
+            }
+            for (int l = i; l < leftEnd; l++)
+            {
+               int leftRow = sortedLeft.get(l).row;
+               for (int r = j; r < rightEnd; r++)
+               {
+                  int rightRow = sortedRight.get(r).row;
+                  if (joinedPairs.add(((long)leftRow << 32) | rightRow))
+                  {
+                     result.add(merge(left.get(leftRow), right.get(rightRow)));
+                     leftMatched[leftRow] = true;
+                     rightMatched[rightRow] = true;
+                  }
+               }
+            }
+            i = leftEnd;
+            j = rightEnd;
+         }
+      }
+
+      for (int l = 0; l < left.size(); l++)
+      {
+         addUnmatchedLeft(left.get(l), leftMatched[l], result);
+      }
+   }
+
+   /**
+    * Add left row without matches to the result if it is left outer join.
+    */
+   private void addUnmatchedLeft(ScoredRow leftRow, boolean matched, List<ScoredRow> result)
+   {
+      if (!matched && joinType == JoinType.LEFT_OUTER)
+      {
+         result.add(leftRow);
+      }
+   }
+
+   /**
+    * Create row that contains selectors of both rows.
+    */
+   private ScoredRow merge(ScoredRow leftRow, ScoredRow rightRow)
+   {
+      try
+      {
+         return ScoredRow.merge(leftRow, rightRow, leftRow.getScore() + rightRow.getScore());
+      }
+      catch (SearchServiceException e)
+      {
+         // never happened, merge doesn't check anything
+         throw new IllegalStateException(e.getLocalizedMessage(), e);
+      }
+   }
+
+   private List<Collection<Object>> resolveKeys(List<ScoredRow> rows, JoinKeyResolver keyResolver)
+      throws QueryExecutionException
+   {
+      List<Collection<Object>> keys = new ArrayList<Collection<Object>>(rows.size());
+      for (ScoredRow row : rows)
+      {
+         keys.add(keyResolver.getKeys(row));
+      }
+      return keys;
+   }
+
+   private List<KeyedRow> sortByKey(List<Collection<Object>> keys)
+   {
+      List<KeyedRow> keyedRows = new ArrayList<KeyedRow>(keys.size());
+      for (int i = 0; i < keys.size(); i++)
+      {
+         for (Object key : keys.get(i))
+         {
+            keyedRows.add(new KeyedRow(key, i));
+         }
+      }
+      Collections.sort(keyedRows, new Comparator<KeyedRow>()
+      {
+         public int compare(KeyedRow o1, KeyedRow o2)
+         {
+            return KEY_COMPARATOR.compare(o1.key, o2.key);
+         }
+      });
+      return keyedRows;
+   }
+
+   /**
+    * Compare keys of the same type by natural order, keys of different types
+    * by type name.
+    */
+   private static final Comparator<Object> KEY_COMPARATOR = new Comparator<Object>()
+   {
+      @SuppressWarnings("unchecked")
+      public int compare(Object o1, Object o2)
+      {
+         if (o1.getClass() == o2.getClass() && o1 instanceof Comparable)
+         {
+            return ((Comparable<Object>)o1).compareTo(o2);
+         }
+         int cmp = o1.getClass().getName().compareTo(o2.getClass().getName());
+         return cmp != 0 ? cmp : o1.toString().compareTo(o2.toString());
+      }
+   };
+
+   /**
+    * Join key with index of the row it belongs to.
+    */
+   private static class KeyedRow
+   {
+      private final Object key;
+
+      private final int row;
+
+      KeyedRow(Object key, int row)
+      {
+         this.key = key;
+         this.row = row;
+      }
+   }
+}
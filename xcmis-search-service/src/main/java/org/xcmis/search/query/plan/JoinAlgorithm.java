@@ -22,5 +22,27 @@ package org.xcmis.search.query.plan;
  * Implementation of join algorithm.
  */
 public enum JoinAlgorithm {
-   NESTED_LOOP, MERGE
+   NESTED_LOOP, MERGE, HASH;
+
+   /**
+    * Maximum number of row pairs what is cheaper to compare directly then to
+    * build hash table.
+    */
+   public static final long NESTED_LOOP_THRESHOLD = 1024;
+
+   /**
+    * Choose join algorithm by cardinality of the join sides.
+    * 
+    * @param leftSize number of rows on the left side
+    * @param rightSize number of rows on the right side
+    * @return algorithm what is expected to be the cheapest one
+    */
+   public static JoinAlgorithm forCardinality(int leftSize, int rightSize)
+   {
+      if ((long)leftSize * rightSize <= NESTED_LOOP_THRESHOLD)
+      {
+         return NESTED_LOOP;
+      }
+      return HASH;
+   }
 }
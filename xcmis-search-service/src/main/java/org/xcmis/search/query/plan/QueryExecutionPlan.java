@@ -235,7 +235,9 @@ public abstract class QueryExecutionPlan implements Iterator<QueryExecutionPlan>
       }
 
       /**
-       * @return the joinAlgorithm
+       * @return the joinAlgorithm, null if algorithm should be chosen by
+       *         cardinality of the sides during execution
+       * @see JoinAlgorithm#forCardinality(int, int)
        */
       public JoinAlgorithm getJoinAlgorithm()
       {
@@ -169,7 +169,7 @@ public class SimplePlaner implements QueryExecutionPlaner
          {
             JoinExecutionPlan joinPlan = new JoinExecutionPlan();
             joinPlan.setJoinType(node.getType());
-            joinPlan.setJoinAlgorithm(JoinAlgorithm.NESTED_LOOP);
+            // algorithm is not set, so it will be chosen by cardinality of the sides during execution
             joinPlan.setJoinCondition(node.getJoinCondition());
             //left plan
             node.getLeft().accept(this);
@@ -178,6 +178,10 @@ public class SimplePlaner implements QueryExecutionPlaner
             node.getRight().accept(this);
             joinPlan.setRightPlan((SourceExecutionPlan)stepsStack.pop());
 
+            joinPlan.addSelectors(joinPlan.getLeftPlan().getSelectors());
+            joinPlan.addSelectors(joinPlan.getRightPlan().getSelectors());
+            stepsStack.push(joinPlan);
+
          }
 
          /**
@@ -286,9 +290,11 @@ public class SimplePlaner implements QueryExecutionPlaner
       }
       else
       {
+         List<Column> projectedColumns = new LinkedList<Column>();
          // Add the selector used by each column ...
          for (Column column : columns)
          {
+            projectedColumns.add(column);
             if (!column.isFunction())
             {
                SelectorName tableName = column.getSelectorName();
@@ -301,6 +307,15 @@ public class SimplePlaner implements QueryExecutionPlaner
                   context.getExecutionExceptions().addException(
                      new TableDoesntExistException("Table " + tableName + " doesn't exist"));
                }
+               else if (column.getPropertyName().equals("*"))
+               {
+                  // SELECT selector.*, so all of the columns from this selector ...
+                  projectedColumns.remove(projectedColumns.size() - 1);
+                  for (org.xcmis.search.content.Schema.Column tableColumn : table.getColumns())
+                  {
+                     projectedColumns.add(new Column(tableName, tableColumn.getName(), tableColumn.getName()));
+                  }
+               }
                else
                {
                   // Make sure that the column is in the table ...
@@ -313,6 +328,7 @@ public class SimplePlaner implements QueryExecutionPlaner
                }
             }
          }
+         columns = projectedColumns;
       }
       projectPlan.setColumns(columns);
       return projectPlan;
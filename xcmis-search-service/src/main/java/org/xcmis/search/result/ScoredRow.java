@@ -41,6 +41,11 @@ public class ScoredRow
 
    private final float score;
 
+   /**
+    * Values of the sort fields, null if row is not sorted.
+    */
+   private Comparable<?>[] sortValues;
+
    /**
     * @param nodesMap
     * @param score
@@ -92,6 +97,24 @@ public class ScoredRow
       return score;
    }
 
+   /**
+    * @return values of the sort fields what may be used to resume search after
+    *         this row, null if row is not sorted
+    * @see SearchAfter
+    */
+   public Comparable<?>[] getSortValues()
+   {
+      return sortValues;
+   }
+
+   /**
+    * @param sortValues values of the sort fields
+    */
+   public void setSortValues(Comparable<?>[] sortValues)
+   {
+      this.sortValues = sortValues;
+   }
+
    public String[] getSelectorNames()
    {
       String[] result = new String[nodesMap.size()];
@@ -108,7 +131,7 @@ public class ScoredRow
          newNodesMap.put(names1[i], nodes1.getNodeIdentifer(names1[i]));
       }
       String[] names2 = nodes2.getSelectorNames();
-      for (int i = 0; i < names1.length; i++)
+      for (int i = 0; i < names2.length; i++)
       {
          newNodesMap.put(names2[i], nodes2.getNodeIdentifer(names2[i]));
       }
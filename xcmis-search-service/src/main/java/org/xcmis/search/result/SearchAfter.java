@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2009 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.result;
+
+import org.apache.commons.lang.Validate;
+
+import java.util.Arrays;
+
+/**
+ * Resumable position in the sorted result of the single selector query. Query
+ * executed with search after token returns only rows what follow the row the
+ * token was created from, so deep pages don't need to fetch and skip all
+ * preceding rows.
+ * 
+ * @version $Id$
+ */
+public class SearchAfter
+{
+   /**
+    * Values of the sort fields of the last returned row.
+    */
+   private final Comparable<?>[] sortValues;
+
+   /**
+    * @param lastRow last row of the previous page
+    * @throws IllegalArgumentException if row is not sorted
+    */
+   public SearchAfter(ScoredRow lastRow)
+   {
+      Validate.notNull(lastRow, "The lastRow argument may not be null");
+      Validate.notNull(lastRow.getSortValues(), "The lastRow is not sorted, search after is supported only for"
+         + " queries with orderings");
+      this.sortValues = lastRow.getSortValues();
+   }
+
+   /**
+    * @return values of the sort fields of the last returned row
+    */
+   public Comparable<?>[] getSortValues()
+   {
+      return sortValues;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @Override
+   public String toString()
+   {
+      return "SearchAfter" + Arrays.toString(sortValues);
+   }
+}
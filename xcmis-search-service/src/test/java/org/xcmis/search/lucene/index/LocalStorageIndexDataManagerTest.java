@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xcmis.search.config.IndexConfiguration;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test merging of persisted indexes.
+ */
+public class LocalStorageIndexDataManagerTest
+{
+   private File indexDir;
+
+   private LocalStorageIndexDataManager manager;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      indexDir = File.createTempFile("index", "test");
+      indexDir.delete();
+      indexDir.mkdirs();
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      if (manager != null)
+      {
+         manager.stop();
+      }
+      FileUtils.deleteDirectory(indexDir);
+   }
+
+   @Test
+   public void testMergeInBackground() throws Exception
+   {
+      start(3);
+      for (int i = 0; i < 3; i++)
+      {
+         add("doc" + i);
+      }
+      long deadline = System.currentTimeMillis() + 10000;
+      while (manager.getPersistedIndexCount() > 1 && System.currentTimeMillis() < deadline)
+      {
+         Thread.sleep(10);
+      }
+      assertEquals(1, manager.getPersistedIndexCount());
+      assertEquals(3, manager.getDocumentCount());
+      for (int i = 0; i < 3; i++)
+      {
+         assertNotNull(manager.getDocument("doc" + i));
+      }
+   }
+
+   @Test
+   public void testOptimize() throws Exception
+   {
+      start(10);
+      for (int i = 0; i < 4; i++)
+      {
+         add("doc" + i);
+      }
+      assertEquals(4, manager.getPersistedIndexCount());
+
+      manager.save(new LuceneIndexTransaction(new HashMap<String, Document>(), Collections.singleton("doc1")));
+      manager.optimize();
+      assertEquals(1, manager.getPersistedIndexCount());
+      assertEquals(3, manager.getDocumentCount());
+      assertNull(manager.getDocument("doc1"));
+
+      // merged index is reopened after restart
+      manager.stop();
+      start(10);
+      assertEquals(1, manager.getPersistedIndexCount());
+      assertNotNull(manager.getDocument("doc3"));
+   }
+
+   @Test
+   public void testKeepMergedIndexUntilSnapshotClosed() throws Exception
+   {
+      start(10);
+      for (int i = 0; i < 4; i++)
+      {
+         add("doc" + i);
+      }
+      assertEquals(4, countIndexDirectories());
+      List<IndexReader> readers = new ArrayList<IndexReader>();
+      List<PersistedIndex> retained = new ArrayList<PersistedIndex>();
+      manager.collectIndexReaders(readers, retained);
+      IndexReader snapshot = new SnapshotIndexReader(readers.toArray(new IndexReader[readers.size()]), retained);
+
+      manager.optimize();
+      assertEquals(1, manager.getPersistedIndexCount());
+      // merged away indexes are still read by snapshot
+      assertEquals(5, countIndexDirectories());
+      assertEquals(4, snapshot.numDocs());
+      for (int i = 0; i < snapshot.maxDoc(); i++)
+      {
+         assertNotNull(snapshot.document(i).get(FieldNames.UUID));
+      }
+
+      snapshot.close();
+      assertEquals(1, countIndexDirectories());
+   }
+
+   private int countIndexDirectories()
+   {
+      return indexDir.listFiles(new FileFilter()
+      {
+         public boolean accept(File file)
+         {
+            return file.isDirectory();
+         }
+      }).length;
+   }
+
+   private void start(int mergeFactor) throws Exception
+   {
+      IndexConfiguration configuration = new IndexConfiguration(indexDir.getAbsolutePath(), "", "root");
+      configuration.setMergeFactor(mergeFactor);
+      configuration.setMaxMergeBytesPerSecond(0);
+      manager = new LocalStorageIndexDataManager(configuration);
+      manager.start();
+   }
+
+   private void add(String uuid) throws Exception
+   {
+      Document document = new Document();
+      document.add(new Field(FieldNames.UUID, uuid, Field.Store.YES, Field.Index.NOT_ANALYZED));
+      Map<String, Document> added = new HashMap<String, Document>();
+      added.put(uuid, document);
+      manager.save(new LuceneIndexTransaction(added, new HashSet<String>()));
+   }
+}
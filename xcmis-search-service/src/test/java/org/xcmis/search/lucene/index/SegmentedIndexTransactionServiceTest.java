@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test segmented write-ahead log of index transactions.
+ */
+public class SegmentedIndexTransactionServiceTest
+{
+   private File storageDir;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      storageDir = File.createTempFile("wal", "test");
+      storageDir.delete();
+      storageDir.mkdirs();
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      File[] files = storageDir.listFiles();
+      if (files != null)
+      {
+         for (File file : files)
+         {
+            file.delete();
+         }
+      }
+      storageDir.delete();
+   }
+
+   @Test
+   public void testRecoverNotEndedTransactions() throws Exception
+   {
+      SegmentedIndexTransactionService service = open(TransactionLogSyncPolicy.ALWAYS, 1024 * 1024);
+      TransactionLog ended = log(service, "doc1", "doc2");
+      TransactionLog notEnded = log(service, "doc3", "doc4");
+      ended.removeLog();
+      service.close();
+
+      service = open(TransactionLogSyncPolicy.ALWAYS, 1024 * 1024);
+      assertTrue(service.hasUncommitedTransactions());
+      List<TransactionLog> logs = service.getTransactionLogs();
+      assertEquals(1, logs.size());
+      assertEquals(notEnded.getAddedList(), logs.get(0).getAddedList());
+      assertEquals(notEnded.getRemovedList(), logs.get(0).getRemovedList());
+
+      logs.get(0).removeLog();
+      assertFalse(service.hasUncommitedTransactions());
+      // new transaction doesn't reuse id of recovered one
+      TransactionLog next = log(service, "doc5", "doc6");
+      assertTrue(((SegmentedTransactionLog)next).getTransactionId() > ((SegmentedTransactionLog)notEnded)
+         .getTransactionId());
+      service.close();
+
+      service = open(TransactionLogSyncPolicy.ALWAYS, 1024 * 1024);
+      assertEquals(1, service.getTransactionLogs().size());
+      assertEquals(Collections.singleton("doc5"), service.getTransactionLogs().get(0).getAddedList());
+      service.close();
+   }
+
+   @Test
+   public void testGroupCommit() throws Exception
+   {
+      final SegmentedIndexTransactionService service = open(TransactionLogSyncPolicy.ALWAYS, 1024 * 1024);
+      final int threads = 8;
+      final int transactions = 50;
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(threads);
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+      for (int t = 0; t < threads; t++)
+      {
+         final int thread = t;
+         new Thread()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  start.await();
+                  for (int i = 0; i < transactions; i++)
+                  {
+                     TransactionLog log = log(service, "add-" + thread + "-" + i, "remove-" + thread + "-" + i);
+                     ids.add(((SegmentedTransactionLog)log).getTransactionId());
+                  }
+               }
+               catch (Throwable e)
+               {
+                  failure.set(e);
+               }
+               finally
+               {
+                  done.countDown();
+               }
+            }
+         }.start();
+      }
+      start.countDown();
+      done.await();
+      assertEquals(null, failure.get());
+      assertEquals(threads * transactions, ids.size());
+      service.close();
+
+      SegmentedIndexTransactionService reopened = open(TransactionLogSyncPolicy.ALWAYS, 1024 * 1024);
+      assertEquals(threads * transactions, reopened.getTransactionLogs().size());
+      reopened.close();
+   }
+
+   @Test
+   public void testIgnoreTornTail() throws Exception
+   {
+      SegmentedIndexTransactionService service = open(TransactionLogSyncPolicy.NEVER, 1024 * 1024);
+      log(service, "doc1", "doc2");
+      log(service, "doc3", "doc4");
+      service.close();
+
+      File segment = lastSegment();
+      RandomAccessFile file = new RandomAccessFile(segment, "rw");
+      try
+      {
+         // cut last record
+         file.setLength(file.length() - 3);
+      }
+      finally
+      {
+         file.close();
+      }
+
+      service = open(TransactionLogSyncPolicy.NEVER, 1024 * 1024);
+      List<TransactionLog> logs = service.getTransactionLogs();
+      assertEquals(1, logs.size());
+      assertEquals(Collections.singleton("doc1"), logs.get(0).getAddedList());
+      service.close();
+   }
+
+   @Test
+   public void testIgnoreDamagedRecord() throws Exception
+   {
+      SegmentedIndexTransactionService service = open(TransactionLogSyncPolicy.ALWAYS, 1024 * 1024);
+      log(service, "doc1", "doc2");
+      log(service, "doc3", "doc4");
+      service.close();
+
+      File segment = lastSegment();
+      RandomAccessFile file = new RandomAccessFile(segment, "rw");
+      try
+      {
+         // change last byte of uuid of last record
+         file.seek(file.length() - 1);
+         int b = file.read();
+         file.seek(file.length() - 1);
+         file.write(b + 1);
+      }
+      finally
+      {
+         file.close();
+      }
+
+      service = open(TransactionLogSyncPolicy.ALWAYS, 1024 * 1024);
+      assertEquals(1, service.getTransactionLogs().size());
+      service.close();
+   }
+
+   @Test
+   public void testSkipDamagedRecord() throws Exception
+   {
+      SegmentedIndexTransactionService service = open(TransactionLogSyncPolicy.ALWAYS, 1024 * 1024);
+      log(service, "doc1", "doc2");
+      log(service, "doc3", "doc4");
+      log(service, "doc5", "doc6");
+      service.close();
+
+      RandomAccessFile file = new RandomAccessFile(lastSegment(), "rw");
+      try
+      {
+         // header, type, transaction id, size of set, length of first uuid
+         file.seek(8 + 1 + 8 + 4 + 2);
+         file.write('x');
+      }
+      finally
+      {
+         file.close();
+      }
+
+      service = open(TransactionLogSyncPolicy.ALWAYS, 1024 * 1024);
+      Set<String> added = new HashSet<String>();
+      for (TransactionLog log : service.getTransactionLogs())
+      {
+         added.addAll(log.getAddedList());
+      }
+      assertEquals(new HashSet<String>(Arrays.asList("doc3", "doc5")), added);
+      service.close();
+   }
+
+   @Test
+   public void testDiscardFailedGroup() throws Exception
+   {
+      SegmentedIndexTransactionService service = open(TransactionLogSyncPolicy.ALWAYS, 1024 * 1024);
+      log(service, "doc1", "doc2");
+      // segment can't be written nor truncated
+      service.getActiveChannel().close();
+      try
+      {
+         log(service, "doc3", "doc4");
+         fail("TransactionLogException expected");
+      }
+      catch (TransactionLogException e)
+      {
+         // expected
+      }
+      log(service, "doc5", "doc6");
+      service.close();
+
+      service = open(TransactionLogSyncPolicy.ALWAYS, 1024 * 1024);
+      Set<String> added = new HashSet<String>();
+      for (TransactionLog log : service.getTransactionLogs())
+      {
+         added.addAll(log.getAddedList());
+      }
+      assertEquals(new HashSet<String>(Arrays.asList("doc1", "doc5")), added);
+      service.close();
+   }
+
+   @Test
+   public void testDeleteRetiredSegments() throws Exception
+   {
+      SegmentedIndexTransactionService service = open(TransactionLogSyncPolicy.INTERVAL, 256);
+      TransactionLog first = log(service, "first", "first");
+      for (int i = 0; i < 100; i++)
+      {
+         log(service, "doc" + i, "doc" + i).removeLog();
+      }
+      // first transaction keeps all segments
+      assertTrue(service.getSegmentCount() > 2);
+      first.removeLog();
+      log(service, "last", "last").removeLog();
+      assertTrue(service.getSegmentCount() <= 2);
+      service.close();
+
+      service = open(TransactionLogSyncPolicy.ALWAYS, 256);
+      assertFalse(service.hasUncommitedTransactions());
+      service.close();
+      assertTrue(storageDir.listFiles().length <= 2);
+   }
+
+   private SegmentedIndexTransactionService open(TransactionLogSyncPolicy policy, long segmentSize)
+      throws TransactionLogException
+   {
+      SegmentedIndexTransactionService service =
+         new SegmentedIndexTransactionService(storageDir, policy, 10, segmentSize);
+      service.open();
+      return service;
+   }
+
+   private TransactionLog log(SegmentedIndexTransactionService service, String added, String removed)
+      throws TransactionLogException
+   {
+      TransactionLog log =
+         service.createTransactionLog(Collections.singleton(added), Collections.singleton(removed));
+      log.log();
+      return log;
+   }
+
+   private File lastSegment() throws IOException
+   {
+      File last = null;
+      for (File file : storageDir.listFiles())
+      {
+         if (last == null || file.getName().compareTo(last.getName()) > 0)
+         {
+            last = file;
+         }
+      }
+      return last;
+   }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.tika.config.TikaConfig;
+import org.junit.Before;
+import org.junit.Test;
+import org.xcmis.search.content.Property.BinaryValue;
+import org.xcmis.search.lucene.index.TextExtractor.Extraction;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test extraction of text from binary values.
+ */
+public class TextExtractorTest
+{
+   private TikaConfig tikaConfig;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      tikaConfig = new TikaConfig();
+   }
+
+   @Test
+   public void testExtractConcurrently() throws Exception
+   {
+      TextExtractor extractor = new TextExtractor(tikaConfig, 4, 10000, 1000);
+      List<Extraction> extractions = new ArrayList<Extraction>();
+      for (int i = 0; i < 10; i++)
+      {
+         extractions.add(extractor.submit(text("document " + i)));
+      }
+      for (int i = 0; i < 10; i++)
+      {
+         assertEquals("document " + i, read(extractor.getText(extractions.get(i))).trim());
+      }
+   }
+
+   @Test
+   public void testExtractByCallerThread() throws Exception
+   {
+      TextExtractor extractor = new TextExtractor(tikaConfig, 0, 10000, 1000);
+      assertEquals("hello world", read(extractor.getText(extractor.submit(text("hello world")))).trim());
+   }
+
+   @Test
+   public void testTruncateText() throws Exception
+   {
+      TextExtractor extractor = new TextExtractor(tikaConfig, 1, 10000, 10);
+      StringBuilder content = new StringBuilder();
+      for (int i = 0; i < 1000; i++)
+      {
+         content.append("word ");
+      }
+      String text = read(extractor.getText(extractor.submit(text(content.toString()))));
+      assertEquals(10, text.length());
+   }
+
+   @Test
+   public void testAbortAfterTimeout() throws Exception
+   {
+      final CountDownLatch closed = new CountDownLatch(1);
+      InputStream blocked = new InputStream()
+      {
+         private final CountDownLatch released = new CountDownLatch(1);
+
+         @Override
+         public int read() throws IOException
+         {
+            try
+            {
+               released.await();
+            }
+            catch (InterruptedException e)
+            {
+               throw new IOException("interrupted");
+            }
+            return -1;
+         }
+
+         @Override
+         public void close() throws IOException
+         {
+            released.countDown();
+            closed.countDown();
+         }
+      };
+      TextExtractor extractor = new TextExtractor(tikaConfig, 1, 100, 1000);
+      assertNull(extractor.getText(extractor.submit(new BinaryValue(blocked, "text/plain", null, 1))));
+      assertTrue(closed.await(10, TimeUnit.SECONDS));
+
+      // worker is free again
+      assertEquals("next", read(extractor.getText(extractor.submit(text("next")))).trim());
+   }
+
+   @Test
+   public void testAbortByCallerThreadAfterTimeout() throws Exception
+   {
+      BlockedStream blocked = new BlockedStream();
+      TextExtractor extractor = new TextExtractor(tikaConfig, 0, 100, 1000);
+      assertNull(extractor.getText(extractor.submit(new BinaryValue(blocked, "text/plain", null, 1))));
+      assertTrue(blocked.closed.await(10, TimeUnit.SECONDS));
+   }
+
+   @Test
+   public void testTimeoutStartsWhenExtractionStarts() throws Exception
+   {
+      TextExtractor extractor = new TextExtractor(tikaConfig, 1, 500, 1000);
+      List<Extraction> extractions = new ArrayList<Extraction>();
+      for (int i = 0; i < 4; i++)
+      {
+         // all values together need more time than timeout
+         extractions.add(extractor.submit(new BinaryValue(new SlowStream("document " + i, 200), "text/plain",
+            "UTF-8", 10)));
+      }
+      for (int i = 0; i < 4; i++)
+      {
+         assertEquals("document " + i, read(extractor.getText(extractions.get(i))).trim());
+      }
+   }
+
+   @Test
+   public void testExtractByCallerThreadWhenQueueIsFull() throws Exception
+   {
+      TextExtractor extractor = new TextExtractor(tikaConfig, 1, 10000, 1000);
+      BlockedStream blocked = new BlockedStream();
+      Extraction first = extractor.submit(new BinaryValue(blocked, "text/plain", null, 1));
+      List<Extraction> queued = new ArrayList<Extraction>();
+      for (int i = 0; i < 4; i++)
+      {
+         queued.add(extractor.submit(text("queued " + i)));
+      }
+      SlowStream overflow = new SlowStream("overflow", 0);
+      Extraction last = extractor.submit(new BinaryValue(overflow, "text/plain", "UTF-8", 8));
+      assertEquals(Thread.currentThread(), overflow.reader);
+      assertEquals("overflow", read(extractor.getText(last)).trim());
+
+      blocked.close();
+      extractor.getText(first);
+      for (int i = 0; i < 4; i++)
+      {
+         assertEquals("queued " + i, read(extractor.getText(queued.get(i))).trim());
+      }
+   }
+
+   /**
+    * Stream what blocks reading until it is closed.
+    */
+   private static class BlockedStream extends InputStream
+   {
+      private final CountDownLatch closed = new CountDownLatch(1);
+
+      @Override
+      public int read() throws IOException
+      {
+         try
+         {
+            closed.await();
+         }
+         catch (InterruptedException e)
+         {
+            throw new IOException("interrupted");
+         }
+         return -1;
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+         closed.countDown();
+      }
+   }
+
+   /**
+    * Stream what delays first reading.
+    */
+   private static class SlowStream extends ByteArrayInputStream
+   {
+      private final long delay;
+
+      private volatile Thread reader;
+
+      SlowStream(String content, long delay)
+      {
+         super(content.getBytes());
+         this.delay = delay;
+      }
+
+      @Override
+      public synchronized int read(byte[] b, int off, int len)
+      {
+         if (reader == null)
+         {
+            reader = Thread.currentThread();
+            try
+            {
+               Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+            }
+         }
+         return super.read(b, off, len);
+      }
+   }
+
+   private BinaryValue text(String content)
+   {
+      byte[] bytes = content.getBytes();
+      return new BinaryValue(new ByteArrayInputStream(bytes), "text/plain", "UTF-8", bytes.length);
+   }
+
+   private String read(Reader reader) throws IOException
+   {
+      StringBuilder result = new StringBuilder();
+      char[] buffer = new char[256];
+      int read;
+      while ((read = reader.read(buffer)) > 0)
+      {
+         result.append(buffer, 0, read);
+      }
+      return result.toString();
+   }
+}
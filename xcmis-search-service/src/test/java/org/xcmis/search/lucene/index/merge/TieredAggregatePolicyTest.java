@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.index.merge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xcmis.search.lucene.index.LuceneIndexDataManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Test selection of persisted indexes for merge.
+ */
+public class TieredAggregatePolicyTest
+{
+   private TieredAggregatePolicy policy;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      policy = new TieredAggregatePolicy();
+      policy.setMergeFactor(3);
+      policy.setMinDirSize(100);
+   }
+
+   @Test
+   public void testNothingToMergeInNotFullTiers() throws Exception
+   {
+      List<LuceneIndexDataManager> indexes = indexes(10, 20, 500, 600, 5000);
+      assertTrue(policy.findIndexDataManagerToAggrigate(indexes, 0, 0).isEmpty());
+   }
+
+   @Test
+   public void testMergeSimilarSizedIndexes() throws Exception
+   {
+      List<LuceneIndexDataManager> indexes = indexes(50000, 10, 400, 20, 30, 40, 500);
+      Collection<LuceneIndexDataManager> result = policy.findIndexDataManagerToAggrigate(indexes, 0, 0);
+      // three smallest of the lowest tier
+      assertEquals(3, result.size());
+      assertTrue(result.contains(indexes.get(1)));
+      assertTrue(result.contains(indexes.get(3)));
+      assertTrue(result.contains(indexes.get(4)));
+   }
+
+   @Test
+   public void testMergeHigherTier() throws Exception
+   {
+      List<LuceneIndexDataManager> indexes = indexes(10, 400, 500, 600, 20);
+      Collection<LuceneIndexDataManager> result = policy.findIndexDataManagerToAggrigate(indexes, 0, 0);
+      assertEquals(3, result.size());
+      assertTrue(result.contains(indexes.get(1)));
+      assertTrue(result.contains(indexes.get(2)));
+      assertTrue(result.contains(indexes.get(3)));
+   }
+
+   @Test
+   public void testDontMergeTooBigIndexes() throws Exception
+   {
+      policy.setMaxMergedDirSize(1000);
+      List<LuceneIndexDataManager> indexes = indexes(400, 500, 600);
+      assertTrue(policy.findIndexDataManagerToAggrigate(indexes, 0, 0).isEmpty());
+   }
+
+   @Test
+   public void testOptimizeMergesAll() throws Exception
+   {
+      List<LuceneIndexDataManager> indexes = indexes(10, 5000);
+      assertEquals(2, policy.findIndexDataManagerToOptimize(indexes).size());
+      assertTrue(policy.findIndexDataManagerToOptimize(indexes(10)).isEmpty());
+   }
+
+   private List<LuceneIndexDataManager> indexes(long... sizes)
+   {
+      List<LuceneIndexDataManager> indexes = new ArrayList<LuceneIndexDataManager>();
+      for (long size : sizes)
+      {
+         LuceneIndexDataManager index = mock(LuceneIndexDataManager.class);
+         when(index.getDirectorySize(false)).thenReturn(size);
+         indexes.add(index);
+      }
+      return indexes;
+   }
+}
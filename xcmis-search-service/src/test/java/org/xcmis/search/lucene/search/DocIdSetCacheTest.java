@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.OpenBitSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test LRU eviction of the cached docid sets.
+ */
+public class DocIdSetCacheTest
+{
+   private IndexReader reader;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      RAMDirectory directory = new RAMDirectory();
+      new IndexWriter(directory, new SimpleAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED).close();
+      reader = IndexReader.open(directory);
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      reader.close();
+   }
+
+   @Test
+   public void testEvictByNumberOfSets() throws Exception
+   {
+      DocIdSetCache cache = new DocIdSetCache(2, Long.MAX_VALUE);
+      OpenBitSet a = new OpenBitSet(64);
+      OpenBitSet c = new OpenBitSet(64);
+      cache.put(reader, "a", a);
+      cache.put(reader, "b", new OpenBitSet(64));
+      assertSame(a, cache.get(reader, "a"));
+      cache.put(reader, "c", c);
+      assertEquals(2, cache.size(reader));
+      assertNull(cache.get(reader, "b"));
+      assertSame(a, cache.get(reader, "a"));
+      assertSame(c, cache.get(reader, "c"));
+   }
+
+   @Test
+   public void testEvictBySize() throws Exception
+   {
+      // one set of 1024 bits takes 128 bytes
+      DocIdSetCache cache = new DocIdSetCache(100, 300);
+      cache.put(reader, "a", new OpenBitSet(1024));
+      cache.put(reader, "b", new OpenBitSet(1024));
+      cache.put(reader, "c", new OpenBitSet(1024));
+      assertEquals(2, cache.size(reader));
+      assertNull(cache.get(reader, "a"));
+
+      // most recently used set is kept even if it exceeds the limit
+      OpenBitSet big = new OpenBitSet(8192);
+      cache.put(reader, "big", big);
+      assertEquals(1, cache.size(reader));
+      assertSame(big, cache.get(reader, "big"));
+   }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.OpenBitSet;
+import org.junit.Test;
+import org.xcmis.search.lucene.index.FieldNames;
+import org.xcmis.search.lucene.index.PersistedIndex;
+import org.xcmis.search.lucene.index.SnapshotIndexReader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Test resolving and caching of the principal sets.
+ */
+public class PrincipalFilterTest
+{
+   @Test
+   public void testReuseChainSetsAfterReopen() throws Exception
+   {
+      IndexReader first = open("john", FieldNames.UNRESTRICTED, "mary");
+      IndexReader second = open("mary", "john");
+      IndexReader third = open("john", "mary", "mary");
+
+      PrincipalFilter filter = new PrincipalFilter(Collections.singleton("john"));
+
+      SnapshotIndexReader snapshot =
+         new SnapshotIndexReader(new IndexReader[]{first, second}, new ArrayList<PersistedIndex>());
+      OpenBitSet docs = (OpenBitSet)filter.getDocIdSet(snapshot);
+      assertEquals(3, docs.cardinality());
+      assertTrue(docs.get(0));
+      assertTrue(docs.get(1));
+      assertFalse(docs.get(2));
+      assertTrue(docs.get(4));
+      OpenBitSet firstDocs = DocIdSetCache.SHARED.get(first, filter);
+      assertSame(docs, filter.getDocIdSet(snapshot));
+
+      // second chain is replaced, set of the first chain is reused
+      SnapshotIndexReader reopened =
+         new SnapshotIndexReader(new IndexReader[]{first, third}, new ArrayList<PersistedIndex>());
+      docs = (OpenBitSet)filter.getDocIdSet(reopened);
+      assertEquals(3, docs.cardinality());
+      assertTrue(docs.get(3));
+      assertFalse(docs.get(4));
+      assertSame(firstDocs, DocIdSetCache.SHARED.get(first, filter));
+
+      // equal filter uses the same cached set
+      assertSame(docs, new PrincipalFilter(Collections.singleton("john")).getDocIdSet(reopened));
+
+      snapshot.close();
+      reopened.close();
+      first.close();
+      second.close();
+      third.close();
+   }
+
+   private IndexReader open(String... principals) throws Exception
+   {
+      RAMDirectory directory = new RAMDirectory();
+      IndexWriter writer =
+         new IndexWriter(directory, new SimpleAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+      for (String principal : principals)
+      {
+         Document doc = new Document();
+         doc.add(new Field(FieldNames.PRINCIPAL, principal, Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+         writer.addDocument(doc);
+      }
+      writer.close();
+      return IndexReader.open(directory);
+   }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xcmis.search.lucene.index.FieldNames;
+import org.xcmis.search.lucene.index.IndexException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test lifecycle of the shared searcher snapshots.
+ */
+public class SearcherManagerTest
+{
+   private RAMDirectory directory;
+
+   private IndexReader reader;
+
+   private SearcherManager searcherManager;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      directory = new RAMDirectory();
+      new IndexWriter(directory, new SimpleAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED).close();
+      searcherManager = new SearcherManager(new SearcherManager.IndexReaderSource()
+      {
+         public IndexReader openIndexReader() throws IndexException
+         {
+            try
+            {
+               if (reader == null)
+               {
+                  reader = IndexReader.open(directory);
+               }
+               else if (!reader.isCurrent())
+               {
+                  IndexReader oldReader = reader;
+                  reader = oldReader.reopen();
+                  oldReader.close();
+               }
+               reader.incRef();
+               return reader;
+            }
+            catch (IOException e)
+            {
+               throw new IndexException(e.getLocalizedMessage(), e);
+            }
+         }
+      });
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      searcherManager.close();
+      reader.close();
+   }
+
+   @Test
+   public void testShouldShareSnapshotUntilRefresh() throws Exception
+   {
+      IndexSearcher first = searcherManager.acquire();
+      IndexSearcher second = searcherManager.acquire();
+      assertSame(first, second);
+      searcherManager.release(first);
+      searcherManager.release(second);
+
+      // refresh without modifications keeps snapshot
+      searcherManager.refresh();
+      IndexSearcher third = searcherManager.acquire();
+      assertSame(first, third);
+      searcherManager.release(third);
+   }
+
+   @Test
+   public void testShouldKeepReplacedSnapshotOpenUntilRelease() throws Exception
+   {
+      IndexSearcher old = searcherManager.acquire();
+      addDocument("1");
+      searcherManager.refresh();
+
+      IndexSearcher current = searcherManager.acquire();
+      assertNotSame(old, current);
+      assertEquals(0, old.getIndexReader().numDocs());
+      assertEquals(1, current.getIndexReader().numDocs());
+      assertTrue(isOpen(old.getIndexReader()));
+
+      searcherManager.release(old);
+      assertFalse(isOpen(old.getIndexReader()));
+      searcherManager.release(current);
+   }
+
+   @Test
+   public void testShouldWarmSnapshotBeforePublish() throws Exception
+   {
+      final List<Integer> warmed = new ArrayList<Integer>();
+      searcherManager.addWarmer(new SearcherManager.SearcherWarmer()
+      {
+         public void warm(IndexSearcher searcher) throws IOException
+         {
+            warmed.add(searcher.getIndexReader().numDocs());
+         }
+      });
+      IndexSearcher searcher = searcherManager.acquire();
+      searcherManager.release(searcher);
+      addDocument("1");
+      addDocument("2");
+      searcherManager.refresh();
+      assertEquals(2, warmed.size());
+      assertEquals(Integer.valueOf(2), warmed.get(1));
+   }
+
+   @Test
+   public void testShouldKeepLeasedSnapshotOpen() throws Exception
+   {
+      Object holder = new Object();
+      IndexSearcher searcher = searcherManager.acquire();
+      searcherManager.lease(holder, searcher);
+      searcherManager.release(searcher);
+
+      addDocument("1");
+      searcherManager.refresh();
+      assertEquals(1, searcherManager.getLeaseCount());
+      assertTrue(isOpen(searcher.getIndexReader()));
+      assertEquals(0, searcher.getIndexReader().numDocs());
+   }
+
+   @Test
+   public void testShouldReleaseClosedLease() throws Exception
+   {
+      Object holder = new Object();
+      IndexSearcher searcher = searcherManager.acquire();
+      Closeable lease = searcherManager.lease(holder, searcher);
+      searcherManager.release(searcher);
+
+      addDocument("1");
+      searcherManager.refresh();
+      assertTrue(isOpen(searcher.getIndexReader()));
+      lease.close();
+      // second close does nothing
+      lease.close();
+      assertEquals(0, searcherManager.getLeaseCount());
+      assertFalse(isOpen(searcher.getIndexReader()));
+   }
+
+   @Test
+   public void testShouldReleaseExhaustedRowList() throws Exception
+   {
+      addDocument("1");
+      addDocument("2");
+      searcherManager.refresh();
+      IndexSearcher searcher = searcherManager.acquire();
+      TopDocs topDocs = searcher.search(new MatchAllDocsQuery(), 10);
+      LazyScoredRowList rows = new LazyScoredRowList(searcher.getIndexReader(), "s", topDocs.scoreDocs, 0, false);
+      rows.setLease(searcherManager.lease(rows, searcher));
+      searcherManager.release(searcher);
+
+      assertEquals("1", rows.get(0).getNodeIdentifer("s"));
+      assertEquals(1, searcherManager.getLeaseCount());
+      assertEquals("2", rows.get(1).getNodeIdentifer("s"));
+      assertEquals(0, searcherManager.getLeaseCount());
+      // loaded rows are still available
+      assertEquals("1", rows.get(0).getNodeIdentifer("s"));
+   }
+
+   @Test
+   public void testShouldReleaseClosedRowList() throws Exception
+   {
+      addDocument("1");
+      addDocument("2");
+      searcherManager.refresh();
+      IndexSearcher searcher = searcherManager.acquire();
+      TopDocs topDocs = searcher.search(new MatchAllDocsQuery(), 10);
+      LazyScoredRowList rows = new LazyScoredRowList(searcher.getIndexReader(), "s", topDocs.scoreDocs, 0, false);
+      rows.setLease(searcherManager.lease(rows, searcher));
+      searcherManager.release(searcher);
+
+      rows.get(0);
+      rows.close();
+      assertEquals(0, searcherManager.getLeaseCount());
+      try
+      {
+         rows.get(1);
+         fail();
+      }
+      catch (IllegalStateException e)
+      {
+         // not loaded before closing
+      }
+   }
+
+   private boolean isOpen(IndexReader reader) throws IOException
+   {
+      try
+      {
+         reader.terms().close();
+         return true;
+      }
+      catch (AlreadyClosedException e)
+      {
+         return false;
+      }
+   }
+
+   private void addDocument(String uuid) throws IOException
+   {
+      IndexWriter writer = new IndexWriter(directory, new SimpleAnalyzer(), IndexWriter.MaxFieldLength.UNLIMITED);
+      Document document = new Document();
+      document.add(new Field(FieldNames.UUID, uuid, Field.Store.YES, Field.Index.NOT_ANALYZED));
+      writer.addDocument(document);
+      writer.close();
+   }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.lucene.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xcmis.search.config.IndexConfiguration;
+import org.xcmis.search.lucene.LuceneQueryBuilder;
+import org.xcmis.search.lucene.index.ExtendedNumberTools;
+import org.xcmis.search.lucene.index.FieldNames;
+import org.xcmis.search.lucene.index.TrieNumberTools;
+import org.xcmis.search.model.constraint.Comparison;
+import org.xcmis.search.model.constraint.Operator;
+import org.xcmis.search.model.operand.Literal;
+import org.xcmis.search.model.operand.PropertyValue;
+import org.xcmis.search.model.source.SelectorName;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Test range queries over trie encoded numbers.
+ */
+public class TrieRangeQueryTest
+{
+   private static final String FIELD = "num";
+
+   private static final int PRECISION_STEP = 4;
+
+   private static final int DOCUMENTS = 500;
+
+   private final Random random = new Random(42);
+
+   private final double[] values = new double[DOCUMENTS];
+
+   private RAMDirectory directory;
+
+   private IndexSearcher searcher;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      directory = new RAMDirectory();
+      IndexWriter writer = new IndexWriter(directory, new SimpleAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+      for (int i = 0; i < DOCUMENTS; i++)
+      {
+         values[i] = i % 5 == 0 ? random.nextInt(100) - 50 : (random.nextDouble() - 0.5) * 1e6;
+         Document document = new Document();
+         for (String term : TrieNumberTools.trieTerms(TrieNumberTools.doubleToSortableLong(values[i]),
+            PRECISION_STEP))
+         {
+            document.add(new Field(FIELD, term, Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+         }
+         writer.addDocument(document);
+      }
+      writer.close();
+      searcher = new IndexSearcher(IndexReader.open(directory));
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      searcher.close();
+      directory.close();
+   }
+
+   @Test
+   public void testRandomRanges() throws Exception
+   {
+      for (int i = 0; i < 100; i++)
+      {
+         double a = (random.nextDouble() - 0.5) * 1e6;
+         double b = (random.nextDouble() - 0.5) * 1e6;
+         double min = Math.min(a, b);
+         double max = Math.max(a, b);
+         boolean minInclusive = random.nextBoolean();
+         boolean maxInclusive = random.nextBoolean();
+         assertEquals(expected(min, max, minInclusive, maxInclusive), count(min, max, minInclusive, maxInclusive));
+      }
+   }
+
+   @Test
+   public void testIntegerBounds() throws Exception
+   {
+      for (int i = -50; i < 50; i += 7)
+      {
+         assertEquals(expected(i, Double.MAX_VALUE, false, true), count(i, null, false, true));
+         assertEquals(expected(i, Double.MAX_VALUE, true, true), count(i, null, true, true));
+         assertEquals(expected(-Double.MAX_VALUE, i, true, false), count(null, i, true, false));
+         assertEquals(expected(-Double.MAX_VALUE, i, true, true), count(null, i, true, true));
+      }
+   }
+
+   @Test
+   public void testFewSubRanges() throws Exception
+   {
+      final int[] ranges = new int[1];
+      TrieNumberTools.splitRange(new TrieNumberTools.RangeConsumer()
+      {
+         public void addRange(String minPrefixCoded, String maxPrefixCoded)
+         {
+            ranges[0]++;
+         }
+      }, PRECISION_STEP, TrieNumberTools.doubleToSortableLong(-123456.789), TrieNumberTools
+         .doubleToSortableLong(987654.321));
+      // at most two sub-ranges per precision
+      assertTrue(ranges[0] <= 2 * (64 / PRECISION_STEP));
+   }
+
+   @Test
+   public void testTermRangeOnIndexWithoutTrieFormat() throws Exception
+   {
+      // index written before trie terms were added
+      assertEquals(2, countGreaterThan(null, 5.0));
+   }
+
+   @Test
+   public void testTermRangeOnIndexWithOtherTrieFormat() throws Exception
+   {
+      assertEquals(2, countGreaterThan(FieldNames.createNumericFormat(PRECISION_STEP + 4), 5.0));
+   }
+
+   @Test
+   public void testTrieRangeOnIndexWithTrieFormat() throws Exception
+   {
+      assertEquals(2, countGreaterThan(FieldNames.createNumericFormat(PRECISION_STEP), 5.0));
+   }
+
+   /**
+    * Count documents with values 1, 6, 11 of property where <code>prop &gt; value</code>
+    * 
+    * @param format format of trie terms of indexed documents or
+    *           <code>null</code> if documents have no trie terms
+    */
+   private int countGreaterThan(String format, double value) throws Exception
+   {
+      RAMDirectory oldDirectory = new RAMDirectory();
+      IndexWriter writer =
+         new IndexWriter(oldDirectory, new SimpleAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+      for (double v = 1; v < 15; v += 5)
+      {
+         Document document = new Document();
+         document.add(new Field(FieldNames.createPropertyFieldName("prop"), ExtendedNumberTools.doubleToString(v),
+            Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+         if (format != null)
+         {
+            document.add(new Field(FieldNames.NUMERIC_FORMAT, format, Field.Store.NO,
+               Field.Index.NOT_ANALYZED_NO_NORMS));
+            int step = Integer.parseInt(format.substring(format.indexOf(':') + 1));
+            for (String term : TrieNumberTools.trieTerms(TrieNumberTools.doubleToSortableLong(v), step))
+            {
+               document.add(new Field(FieldNames.createNumericFieldName("prop"), term, Field.Store.NO,
+                  Field.Index.NOT_ANALYZED_NO_NORMS));
+            }
+         }
+         writer.addDocument(document);
+      }
+      writer.close();
+      IndexReader reader = IndexReader.open(oldDirectory);
+      try
+      {
+         IndexConfiguration configuration = new IndexConfiguration("root");
+         configuration.setNumericPrecisionStep(PRECISION_STEP);
+         LuceneQueryBuilder builder = new LuceneQueryBuilder(reader, null, null, null, configuration);
+         new Comparison(new PropertyValue(new SelectorName("s"), "prop"), Operator.GREATER_THAN, new Literal(value))
+            .accept(builder);
+         Query query = builder.getQuery();
+         assertEquals(FieldNames.createNumericFormat(PRECISION_STEP).equals(format), query instanceof TrieRangeQuery);
+         return new IndexSearcher(reader).search(query, null, DOCUMENTS).totalHits;
+      }
+      finally
+      {
+         reader.close();
+      }
+   }
+
+   private int count(Double min, Double max, boolean minInclusive, boolean maxInclusive) throws IOException
+   {
+      Long lower = min == null ? null : TrieNumberTools.doubleToSortableLong(min);
+      Long upper = max == null ? null : TrieNumberTools.doubleToSortableLong(max);
+      return searcher.search(new TrieRangeQuery(FIELD, lower, upper, minInclusive, maxInclusive, PRECISION_STEP),
+         null, DOCUMENTS).totalHits;
+   }
+
+   private int count(double min, double max, boolean minInclusive, boolean maxInclusive) throws IOException
+   {
+      return count(Double.valueOf(min), Double.valueOf(max), minInclusive, maxInclusive);
+   }
+
+   private int count(Integer min, Integer max, boolean minInclusive, boolean maxInclusive) throws IOException
+   {
+      return count(min == null ? null : Double.valueOf(min), max == null ? null : Double.valueOf(max), minInclusive,
+         maxInclusive);
+   }
+
+   private int expected(double min, double max, boolean minInclusive, boolean maxInclusive)
+   {
+      int result = 0;
+      for (double value : values)
+      {
+         if ((value > min || (minInclusive && value == min)) && (value < max || (maxInclusive && value == max)))
+         {
+            result++;
+         }
+      }
+      return result;
+   }
+}
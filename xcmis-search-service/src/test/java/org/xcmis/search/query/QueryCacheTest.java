@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Test LRU eviction and counters of query cache.
+ */
+public class QueryCacheTest
+{
+   @Test
+   public void testEvictLeastRecentlyUsed() throws Exception
+   {
+      QueryCache<String, String> cache = new QueryCache<String, String>(2);
+      cache.put("a", "1");
+      cache.put("b", "2");
+      assertEquals("1", cache.get("a"));
+      cache.put("c", "3");
+      assertNull(cache.get("b"));
+      assertEquals("1", cache.get("a"));
+      assertEquals("3", cache.get("c"));
+      assertEquals(2, cache.size());
+      assertEquals(3, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+
+      cache.clear();
+      assertEquals(0, cache.size());
+      assertNull(cache.get("a"));
+      assertEquals(2, cache.getMissCount());
+   }
+
+   @Test
+   public void testDisabledCache() throws Exception
+   {
+      QueryCache<String, String> cache = new QueryCache<String, String>(0);
+      cache.put("a", "1");
+      assertNull(cache.get("a"));
+      assertEquals(0, cache.size());
+   }
+}
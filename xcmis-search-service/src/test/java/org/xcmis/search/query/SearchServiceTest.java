@@ -40,10 +40,13 @@ import org.xcmis.search.content.Property;
 import org.xcmis.search.content.Schema;
 import org.xcmis.search.content.InMemorySchema.Builder;
 import org.xcmis.search.content.Property.BinaryValue;
+import org.xcmis.search.content.Property.ContentValue;
+import org.xcmis.search.content.Property.SimpleValue;
 import org.xcmis.search.content.interceptors.ContentReaderInterceptor;
 import org.xcmis.search.lucene.content.SchemaTableResolver;
 import org.xcmis.search.model.Query;
 import org.xcmis.search.result.ScoredRow;
+import org.xcmis.search.result.SearchAfter;
 import org.xcmis.search.value.CastSystem;
 import org.xcmis.search.value.NameConverter;
 import org.xcmis.search.value.PropertyType;
@@ -54,8 +57,10 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -216,4 +221,124 @@ public class SearchServiceTest
       List<ScoredRow> result = luceneSearchService.execute(query);
       assertThat(result.size(), is(1));
    }
+
+   @Test
+   public void testShouldPageSortedResultBySearchAfter() throws SearchServiceException, InvalidQueryException,
+      MimeTypeException, IOException
+   {
+      NameConverter<String> nameConverter = new ToStringNameConverter();
+      SchemaTableResolver tableResolver = new SchemaTableResolver(nameConverter, schema);
+
+      //index configuration
+      IndexConfiguration indexConfuration = new IndexConfiguration("rootParentUuid", "rootUuid");
+
+      //search service configuration
+      SearchServiceConfiguration configuration =
+         new SearchServiceConfiguration(schema, tableResolver, mock(ContentReaderInterceptor.class), indexConfuration);
+      SearchService luceneSearchService = new SearchService(configuration);
+      luceneSearchService.start();
+
+      // some documents have the same value to check order of the equal rows
+      List<ContentEntry> entys = new ArrayList<ContentEntry>();
+      for (int i = 0; i < 50; i++)
+      {
+         Collection<ContentValue<String>> values = new ArrayList<ContentValue<String>>();
+         values.add(new SimpleValue<String>("value" + (i % 20 + 10)));
+         Property[] props = new Property[]{new Property<String>(PropertyType.STRING, "column1", values)};
+         entys.add(new ContentEntry("doc" + i, new String[]{"someTable"}, UUID.randomUUID().toString(),
+            new String[]{UUID.randomUUID().toString()}, props));
+      }
+      luceneSearchService.update(entys, new HashSet<String>());
+
+      Query query =
+         builder.selectStar().from("someTable AS someTable").orderBy().descending().propertyValue("someTable",
+            "column1").end().query();
+      List<ScoredRow> expected = luceneSearchService.execute(query);
+      assertThat(expected.size(), is(50));
+
+      Query pageQuery =
+         builder.selectStar().from("someTable AS someTable").orderBy().descending().propertyValue("someTable",
+            "column1").end().limit(7).query();
+      List<String> paged = new ArrayList<String>();
+      SearchAfter searchAfter = null;
+      List<ScoredRow> page;
+      do
+      {
+         page = luceneSearchService.execute(pageQuery, new HashMap<String, Object>(), searchAfter);
+         for (ScoredRow row : page)
+         {
+            paged.add(row.getNodeIdentifer("someTable"));
+         }
+         if (page.size() > 0)
+         {
+            searchAfter = new SearchAfter(page.get(page.size() - 1));
+         }
+      }
+      while (page.size() == 7);
+
+      List<String> all = new ArrayList<String>();
+      for (ScoredRow row : expected)
+      {
+         all.add(row.getNodeIdentifer("someTable"));
+      }
+      assertThat(paged, is(all));
+   }
+
+   @Test
+   public void testShouldFetchHitsAfterFirstWindow() throws SearchServiceException, InvalidQueryException,
+      MimeTypeException, IOException
+   {
+      NameConverter<String> nameConverter = new ToStringNameConverter();
+      SchemaTableResolver tableResolver = new SchemaTableResolver(nameConverter, schema);
+      IndexConfiguration indexConfuration = new IndexConfiguration("rootParentUuid", "rootUuid");
+      SearchServiceConfiguration configuration =
+         new SearchServiceConfiguration(schema, tableResolver, mock(ContentReaderInterceptor.class), indexConfuration);
+      SearchService luceneSearchService = new SearchService(configuration);
+      luceneSearchService.start();
+
+      // more documents than one window of hits
+      int count = 2500;
+      List<ContentEntry> entys = new ArrayList<ContentEntry>();
+      for (int i = 0; i < count; i++)
+      {
+         Collection<ContentValue<String>> values = new ArrayList<ContentValue<String>>();
+         values.add(new SimpleValue<String>(String.format("value%05d", i)));
+         Property[] props = new Property[]{new Property<String>(PropertyType.STRING, "column1", values)};
+         entys.add(new ContentEntry("doc" + i, new String[]{"someTable"}, UUID.randomUUID().toString(),
+            new String[]{UUID.randomUUID().toString()}, props));
+      }
+      luceneSearchService.update(entys, new HashSet<String>());
+
+      List<ScoredRow> unsorted = luceneSearchService.execute(builder.selectStar().from("someTable AS someTable").query());
+      assertThat(unsorted.size(), is(count));
+      Set<String> ids = new HashSet<String>();
+      for (ScoredRow row : unsorted)
+      {
+         ids.add(row.getNodeIdentifer("someTable"));
+      }
+      assertThat(ids.size(), is(count));
+
+      List<ScoredRow> sorted =
+         luceneSearchService.execute(builder.selectStar().from("someTable AS someTable").orderBy().ascending()
+            .propertyValue("someTable", "column1").end().query());
+      assertThat(sorted.size(), is(count));
+      List<String> expected = new ArrayList<String>();
+      for (ContentEntry entry : entys)
+      {
+         expected.add(entry.getIdentifier());
+      }
+      List<String> actual = new ArrayList<String>();
+      for (ScoredRow row : sorted)
+      {
+         actual.add(row.getNodeIdentifer("someTable"));
+      }
+      assertThat(actual, is(expected));
+
+      // deep page after the first window
+      List<ScoredRow> page =
+         luceneSearchService.execute(builder.selectStar().from("someTable AS someTable").orderBy().ascending()
+            .propertyValue("someTable", "column1").end().limit(5).offset(2000).query());
+      assertThat(page.size(), is(5));
+      assertThat(page.get(0).getNodeIdentifer("someTable"), is(expected.get(2000)));
+   }
 }
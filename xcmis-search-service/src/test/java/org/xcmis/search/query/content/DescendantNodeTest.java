@@ -54,6 +54,22 @@ public class DescendantNodeTest extends AbstractQOMTest
       checkQOM(query, "s", new Node[]{n1, n2, n21});
    }
 
+   @Test
+   public void testDeepDescendantNodes() throws SearchServiceException, InvalidQueryException
+   {
+      Node n1 = testRootNode.addNode(nodeName1, testNodeType);
+      Node n11 = n1.addNode(nodeName1, testNodeType);
+      Node n111 = n11.addNode(nodeName1, testNodeType);
+      Node n1111 = n111.addNode(nodeName2, testNodeType);
+      Node n2 = testRootNode.addNode(nodeName2, testNodeType);
+      Node n21 = n2.addNode(nodeName1, testNodeType);
+      save(testRootNode);
+
+      Query query = qf.from(testNodeType + " AS s").where().isBelowPath("s", testRootNode.getPath()).end().query();
+
+      checkQOM(query, "s", new Node[]{n1, n11, n111, n1111, n2, n21});
+   }
+
    @Test
    public void testPathDoesNotExist() throws SearchServiceException, InvalidQueryException
    {
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.search.query.join;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xcmis.search.model.source.join.JoinType;
+import org.xcmis.search.query.plan.JoinAlgorithm;
+import org.xcmis.search.result.ScoredRow;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Test joins of the rows by all supported algorithms.
+ */
+public class RowJoinerTest
+{
+   private static final String LEFT = "left";
+
+   private static final String RIGHT = "right";
+
+   private List<ScoredRow> leftRows;
+
+   private List<ScoredRow> rightRows;
+
+   private JoinKeyResolver leftKeys;
+
+   private JoinKeyResolver rightKeys;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      // node identifier -> join key
+      final Map<String, Object> values = new HashMap<String, Object>();
+      values.put("l1", "a");
+      values.put("l2", "b");
+      values.put("l3", "c");
+      values.put("r1", "a");
+      values.put("r2", "a");
+      values.put("r3", "d");
+
+      leftRows = new ArrayList<ScoredRow>();
+      leftRows.add(new ScoredRow(LEFT, "l1", 1));
+      leftRows.add(new ScoredRow(LEFT, "l2", 1));
+      leftRows.add(new ScoredRow(LEFT, "l3", 1));
+
+      rightRows = new ArrayList<ScoredRow>();
+      rightRows.add(new ScoredRow(RIGHT, "r1", 1));
+      rightRows.add(new ScoredRow(RIGHT, "r2", 1));
+      rightRows.add(new ScoredRow(RIGHT, "r3", 1));
+
+      leftKeys = new JoinKeyResolver()
+      {
+         public Collection<Object> getKeys(ScoredRow row)
+         {
+            return Collections.singletonList(values.get(row.getNodeIdentifer(LEFT)));
+         }
+      };
+      rightKeys = new JoinKeyResolver()
+      {
+         public Collection<Object> getKeys(ScoredRow row)
+         {
+            return Collections.singletonList(values.get(row.getNodeIdentifer(RIGHT)));
+         }
+      };
+   }
+
+   @Test
+   public void testInnerJoin() throws Exception
+   {
+      for (JoinAlgorithm algorithm : JoinAlgorithm.values())
+      {
+         List<ScoredRow> result =
+            new RowJoiner(JoinType.INNER, algorithm).join(leftRows, leftKeys, rightRows, rightKeys);
+         assertEquals(algorithm.toString(), pairs("l1|r1", "l1|r2"), toPairs(result));
+      }
+   }
+
+   @Test
+   public void testLeftOuterJoin() throws Exception
+   {
+      for (JoinAlgorithm algorithm : JoinAlgorithm.values())
+      {
+         List<ScoredRow> result =
+            new RowJoiner(JoinType.LEFT_OUTER, algorithm).join(leftRows, leftKeys, rightRows, rightKeys);
+         assertEquals(algorithm.toString(), pairs("l1|r1", "l1|r2", "l2|null", "l3|null"), toPairs(result));
+      }
+   }
+
+   @Test
+   public void testRightOuterJoin() throws Exception
+   {
+      for (JoinAlgorithm algorithm : JoinAlgorithm.values())
+      {
+         List<ScoredRow> result =
+            new RowJoiner(JoinType.RIGHT_OUTER, algorithm).join(leftRows, leftKeys, rightRows, rightKeys);
+         assertEquals(algorithm.toString(), pairs("l1|r1", "l1|r2", "null|r3"), toPairs(result));
+      }
+   }
+
+   @Test
+   public void testHashJoinKeepLeftOrder() throws Exception
+   {
+      Collections.reverse(leftRows);
+      leftRows.add(0, new ScoredRow(LEFT, "l1", 2));
+      List<ScoredRow> result =
+         new RowJoiner(JoinType.INNER, JoinAlgorithm.HASH).join(leftRows, leftKeys, rightRows, rightKeys);
+      assertEquals(4, result.size());
+      assertEquals(3f, result.get(0).getScore(), 0);
+      assertEquals(2f, result.get(3).getScore(), 0);
+   }
+
+   @Test
+   public void testChooseAlgorithmByCardinality() throws Exception
+   {
+      assertEquals(JoinAlgorithm.NESTED_LOOP, JoinAlgorithm.forCardinality(10, 10));
+      assertEquals(JoinAlgorithm.HASH, JoinAlgorithm.forCardinality(1000, 1000));
+   }
+
+   private Set<String> pairs(String... pairs)
+   {
+      Set<String> result = new HashSet<String>();
+      Collections.addAll(result, pairs);
+      return result;
+   }
+
+   private Set<String> toPairs(List<ScoredRow> rows)
+   {
+      Set<String> result = new HashSet<String>();
+      for (ScoredRow row : rows)
+      {
+         result.add(row.getNodeIdentifer(LEFT) + "|" + row.getNodeIdentifer(RIGHT));
+      }
+      assertEquals("Duplicated rows " + rows, rows.size(), result.size());
+      return result;
+   }
+}
@@ -19,6 +19,7 @@
 
 package org.xcmis.sp.inmemory;
 
+import org.xcmis.spi.ACLVersioned;
 import org.xcmis.spi.BaseItemsIterator;
 import org.xcmis.spi.CmisConstants;
 import org.xcmis.spi.CmisRuntimeException;
@@ -39,7 +40,6 @@ import org.xcmis.spi.UpdateConflictException;
 import org.xcmis.spi.VersioningException;
 import org.xcmis.spi.model.AccessControlEntry;
 import org.xcmis.spi.model.BaseType;
-import org.xcmis.spi.model.ChangeEvent;
 import org.xcmis.spi.model.ChangeType;
 import org.xcmis.spi.model.Property;
 import org.xcmis.spi.model.PropertyDefinition;
@@ -72,13 +72,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author <a href="mailto:andrew00x@gmail.com">Andrey Parfonov</a>
  * @version $Id: BaseObjectData.java 1197 2010-05-28 08:15:37Z
  *          alexey.zavizionov@gmail.com $
  */
-abstract class BaseObjectData implements ObjectData
+abstract class BaseObjectData implements ObjectData, ACLVersioned
 {
 
    private static final Logger LOG = Logger.getLogger(BaseObjectData.class);
@@ -164,8 +165,8 @@ abstract class BaseObjectData implements ObjectData
       {
          throw new CmisRuntimeException("Unable apply policy. " + e.getMessage(), e);
       }
-      storage.changes.add(new ChangeEvent(StorageImpl.generateId(), getObjectId(), ChangeType.SECURITY, Calendar
-         .getInstance(), null, new HashSet<String>(entry.getPolicies()), null));
+      storage.changes.add(getObjectId(), ChangeType.SECURITY, Calendar.getInstance(), null, new HashSet<String>(entry
+         .getPolicies()), null);
    }
 
    public boolean equals(Object obj)
@@ -181,6 +182,14 @@ abstract class BaseObjectData implements ObjectData
       return ((BaseObjectData)obj).getObjectId().equals(getObjectId());
    }
 
+   /**
+    * {@inheritDoc}
+    */
+   public long getACLVersion()
+   {
+      return entry.getACLVersion();
+   }
+
    /**
     * {@inheritDoc}
     */
@@ -467,8 +476,8 @@ abstract class BaseObjectData implements ObjectData
          throw new CmisRuntimeException("Unable remove policy. " + e.getMessage(), e);
       }
 
-      storage.changes.add(new ChangeEvent(StorageImpl.generateId(), getObjectId(), ChangeType.SECURITY, Calendar
-         .getInstance(), null, new HashSet<String>(entry.getPolicies()), null));
+      storage.changes.add(getObjectId(), ChangeType.SECURITY, Calendar.getInstance(), null, new HashSet<String>(entry
+         .getPolicies()), null);
    }
 
    /**
@@ -476,9 +485,9 @@ abstract class BaseObjectData implements ObjectData
     */
    public void setACL(List<AccessControlEntry> acl)
    {
-      Map<String, Set<String>> permissions = entry.getPermissions();
-      permissions.clear();
+      Map<String, Set<String>> permissions = new HashMap<String, Set<String>>();
       CmisUtils.addAclToPermissionMap(permissions, acl);
+      entry.setPermissions(permissions);
       try
       {
          save();
@@ -496,8 +505,7 @@ abstract class BaseObjectData implements ObjectData
             copy.add(new AccessControlEntry(ace.getPrincipal(), new HashSet<String>(ace.getPermissions()), ace
                .isDirect()));
          }
-         storage.changes.add(new ChangeEvent(StorageImpl.generateId(), getObjectId(), ChangeType.SECURITY, Calendar
-            .getInstance(), null, null, copy));
+         storage.changes.add(getObjectId(), ChangeType.SECURITY, Calendar.getInstance(), null, null, copy);
       }
    }
 
@@ -516,8 +524,7 @@ abstract class BaseObjectData implements ObjectData
          }
       }
       save();
-      storage.changes.add(new ChangeEvent(StorageImpl.generateId(), getObjectId(), ChangeType.UPDATED, Calendar
-         .getInstance(), chl, null, null));
+      storage.changes.add(getObjectId(), ChangeType.UPDATED, Calendar.getInstance(), chl, null, null);
    }
 
    /**
@@ -531,8 +538,7 @@ abstract class BaseObjectData implements ObjectData
       List<Property<?>> chl = new ArrayList<Property<?>>(1);
       // Create copy of property to be sure it will unchangeable in changes log.
       chl.add(createCopyOfProperty(property));
-      storage.changes.add(new ChangeEvent(StorageImpl.generateId(), getObjectId(), ChangeType.UPDATED, Calendar
-         .getInstance(), chl, null, null));
+      storage.changes.add(getObjectId(), ChangeType.UPDATED, Calendar.getInstance(), chl, null, null);
    }
 
    /**
@@ -600,6 +606,23 @@ abstract class BaseObjectData implements ObjectData
 
    protected abstract void delete() throws StorageException, UpdateConflictException, VersioningException;
 
+   /**
+    * @param objectId object id
+    * @return <code>true</code> if object with given id is other version of
+    *         this document
+    */
+   private boolean isSameVersionSeries(String objectId)
+   {
+      if (getBaseType() != BaseType.DOCUMENT)
+      {
+         return false;
+      }
+      Entry other = storage.entries.get(objectId);
+      Value versionSeriesId = other != null ? other.getValue(CmisConstants.VERSION_SERIES_ID) : null;
+      return versionSeriesId != null
+         && ((DocumentData)this).getVersionSeriesId().equals(versionSeriesId.getStrings()[0]);
+   }
+
    protected Property<?> doGetProperty(PropertyDefinition<?> definition)
    {
       Value value = entry.getValue(definition.getId());
@@ -656,17 +679,46 @@ abstract class BaseObjectData implements ObjectData
                return false;
             }
 
-            for (FolderData parent : getParents())
+            String objectId = getObjectId();
+            String oldName = getName();
+            // PWC and previous versions are not visible in folders
+            boolean visible = getBaseType() != BaseType.DOCUMENT || ((DocumentData)this).isLatestVersion();
+            ConcurrentMap<String, String> uniqueNames = storage.uniqueNames.get(getBaseType());
+            if (uniqueNames != null)
             {
-               for (ItemsIterator<ObjectData> iterator = parent.getChildren(null); iterator.hasNext();)
+               String current = uniqueNames.putIfAbsent(name, objectId);
+               if (current != null && !current.equals(objectId))
                {
-                  if (name.equals(iterator.next().getName()))
+                  throw new NameConstraintViolationException("Object with name " + name + " already exists.");
+               }
+               uniqueNames.remove(oldName, objectId);
+            }
+            Set<String> parentIds = storage.parents.get(objectId);
+            List<String> renamed = new ArrayList<String>(parentIds.size());
+            for (String parentId : parentIds)
+            {
+               String childId = storage.getChildIdByName(parentId, name);
+               boolean conflict = childId != null && !childId.equals(objectId) && !isSameVersionSeries(childId);
+               if (conflict || (visible && !storage.addChildName(parentId, name, objectId)))
+               {
+                  for (String done : renamed)
                   {
-                     throw new NameConstraintViolationException("Object with name " + name
-                        + " already exists in parent folder.");
+                     storage.removeChildName(done, name, objectId);
                   }
+                  throw new NameConstraintViolationException("Object with name " + name
+                     + " already exists in parent folder.");
+               }
+               if (visible)
+               {
+                  renamed.add(parentId);
                }
             }
+            entry.setProperty(property);
+            for (String parentId : renamed)
+            {
+               storage.removeChildName(parentId, oldName, objectId);
+            }
+            return true;
          }
 
          entry.setProperty(property);
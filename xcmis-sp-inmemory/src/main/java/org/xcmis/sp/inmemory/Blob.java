@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import java.io.InputStream;
+
+/**
+ * Immutable binary content. The same blob may be shared by few objects, e.g.
+ * by document and its private working copy.
+ *
+ * @version $Id$
+ */
+public interface Blob
+{
+   /**
+    * @return length of content in bytes
+    */
+   long length();
+
+   /**
+    * Get stream to read content. Each call returns new independent stream what
+    * reads content directly, without copying it.
+    *
+    * @return content stream
+    */
+   InputStream getStream();
+}
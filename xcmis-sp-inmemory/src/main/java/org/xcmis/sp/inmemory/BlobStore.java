@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Store of documents content.
+ *
+ * @version $Id$
+ * @see MappedBlobStore
+ */
+public interface BlobStore
+{
+   /**
+    * Read stream and store its content. Stream is closed after reading.
+    *
+    * @param stream content stream, may be null for empty content
+    * @return stored content
+    * @throws IOException if any i/o error occurs
+    */
+   Blob create(InputStream stream) throws IOException;
+
+   /**
+    * Release all resources of store. Blobs created by this store may not be
+    * read after closing.
+    */
+   void close();
+}
@@ -43,7 +43,7 @@ public class BooleanValue extends Value
    public BooleanValue(Boolean[] a)
    {
       this.values = new Boolean[a.length];
-      System.arraycopy(a, 0, a, 0, a.length);
+      System.arraycopy(a, 0, this.values, 0, a.length);
    }
 
    public BooleanValue(List<Boolean> l)
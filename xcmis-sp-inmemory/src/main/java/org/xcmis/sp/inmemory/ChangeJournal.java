@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import org.xcmis.spi.ConstraintException;
+import org.xcmis.spi.ItemsIterator;
+import org.xcmis.spi.model.AccessControlEntry;
+import org.xcmis.spi.model.ChangeEvent;
+import org.xcmis.spi.model.ChangeType;
+import org.xcmis.spi.model.Property;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Append-only log of changes. Each event gets sequence number what is used as
+ * its change log token, so event is found by token without scanning log.
+ * Events are kept in fixed size segments, segments of oldest events are
+ * dropped when log exceeds max size. Appending doesn't block: sequence number
+ * is reserved atomically and event is published to readers after all events
+ * with lower numbers are written.
+ *
+ * @version $Id$
+ */
+final class ChangeJournal
+{
+   /** Default number of events in segment. */
+   static final int DEFAULT_SEGMENT_SIZE = 1024;
+
+   private final int segmentSize;
+
+   private final long maxSize;
+
+   /** Segments by number. Segment N holds events from N * segmentSize. */
+   private final ConcurrentSkipListMap<Long, AtomicReferenceArray<ChangeEvent>> segments =
+      new ConcurrentSkipListMap<Long, AtomicReferenceArray<ChangeEvent>>();
+
+   /** Next sequence number to be reserved. */
+   private final AtomicLong next = new AtomicLong();
+
+   /** All events with lower sequence numbers are written. */
+   private final AtomicLong published = new AtomicLong();
+
+   /** Sequence number of the first event after resume. */
+   private volatile long floor;
+
+   /**
+    * @param segmentSize number of events in segment
+    * @param maxSize max number of events kept in log, -1 for unlimited log.
+    *        Log is truncated by whole segments, so it may keep up to
+    *        <code>segmentSize</code> events more
+    */
+   ChangeJournal(int segmentSize, long maxSize)
+   {
+      if (segmentSize <= 0)
+      {
+         throw new IllegalArgumentException("Segment size must be positive.");
+      }
+      this.segmentSize = segmentSize;
+      this.maxSize = maxSize;
+   }
+
+   /**
+    * Continue numbering of events from specified sequence number, e.g. after
+    * restart of storage. Tokens of events with lower numbers are reported as no
+    * longer available.
+    *
+    * @param sequence sequence number of next event
+    */
+   void resume(long sequence)
+   {
+      if (next.get() != 0)
+      {
+         throw new IllegalStateException("Change log is not empty.");
+      }
+      floor = sequence;
+      next.set(sequence);
+      published.set(sequence);
+   }
+
+   /**
+    * @return sequence number what will be given to next event
+    */
+   long getNextSequence()
+   {
+      return next.get();
+   }
+
+   /**
+    * Add event to log.
+    *
+    * @param objectId id of changed object
+    * @param changeType type of change
+    * @param date date of change
+    * @return added event
+    */
+   ChangeEvent add(String objectId, ChangeType changeType, Calendar date)
+   {
+      return add(objectId, changeType, date, null, null, null);
+   }
+
+   /**
+    * Add event to log.
+    *
+    * @param objectId id of changed object
+    * @param changeType type of change
+    * @param date date of change
+    * @param properties updated properties, may be null
+    * @param policyIds ids of applied policies, may be null
+    * @param acl applied ACL, may be null
+    * @return added event
+    */
+   ChangeEvent add(String objectId, ChangeType changeType, Calendar date, List<Property<?>> properties,
+      Set<String> policyIds, List<AccessControlEntry> acl)
+   {
+      long sequence = next.getAndIncrement();
+      ChangeEvent event =
+         new ChangeEvent(Long.toString(sequence), objectId, changeType, date, properties, policyIds, acl);
+      getOrCreateSegment(sequence / segmentSize).set((int)(sequence % segmentSize), event);
+      publish();
+      truncate();
+      return event;
+   }
+
+   /**
+    * Get events starting from event with specified token.
+    *
+    * @param token change log token, if null then all available events are
+    *        returned
+    * @return iterator over events
+    * @throws ConstraintException if there is no event with specified token, e.g.
+    *         because log was truncated
+    */
+   ItemsIterator<ChangeEvent> getEvents(String token) throws ConstraintException
+   {
+      long requested = -1;
+      if (token != null)
+      {
+         try
+         {
+            requested = Long.parseLong(token);
+         }
+         catch (NumberFormatException e)
+         {
+            throw new ConstraintException("No event corresponded to change log token " + token);
+         }
+      }
+      for (;;)
+      {
+         long end = published.get();
+         long first = getFirstSequence(end);
+         long start = first;
+         if (token != null)
+         {
+            start = requested;
+            if (start < first && start >= 0)
+            {
+               throw new ConstraintException("Event corresponded to change log token " + token
+                  + " is no longer available in change log.");
+            }
+            if (start < first || start >= end)
+            {
+               throw new ConstraintException("No event corresponded to change log token " + token);
+            }
+         }
+         // keep segments, iterator is not affected by truncation
+         List<AtomicReferenceArray<ChangeEvent>> range = new ArrayList<AtomicReferenceArray<ChangeEvent>>();
+         if (start < end)
+         {
+            long from = start / segmentSize;
+            long to = (end - 1) / segmentSize;
+            range.addAll(segments.subMap(from, true, to, true).values());
+            // segments are dropped from head concurrently, range is complete if none of them is dropped
+            if (range.size() != to - from + 1)
+            {
+               if (token != null)
+               {
+                  throw new ConstraintException("Event corresponded to change log token " + token
+                     + " is no longer available in change log.");
+               }
+               // all events requested, start from new head
+               continue;
+            }
+         }
+         return new EventsIterator(range, (int)(start % segmentSize), (int)(end - start));
+      }
+   }
+
+   /**
+    * @return token of latest event or null if log is empty
+    */
+   String getLatestToken()
+   {
+      long end = published.get();
+      return end > getFirstSequence(end) ? Long.toString(end - 1) : null;
+   }
+
+   private long getFirstSequence(long end)
+   {
+      Map.Entry<Long, AtomicReferenceArray<ChangeEvent>> head = segments.firstEntry();
+      return head != null ? Math.min(Math.max(head.getKey() * segmentSize, floor), end) : end;
+   }
+
+   private AtomicReferenceArray<ChangeEvent> getOrCreateSegment(long number)
+   {
+      AtomicReferenceArray<ChangeEvent> segment = segments.get(number);
+      if (segment == null)
+      {
+         AtomicReferenceArray<ChangeEvent> newSegment = new AtomicReferenceArray<ChangeEvent>(segmentSize);
+         segment = segments.putIfAbsent(number, newSegment);
+         if (segment == null)
+         {
+            segment = newSegment;
+         }
+      }
+      return segment;
+   }
+
+   /**
+    * Move published mark over all written events. Mark is moved by thread what
+    * writes the first not published event, so it never passes unwritten one.
+    */
+   private void publish()
+   {
+      for (;;)
+      {
+         long p = published.get();
+         if (p >= next.get())
+         {
+            return;
+         }
+         AtomicReferenceArray<ChangeEvent> segment = segments.get(p / segmentSize);
+         if (segment == null || segment.get((int)(p % segmentSize)) == null)
+         {
+            return;
+         }
+         published.compareAndSet(p, p + 1);
+      }
+   }
+
+   private void truncate()
+   {
+      if (maxSize < 0)
+      {
+         return;
+      }
+      long keepFrom = published.get() - maxSize;
+      if (keepFrom <= 0)
+      {
+         return;
+      }
+      // drop segments what hold only events older than limit
+      ConcurrentNavigableMap<Long, AtomicReferenceArray<ChangeEvent>> old =
+         segments.headMap(keepFrom / segmentSize, false);
+      while (!old.isEmpty())
+      {
+         old.pollFirstEntry();
+      }
+   }
+
+   /**
+    * Iterator over range of events.
+    */
+   private final class EventsIterator implements ItemsIterator<ChangeEvent>
+   {
+      private final List<AtomicReferenceArray<ChangeEvent>> range;
+
+      private final int size;
+
+      private final int offset;
+
+      private int position;
+
+      EventsIterator(List<AtomicReferenceArray<ChangeEvent>> range, int offset, int size)
+      {
+         this.range = range;
+         this.offset = offset;
+         this.size = size;
+      }
+
+      public boolean hasNext()
+      {
+         return position < size;
+      }
+
+      public ChangeEvent next()
+      {
+         if (position >= size)
+         {
+            throw new NoSuchElementException();
+         }
+         int index = offset + position++;
+         return range.get(index / segmentSize).get(index % segmentSize);
+      }
+
+      public void remove()
+      {
+         throw new UnsupportedOperationException("remove");
+      }
+
+      public int size()
+      {
+         return size;
+      }
+
+      public void skip(int skip) throws NoSuchElementException
+      {
+         if (skip > size - position)
+         {
+            position = size;
+            throw new NoSuchElementException();
+         }
+         position += skip;
+      }
+   }
+}
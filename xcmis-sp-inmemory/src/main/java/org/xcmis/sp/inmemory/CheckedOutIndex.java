@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Private working copies by folder and by user what checked out document.
+ * Each set of PWCs is ordered in the same way as children of folder, see
+ * {@link ChildIndex}.
+ *
+ * @version $Id$
+ */
+final class CheckedOutIndex
+{
+   private final ChildIndex all = new ChildIndex();
+
+   private final Map<String, ChildIndex> byFolder = new HashMap<String, ChildIndex>();
+
+   private final Map<String, ChildIndex> byUser = new HashMap<String, ChildIndex>();
+
+   /** User what checked out document by PWC id. */
+   private final Map<String, String> users = new HashMap<String, String>();
+
+   /**
+    * Add new PWC.
+    *
+    * @param pwc PWC
+    * @param folders ids of parent folders, may be null for unfiled PWC
+    * @param user user what checked out document
+    */
+   synchronized void add(Entry pwc, Collection<String> folders, String user)
+   {
+      if (user == null)
+      {
+         user = "";
+      }
+      String id = pwc.getId();
+      users.put(id, user);
+      all.add(pwc);
+      if (folders != null)
+      {
+         for (String folderId : folders)
+         {
+            getOrCreate(byFolder, folderId).add(pwc);
+         }
+      }
+      getOrCreate(byUser, user).add(pwc);
+   }
+
+   /**
+    * Remove PWC after checkin or cancel of checkout.
+    *
+    * @param pwcId PWC id
+    * @param folders ids of parent folders, may be null for unfiled PWC
+    */
+   synchronized void remove(String pwcId, Collection<String> folders)
+   {
+      String user = users.remove(pwcId);
+      if (user == null)
+      {
+         return;
+      }
+      all.remove(pwcId);
+      if (folders != null)
+      {
+         for (String folderId : folders)
+         {
+            remove(byFolder, folderId, pwcId);
+         }
+      }
+      remove(byUser, user, pwcId);
+   }
+
+   /**
+    * Update index after object is added in folder. Nothing is done if object
+    * is not PWC.
+    *
+    * @param object object
+    * @param folderId folder id
+    */
+   synchronized void filed(Entry object, String folderId)
+   {
+      if (users.containsKey(object.getId()))
+      {
+         getOrCreate(byFolder, folderId).add(object);
+      }
+   }
+
+   /**
+    * Update index after object is removed from folder. Nothing is done if
+    * object is not PWC.
+    *
+    * @param objectId object id
+    * @param folderId folder id
+    */
+   synchronized void unfiled(String objectId, String folderId)
+   {
+      if (users.containsKey(objectId))
+      {
+         remove(byFolder, folderId, objectId);
+      }
+   }
+
+   /**
+    * Update order of PWC after change of its properties. Nothing is done if
+    * object is not PWC.
+    *
+    * @param object object
+    * @param folders ids of parent folders, may be null for unfiled object
+    */
+   synchronized void update(Entry object, Collection<String> folders)
+   {
+      String user = users.get(object.getId());
+      if (user == null)
+      {
+         return;
+      }
+      all.update(object);
+      if (folders != null)
+      {
+         for (String folderId : folders)
+         {
+            ChildIndex index = byFolder.get(folderId);
+            if (index != null)
+            {
+               index.update(object);
+            }
+         }
+      }
+      byUser.get(user).update(object);
+   }
+
+   /**
+    * @param folderId folder id, if null then PWCs from all folders and
+    *        unfiled ones are included
+    * @param user user id, if null then PWCs of all users are included
+    * @return PWCs in folder checked out by user
+    */
+   synchronized ChildIndex get(String folderId, String user)
+   {
+      ChildIndex folderIndex = folderId != null ? byFolder.get(folderId) : all;
+      ChildIndex userIndex = user != null ? byUser.get(user) : all;
+      if (folderIndex == null || userIndex == null)
+      {
+         return new ChildIndex();
+      }
+      if (folderId != null && user != null)
+      {
+         return folderIndex.retain(userIndex);
+      }
+      return folderId != null ? folderIndex : userIndex;
+   }
+
+   private static ChildIndex getOrCreate(Map<String, ChildIndex> indexes, String key)
+   {
+      ChildIndex index = indexes.get(key);
+      if (index == null)
+      {
+         index = new ChildIndex();
+         indexes.put(key, index);
+      }
+      return index;
+   }
+
+   private static void remove(Map<String, ChildIndex> indexes, String key, String id)
+   {
+      ChildIndex index = indexes.get(key);
+      if (index != null)
+      {
+         index.remove(id);
+         if (index.size() == 0)
+         {
+            indexes.remove(key);
+         }
+      }
+   }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import org.xcmis.spi.CmisConstants;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Children of one folder, or other set of objects, ordered by properties what
+ * may be used for sorting of listing. Each order is kept in balanced tree with size of
+ * subtrees, so page of children at any position is found in O(log(n) +
+ * page size). Objects with the same value of property are ordered by id.
+ *
+ * @version $Id$
+ */
+final class ChildIndex
+{
+   /**
+    * Properties children may be ordered by. Index in this array is used as
+    * order identifier.
+    */
+   static final String[] ORDERABLE =
+      new String[]{CmisConstants.NAME, CmisConstants.CREATION_DATE, CmisConstants.LAST_MODIFICATION_DATE};
+
+   /**
+    * @param propertyId property id
+    * @return order identifier or -1 if children may not be ordered by property
+    */
+   static int getOrder(String propertyId)
+   {
+      for (int i = 0; i < ORDERABLE.length; i++)
+      {
+         if (ORDERABLE[i].equals(propertyId))
+         {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * @param propertyId property id
+    * @return true if change of property with given id may change order of
+    *         children
+    */
+   static boolean isOrderable(String propertyId)
+   {
+      return getOrder(propertyId) >= 0;
+   }
+
+   private final Tree[] trees = new Tree[ORDERABLE.length];
+
+   private final Map<String, Key[]> keys = new HashMap<String, Key[]>();
+
+   ChildIndex()
+   {
+      Random random = new Random();
+      for (int i = 0; i < trees.length; i++)
+      {
+         trees[i] = new Tree(random);
+      }
+   }
+
+   /**
+    * Add child to index. Nothing is done if child is already indexed.
+    *
+    * @param entry child
+    */
+   synchronized void add(Entry entry)
+   {
+      String id = entry.getId();
+      if (keys.containsKey(id))
+      {
+         return;
+      }
+      Key[] k = keysOf(entry);
+      keys.put(id, k);
+      for (int i = 0; i < trees.length; i++)
+      {
+         trees[i].insert(k[i]);
+      }
+   }
+
+   /**
+    * Update place of child after change of its properties. Nothing is done if
+    * child is not indexed.
+    *
+    * @param entry child
+    */
+   synchronized void update(Entry entry)
+   {
+      String id = entry.getId();
+      Key[] old = keys.get(id);
+      if (old == null)
+      {
+         return;
+      }
+      Key[] k = keysOf(entry);
+      for (int i = 0; i < trees.length; i++)
+      {
+         if (old[i].compareTo(k[i]) != 0)
+         {
+            trees[i].delete(old[i]);
+            trees[i].insert(k[i]);
+         }
+         else
+         {
+            k[i] = old[i];
+         }
+      }
+      keys.put(id, k);
+   }
+
+   /**
+    * Remove child from index.
+    *
+    * @param id child id
+    */
+   synchronized void remove(String id)
+   {
+      Key[] k = keys.remove(id);
+      if (k != null)
+      {
+         for (int i = 0; i < trees.length; i++)
+         {
+            trees[i].delete(k[i]);
+         }
+      }
+   }
+
+   /**
+    * Create index of objects what are present in this and other index. Only
+    * the smaller index is copied, children of the larger one are probed under
+    * its lock, so work is bounded by size of the smaller index.
+    *
+    * @param other other index
+    * @return new index
+    */
+   ChildIndex retain(ChildIndex other)
+   {
+      ChildIndex smaller = this;
+      ChildIndex larger = other;
+      if (other.size() < size())
+      {
+         smaller = other;
+         larger = this;
+      }
+      Map<String, Key[]> candidates;
+      synchronized (smaller)
+      {
+         candidates = new HashMap<String, Key[]>(smaller.keys);
+      }
+      List<Map.Entry<String, Key[]>> common = new ArrayList<Map.Entry<String, Key[]>>(candidates.size());
+      synchronized (larger)
+      {
+         for (Map.Entry<String, Key[]> e : candidates.entrySet())
+         {
+            if (larger.keys.containsKey(e.getKey()))
+            {
+               common.add(e);
+            }
+         }
+      }
+      ChildIndex retained = new ChildIndex();
+      for (Map.Entry<String, Key[]> e : common)
+      {
+         Key[] k = e.getValue();
+         retained.keys.put(e.getKey(), k);
+         for (int i = 0; i < k.length; i++)
+         {
+            retained.trees[i].insert(k[i]);
+         }
+      }
+      return retained;
+   }
+
+   /**
+    * @return number of indexed children
+    */
+   synchronized int size()
+   {
+      return keys.size();
+   }
+
+   /**
+    * Get ids of children at given positions in specified order.
+    *
+    * @param order order identifier, see {@link #getOrder(String)}
+    * @param descending if true then descending order is used
+    * @param from position of first child
+    * @param count max number of ids to return
+    * @return ids of children, list is empty if <code>from</code> is out of
+    *         range
+    */
+   synchronized List<String> getIds(int order, boolean descending, int from, int count)
+   {
+      List<String> ids = new ArrayList<String>(Math.max(0, Math.min(count, keys.size() - from)));
+      if (from < keys.size() && count > 0)
+      {
+         trees[order].collect(trees[order].root, from, count, descending, ids);
+      }
+      return ids;
+   }
+
+   private static Key[] keysOf(Entry entry)
+   {
+      String id = entry.getId();
+      Key[] k = new Key[ORDERABLE.length];
+      k[0] = new Key(entry.getName(), id);
+      k[1] = new Key(timeOf(entry.getValue(CmisConstants.CREATION_DATE)), id);
+      k[2] = new Key(timeOf(entry.getValue(CmisConstants.LAST_MODIFICATION_DATE)), id);
+      return k;
+   }
+
+   private static Long timeOf(Value value)
+   {
+      if (value != null && value.isDate())
+      {
+         Calendar[] dates = value.getDates();
+         if (dates.length > 0 && dates[0] != null)
+         {
+            return dates[0].getTimeInMillis();
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Value of property and id of object. Null values go first.
+    */
+   private static final class Key implements Comparable<Key>
+   {
+      private final Comparable<Object> value;
+
+      private final String id;
+
+      @SuppressWarnings("unchecked")
+      Key(Comparable<?> value, String id)
+      {
+         this.value = (Comparable<Object>)value;
+         this.id = id;
+      }
+
+      public int compareTo(Key other)
+      {
+         if (value != other.value)
+         {
+            if (value == null)
+            {
+               return -1;
+            }
+            if (other.value == null)
+            {
+               return 1;
+            }
+            int c = value.compareTo(other.value);
+            if (c != 0)
+            {
+               return c;
+            }
+         }
+         return id.compareTo(other.id);
+      }
+   }
+
+   private static final class Node
+   {
+      private final Key key;
+
+      private final int priority;
+
+      private Node left;
+
+      private Node right;
+
+      private int size = 1;
+
+      Node(Key key, int priority)
+      {
+         this.key = key;
+         this.priority = priority;
+      }
+   }
+
+   /**
+    * Treap with size of subtree in each node.
+    */
+   private static final class Tree
+   {
+      private final Random random;
+
+      private Node root;
+
+      Tree(Random random)
+      {
+         this.random = random;
+      }
+
+      void insert(Key key)
+      {
+         root = insert(root, new Node(key, random.nextInt()));
+      }
+
+      void delete(Key key)
+      {
+         root = delete(root, key);
+      }
+
+      private static int size(Node node)
+      {
+         return node == null ? 0 : node.size;
+      }
+
+      private static void resize(Node node)
+      {
+         node.size = size(node.left) + size(node.right) + 1;
+      }
+
+      private static Node insert(Node node, Node x)
+      {
+         if (node == null)
+         {
+            return x;
+         }
+         if (x.key.compareTo(node.key) < 0)
+         {
+            node.left = insert(node.left, x);
+            if (node.left.priority > node.priority)
+            {
+               Node l = node.left;
+               node.left = l.right;
+               resize(node);
+               l.right = node;
+               node = l;
+            }
+         }
+         else
+         {
+            node.right = insert(node.right, x);
+            if (node.right.priority > node.priority)
+            {
+               Node r = node.right;
+               node.right = r.left;
+               resize(node);
+               r.left = node;
+               node = r;
+            }
+         }
+         resize(node);
+         return node;
+      }
+
+      private static Node delete(Node node, Key key)
+      {
+         if (node == null)
+         {
+            return null;
+         }
+         int c = key.compareTo(node.key);
+         if (c < 0)
+         {
+            node.left = delete(node.left, key);
+         }
+         else if (c > 0)
+         {
+            node.right = delete(node.right, key);
+         }
+         else
+         {
+            return merge(node.left, node.right);
+         }
+         resize(node);
+         return node;
+      }
+
+      private static Node merge(Node a, Node b)
+      {
+         if (a == null)
+         {
+            return b;
+         }
+         if (b == null)
+         {
+            return a;
+         }
+         if (a.priority > b.priority)
+         {
+            a.right = merge(a.right, b);
+            resize(a);
+            return a;
+         }
+         b.left = merge(a, b.left);
+         resize(b);
+         return b;
+      }
+
+      /**
+       * Add ids of nodes of subtree starting from position <code>from</code>
+       * in subtree until <code>ids</code> has <code>count</code> elements.
+       */
+      void collect(Node node, int from, int count, boolean descending, List<String> ids)
+      {
+         if (node == null || ids.size() >= count)
+         {
+            return;
+         }
+         Node first = descending ? node.right : node.left;
+         Node last = descending ? node.left : node.right;
+         int firstSize = size(first);
+         if (from < firstSize)
+         {
+            collect(first, from, count, descending, ids);
+         }
+         if (from <= firstSize && ids.size() < count)
+         {
+            ids.add(node.key.id);
+         }
+         if (ids.size() < count)
+         {
+            collect(last, Math.max(0, from - firstSize - 1), count, descending, ids);
+         }
+      }
+   }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import org.xcmis.spi.FetchHints;
+import org.xcmis.spi.ObjectData;
+import org.xcmis.spi.ObjectIdIterator;
+import org.xcmis.spi.utils.Logger;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator over objects of {@link ChildIndex} in requested order. Ids are
+ * taken from index by small pages, objects of page are fetched from storage
+ * at once when first of them is requested, skipped objects are not fetched at
+ * all. Caller may take ids by {@link #nextObjectId()} and fetch objects itself.
+ *
+ * @param <T> type of objects
+ * @version $Id$
+ */
+final class ChildIndexIterator<T extends ObjectData> implements ObjectIdIterator<T>
+{
+   private static final Logger LOG = Logger.getLogger(ChildIndexIterator.class);
+
+   private static final int FETCH_SIZE = 32;
+
+   private final StorageImpl storage;
+
+   private final ChildIndex index;
+
+   private int order;
+
+   private boolean descending;
+
+   /** Position of next id to take from index. */
+   private int position;
+
+   private List<String> ids = Collections.emptyList();
+
+   private int idIndex;
+
+   /** Objects of current page of ids, null if not fetched yet. */
+   private Map<String, ObjectData> fetched;
+
+   /** Objects are requested, not only ids. */
+   private boolean loadObjects;
+
+   /**
+    * @param storage storage
+    * @param index index of objects
+    * @param orderBy comma-separated list of query names with optional 'ASC'
+    *        or 'DESC' modifier. Only first query name is used, if it is null
+    *        or objects can't be ordered by it then objects are ordered by name
+    */
+   ChildIndexIterator(StorageImpl storage, ChildIndex index, String orderBy)
+   {
+      this.storage = storage;
+      this.index = index;
+      if (orderBy != null && orderBy.trim().length() > 0)
+      {
+         // Only first property is used, the next ones are ignored.
+         String first = orderBy.split(",")[0].trim();
+         String[] parts = first.split("\\s+");
+         order = ChildIndex.getOrder(parts[0]);
+         if (order < 0)
+         {
+            if (LOG.isDebugEnabled())
+            {
+               LOG.debug("Objects can't be ordered by " + parts[0] + ", order by name is used.");
+            }
+            order = 0;
+         }
+         else if (parts.length > 1)
+         {
+            descending = "DESC".equalsIgnoreCase(parts[1]);
+         }
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public int size()
+   {
+      return index.size();
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public boolean hasNext()
+   {
+      while (nextPage())
+      {
+         if (!loadObjects)
+         {
+            return true;
+         }
+         if (fetched == null)
+         {
+            fetch();
+         }
+         if (fetched.containsKey(ids.get(idIndex)))
+         {
+            return true;
+         }
+         // object removed after its id was taken from index
+         idIndex++;
+      }
+      return false;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   @SuppressWarnings("unchecked")
+   public T next()
+   {
+      loadObjects = true;
+      if (!hasNext())
+      {
+         throw new NoSuchElementException();
+      }
+      return (T)fetched.get(ids.get(idIndex++));
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public String nextObjectId()
+   {
+      if (!nextPage())
+      {
+         throw new NoSuchElementException();
+      }
+      return ids.get(idIndex++);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void skip(int skip) throws NoSuchElementException
+   {
+      if (skip <= 0)
+      {
+         return;
+      }
+      int target = position - (ids.size() - idIndex) + skip;
+      if (target > index.size())
+      {
+         throw new NoSuchElementException();
+      }
+      position = target;
+      ids = Collections.emptyList();
+      idIndex = 0;
+      fetched = null;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void remove()
+   {
+      throw new UnsupportedOperationException("remove");
+   }
+
+   /**
+    * Take next page of ids from index if current one is exhausted.
+    *
+    * @return <code>false</code> if there is no more ids
+    */
+   private boolean nextPage()
+   {
+      if (idIndex < ids.size())
+      {
+         return true;
+      }
+      ids = index.getIds(order, descending, position, FETCH_SIZE);
+      position += ids.size();
+      idIndex = 0;
+      fetched = null;
+      return !ids.isEmpty();
+   }
+
+   private void fetch()
+   {
+      fetched = storage.getObjectsByIds(ids.subList(idIndex, ids.size()), null, FetchHints.NONE);
+   }
+}
@@ -1,4 +1,4 @@
-/**
+/*
  * Copyright (C) 2010 eXo Platform SAS.
  *
  * This is free software; you can redistribute it and/or modify it
@@ -16,56 +16,71 @@
  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
  */
-
 package org.xcmis.sp.inmemory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
- * @author <a href="mailto:andrew00x@gmail.com">Andrey Parfonov</a>
+ * Value of {@link PropertyDefinitions#CONTENT}. Blob is immutable, so value
+ * may be shared between versions without copying.
+ *
  * @version $Id$
  */
-public class ByteArrayValue extends Value
+public class ContentValue extends Value
 {
+   private final Blob blob;
 
-   private final byte[] values;
-
-   public ByteArrayValue(byte[] a)
+   public ContentValue(Blob blob)
    {
-      this.values = new byte[a.length];
-      System.arraycopy(a, 0, this.values, 0, a.length);
+      this.blob = blob;
    }
 
-   @Override
-   public byte[] getBytes()
+   /**
+    * @return content
+    */
+   public Blob getBlob()
    {
-      return values;
+      return blob;
    }
 
-   @Override
-   public boolean isContent()
+   /**
+    * @return length of content in bytes
+    */
+   public long length()
    {
-      return true;
+      return blob.length();
    }
 
-   public static ByteArrayValue fromStream(InputStream stream) throws IOException
+   /**
+    * Get copy of content. Prefer {@link Blob#getStream()} for reading content.
+    *
+    * {@inheritDoc}
+    */
+   @Override
+   public byte[] getBytes()
    {
-      if (stream == null)
+      byte[] bytes = new byte[(int)blob.length()];
+      InputStream in = blob.getStream();
+      try
       {
-         return new ByteArrayValue(new byte[0]);
+         int off = 0;
+         int r;
+         while (off < bytes.length && (r = in.read(bytes, off, bytes.length - off)) != -1)
+         {
+            off += r;
+         }
+         return bytes;
       }
-      ByteArrayOutputStream bout = new ByteArrayOutputStream();
-      byte[] buf = new byte[1024];
-      int r = -1;
-      while ((r = stream.read(buf)) != -1)
+      catch (IOException e)
       {
-         bout.write(buf, 0, r);
+         throw new IllegalStateException("Unable read content. " + e.getMessage(), e);
       }
-      stream.close();
-      byte[] bytes = bout.toByteArray();
-      return new ByteArrayValue(bytes);
    }
 
+   @Override
+   public boolean isContent()
+   {
+      return true;
+   }
 }
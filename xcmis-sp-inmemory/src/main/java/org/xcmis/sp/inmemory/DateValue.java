@@ -21,41 +21,96 @@ package org.xcmis.sp.inmemory;
 
 import java.util.Calendar;
 import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Dates are kept as milliseconds with one time zone for all values, time zone
+ * instances are shared. New calendars are created on each call of
+ * {@link #getDates()}.
+ *
  * @author <a href="mailto:andrew00x@gmail.com">Andrey Parfonov</a>
  * @version $Id$
  */
 public class DateValue extends Value
 {
 
-   private final Calendar[] values;
+   private static final ConcurrentMap<String, TimeZone> ZONES = new ConcurrentHashMap<String, TimeZone>();
+
+   /** Marker of null value. */
+   private static final long NULL = Long.MIN_VALUE;
+
+   private final long[] times;
+
+   private final TimeZone zone;
 
    public DateValue()
    {
-      this.values = new Calendar[0];
+      this.times = new long[0];
+      this.zone = null;
    }
 
    public DateValue(Calendar value)
    {
-      this.values = new Calendar[]{value};
+      this(new Calendar[]{value});
    }
 
    public DateValue(List<Calendar> l)
    {
-      this.values = l.toArray(new Calendar[l.size()]);
+      this(l.toArray(new Calendar[l.size()]));
    }
 
    public DateValue(Calendar[] a)
    {
-      this.values = new Calendar[a.length];
-      System.arraycopy(a, 0, this.values, 0, a.length);
+      this.times = new long[a.length];
+      TimeZone z = null;
+      for (int i = 0; i < a.length; i++)
+      {
+         if (a[i] == null)
+         {
+            times[i] = NULL;
+         }
+         else
+         {
+            times[i] = a[i].getTimeInMillis();
+            if (z == null)
+            {
+               z = a[i].getTimeZone();
+            }
+         }
+      }
+      this.zone = z != null ? share(z) : null;
+   }
+
+   private static TimeZone share(TimeZone zone)
+   {
+      TimeZone shared = ZONES.get(zone.getID());
+      if (shared == null)
+      {
+         shared = ZONES.putIfAbsent(zone.getID(), (TimeZone)zone.clone());
+         if (shared == null)
+         {
+            shared = ZONES.get(zone.getID());
+         }
+      }
+      return shared;
    }
 
    @Override
    public Calendar[] getDates()
    {
-      return values;
+      Calendar[] dates = new Calendar[times.length];
+      for (int i = 0; i < times.length; i++)
+      {
+         if (times[i] != NULL)
+         {
+            Calendar date = zone != null ? Calendar.getInstance(zone) : Calendar.getInstance();
+            date.setTimeInMillis(times[i]);
+            dates[i] = date;
+         }
+      }
+      return dates;
    }
 
    @Override
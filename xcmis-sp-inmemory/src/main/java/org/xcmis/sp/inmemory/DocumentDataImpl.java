@@ -39,12 +39,15 @@ import org.xcmis.spi.utils.MimeType;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.locks.Lock;
 
 /**
  * @author <a href="mailto:andrew00x@gmail.com">Andrey Parfonov</a>
@@ -64,9 +67,11 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
     */
    public void cancelCheckout() throws UpdateConflictException, VersioningException, StorageException
    {
-      synchronized (storage)
+      String vsId = getVersionSeriesId();
+      Lock lock = storage.versionLocks.getLock(vsId);
+      lock.lock();
+      try
       {
-         String vsId = getVersionSeriesId();
          String pwcId = storage.workingCopies.get(vsId);
          if (pwcId == null)
          {
@@ -77,12 +82,13 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
          {
             storage.children.get(parent).remove(pwcId);
          }
+         storage.checkedOut.remove(pwcId, storage.parents.get(pwcId));
          storage.parents.remove(pwcId);
          storage.unfiled.remove(pwcId);
          storage.workingCopies.remove(vsId);
-         storage.entries.remove(pwcId);
+         storage.removeEntry(pwcId);
 
-         for (Iterator<String> iterator = storage.versions.get(getVersionSeriesId()).iterator(); iterator.hasNext();)
+         for (Iterator<String> iterator = storage.versions.get(vsId).iterator(); iterator.hasNext();)
          {
             String version = iterator.next();
             Entry ventry = storage.entries.get(version);
@@ -90,6 +96,10 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
             ventry.setValue(CmisConstants.VERSION_SERIES_CHECKED_OUT_ID, /*new StringValue()*/null);
          }
       }
+      finally
+      {
+         lock.unlock();
+      }
    }
 
    /**
@@ -104,11 +114,63 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
          throw new CmisRuntimeException("Current object is not Private Working Copy.");
       }
 
-      synchronized (storage)
+      String vsId = getVersionSeriesId();
+      String pwcId = getObjectId();
+      String name = getName();
+      List<String> reserved = null;
+      boolean checkedIn = false;
+      Lock lock = storage.versionLocks.getLock(vsId);
+      lock.lock();
+      try
       {
-         String pwcId = getObjectId();
+         if (!pwcId.equals(storage.workingCopies.get(vsId)))
+         {
+            throw new UpdateConflictException("Private working copy " + pwcId
+               + " is already checked-in or checkout is cancelled.");
+         }
+         List<String> versions = storage.versions.get(vsId);
+         // PWC replaces previous latest version in folders
+         Entry previous = storage.entries.get(versions.get(versions.size() - 1));
+         Property<?> nameProperty = properties != null ? properties.get(CmisConstants.NAME) : null;
+         if (nameProperty != null && nameProperty.getValues().size() > 0)
+         {
+            name = (String)nameProperty.getValues().get(0);
+         }
+         // store content before any name is reserved, it is the most likely to fail
+         ContentValue content = null;
+         try
+         {
+            if (contentStream != null && contentStream.getStream() != null)
+            {
+               content = storage.createContent(contentStream);
+            }
+         }
+         catch (IOException ioe)
+         {
+            throw new StorageException("Unable checkin PWC. " + ioe.getMessage(), ioe);
+         }
+
+         // reserve name of new version before version state is changed
+         Set<String> parentIds = storage.parents.get(pwcId);
+         boolean rename = !name.equals(previous.getName());
+         reserved = new ArrayList<String>(parentIds.size());
+         for (String parent : parentIds)
+         {
+            String childId = storage.getChildIdByName(parent, name);
+            boolean conflict = childId != null && !childId.equals(previous.getId()) && !childId.equals(pwcId);
+            if (conflict || (rename && !storage.addChildName(parent, name, pwcId)))
+            {
+               throw new NameConstraintViolationException("Object with name " + name
+                  + " already exists in parent folder.");
+            }
+            if (rename)
+            {
+               reserved.add(parent);
+            }
+         }
+
          int i = 1;
-         for (Iterator<String> iterator = storage.versions.get(getVersionSeriesId()).iterator(); iterator.hasNext();)
+         for (Iterator<String> iterator = storage.versions.get(vsId).iterator(); iterator.hasNext();)
          {
             String version = iterator.next();
             Entry ventry = storage.entries.get(version);
@@ -129,16 +191,9 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
             }
          }
 
-         try
+         if (contentStream != null)
          {
-            if (contentStream != null)
-            {
-               doSetContentStream(contentStream);
-            }
-         }
-         catch (IOException ioe)
-         {
-            throw new StorageException("Unable checkin PWC. " + ioe.getMessage(), ioe);
+            doSetContentStream(contentStream, content);
          }
 
          if (acl != null && acl.size() > 0)
@@ -165,8 +220,40 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
          {
             entry.setValue(CmisConstants.CHECKIN_COMMENT, new StringValue(checkinComment));
          }
-         storage.workingCopies.remove(getVersionSeriesId());
-         storage.versions.get(getVersionSeriesId()).add(pwcId);
+         storage.workingCopies.remove(vsId);
+         storage.checkedOut.remove(pwcId, storage.parents.get(pwcId));
+         for (String parent : parentIds)
+         {
+            if (rename)
+            {
+               storage.removeChildName(parent, previous.getName(), previous.getId());
+            }
+            else
+            {
+               // name is held by previous version until it is passed to PWC
+               storage.replaceChildName(parent, name, previous.getId(), pwcId);
+            }
+         }
+         versions.add(pwcId);
+         checkedIn = true;
+         storage.objectChanged(previous.getId());
+         storage.objectChanged(pwcId);
+         if (contentStream != null)
+         {
+            storage.contentChanged(this);
+         }
+      }
+      finally
+      {
+         if (!checkedIn && reserved != null)
+         {
+            // release names reserved for failed checkin
+            for (String parent : reserved)
+            {
+               storage.removeChildName(parent, name, pwcId);
+            }
+         }
+         lock.unlock();
       }
       return this;
    }
@@ -176,9 +263,13 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
     */
    public DocumentData checkout() throws UpdateConflictException, VersioningException, StorageException
    {
-      synchronized (storage)
+      String vsId = getVersionSeriesId();
+      Lock lock = storage.versionLocks.getLock(vsId);
+      lock.lock();
+      try
       {
-         if (storage.workingCopies.get(getVersionSeriesId()) != null)
+         storage.validateMaxItemsNumber();
+         if (storage.workingCopies.get(vsId) != null)
          {
             throw new VersioningException("Version series already checked-out. "
                + "Not allowed have more then one PWC for version series at a time.");
@@ -188,7 +279,7 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
          pwc.setValue(CmisConstants.OBJECT_TYPE_ID, new StringValue(type.getId()));
          pwc.setValue(CmisConstants.BASE_TYPE_ID, new StringValue(type.getBaseId().value()));
          pwc.setValue(CmisConstants.IS_IMMUTABLE, new BooleanValue(false));
-         pwc.setValue(CmisConstants.VERSION_SERIES_ID, new StringValue(this.getVersionSeriesId()));
+         pwc.setValue(CmisConstants.VERSION_SERIES_ID, new StringValue(vsId));
          String pwcId = StorageImpl.generateId();
          pwc.setValue(CmisConstants.OBJECT_ID, new StringValue(pwcId));
          pwc.setValue(CmisConstants.NAME, new StringValue(getName()));
@@ -205,16 +296,11 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
          pwc.setValue(CmisConstants.VERSION_SERIES_CHECKED_OUT_ID, new StringValue(pwcId));
          pwc.setValue(CmisConstants.VERSION_SERIES_CHECKED_OUT_BY, new StringValue(userId));
 
-         ByteArrayValue contentValue = (ByteArrayValue)entry.getValue(PropertyDefinitions.CONTENT);
+         ContentValue contentValue = (ContentValue)entry.getValue(PropertyDefinitions.CONTENT);
          if (contentValue != null)
          {
-            // check is max memory size reached
-            byte[] src = contentValue.getBytes();
-            storage.validateMemSize(src);
-
-            byte[] bytes = new byte[src.length];
-            System.arraycopy(src, 0, bytes, 0, bytes.length);
-            pwc.setValue(PropertyDefinitions.CONTENT, new ByteArrayValue(bytes));
+            // content is immutable, share it until PWC gets new content
+            pwc.setValue(PropertyDefinitions.CONTENT, contentValue);
 
             String mimeType = getContentStreamMimeType();
             if (mimeType != null)
@@ -228,12 +314,12 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
                pwc.setValue(CmisConstants.CHARSET, new StringValue(charset));
             }
 
-            pwc.setValue(CmisConstants.CONTENT_STREAM_LENGTH, new IntegerValue(BigInteger.valueOf(bytes.length)));
+            pwc.setValue(CmisConstants.CONTENT_STREAM_LENGTH, new IntegerValue(BigInteger.valueOf(contentValue.length())));
             pwc.setValue(CmisConstants.CONTENT_STREAM_ID, new StringValue(pwcId));
             pwc.setValue(CmisConstants.CONTENT_STREAM_FILE_NAME, new StringValue(getName()));
          }
 
-         for (Iterator<String> iterator = storage.versions.get(getVersionSeriesId()).iterator(); iterator.hasNext();)
+         for (Iterator<String> iterator = storage.versions.get(vsId).iterator(); iterator.hasNext();)
          {
             String version = iterator.next();
             Entry ventry = storage.entries.get(version);
@@ -242,14 +328,16 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
             ventry.setValue(CmisConstants.VERSION_SERIES_CHECKED_OUT_BY, new StringValue(userId));
          }
 
-         storage.entries.put(pwcId, pwc);
+         storage.addEntry(pwc);
          for (String parent : storage.parents.get(getObjectId()))
          {
             storage.children.get(parent).add(pwcId);
          }
          storage.parents.put(pwcId, new CopyOnWriteArraySet<String>(storage.parents.get(getObjectId())));
 
-         storage.workingCopies.put(getVersionSeriesId(), pwcId);
+         storage.workingCopies.put(vsId, pwcId);
+         storage.checkedOut.add(pwc, storage.parents.get(pwcId), userId);
+         storage.objectChanged(pwcId);
 
          DocumentDataImpl pwcObject =
             new DocumentDataImpl(pwc, //
@@ -263,6 +351,10 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
 
          return pwcObject;
       }
+      finally
+      {
+         lock.unlock();
+      }
    }
 
    /**
@@ -270,8 +362,8 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
     */
    public ContentStream getContentStream()
    {
-      ByteArrayValue contentValue = (ByteArrayValue)entry.getValue(PropertyDefinitions.CONTENT);
-      if (contentValue != null/* && contentValue.getBytes().length > 0*/)
+      ContentValue contentValue = (ContentValue)entry.getValue(PropertyDefinitions.CONTENT);
+      if (contentValue != null)
       {
          MimeType mimeType = MimeType.fromString(getString(CmisConstants.CONTENT_STREAM_MIME_TYPE));
          String charset = getString(CmisConstants.CHARSET);
@@ -279,7 +371,8 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
          {
             mimeType.getParameters().put(CmisConstants.CHARSET, charset);
          }
-         return new BaseContentStream(contentValue.getBytes(), getContentStreamFileName(), mimeType);
+         Blob blob = contentValue.getBlob();
+         return new BaseContentStream(blob.getStream(), blob.length(), getContentStreamFileName(), mimeType);
       }
       return null;
    }
@@ -365,8 +458,8 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
     */
    public boolean hasContent()
    {
-      ByteArrayValue cv = (ByteArrayValue)entry.getValue(PropertyDefinitions.CONTENT);
-      return cv != null && cv.getBytes().length > 0;
+      ContentValue cv = (ContentValue)entry.getValue(PropertyDefinitions.CONTENT);
+      return cv != null && cv.length() > 0;
    }
 
    /**
@@ -420,11 +513,26 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
    {
       doSetContentStream(contentStream);
       save();
+      storage.contentChanged(this);
    }
 
    private void doSetContentStream(ContentStream contentStream) throws IOException, StorageException
    {
-      if (contentStream == null || contentStream.getStream() == null)
+      ContentValue cv = null;
+      if (contentStream != null && contentStream.getStream() != null)
+      {
+         cv = storage.createContent(contentStream);
+      }
+      doSetContentStream(contentStream, cv);
+   }
+
+   /**
+    * @param contentStream content, its media type is used
+    * @param cv stored content or null if content must be removed
+    */
+   private void doSetContentStream(ContentStream contentStream, ContentValue cv)
+   {
+      if (cv == null)
       {
          entry.setValue(PropertyDefinitions.CONTENT, null);
          entry.setValue(CmisConstants.CONTENT_STREAM_MIME_TYPE, null);
@@ -435,9 +543,6 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
       }
       else
       {
-         ByteArrayValue cv = ByteArrayValue.fromStream(contentStream.getStream());
-         storage.validateMemSize(cv.getBytes());
-
          MimeType mimeType = contentStream.getMediaType();
          entry.setValue(PropertyDefinitions.CONTENT, cv);
          entry.setValue(CmisConstants.CONTENT_STREAM_MIME_TYPE, new StringValue(mimeType.getBaseType()));
@@ -446,8 +551,7 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
          {
             entry.setValue(CmisConstants.CHARSET, new StringValue(charset));
          }
-         entry
-            .setValue(CmisConstants.CONTENT_STREAM_LENGTH, new IntegerValue(BigInteger.valueOf(cv.getBytes().length)));
+         entry.setValue(CmisConstants.CONTENT_STREAM_LENGTH, new IntegerValue(BigInteger.valueOf(cv.length())));
          entry.setValue(CmisConstants.CONTENT_STREAM_ID, new StringValue(getObjectId()));
          entry.setValue(CmisConstants.CONTENT_STREAM_FILE_NAME, new StringValue(getName()));
       }
@@ -472,22 +576,36 @@ class DocumentDataImpl extends BaseObjectData implements DocumentData
       {
          String objectId = getObjectId();
          String vsId = getVersionSeriesId();
-         storage.entries.remove(objectId);
-         for (String parent : storage.parents.get(objectId))
-         {
-            storage.children.get(parent).remove(objectId);
-         }
-         storage.parents.remove(objectId);
-         storage.unfiled.remove(objectId);
-         for (String version : storage.versions.get(getVersionSeriesId()))
+         Lock lock = storage.versionLocks.getLock(vsId);
+         lock.lock();
+         try
          {
-            storage.entries.remove(version);
+            for (String parent : storage.parents.get(objectId))
+            {
+               storage.children.get(parent).remove(objectId);
+               for (String version : storage.versions.get(vsId))
+               {
+                  storage.removeChildName(parent, storage.entries.get(version).getName(), version);
+               }
+            }
+            storage.removeEntry(objectId);
+            storage.parents.remove(objectId);
+            storage.unfiled.remove(objectId);
+            for (String version : storage.versions.get(vsId))
+            {
+               storage.removeEntry(version);
+            }
+            storage.versions.remove(vsId);
+            String pwcId = storage.workingCopies.remove(vsId);
+            if (pwcId != null)
+            {
+               storage.checkedOut.remove(pwcId, storage.parents.get(pwcId));
+               storage.removeEntry(pwcId);
+            }
          }
-         storage.versions.remove(vsId);
-         String pwcId = storage.workingCopies.remove(vsId);
-         if (pwcId != null)
+         finally
          {
-            storage.entries.remove(pwcId);
+            lock.unlock();
          }
       }
    }
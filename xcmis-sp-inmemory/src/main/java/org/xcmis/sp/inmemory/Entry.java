@@ -21,33 +21,150 @@ package org.xcmis.sp.inmemory;
 
 import org.xcmis.spi.CmisConstants;
 import org.xcmis.spi.PolicyData;
+import org.xcmis.spi.model.AccessControlEntry;
 import org.xcmis.spi.model.BaseType;
 import org.xcmis.spi.model.Property;
 import org.xcmis.spi.model.PropertyType;
+import org.xcmis.spi.utils.CmisUtils;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.net.URI;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Stored object. To keep memory footprint small values of properties are
+ * kept in array of slots, slot of each property id is taken from table
+ * shared by all entries. Values of properties what are usually the same for
+ * many objects (type ids, user ids, booleans, etc) are shared between
+ * entries. ACL and policies are immutable and replaced on each change, empty
+ * ones are shared.
+ *
  * @author <a href="mailto:andrey00x@gmail.com">Andrey Parfonov</a>
  * @version $Id$
  */
 final class Entry
 {
+   /** Slots of properties by property id. */
+   private static final ConcurrentMap<String, Integer> SLOTS = new ConcurrentHashMap<String, Integer>();
+
+   /** Property ids by slot. */
+   private static volatile String[] slotIds = new String[0];
+
+   private static final Value[] NO_VALUES = new Value[0];
+
+   /** Properties which single string values are shared between entries. */
+   private static final Set<String> SHARED_STRING_PROPERTIES =
+      new HashSet<String>(Arrays.asList(CmisConstants.OBJECT_TYPE_ID, CmisConstants.BASE_TYPE_ID,
+         CmisConstants.CREATED_BY, CmisConstants.LAST_MODIFIED_BY, CmisConstants.VERSION_SERIES_CHECKED_OUT_BY,
+         CmisConstants.CONTENT_STREAM_MIME_TYPE, CmisConstants.CHARSET, CmisConstants.VERSION_LABEL));
+
+   /**
+    * Max number of shared string values. New values are not shared when limit
+    * is reached.
+    */
+   private static final int MAX_SHARED_STRINGS = 10000;
+
+   private static final ConcurrentMap<String, StringValue> SHARED_STRINGS =
+      new ConcurrentHashMap<String, StringValue>();
 
-   private Map<String, Value> values;
+   private static final BooleanValue TRUE = new BooleanValue(Boolean.TRUE);
 
-   private Map<String, Set<String>> permissions;
+   private static final BooleanValue FALSE = new BooleanValue(Boolean.FALSE);
 
-   private Set<String> policies;
+   /**
+    * @param id property id
+    * @return slot of property, new slot is allocated if property has not it
+    *         yet
+    */
+   private static int slot(String id)
+   {
+      Integer slot = SLOTS.get(id);
+      if (slot == null)
+      {
+         synchronized (SLOTS)
+         {
+            slot = SLOTS.get(id);
+            if (slot == null)
+            {
+               String[] ids = slotIds;
+               String[] copy = new String[ids.length + 1];
+               System.arraycopy(ids, 0, copy, 0, ids.length);
+               copy[ids.length] = id;
+               // publish id before slot, see getValues()
+               slotIds = copy;
+               slot = ids.length;
+               SLOTS.put(id, slot);
+            }
+         }
+      }
+      return slot;
+   }
+
+   /**
+    * @param id property id
+    * @param value value
+    * @return shared instance of value or value itself if it is not shared
+    */
+   private static Value share(String id, Value value)
+   {
+      if (value == null)
+      {
+         return null;
+      }
+      if (value.isBoolean())
+      {
+         Boolean[] b = value.getBooleans();
+         if (b.length == 1 && b[0] != null)
+         {
+            return b[0] ? TRUE : FALSE;
+         }
+      }
+      else if (value.isString() && SHARED_STRING_PROPERTIES.contains(id))
+      {
+         String[] strs = value.getStrings();
+         if (strs.length == 1 && strs[0] != null)
+         {
+            StringValue shared = SHARED_STRINGS.get(strs[0]);
+            if (shared != null)
+            {
+               return shared;
+            }
+            if (SHARED_STRINGS.size() < MAX_SHARED_STRINGS)
+            {
+               shared = SHARED_STRINGS.putIfAbsent(strs[0], (StringValue)value);
+               return shared != null ? shared : value;
+            }
+         }
+      }
+      return value;
+   }
+
+   private volatile Value[] values = NO_VALUES;
+
+   private static final AtomicLong ACL_VERSIONS = new AtomicLong();
+
+   private volatile Map<String, Set<String>> permissions = Collections.emptyMap();
+
+   /** Version of permissions, 0 for empty permissions. */
+   private volatile long aclVersion;
+
+   private volatile Set<String> policies = Collections.emptySet();
+
+   /** Storage what keeps entry, set when entry is stored. */
+   private volatile StorageImpl storage;
 
    public Entry()
    {
@@ -55,19 +172,27 @@ final class Entry
 
    public Entry(Map<String, Value> values, Set<String> policies, Map<String, Set<String>> permissions)
    {
-      this.values = values != null ? new ConcurrentHashMap<String, Value>(values) : null;
-      this.policies = policies != null ? new CopyOnWriteArraySet<String>(policies) : null;
-      this.permissions = permissions != null ? new ConcurrentHashMap<String, Set<String>>(permissions) : null;
+      setValues(values);
+      if (policies != null && policies.size() > 0)
+      {
+         this.policies = Collections.unmodifiableSet(new LinkedHashSet<String>(policies));
+      }
+      if (permissions != null)
+      {
+         setPermissions(permissions);
+      }
    }
 
-   public void addPolicy(PolicyData policy)
+   public synchronized void addPolicy(PolicyData policy)
    {
-      getPolicies().add(policy.getObjectId());
+      Set<String> copy = new LinkedHashSet<String>(policies);
+      copy.add(policy.getObjectId());
+      policies = Collections.unmodifiableSet(copy);
    }
 
    public BaseType getBaseTypeId()
    {
-      Value value = getValues().get(CmisConstants.BASE_TYPE_ID);
+      Value value = getValue(CmisConstants.BASE_TYPE_ID);
       if (value != null)
       {
          String[] strs = value.getStrings();
@@ -78,7 +203,7 @@ final class Entry
 
    public String getId()
    {
-      Value value = getValues().get(CmisConstants.OBJECT_ID);
+      Value value = getValue(CmisConstants.OBJECT_ID);
       if (value != null)
       {
          String[] strs = value.getStrings();
@@ -87,27 +212,36 @@ final class Entry
       return null;
    }
 
-   public Map<String, Set<String>> getPermissions()
+   public String getName()
    {
-      if (permissions == null)
+      Value value = getValue(CmisConstants.NAME);
+      if (value != null)
       {
-         permissions = new ConcurrentHashMap<String, Set<String>>();
+         String[] strs = value.getStrings();
+         return strs.length > 0 ? strs[0] : null;
       }
+      return null;
+   }
+
+   /**
+    * @return permissions by principal, map is read-only
+    */
+   public Map<String, Set<String>> getPermissions()
+   {
       return permissions;
    }
 
+   /**
+    * @return ids of applied policies, collection is read-only
+    */
    public Collection<String> getPolicies()
    {
-      if (policies == null)
-      {
-         policies = new CopyOnWriteArraySet<String>();
-      }
       return policies;
    }
 
    public String getTypeId()
    {
-      Value value = getValues().get(CmisConstants.OBJECT_TYPE_ID);
+      Value value = getValue(CmisConstants.OBJECT_TYPE_ID);
       if (value != null)
       {
          String[] strs = value.getStrings();
@@ -118,28 +252,89 @@ final class Entry
 
    public Value getValue(String id)
    {
-      return getValues().get(id);
+      Integer slot = SLOTS.get(id);
+      if (slot == null)
+      {
+         return null;
+      }
+      Value[] vs = values;
+      return slot < vs.length ? vs[slot] : null;
    }
 
+   /**
+    * @return copy of all values by property id, map is read-only
+    */
    public Map<String, Value> getValues()
    {
-      if (values == null)
+      Value[] vs = values;
+      String[] ids = slotIds;
+      Map<String, Value> copy = new HashMap<String, Value>();
+      for (int i = 0; i < vs.length; i++)
       {
-         values = new ConcurrentHashMap<String, Value>();
+         if (vs[i] != null)
+         {
+            copy.put(ids[i], vs[i]);
+         }
       }
-      return values;
+      return Collections.unmodifiableMap(copy);
    }
 
-   public void removePolicy(PolicyData policy)
+   public synchronized void removePolicy(PolicyData policy)
    {
-      getPolicies().remove(policy.getObjectId());
+      if (policies.contains(policy.getObjectId()))
+      {
+         Set<String> copy = new LinkedHashSet<String>(policies);
+         copy.remove(policy.getObjectId());
+         policies = copy.isEmpty() ? Collections.<String> emptySet() : Collections.unmodifiableSet(copy);
+      }
    }
 
+   /**
+    * Replace all permissions.
+    *
+    * @param permissions permissions by principal
+    */
    public void setPermissions(Map<String, Set<String>> permissions)
    {
-      Map<String, Set<String>> ps = getPermissions();
-      ps.clear();
-      ps.putAll(permissions);
+      if (permissions.isEmpty())
+      {
+         this.permissions = Collections.emptyMap();
+         this.aclVersion = 0;
+         return;
+      }
+      Map<String, Set<String>> copy = new HashMap<String, Set<String>>(permissions.size() * 4 / 3 + 1);
+      for (Map.Entry<String, Set<String>> e : permissions.entrySet())
+      {
+         copy.put(e.getKey(), Collections.unmodifiableSet(new HashSet<String>(e.getValue())));
+      }
+      this.permissions = Collections.unmodifiableMap(copy);
+      // version is changed after permissions, see PermissionService
+      this.aclVersion = ACL_VERSIONS.incrementAndGet();
+   }
+
+   /**
+    * @return version of permissions, changed each time when permissions are
+    *         changed and unique for all entries
+    */
+   long getACLVersion()
+   {
+      return aclVersion;
+   }
+
+   /**
+    * Add permissions from ACL to current permissions.
+    *
+    * @param acl ACL
+    */
+   public synchronized void addPermissions(List<AccessControlEntry> acl)
+   {
+      Map<String, Set<String>> ps = new HashMap<String, Set<String>>();
+      for (Map.Entry<String, Set<String>> e : permissions.entrySet())
+      {
+         ps.put(e.getKey(), new HashSet<String>(e.getValue()));
+      }
+      CmisUtils.addAclToPermissionMap(ps, acl);
+      setPermissions(ps);
    }
 
    @SuppressWarnings("unchecked")
@@ -180,17 +375,76 @@ final class Entry
 
    public void setValue(String id, Value value)
    {
-      Map<String, Value> vs = getValues();
-      if (value == null)
+      value = share(id, value);
+      Value old;
+      synchronized (this)
       {
-         vs.remove(id);
+         Value[] vs = values;
+         int slot;
+         if (value != null)
+         {
+            slot = slot(id);
+         }
+         else
+         {
+            Integer existing = SLOTS.get(id);
+            slot = existing != null ? existing : vs.length;
+         }
+         if (slot >= vs.length)
+         {
+            if (value == null)
+            {
+               return;
+            }
+            Value[] copy = new Value[slot + 1];
+            System.arraycopy(vs, 0, copy, 0, vs.length);
+            vs = copy;
+         }
+         old = vs[slot];
+         vs[slot] = value;
+         values = vs;
       }
-      else
+      StorageImpl s = storage;
+      if (s != null && old != value)
       {
-         vs.put(id, value);
+         s.entryChanged(this, id, old, value);
       }
    }
 
+   /**
+    * Replace value of property only if it is still the expected one.
+    *
+    * @param id property id
+    * @param expected expected current value, not null
+    * @param value new value
+    * @return true if value is replaced
+    */
+   boolean replaceValue(String id, Value expected, Value value)
+   {
+      synchronized (this)
+      {
+         Integer slot = SLOTS.get(id);
+         Value[] vs = values;
+         if (slot == null || slot >= vs.length || vs[slot] != expected)
+         {
+            return false;
+         }
+         vs[slot] = value;
+         values = vs;
+      }
+      StorageImpl s = storage;
+      if (s != null && expected != value)
+      {
+         s.entryChanged(this, id, expected, value);
+      }
+      return true;
+   }
+
+   void setStorage(StorageImpl storage)
+   {
+      this.storage = storage;
+   }
+
    public void setValues(Map<String, Value> values)
    {
       if (values != null)
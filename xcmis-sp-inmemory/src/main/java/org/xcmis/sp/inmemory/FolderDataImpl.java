@@ -19,30 +19,24 @@
 
 package org.xcmis.sp.inmemory;
 
-import org.xcmis.spi.BaseItemsIterator;
 import org.xcmis.spi.CmisConstants;
 import org.xcmis.spi.CmisRuntimeException;
 import org.xcmis.spi.ConstraintException;
 import org.xcmis.spi.ContentStream;
-import org.xcmis.spi.DocumentData;
 import org.xcmis.spi.FolderData;
 import org.xcmis.spi.ItemsIterator;
 import org.xcmis.spi.ObjectData;
-import org.xcmis.spi.ObjectNotFoundException;
 import org.xcmis.spi.RelationshipData;
 import org.xcmis.spi.StorageException;
 import org.xcmis.spi.UpdateConflictException;
 import org.xcmis.spi.VersioningException;
-import org.xcmis.spi.model.BaseType;
 import org.xcmis.spi.model.RelationshipDirection;
 import org.xcmis.spi.model.TypeDefinition;
-import org.xcmis.spi.utils.Logger;
+import org.xcmis.spi.utils.CmisUtils;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 
 /**
  * @author <a href="mailto:andrew00x@gmail.com">Andrey Parfonov</a>
@@ -52,8 +46,6 @@ import java.util.Set;
 class FolderDataImpl extends BaseObjectData implements FolderData
 {
 
-   private static final Logger LOG = Logger.getLogger(FolderDataImpl.class);
-
    public FolderDataImpl(Entry entry, TypeDefinition type, StorageImpl storage)
    {
       super(entry, type, storage);
@@ -64,9 +56,15 @@ class FolderDataImpl extends BaseObjectData implements FolderData
     */
    public void addObject(ObjectData object) throws ConstraintException
    {
+      if (!storage.addChildName(getObjectId(), object.getName(), object.getObjectId()))
+      {
+         throw new ConstraintException("Object with name " + object.getName() + " already exists in folder.");
+      }
       storage.children.get(getObjectId()).add(object.getObjectId());
       storage.parents.get(object.getObjectId()).add(getObjectId());
       storage.unfiled.remove(object.getObjectId());
+      storage.checkedOut.filed(storage.entries.get(object.getObjectId()), getObjectId());
+      storage.objectChanged(object.getObjectId());
       storage.indexListener.updated(object);
    }
 
@@ -75,29 +73,13 @@ class FolderDataImpl extends BaseObjectData implements FolderData
     */
    public ItemsIterator<ObjectData> getChildren(String orderBy)
    {
-
-      Set<String> childrenIds = storage.children.get(getObjectId());
-      List<ObjectData> children = new ArrayList<ObjectData>(childrenIds.size());
-      for (String ch : childrenIds)
+      ChildIndex index = storage.childIndexes.get(getObjectId());
+      if (index == null)
       {
-         ObjectData object = null;
-         try
-         {
-            object = storage.getObjectById(ch);
-         }
-         catch (ObjectNotFoundException e)
-         {
-            LOG.warn("Object " + ch + " not found in storage.");
-            continue;
-         }
-         if (object.getBaseType() == BaseType.DOCUMENT && !((DocumentData)object).isLatestVersion())
-         {
-            continue;
-         }
-         children.add(object);
+         // folder was removed
+         return CmisUtils.emptyItemsIterator();
       }
-
-      return new BaseItemsIterator<ObjectData>(children);
+      return new ChildIndexIterator<ObjectData>(storage, index, orderBy);
    }
 
    /**
@@ -153,11 +135,14 @@ class FolderDataImpl extends BaseObjectData implements FolderData
    public void removeObject(ObjectData object)
    {
       storage.children.get(getObjectId()).remove(object.getObjectId());
+      storage.removeChildName(getObjectId(), object.getName(), object.getObjectId());
       storage.parents.get(object.getObjectId()).remove(getObjectId());
+      storage.checkedOut.unfiled(object.getObjectId(), getObjectId());
       if (storage.parents.get(object.getObjectId()).size() == 0)
       {
          storage.unfiled.add(object.getObjectId());
       }
+      storage.objectChanged(object.getObjectId());
       storage.indexListener.updated(object);
    }
 
@@ -218,13 +203,16 @@ class FolderDataImpl extends BaseObjectData implements FolderData
       }
 
       String objectId = getObjectId();
-      storage.entries.remove(objectId);
+      storage.removeEntry(objectId);
+      String name = getName();
       for (String parent : storage.parents.get(objectId))
       {
          storage.children.get(parent).remove(objectId);
+         storage.removeChildName(parent, name, objectId);
       }
       storage.parents.remove(objectId);
       storage.children.remove(objectId);
+      storage.removeFolderIndexes(objectId);
    }
 
 }
@@ -0,0 +1,639 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import org.xcmis.spi.utils.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Blob store what keeps small content in heap and spills large content to
+ * append-only segment files. Spilled content is mapped in memory in read-only
+ * mode, so it is not counted in heap and read without copying. Few segments
+ * may be written at the same time, so concurrent uploads don't wait for each
+ * other. Space of removed content is reclaimed by {@link #compact(Collection)}
+ * what moves content still in use out of sparse segments.
+ *
+ * @version $Id$
+ */
+public class MappedBlobStore implements BlobStore
+{
+   /** Default max size of content kept in heap. */
+   public static final int DEFAULT_MAX_INLINE_SIZE = 64 * 1024;
+
+   /** Default size of segment file after which new segment is started. */
+   public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+   private static final Logger LOG = Logger.getLogger(MappedBlobStore.class);
+
+   private static final int BUFFER_SIZE = 8 * 1024;
+
+   private static final Blob EMPTY = new InlineBlob(new byte[0]);
+
+   private static final String SEGMENT_PREFIX = "segment-";
+
+   private static final String SEGMENT_SUFFIX = ".blob";
+
+   private final File directory;
+
+   private final int maxInlineSize;
+
+   private final long segmentSize;
+
+   /** Segments what are not written at the moment and may be appended. */
+   private final Queue<Segment> writable = new ConcurrentLinkedQueue<Segment>();
+
+   /** All opened segments. */
+   private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<Segment>();
+
+   private final AtomicInteger segmentCounter = new AtomicInteger();
+
+   /** Names of segments retired by compaction. */
+   private final Set<String> retired = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+   /** Retired segments what are not deleted yet. */
+   private final Queue<File> retiredFiles = new ConcurrentLinkedQueue<File>();
+
+   private volatile File segmentDirectory;
+
+   private volatile boolean temporary;
+
+   /**
+    * Create store with default settings what spills content into temporary
+    * directory.
+    */
+   public MappedBlobStore()
+   {
+      this(null, DEFAULT_MAX_INLINE_SIZE, DEFAULT_SEGMENT_SIZE);
+   }
+
+   /**
+    * @param directory directory for segment files, if null then temporary
+    *        directory is created at first spill and removed at exit
+    * @param maxInlineSize max size of content kept in heap
+    * @param segmentSize size of segment file after which new segment is started
+    */
+   public MappedBlobStore(File directory, int maxInlineSize, long segmentSize)
+   {
+      if (maxInlineSize < 0)
+      {
+         throw new IllegalArgumentException("Max inline size may not be negative.");
+      }
+      if (segmentSize <= 0)
+      {
+         throw new IllegalArgumentException("Segment size must be positive.");
+      }
+      this.directory = directory;
+      this.maxInlineSize = maxInlineSize;
+      this.segmentSize = segmentSize;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public Blob create(InputStream stream) throws IOException
+   {
+      if (stream == null)
+      {
+         return EMPTY;
+      }
+      try
+      {
+         byte[] buf = new byte[Math.min(BUFFER_SIZE, maxInlineSize + 1)];
+         int length = 0;
+         int r;
+         while ((r = stream.read(buf, length, buf.length - length)) != -1)
+         {
+            length += r;
+            if (length == buf.length)
+            {
+               if (length > maxInlineSize)
+               {
+                  return spill(buf, length, stream);
+               }
+               buf = Arrays.copyOf(buf, Math.min(buf.length * 2, maxInlineSize + 1));
+            }
+         }
+         return length == 0 ? EMPTY : new InlineBlob(length == buf.length ? buf : Arrays.copyOf(buf, length));
+      }
+      finally
+      {
+         stream.close();
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void close()
+   {
+      writable.clear();
+      for (Segment segment : segments)
+      {
+         segment.close();
+         if (temporary)
+         {
+            segment.file.delete();
+         }
+      }
+      segments.clear();
+      if (temporary && segmentDirectory != null)
+      {
+         segmentDirectory.delete();
+      }
+   }
+
+   /**
+    * Map content previously stored in segment file of this store. Store must
+    * be created with not null directory.
+    *
+    * @param segment name of segment file
+    * @param offset offset of content in segment
+    * @param length length of content
+    * @return content
+    * @throws IOException if segment can't be read
+    */
+   public Blob open(String segment, long offset, long length) throws IOException
+   {
+      if (directory == null)
+      {
+         throw new IOException("Content of temporary store can't be reopened.");
+      }
+      RandomAccessFile raf = new RandomAccessFile(new File(directory, segment), "r");
+      try
+      {
+         return new MappedBlob(segment, offset, raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length));
+      }
+      finally
+      {
+         raf.close();
+      }
+   }
+
+   /**
+    * Move content what is still used out of segments where most of space is
+    * taken by removed content. Such segments are retired: they are not
+    * appended any more and deleted by {@link #deleteRetired()}. Segments what
+    * are written at the moment are skipped. Callers must replace moved content
+    * by its copy and must not refer to retired segments, see
+    * {@link #isRetired(Blob)}.
+    *
+    * @param live all content used by stored objects
+    * @return copy of content by moved content
+    * @throws IOException if content can't be copied
+    */
+   public Map<Blob, Blob> compact(Collection<Blob> live) throws IOException
+   {
+      Map<Blob, Blob> moved = new IdentityHashMap<Blob, Blob>();
+      File dir = segmentDirectory != null ? segmentDirectory : directory;
+      File[] files = dir != null ? dir.listFiles() : null;
+      if (files == null)
+      {
+         return moved;
+      }
+      Map<String, Long> used = new HashMap<String, Long>();
+      for (Blob blob : live)
+      {
+         if (blob instanceof MappedBlob)
+         {
+            String name = ((MappedBlob)blob).getSegment();
+            Long length = used.get(name);
+            used.put(name, (length != null ? length : 0) + blob.length());
+         }
+      }
+      // segments opened after listing of directory are not compacted
+      Map<String, Segment> opened = new HashMap<String, Segment>();
+      for (Segment segment : segments)
+      {
+         opened.put(segment.file.getName(), segment);
+      }
+      Set<String> sparse = new HashSet<String>();
+      for (File file : files)
+      {
+         String name = file.getName();
+         if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX) || retired.contains(name))
+         {
+            continue;
+         }
+         Long length = used.get(name);
+         if ((length != null ? length : 0) * 2 >= file.length())
+         {
+            continue;
+         }
+         // segment of previous run is never appended, other must be not written at the moment
+         Segment segment = opened.get(name);
+         if (segment == null || segment.sealed || writable.remove(segment))
+         {
+            sparse.add(name);
+            retiredFiles.add(file);
+         }
+      }
+      retired.addAll(sparse);
+      for (Blob blob : live)
+      {
+         if (blob instanceof MappedBlob && sparse.contains(((MappedBlob)blob).getSegment()))
+         {
+            moved.put(blob, create(blob.getStream()));
+         }
+      }
+      if (LOG.isDebugEnabled() && !sparse.isEmpty())
+      {
+         LOG.debug("Retire content segments " + sparse + ", moved " + moved.size() + " blobs.");
+      }
+      return moved;
+   }
+
+   /**
+    * Delete segments retired by {@link #compact(Collection)}. Must be called
+    * when nothing refers to content of retired segments any more.
+    */
+   public void deleteRetired()
+   {
+      File file;
+      while ((file = retiredFiles.poll()) != null)
+      {
+         for (Segment segment : segments)
+         {
+            if (segment.file.equals(file))
+            {
+               segments.remove(segment);
+               segment.close();
+            }
+         }
+         // content mapped from file stays readable until it is unmapped
+         if (!file.delete())
+         {
+            LOG.warn("Unable delete content segment " + file);
+         }
+      }
+   }
+
+   /**
+    * @param blob content
+    * @return true if content is kept in segment retired by compaction and
+    *         must not be referred by its location
+    */
+   public boolean isRetired(Blob blob)
+   {
+      return blob instanceof MappedBlob && retired.contains(((MappedBlob)blob).getSegment());
+   }
+
+   /**
+    * Force all written content to disk.
+    *
+    * @throws IOException if any i/o error occurs
+    */
+   public void force() throws IOException
+   {
+      for (Segment segment : segments)
+      {
+         segment.channel.force(false);
+      }
+   }
+
+   /**
+    * @return true if content is kept in directory what is not removed at exit
+    */
+   public boolean isPersistent()
+   {
+      return directory != null;
+   }
+
+   /**
+    * @return number of opened segment files
+    */
+   public int getSegmentCount()
+   {
+      return segments.size();
+   }
+
+   /**
+    * @return max size of content kept in heap
+    */
+   public int getMaxInlineSize()
+   {
+      return maxInlineSize;
+   }
+
+   /**
+    * Write content to the end of segment and map written region.
+    */
+   private Blob spill(byte[] head, int headLength, InputStream stream) throws IOException
+   {
+      Segment segment = writable.poll();
+      if (segment == null)
+      {
+         segment = openSegment();
+      }
+      FileChannel channel = segment.channel;
+      long start = channel.size();
+      boolean release = true;
+      try
+      {
+         channel.position(start);
+         write(channel, ByteBuffer.wrap(head, 0, headLength));
+         byte[] buf = new byte[BUFFER_SIZE];
+         ByteBuffer wrapper = ByteBuffer.wrap(buf);
+         int r;
+         while ((r = stream.read(buf)) != -1)
+         {
+            wrapper.clear();
+            wrapper.limit(r);
+            write(channel, wrapper);
+         }
+         long end = channel.position();
+         if (end - start > Integer.MAX_VALUE)
+         {
+            throw new IOException("Content larger than " + Integer.MAX_VALUE + " bytes is not supported.");
+         }
+         ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+         // segment is full, keep it opened for mapped content but don't append any more
+         release = end < segmentSize;
+         segment.sealed = !release;
+         return new MappedBlob(segment.file.getName(), start, mapped);
+      }
+      catch (IOException e)
+      {
+         try
+         {
+            channel.truncate(start);
+         }
+         catch (IOException te)
+         {
+            release = false;
+            LOG.error("Unable truncate segment " + segment.file + ". " + te.getMessage());
+         }
+         throw e;
+      }
+      finally
+      {
+         if (release)
+         {
+            writable.offer(segment);
+         }
+      }
+   }
+
+   private Segment openSegment() throws IOException
+   {
+      File dir = getSegmentDirectory();
+      File file;
+      do
+      {
+         file = new File(dir, SEGMENT_PREFIX + segmentCounter.incrementAndGet() + SEGMENT_SUFFIX);
+      }
+      while (file.exists());
+      if (temporary)
+      {
+         file.deleteOnExit();
+      }
+      Segment segment = new Segment(file);
+      segments.add(segment);
+      if (LOG.isDebugEnabled())
+      {
+         LOG.debug("Open content segment " + file);
+      }
+      return segment;
+   }
+
+   private synchronized File getSegmentDirectory() throws IOException
+   {
+      if (segmentDirectory == null)
+      {
+         File dir = directory;
+         if (dir == null)
+         {
+            dir = File.createTempFile("xcmis-content", "");
+            if (!dir.delete())
+            {
+               throw new IOException("Unable create temporary directory " + dir);
+            }
+            temporary = true;
+         }
+         if (!dir.exists() && !dir.mkdirs())
+         {
+            throw new IOException("Unable create directory " + dir);
+         }
+         if (temporary)
+         {
+            dir.deleteOnExit();
+         }
+         segmentDirectory = dir;
+      }
+      return segmentDirectory;
+   }
+
+   private static void write(FileChannel channel, ByteBuffer buffer) throws IOException
+   {
+      while (buffer.hasRemaining())
+      {
+         channel.write(buffer);
+      }
+   }
+
+   /**
+    * Append-only segment file.
+    */
+   private static final class Segment
+   {
+      final File file;
+
+      final RandomAccessFile raf;
+
+      final FileChannel channel;
+
+      /** Segment is full and is never appended. */
+      volatile boolean sealed;
+
+      Segment(File file) throws IOException
+      {
+         this.file = file;
+         this.raf = new RandomAccessFile(file, "rw");
+         this.channel = raf.getChannel();
+      }
+
+      void close()
+      {
+         try
+         {
+            raf.close();
+         }
+         catch (IOException e)
+         {
+            LOG.error("Unable close segment " + file + ". " + e.getMessage());
+         }
+      }
+   }
+
+   /**
+    * Content kept in heap.
+    */
+   static final class InlineBlob implements Blob
+   {
+      private final byte[] bytes;
+
+      InlineBlob(byte[] bytes)
+      {
+         this.bytes = bytes;
+      }
+
+      public long length()
+      {
+         return bytes.length;
+      }
+
+      public InputStream getStream()
+      {
+         return new ByteArrayInputStream(bytes);
+      }
+   }
+
+   /**
+    * Content mapped from segment file.
+    */
+   static final class MappedBlob implements Blob
+   {
+      private final String segment;
+
+      private final long offset;
+
+      private final ByteBuffer buffer;
+
+      MappedBlob(String segment, long offset, ByteBuffer buffer)
+      {
+         this.segment = segment;
+         this.offset = offset;
+         this.buffer = buffer;
+      }
+
+      /**
+       * @return name of segment file
+       */
+      String getSegment()
+      {
+         return segment;
+      }
+
+      /**
+       * @return offset of content in segment
+       */
+      long getOffset()
+      {
+         return offset;
+      }
+
+      public long length()
+      {
+         return buffer.capacity();
+      }
+
+      public InputStream getStream()
+      {
+         return new ByteBufferInputStream(buffer.duplicate());
+      }
+   }
+
+   /**
+    * Stream over byte buffer.
+    */
+   private static final class ByteBufferInputStream extends InputStream
+   {
+      private final ByteBuffer buffer;
+
+      private int mark;
+
+      ByteBufferInputStream(ByteBuffer buffer)
+      {
+         this.buffer = buffer;
+      }
+
+      @Override
+      public int read()
+      {
+         return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len)
+      {
+         if (len == 0)
+         {
+            return 0;
+         }
+         if (!buffer.hasRemaining())
+         {
+            return -1;
+         }
+         int n = Math.min(len, buffer.remaining());
+         buffer.get(b, off, n);
+         return n;
+      }
+
+      @Override
+      public long skip(long n)
+      {
+         int skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+         buffer.position(buffer.position() + skipped);
+         return skipped;
+      }
+
+      @Override
+      public int available()
+      {
+         return buffer.remaining();
+      }
+
+      @Override
+      public boolean markSupported()
+      {
+         return true;
+      }
+
+      @Override
+      public synchronized void mark(int readlimit)
+      {
+         mark = buffer.position();
+      }
+
+      @Override
+      public synchronized void reset()
+      {
+         buffer.position(mark);
+      }
+   }
+}
@@ -40,6 +40,30 @@ public class StorageConfiguration
    /** Max number of objects allowed to be added in storage. */
    private long maxItemsNum;
 
+   /** Max number of events kept in change log. */
+   private long maxChangeLogSize = -1;
+
+   /** Directory for content spilled to disk. */
+   private String contentDirectory;
+
+   /** Max size of content kept in heap. */
+   private int maxInlineContentSize = MappedBlobStore.DEFAULT_MAX_INLINE_SIZE;
+
+   /** Store of documents content. */
+   private BlobStore blobStore;
+
+   /** Directory for snapshots and journal, null if storage is kept in memory only. */
+   private String persistenceDirectory;
+
+   /** Interval between writes of journal to disk in milliseconds. */
+   private long flushInterval = StoragePersistence.DEFAULT_FLUSH_INTERVAL;
+
+   /** Write each change in journal before it is acknowledged. */
+   private boolean syncJournal = true;
+
+   /** Size of journal in bytes after which new snapshot is taken. */
+   private long maxJournalSize = StoragePersistence.DEFAULT_MAX_JOURNAL_SIZE;
+
    StorageConfiguration()
    {
    }
@@ -140,4 +164,146 @@ public class StorageConfiguration
       this.description = description;
    }
 
+   /**
+    * @return directory for content spilled to disk, null if temporary directory
+    *         is used
+    */
+   public String getContentDirectory()
+   {
+      return contentDirectory;
+   }
+
+   /**
+    * @param contentDirectory directory for content spilled to disk
+    */
+   public void setContentDirectory(String contentDirectory)
+   {
+      this.contentDirectory = contentDirectory;
+   }
+
+   /**
+    * @return max size of content kept in heap, larger content is spilled to
+    *         disk
+    */
+   public int getMaxInlineContentSize()
+   {
+      return maxInlineContentSize;
+   }
+
+   /**
+    * @param maxInlineContentSize max size of content kept in heap
+    */
+   public void setMaxInlineContentSize(int maxInlineContentSize)
+   {
+      this.maxInlineContentSize = maxInlineContentSize;
+   }
+
+   /**
+    * @return store of documents content, null if default store should be used
+    */
+   public BlobStore getBlobStore()
+   {
+      return blobStore;
+   }
+
+   /**
+    * @param blobStore store of documents content
+    */
+   public void setBlobStore(BlobStore blobStore)
+   {
+      this.blobStore = blobStore;
+   }
+
+   /**
+    * @return directory for snapshots and journal of storage, null if storage
+    *         is kept in memory only
+    */
+   public String getPersistenceDirectory()
+   {
+      return persistenceDirectory;
+   }
+
+   /**
+    * @param persistenceDirectory directory for snapshots and journal of
+    *        storage, null if storage is kept in memory only
+    */
+   public void setPersistenceDirectory(String persistenceDirectory)
+   {
+      this.persistenceDirectory = persistenceDirectory;
+   }
+
+   /**
+    * @return interval between writes of journal to disk in milliseconds
+    */
+   public long getFlushInterval()
+   {
+      return flushInterval;
+   }
+
+   /**
+    * @param flushInterval interval between writes of journal to disk in
+    *        milliseconds, changes made in this interval may be lost at crash
+    *        if journal is not synchronous
+    */
+   public void setFlushInterval(long flushInterval)
+   {
+      this.flushInterval = flushInterval;
+   }
+
+   /**
+    * @return true if each change is written in journal and forced to disk
+    *         before it is acknowledged, false if journal is written at flush
+    *         interval
+    */
+   public boolean isSyncJournal()
+   {
+      return syncJournal;
+   }
+
+   /**
+    * @param syncJournal true if each change must be written in journal and
+    *        forced to disk before it is acknowledged, concurrent changes share
+    *        one write; false if journal is written at flush interval and
+    *        changes made in this interval may be lost at crash
+    */
+   public void setSyncJournal(boolean syncJournal)
+   {
+      this.syncJournal = syncJournal;
+   }
+
+   /**
+    * @return size of journal in bytes after which new snapshot is taken
+    */
+   public long getMaxJournalSize()
+   {
+      return maxJournalSize;
+   }
+
+   /**
+    * @param maxJournalSize size of journal in bytes after which new snapshot
+    *        is taken
+    */
+   public void setMaxJournalSize(long maxJournalSize)
+   {
+      this.maxJournalSize = maxJournalSize;
+   }
+
+   /**
+    * @return max number of events kept in change log, -1 if change log is not
+    *         truncated
+    */
+   public long getMaxChangeLogSize()
+   {
+      return maxChangeLogSize;
+   }
+
+   /**
+    * @param maxChangeLogSize max number of events kept in change log, -1 if
+    *        change log should not be truncated
+    */
+   public void setMaxChangeLogSize(long maxChangeLogSize)
+   {
+      this.maxChangeLogSize = maxChangeLogSize;
+   }
+
 }
@@ -23,13 +23,19 @@ import org.apache.tika.mime.MimeTypeException;
 import org.xcmis.search.InvalidQueryException;
 import org.xcmis.search.SearchService;
 import org.xcmis.search.SearchServiceException;
-import org.xcmis.search.Visitors;
 import org.xcmis.search.config.IndexConfiguration;
 import org.xcmis.search.config.SearchServiceConfiguration;
 import org.xcmis.search.model.column.Column;
+import org.xcmis.search.model.operand.PropertyValue;
+import org.xcmis.search.model.ordering.Order;
+import org.xcmis.search.model.ordering.Ordering;
+import org.xcmis.search.model.source.Join;
+import org.xcmis.search.model.source.Selector;
 import org.xcmis.search.model.source.SelectorName;
+import org.xcmis.search.model.source.Source;
 import org.xcmis.search.parser.CmisQueryParser;
 import org.xcmis.search.parser.QueryParser;
+import org.xcmis.search.query.QueryCache;
 import org.xcmis.search.query.QueryExecutionException;
 import org.xcmis.search.result.ScoredRow;
 import org.xcmis.search.value.ToStringNameConverter;
@@ -43,6 +49,7 @@ import org.xcmis.spi.CmisRuntimeException;
 import org.xcmis.spi.ConstraintException;
 import org.xcmis.spi.ContentStream;
 import org.xcmis.spi.DocumentData;
+import org.xcmis.spi.FetchHints;
 import org.xcmis.spi.FolderData;
 import org.xcmis.spi.InvalidArgumentException;
 import org.xcmis.spi.ItemsIterator;
@@ -53,6 +60,7 @@ import org.xcmis.spi.ObjectDataVisitor;
 import org.xcmis.spi.ObjectNotFoundException;
 import org.xcmis.spi.PermissionService;
 import org.xcmis.spi.PolicyData;
+import org.xcmis.spi.PropertyFilter;
 import org.xcmis.spi.QueryNameTypeManager;
 import org.xcmis.spi.RelationshipData;
 import org.xcmis.spi.RenditionManager;
@@ -91,13 +99,18 @@ import org.xcmis.spi.model.VersioningState;
 import org.xcmis.spi.model.Permission.BasicPermissions;
 import org.xcmis.spi.model.impl.StringProperty;
 import org.xcmis.spi.query.Query;
+import org.xcmis.spi.query.JoinResult;
 import org.xcmis.spi.query.Result;
 import org.xcmis.spi.query.Score;
 import org.xcmis.spi.utils.CmisUtils;
 import org.xcmis.spi.utils.Logger;
 import org.xcmis.spi.utils.MimeType;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.ArrayList;
@@ -105,19 +118,24 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * In-memory implementation of xCMIS storage. This is storage is limited in
@@ -145,6 +163,9 @@ public class StorageImpl implements Storage
 
    static final Set<String> EMPTY_PARENTS = Collections.emptySet();
 
+   /** Max number of cached parsed queries. */
+   static final int QUERY_CACHE_SIZE = 256;
+
    public static String generateId()
    {
       return UUID.randomUUID().toString();
@@ -156,6 +177,27 @@ public class StorageImpl implements Storage
 
    final Map<String, Set<String>> parents;
 
+   /**
+    * Ids of filed children by name by folder id. Only objects visible in
+    * folder (not PWC and not previous versions of documents) are indexed.
+    */
+   final Map<String, ConcurrentMap<String, String>> childNames;
+
+   /**
+    * Ordered indexes of children by folder id. Contains the same children as
+    * {@link #childNames}.
+    */
+   final Map<String, ChildIndex> childIndexes;
+
+   /**
+    * Ids of policies and relationships by name. Names of such objects are
+    * unique in repository.
+    */
+   final Map<BaseType, ConcurrentMap<String, String>> uniqueNames;
+
+   /** Number and size of stored objects, including all versions. */
+   final UsageStatistics usage;
+
    final Set<String> unfiled;
 
    final Map<String, Set<String>> relationships;
@@ -164,6 +206,15 @@ public class StorageImpl implements Storage
 
    final Map<String, String> workingCopies;
 
+   /**
+    * Guards {@link #versions} and {@link #workingCopies} of each version
+    * series.
+    */
+   final VersionSeriesLocks versionLocks;
+
+   /** Private working copies by folder and by user. */
+   final CheckedOutIndex checkedOut;
+
    final Map<String, TypeDefinition> types;
 
    final Map<String, Set<String>> typeChildren;
@@ -176,7 +227,25 @@ public class StorageImpl implements Storage
    /** Cmis query parser. */
    final QueryParser cmisQueryParser;
 
-   final List<ChangeEvent> changes;
+   /** Parsed queries by normalized statement. */
+   final QueryCache<String, org.xcmis.search.model.Query> parsedQueries;
+
+   /**
+    * Positions where paging of sorted query results stopped, by normalized
+    * statement and user. Next page of the same query is resumed from position
+    * instead of skipping all preceding rows.
+    */
+
+   /** Change log. */
+   final ChangeJournal changes;
+
+   /** Store of documents content. */
+   final BlobStore blobStore;
+
+   /** Persistence of storage state, null if storage is kept in memory only. */
+   final StoragePersistence persistence;
+
+   private final AtomicBoolean closed = new AtomicBoolean();
 
    RenditionManager renditionManager;
 
@@ -196,16 +265,38 @@ public class StorageImpl implements Storage
    protected StorageImpl(StorageConfiguration configuration)
    {
       this.configuration = configuration;
+      File persistenceDirectory =
+         configuration.getPersistenceDirectory() != null ? new File(configuration.getPersistenceDirectory()) : null;
+      File contentDirectory = null;
+      if (configuration.getContentDirectory() != null)
+      {
+         contentDirectory = new File(configuration.getContentDirectory());
+      }
+      else if (persistenceDirectory != null)
+      {
+         contentDirectory = new File(persistenceDirectory, "content");
+      }
+      this.blobStore =
+         configuration.getBlobStore() != null ? configuration.getBlobStore() : new MappedBlobStore(contentDirectory,
+            configuration.getMaxInlineContentSize(), MappedBlobStore.DEFAULT_SEGMENT_SIZE);
 
       this.entries = new ConcurrentHashMap<String, Entry>();
       this.children = new ConcurrentHashMap<String, Set<String>>();
       this.parents = new ConcurrentHashMap<String, Set<String>>();
+      this.childNames = new ConcurrentHashMap<String, ConcurrentMap<String, String>>();
+      this.childIndexes = new ConcurrentHashMap<String, ChildIndex>();
+      this.uniqueNames = new EnumMap<BaseType, ConcurrentMap<String, String>>(BaseType.class);
+      this.uniqueNames.put(BaseType.POLICY, new ConcurrentHashMap<String, String>());
+      this.uniqueNames.put(BaseType.RELATIONSHIP, new ConcurrentHashMap<String, String>());
+      this.usage = new UsageStatistics();
       this.versions = new ConcurrentHashMap<String, List<String>>();
       this.workingCopies = new ConcurrentHashMap<String, String>();
+      this.versionLocks = new VersionSeriesLocks(VersionSeriesLocks.DEFAULT_STRIPES);
+      this.checkedOut = new CheckedOutIndex();
       this.unfiled = new CopyOnWriteArraySet<String>();
       this.relationships = new ConcurrentHashMap<String, Set<String>>();
       this.types = new ConcurrentHashMap<String, TypeDefinition>();
-      this.changes = new CopyOnWriteArrayList<ChangeEvent>();
+      this.changes = new ChangeJournal(ChangeJournal.DEFAULT_SEGMENT_SIZE, configuration.getMaxChangeLogSize());
 
       PermissionMapping permissionMapping = new PermissionMapping();
       permissionMapping.put(PermissionMapping.CAN_GET_DESCENDENTS_FOLDER, //
@@ -290,7 +381,7 @@ public class StorageImpl implements Storage
       repositoryInfo =
          new RepositoryInfo(getId(), getId(), ROOT_FOLDER_ID, CmisConstants.SUPPORTED_VERSION,
             new RepositoryCapabilities(CapabilityACL.MANAGE, CapabilityChanges.ALL,
-               CapabilityContentStreamUpdatable.ANYTIME, CapabilityJoin.NONE, CapabilityQuery.BOTHCOMBINED,
+               CapabilityContentStreamUpdatable.ANYTIME, CapabilityJoin.INNERANDOUTER, CapabilityQuery.BOTHCOMBINED,
                CapabilityRendition.READ, false, true, true, true, false, true, true, false), new ACLCapability(
                permissionMapping, Collections.unmodifiableList(supportedPermissions),
                AccessControlPropagation.REPOSITORYDETERMINED, SupportedPermissions.BASIC), "anonymous", "any", Arrays
@@ -340,13 +431,64 @@ public class StorageImpl implements Storage
 
       Entry rootEntry = new Entry(root, null, pm);
 
-      entries.put(rootEntry.getId(), rootEntry);
+      addEntry(rootEntry);
       parents.put(ROOT_FOLDER_ID, EMPTY_PARENTS);
       children.put(ROOT_FOLDER_ID, new CopyOnWriteArraySet<String>());
+      addFolderIndexes(ROOT_FOLDER_ID);
+
+      if (persistenceDirectory != null)
+      {
+         this.persistence = new StoragePersistence(this, persistenceDirectory, configuration);
+         try
+         {
+            persistence.load();
+         }
+         catch (IOException e)
+         {
+            throw new CmisRuntimeException("Unable load storage from " + persistenceDirectory + ". " + e.getMessage(),
+               e);
+         }
+      }
+      else
+      {
+         this.persistence = null;
+      }
 
       this.searchService = getInitializedSearchService();
-      this.indexListener = new IndexListener(searchService);
+      this.indexListener = new IndexListener(searchService, repositoryInfo);
       this.cmisQueryParser = new CmisQueryParser();
+      this.parsedQueries = new QueryCache<String, org.xcmis.search.model.Query>(QUERY_CACHE_SIZE);
+
+      if (persistence != null)
+      {
+         try
+         {
+            persistence.start();
+         }
+         catch (IOException e)
+         {
+            throw new CmisRuntimeException("Unable start storage persistence. " + e.getMessage(), e);
+         }
+      }
+   }
+
+   /**
+    * Write all changes to disk and release resources of persistent storage.
+    * Storage what is kept in memory only is not affected. Storage must not be
+    * used after closing. Repeated calls have no effect.
+    */
+   public void close()
+   {
+      if (persistence != null && closed.compareAndSet(false, true))
+      {
+         indexListener.stop();
+         searchService.stop();
+         persistence.close();
+         if (configuration.getBlobStore() == null)
+         {
+            blobStore.close();
+         }
+      }
    }
 
    /**
@@ -407,6 +549,7 @@ public class StorageImpl implements Storage
       Collection<PolicyData> policies, VersioningState versioningState) throws ConstraintException,
       NameConstraintViolationException, IOException, StorageException
    {
+      validateMaxItemsNumber();
       String name = null;
       Property<?> nameProperty = properties.get(CmisConstants.NAME);
       if (nameProperty != null && nameProperty.getValues().size() > 0)
@@ -422,16 +565,9 @@ public class StorageImpl implements Storage
          throw new NameConstraintViolationException("Name for new document must be provided.");
       }
 
-      if (parent != null)
+      if (parent != null && getChildIdByName(parent.getObjectId(), name) != null)
       {
-         for (ItemsIterator<ObjectData> iterator = parent.getChildren(null); iterator.hasNext();)
-         {
-            if (name.equals(iterator.next().getName()))
-            {
-               throw new NameConstraintViolationException("Object with name " + name
-                  + " already exists in parent folder.");
-            }
-         }
+         throw new NameConstraintViolationException("Object with name " + name + " already exists in parent folder.");
       }
 
       Entry docEntry = new Entry();
@@ -449,6 +585,8 @@ public class StorageImpl implements Storage
       Calendar cal = Calendar.getInstance();
       docEntry.setValue(CmisConstants.CREATION_DATE, new DateValue(cal));
       docEntry.setValue(CmisConstants.LAST_MODIFICATION_DATE, new DateValue(cal));
+      // renditions are cached by change token, so new document needs one before its first update
+      docEntry.setValue(CmisConstants.CHANGE_TOKEN, new StringValue(generateId()));
       docEntry.setValue(CmisConstants.IS_LATEST_VERSION, new BooleanValue(true));
       docEntry.setValue(CmisConstants.IS_MAJOR_VERSION, new BooleanValue(versioningState == VersioningState.MAJOR));
       docEntry.setValue(CmisConstants.IS_LATEST_MAJOR_VERSION, new BooleanValue(
@@ -462,7 +600,7 @@ public class StorageImpl implements Storage
 
       if (content != null)
       {
-         ByteArrayValue cv = ByteArrayValue.fromStream(content.getStream());
+         ContentValue cv = createContent(content);
          docEntry.setValue(PropertyDefinitions.CONTENT, cv);
          MimeType mimeType = content.getMediaType();
          docEntry.setValue(CmisConstants.CONTENT_STREAM_MIME_TYPE, new StringValue(mimeType.getBaseType()));
@@ -471,8 +609,7 @@ public class StorageImpl implements Storage
          {
             docEntry.setValue(CmisConstants.CHARSET, new StringValue(charset));
          }
-         docEntry.setValue(CmisConstants.CONTENT_STREAM_LENGTH, new IntegerValue(BigInteger
-            .valueOf(cv.getBytes().length)));
+         docEntry.setValue(CmisConstants.CONTENT_STREAM_LENGTH, new IntegerValue(BigInteger.valueOf(cv.length())));
          docEntry.setValue(CmisConstants.CONTENT_STREAM_ID, new StringValue(docId));
 
          Property<?> contentFileNameProperty = properties.get(CmisConstants.CONTENT_STREAM_FILE_NAME);
@@ -507,11 +644,16 @@ public class StorageImpl implements Storage
 
       if (acl != null && acl.size() > 0)
       {
-         CmisUtils.addAclToPermissionMap(docEntry.getPermissions(), acl);
+         docEntry.addPermissions(acl);
       }
 
       if (parent != null)
       {
+         if (!addChildName(parent.getObjectId(), name, docId))
+         {
+            throw new NameConstraintViolationException("Object with name " + name
+               + " already exists in parent folder.");
+         }
          children.get(parent.getObjectId()).add(docId);
          Set<String> set = new CopyOnWriteArraySet<String>();
          set.add(parent.getObjectId());
@@ -525,12 +667,17 @@ public class StorageImpl implements Storage
       List<String> set = new CopyOnWriteArrayList<String>();
       set.add(docId);
       versions.put(verSerId, set);
-      entries.put(docId, docEntry);
+      addEntry(docEntry);
 
       DocumentDataImpl document = new DocumentDataImpl(docEntry, typeDefinition, this);
+      objectChanged(document.getObjectId());
       indexListener.created(document);
+      if (content != null)
+      {
+         contentChanged(document);
+      }
 
-      changes.add(new ChangeEvent(generateId(), docId, ChangeType.CREATED, (Calendar)cal.clone()));
+      changes.add(docId, ChangeType.CREATED, (Calendar)cal.clone());
 
       return document;
    }
@@ -542,6 +689,7 @@ public class StorageImpl implements Storage
       Map<String, Property<?>> properties, List<AccessControlEntry> acl, Collection<PolicyData> policies)
       throws ConstraintException, NameConstraintViolationException, StorageException
    {
+      validateMaxItemsNumber();
       if (parent == null)
       {
          throw new ConstraintException("Parent folder must be provided.");
@@ -558,12 +706,9 @@ public class StorageImpl implements Storage
          throw new NameConstraintViolationException("Name for new folder must be provided.");
       }
 
-      for (ItemsIterator<ObjectData> iterator = parent.getChildren(null); iterator.hasNext();)
+      if (getChildIdByName(parent.getObjectId(), name) != null)
       {
-         if (name.equals(iterator.next().getName()))
-         {
-            throw new NameConstraintViolationException("Object with name " + name + " already exists in parent folder.");
-         }
+         throw new NameConstraintViolationException("Object with name " + name + " already exists in parent folder.");
       }
 
       Entry folderEntry = new Entry();
@@ -599,20 +744,26 @@ public class StorageImpl implements Storage
 
       if (acl != null && acl.size() > 0)
       {
-         CmisUtils.addAclToPermissionMap(folderEntry.getPermissions(), acl);
+         folderEntry.addPermissions(acl);
       }
 
+      if (!addChildName(parent.getObjectId(), name, folderId))
+      {
+         throw new NameConstraintViolationException("Object with name " + name + " already exists in parent folder.");
+      }
       children.get(parent.getObjectId()).add(folderId);
       Set<String> set = new CopyOnWriteArraySet<String>();
       set.add(parent.getObjectId());
       parents.put(folderId, set);
-      entries.put(folderId, folderEntry);
+      addEntry(folderEntry);
       children.put(folderId, new CopyOnWriteArraySet<String>());
+      addFolderIndexes(folderId);
 
       FolderDataImpl folder = new FolderDataImpl(folderEntry, typeDefinition, this);
+      objectChanged(folder.getObjectId());
       indexListener.created(folder);
 
-      changes.add(new ChangeEvent(generateId(), folderId, ChangeType.CREATED, (Calendar)cal.clone()));
+      changes.add(folderId, ChangeType.CREATED, (Calendar)cal.clone());
 
       return folder;
    }
@@ -624,6 +775,7 @@ public class StorageImpl implements Storage
       Map<String, Property<?>> properties, List<AccessControlEntry> acl, Collection<PolicyData> policies)
       throws ConstraintException, NameConstraintViolationException, StorageException
    {
+      validateMaxItemsNumber();
       String name = null;
       Property<?> nameProperty = properties.get(CmisConstants.NAME);
       if (nameProperty != null && nameProperty.getValues().size() > 0)
@@ -635,25 +787,9 @@ public class StorageImpl implements Storage
          throw new NameConstraintViolationException("Name for new policy must be provided.");
       }
 
-      for (Entry next : entries.values())
+      if (uniqueNames.get(BaseType.POLICY).containsKey(name))
       {
-         String typeId = next.getTypeId();
-         try
-         {
-            TypeDefinition type = getTypeDefinition(typeId, false);
-            if (type.getBaseId() == BaseType.POLICY)
-            {
-               String name1 = next.getValue(CmisConstants.NAME).getStrings()[0];
-               if (name.equals(name1))
-               {
-                  throw new NameConstraintViolationException("Policy with name " + name + " already exists.");
-               }
-            }
-         }
-         catch (TypeNotFoundException e)
-         {
-            // Should never thrown thins we have objects of this type.
-         }
+         throw new NameConstraintViolationException("Policy with name " + name + " already exists.");
       }
 
       Entry policyEntry = new Entry();
@@ -678,6 +814,8 @@ public class StorageImpl implements Storage
             policyEntry.setProperty(property);
          }
       }
+      // unique name is released by name of entry when it is removed
+      policyEntry.setValue(CmisConstants.NAME, new StringValue(name));
 
       if (policies != null && policies.size() > 0)
       {
@@ -689,16 +827,21 @@ public class StorageImpl implements Storage
 
       if (acl != null && acl.size() > 0)
       {
-         CmisUtils.addAclToPermissionMap(policyEntry.getPermissions(), acl);
+         policyEntry.addPermissions(acl);
       }
 
+      if (uniqueNames.get(BaseType.POLICY).putIfAbsent(name, policyId) != null)
+      {
+         throw new NameConstraintViolationException("Policy with name " + name + " already exists.");
+      }
       parents.put(policyId, EMPTY_PARENTS);
-      entries.put(policyId, policyEntry);
+      addEntry(policyEntry);
 
       PolicyDataImpl policy = new PolicyDataImpl(policyEntry, typeDefinition, this);
+      objectChanged(policy.getObjectId());
       indexListener.created(policy);
 
-      changes.add(new ChangeEvent(generateId(), policyId, ChangeType.CREATED, (Calendar)cal.clone()));
+      changes.add(policyId, ChangeType.CREATED, (Calendar)cal.clone());
 
       return policy;
    }
@@ -710,6 +853,7 @@ public class StorageImpl implements Storage
       Map<String, Property<?>> properties, List<AccessControlEntry> acl, Collection<PolicyData> policies)
       throws NameConstraintViolationException, StorageException
    {
+      validateMaxItemsNumber();
       String name = null;
       Property<?> nameProperty = properties.get(CmisConstants.NAME);
       if (nameProperty != null && nameProperty.getValues().size() > 0)
@@ -721,25 +865,9 @@ public class StorageImpl implements Storage
          throw new NameConstraintViolationException("Name for new relationship must be provided.");
       }
 
-      for (Entry next : entries.values())
+      if (uniqueNames.get(BaseType.RELATIONSHIP).containsKey(name))
       {
-         String typeId = next.getTypeId();
-         try
-         {
-            TypeDefinition type = getTypeDefinition(typeId, false);
-            if (type.getBaseId() == BaseType.RELATIONSHIP)
-            {
-               String name1 = next.getValue(CmisConstants.NAME).getStrings()[0];
-               if (name.equals(name1))
-               {
-                  throw new NameConstraintViolationException("Relationship with name " + name + " already exists.");
-               }
-            }
-         }
-         catch (TypeNotFoundException e)
-         {
-            // Should never thrown thins we have objects of this type.
-         }
+         throw new NameConstraintViolationException("Relationship with name " + name + " already exists.");
       }
 
       Entry relationshipEntry = new Entry();
@@ -766,6 +894,8 @@ public class StorageImpl implements Storage
             relationshipEntry.setProperty(property);
          }
       }
+      // unique name is released by name of entry when it is removed
+      relationshipEntry.setValue(CmisConstants.NAME, new StringValue(name));
 
       if (policies != null && policies.size() > 0)
       {
@@ -777,11 +907,15 @@ public class StorageImpl implements Storage
 
       if (acl != null && acl.size() > 0)
       {
-         CmisUtils.addAclToPermissionMap(relationshipEntry.getPermissions(), acl);
+         relationshipEntry.addPermissions(acl);
       }
 
+      if (uniqueNames.get(BaseType.RELATIONSHIP).putIfAbsent(name, relationshipId) != null)
+      {
+         throw new NameConstraintViolationException("Relationship with name " + name + " already exists.");
+      }
       parents.put(relationshipId, EMPTY_PARENTS);
-      entries.put(relationshipId, relationshipEntry);
+      addEntry(relationshipEntry);
       Set<String> sourceRels = relationships.get(source.getObjectId());
       if (sourceRels == null)
       {
@@ -798,9 +932,10 @@ public class StorageImpl implements Storage
       targetRels.add(relationshipId);
 
       RelationshipDataImpl relationship = new RelationshipDataImpl(relationshipEntry, typeDefinition, this);
+      objectChanged(relationship.getObjectId());
       indexListener.created(relationship);
 
-      changes.add(new ChangeEvent(generateId(), relationshipId, ChangeType.CREATED, (Calendar)cal.clone()));
+      changes.add(relationshipId, ChangeType.CREATED, (Calendar)cal.clone());
 
       return relationship;
    }
@@ -819,7 +954,11 @@ public class StorageImpl implements Storage
       Set<String> removed = new HashSet<String>();
       removed.add(objectId);
       indexListener.removed(removed);
-      changes.add(new ChangeEvent(generateId(), objectId, ChangeType.DELETED, Calendar.getInstance()));
+      if (renditionManager != null)
+      {
+         renditionManager.removed(objectId);
+      }
+      changes.add(objectId, ChangeType.DELETED, Calendar.getInstance());
    }
 
    /**
@@ -865,7 +1004,11 @@ public class StorageImpl implements Storage
 
       for (String id : removed)
       {
-         changes.add(new ChangeEvent(generateId(), id, ChangeType.DELETED, Calendar.getInstance()));
+         changes.add(id, ChangeType.DELETED, Calendar.getInstance());
+         if (renditionManager != null)
+         {
+            renditionManager.removed(id);
+         }
       }
 
       try
@@ -916,22 +1059,7 @@ public class StorageImpl implements Storage
     */
    public ItemsIterator<ChangeEvent> getChangeLog(String changeLogToken) throws ConstraintException
    {
-      if (changeLogToken != null)
-      {
-         int offset = 0;
-         int size = changes.size();
-         for (Iterator<ChangeEvent> iter = changes.iterator(); iter.hasNext()
-            && !changeLogToken.equals(iter.next().getLogToken());)
-         {
-            offset++;
-         }
-         if (offset == size)
-         {
-            throw new ConstraintException("No event corresponded to change log token " + changeLogToken);
-         }
-         return new BaseItemsIterator<ChangeEvent>(changes.subList(offset, size));
-      }
-      return new BaseItemsIterator<ChangeEvent>(changes);
+      return changes.getEvents(changeLogToken);
    }
 
    /**
@@ -939,36 +1067,25 @@ public class StorageImpl implements Storage
     */
    public ItemsIterator<DocumentData> getCheckedOutDocuments(FolderData folder, String orderBy)
    {
-      List<DocumentData> checkedOut = new ArrayList<DocumentData>();
+      return getCheckedOutDocuments(folder, null, orderBy);
+   }
 
-      for (String pwcId : workingCopies.values())
-      {
-         DocumentData pwc = null;
-         try
-         {
-            pwc = (DocumentData)getObjectById(pwcId);
-         }
-         catch (ObjectNotFoundException e)
-         {
-            LOG.warn("Object " + pwcId + " not found.");
-            continue;
-         }
-         if (folder != null)
-         {
-            for (FolderData parent : pwc.getParents())
-            {
-               if (parent.getObjectId().equals(folder.getObjectId()))
-               {
-                  checkedOut.add(pwc);
-               }
-            }
-         }
-         else
-         {
-            checkedOut.add(pwc);
-         }
-      }
-      return new BaseItemsIterator<DocumentData>(checkedOut);
+   /**
+    * Get private working copies.
+    *
+    * @param folder folder, if null then checked-out documents from all
+    *        folders and unfiled ones are included
+    * @param checkedOutBy id of user what checked out documents, if null then
+    *        documents checked out by all users are included
+    * @param orderBy comma-separated list of query names with optional 'ASC' or
+    *        'DESC' modifier, only cmis:name, cmis:creationDate and
+    *        cmis:lastModificationDate are supported
+    * @return private working copies
+    */
+   public ItemsIterator<DocumentData> getCheckedOutDocuments(FolderData folder, String checkedOutBy, String orderBy)
+   {
+      ChildIndex index = checkedOut.get(folder != null ? folder.getObjectId() : null, checkedOutBy);
+      return new ChildIndexIterator<DocumentData>(this, index, orderBy);
    }
 
    /**
@@ -989,18 +1106,53 @@ public class StorageImpl implements Storage
       {
          throw new ObjectNotFoundException("Object '" + objectId + "' does not exist.");
       }
-      BaseType baseType = entry.getBaseTypeId();
-      String typeId = entry.getTypeId();
-      TypeDefinition typeDefinition = null;
+      return createObjectData(entry, getEntryTypeDefinition(entry));
+   }
+
+   /**
+    * {@inheritDoc}
+    *
+    * All objects are kept in memory so hints are not used. Type definition is
+    * resolved once for all objects of the same type.
+    */
+   public Map<String, ObjectData> getObjectsByIds(Collection<String> objectIds, PropertyFilter propertyFilter,
+      FetchHints hints)
+   {
+      Map<String, TypeDefinition> typeDefinitions = new HashMap<String, TypeDefinition>();
+      Map<String, ObjectData> objects = new LinkedHashMap<String, ObjectData>();
+      for (String objectId : objectIds)
+      {
+         Entry entry = entries.get(objectId);
+         if (entry == null)
+         {
+            continue;
+         }
+         TypeDefinition typeDefinition = typeDefinitions.get(entry.getTypeId());
+         if (typeDefinition == null)
+         {
+            typeDefinition = getEntryTypeDefinition(entry);
+            typeDefinitions.put(entry.getTypeId(), typeDefinition);
+         }
+         objects.put(objectId, createObjectData(entry, typeDefinition));
+      }
+      return objects;
+   }
+
+   private TypeDefinition getEntryTypeDefinition(Entry entry)
+   {
       try
       {
-         typeDefinition = getTypeDefinition(typeId, true);
+         return getTypeDefinition(entry.getTypeId(), true);
       }
       catch (TypeNotFoundException e)
       {
          throw new CmisRuntimeException(e.getMessage(), e);
       }
-      switch (baseType)
+   }
+
+   private ObjectData createObjectData(Entry entry, TypeDefinition typeDefinition)
+   {
+      switch (entry.getBaseTypeId())
       {
          case DOCUMENT :
             return new DocumentDataImpl(entry, typeDefinition, this);
@@ -1026,32 +1178,10 @@ public class StorageImpl implements Storage
       }
       StringTokenizer tokenizer = new StringTokenizer(path, "/");
       String point = StorageImpl.ROOT_FOLDER_ID;
-      while (tokenizer.hasMoreTokens())
+      while (point != null && tokenizer.hasMoreTokens())
       {
-         if (point == null)
-         {
-            break;
-         }
-         String segName = tokenizer.nextToken();
-         Set<String> childrenIds = children.get(point);
-         if (childrenIds == null || childrenIds.isEmpty())
-         {
-            point = null;
-         }
-         else
-         {
-            for (String id : childrenIds)
-            {
-               ObjectData seg = getObjectById(id);
-               String name = seg.getName();
-               if ((BaseType.FOLDER == seg.getBaseType() || !tokenizer.hasMoreElements()) && segName.equals(name))
-               {
-                  point = id;
-                  break;
-               }
-               point = null;
-            }
-         }
+         // only folders have children, so intermediate segments are folders
+         point = getChildIdByName(point, tokenizer.nextToken());
       }
 
       if (point == null)
@@ -1079,11 +1209,10 @@ public class StorageImpl implements Storage
     */
    public RepositoryInfo getRepositoryInfo()
    {
-      int size = changes.size();
-      if (size > 0)
+      String latestToken = changes.getLatestToken();
+      if (latestToken != null)
       {
-         ChangeEvent event = changes.get(size - 1);
-         repositoryInfo.setLatestChangeLogToken(event.getLogToken());
+         repositoryInfo.setLatestChangeLogToken(latestToken);
       }
       // TODO clone repositoryInfo
       return repositoryInfo;
@@ -1096,21 +1225,22 @@ public class StorageImpl implements Storage
       throws UpdateConflictException, VersioningException, NameConstraintViolationException, StorageException
    {
       String name = object.getName();
-      for (ItemsIterator<ObjectData> iterator = target.getChildren(null); iterator.hasNext();)
-      {
-         if (name.equals(iterator.next().getName()))
-         {
-            throw new NameConstraintViolationException("Object with name " + name
-               + " already exists in destination folder.");
-         }
-      }
       String objectid = object.getObjectId();
       String sourceId = source.getObjectId();
       String targetId = target.getObjectId();
+      // name may be already mapped to the same object if it is multi-filed
+      if (!addChildName(targetId, name, objectid))
+      {
+         throw new NameConstraintViolationException("Object with name " + name
+            + " already exists in destination folder.");
+      }
+      removeChildName(sourceId, name, objectid);
       children.get(sourceId).remove(objectid);
       children.get(targetId).add(objectid);
       parents.get(object.getObjectId()).remove(sourceId);
       parents.get(object.getObjectId()).add(targetId);
+      checkedOut.unfiled(objectid, sourceId);
+      checkedOut.filed(entries.get(objectid), targetId);
       try
       {
          object = getObjectById(objectid);
@@ -1119,6 +1249,7 @@ public class StorageImpl implements Storage
       {
          throw new CmisRuntimeException("Unable get object after moving.");
       }
+      objectChanged(objectid);
       indexListener.updated(object);
       return object;
    }
@@ -1130,16 +1261,26 @@ public class StorageImpl implements Storage
    {
       try
       {
-         org.xcmis.search.model.Query qom = cmisQueryParser.parseQuery(query.getStatement());
-         List<ScoredRow> rows = searchService.execute(qom);
-         //check if needed default sorting
-         if (qom.getOrderings().size() == 0)
-         {
-            Set<SelectorName> selectorsReferencedBy = Visitors.getSelectorsReferencedBy(qom);
-            Collections.sort(rows, new DocumentOrderResultSorter(selectorsReferencedBy.iterator().next().getName(),
-               this));
-         }
-         return new QueryResultIterator(rows, qom);
+         org.xcmis.search.model.Query qom = parseQuery(query.getStatement());
+         // index is updated asynchronously, read own writes
+         indexListener.awaitVisibility();
+         // result is trimmed by index, so paging and number of items count readable objects only
+         Set<String> principals = new HashSet<String>(2);
+         principals.add(getCurrentUser());
+         principals.add(getRepositoryInfo().getPrincipalAnyone());
+         return new QueryResultIterator(qom, principals);
+      }
+      catch (InvalidQueryException e)
+      {
+         throw new InvalidArgumentException(e.getLocalizedMessage(), e);
+      }
+   }
+
+   private List<ScoredRow> executeQuery(org.xcmis.search.model.Query qom, Set<String> principals)
+   {
+      try
+      {
+         return searchService.execute(qom, Collections.<String, Object> emptyMap(), null, principals);
       }
       catch (InvalidQueryException e)
       {
@@ -1161,9 +1302,12 @@ public class StorageImpl implements Storage
       for (String id : parentIds)
       {
          children.get(id).remove(objectId);
+         removeChildName(id, object.getName(), objectId);
+         checkedOut.unfiled(objectId, id);
       }
       parentIds.clear();
       unfiled.add(objectId);
+      objectChanged(objectId);
       indexListener.updated(object);
    }
 
@@ -1237,14 +1381,45 @@ public class StorageImpl implements Storage
          }
       }
 
-      types.put(type.getId(), type);
-      typeChildren.get(superType.getId()).add(type.getId());
-      typeChildren.put(type.getId(), new HashSet<String>());
-      PropertyDefinitions.putAll(type.getId(), m);
+      registerType(type, superType.getId(), m);
+      invalidateQueryCache();
+      if (persistence != null)
+      {
+         persistence.typesChanged();
+      }
 
       return type.getId();
    }
 
+   /**
+    * Add type restored from persistent state. Type is not validated, parent
+    * type must already exist.
+    *
+    * @param type type definition
+    */
+   void restoreType(TypeDefinition type)
+   {
+      TypeDefinition superType = types.get(type.getParentId());
+      Map<String, PropertyDefinition<?>> m =
+         new HashMap<String, PropertyDefinition<?>>(PropertyDefinitions.getAll(superType.getId()));
+      if (type.getPropertyDefinitions() != null)
+      {
+         for (PropertyDefinition<?> next : type.getPropertyDefinitions())
+         {
+            m.put(next.getId(), next);
+         }
+      }
+      registerType(type, superType.getId(), m);
+   }
+
+   private void registerType(TypeDefinition type, String superTypeId, Map<String, PropertyDefinition<?>> definitions)
+   {
+      types.put(type.getId(), type);
+      typeChildren.get(superTypeId).add(type.getId());
+      typeChildren.put(type.getId(), new HashSet<String>());
+      PropertyDefinitions.putAll(type.getId(), definitions);
+   }
+
    /**
     * {@inheritDoc}
     */
@@ -1335,198 +1510,587 @@ public class StorageImpl implements Storage
          throw new ConstraintException("Unable remove type " + typeId + ". Type has descendant types.");
       }
 
-      for (Entry entry : entries.values())
+      if (getObjectCount(typeId) > 0)
       {
-         if (typeId.equals(entry.getTypeId()))
-         {
-            throw new ConstraintException("Unable remove type definition if at least one object of this type exists.");
-         }
+         throw new ConstraintException("Unable remove type definition if at least one object of this type exists.");
       }
       types.remove(typeId);
+      usage.removeType(typeId);
       typeChildren.get(type.getParentId()).remove(typeId);
 
       PropertyDefinitions.removeAll(typeId);
+      invalidateQueryCache();
+      if (persistence != null)
+      {
+         persistence.typesChanged();
+      }
    }
 
-   protected String getCurrentUser()
+   /**
+    * Cache of parsed queries. Plans of parsed queries are cached by search
+    * service, see {@link SearchService#getQueryPlanCache()}.
+    *
+    * @return cache of parsed queries
+    */
+   public QueryCache<String, org.xcmis.search.model.Query> getParsedQueryCache()
    {
-      UserContext ctx = UserContext.getCurrent();
-      return ctx != null ? ctx.getUserId() : getRepositoryInfo().getPrincipalAnonymous();
+      return parsedQueries;
    }
 
-   void validateMaxItemsNumber(ObjectData object) throws StorageException
+   /**
+    * Get parsed query from cache or parse statement if it is not cached yet.
+    *
+    * @param statement CMIS SQL statement
+    * @return parsed query
+    * @throws InvalidQueryException if statement is not valid
+    */
+   private org.xcmis.search.model.Query parseQuery(String statement) throws InvalidQueryException
    {
-      long maxItemsNum = configuration.getMaxItemsNum();
-      if (maxItemsNum > -1 && entries.size() > maxItemsNum)
+      String key = normalizeStatement(statement);
+      org.xcmis.search.model.Query qom = parsedQueries.get(key);
+      if (qom == null)
       {
-         throw new StorageException("Unable add new object in storage. Max number '" + maxItemsNum
-            + "' of items is reached."
-            + " Increase or set storage configuration property 'org.xcmis.inmemory.maxitems'.");
+         qom = withDefaultOrder(cmisQueryParser.parseQuery(statement));
+         parsedQueries.put(key, qom);
       }
+      return qom;
    }
 
-   void validateMemSize(byte[] content) throws StorageException
+   /**
+    * Order result of the query without ORDER BY clause by name of the objects
+    * of first selector, rows with the same name are ordered by id. Order is
+    * applied by index, so pages of result are collected lazily as for any
+    * sorted query.
+    *
+    * @param qom parsed query
+    * @return query with default order
+    */
+   private static org.xcmis.search.model.Query withDefaultOrder(org.xcmis.search.model.Query qom)
    {
-      if (content == null || content.length == 0)
-      {
-         return;
-      }
-      long size = 0;
-      for (Entry c : entries.values())
+      if (qom.getOrderings().size() > 0)
       {
-         ByteArrayValue contentValue = (ByteArrayValue)c.getValue(PropertyDefinitions.CONTENT);
-         if (contentValue != null)
-         {
-            size += contentValue.getBytes().length;
-         }
+         return qom;
       }
-      long maxMem = configuration.getMaxMem();
-      if (maxMem > -1 && size + content.length > maxMem)
+      Source source = qom.getSource();
+      while (source instanceof Join)
       {
-         throw new StorageException("Unable add new object in storage. Max allowed memory size '" + maxMem
-            + "' bytes is reached." + " Increase or set storage configuration property 'org.xcmis.inmemory.maxmem'.");
+         source = ((Join)source).getLeft();
       }
+      Ordering byName =
+         new Ordering(new PropertyValue(((Selector)source).getAliasOrName(), CmisConstants.NAME), Order.ASCENDING);
+      return new org.xcmis.search.model.Query(qom.getSource(), qom.getConstraint(), Collections
+         .singletonList(byName), qom.getColumns(), qom.getLimits());
    }
 
-   private SearchService getInitializedSearchService()
+   /**
+    * Parsed queries and their plans depend on type definitions.
+    */
+   private void invalidateQueryCache()
    {
-      try
-      {
-         IndexConfiguration indexConfiguration = new IndexConfiguration(getRepositoryInfo().getRootFolderId());
-
-         QueryNameTypeManager typeManager = new QueryNameTypeManager(this);
-         CmisSchema schema = new CmisSchema(typeManager);
-         CmisSchemaTableResolver tableResolver = new CmisSchemaTableResolver(
-            new ToStringNameConverter(), schema, typeManager);
-
-         SearchServiceConfiguration searchConfiguration =
-            new SearchServiceConfiguration(schema, tableResolver, new CmisContentReader(this), indexConfiguration);
-
-         SearchService searchService = new SearchService(searchConfiguration);
-         searchService.start();
-         return searchService;
-
-      }
-      catch (SearchServiceException e)
-      {
-         LOG.error("Unable to initialize storage. ", e);
-      }
-      catch (MimeTypeException e)
+      parsedQueries.clear();
+      if (searchService != null)
       {
-         LOG.error("Unable to initialize storage. ", e);
-      }
-      catch (IOException e)
-      {
-         LOG.error("Unable to initialize storage. ", e);
+         searchService.getQueryPlanCache().clear();
       }
-
-      return null;
-
    }
 
-   // -------------------------------------------------------
-
-   private class DocumentOrderResultSorter implements Comparator<ScoredRow>
+   /**
+    * Collapse whitespaces outside of quoted literals and identifiers, so the
+    * same statement formatted differently has the same cache key.
+    *
+    * @param statement CMIS SQL statement
+    * @return normalized statement
+    */
+   static String normalizeStatement(String statement)
    {
-
-      /** The selector name. */
-      private final String selectorName;
-
-      private final Map<String, ObjectData> itemCache;
-
-      private final Storage storage;
-
-      DocumentOrderResultSorter(final String selectorName, Storage storage)
+      StringBuilder normalized = new StringBuilder(statement.length());
+      char quote = 0;
+      boolean space = false;
+      for (int i = 0; i < statement.length(); i++)
       {
-         this.selectorName = selectorName;
-         this.storage = storage;
-         this.itemCache = new HashMap<String, ObjectData>();
-      }
-
-      /**
-       * {@inheritDoc}
-       */
-      public int compare(ScoredRow o1, ScoredRow o2)
-      {
-         if (o1.equals(o2))
+         char c = statement.charAt(i);
+         if (quote != 0)
+         {
+            normalized.append(c);
+            if (c == '\\' && i + 1 < statement.length())
+            {
+               normalized.append(statement.charAt(++i));
+            }
+            else if (c == quote)
+            {
+               quote = 0;
+            }
+         }
+         else if (Character.isWhitespace(c))
          {
-            return 0;
+            space = normalized.length() > 0;
          }
-         final String path1 = getPath(o1.getNodeIdentifer(selectorName));
-         final String path2 = getPath(o2.getNodeIdentifer(selectorName));
-         // TODO should be checked
-         if (path1 == null || path2 == null)
+         else
          {
-            return 0;
+            if (space)
+            {
+               normalized.append(' ');
+               space = false;
+            }
+            if (c == '\'' || c == '"')
+            {
+               quote = c;
+            }
+            normalized.append(c);
          }
-         return path1.compareTo(path2);
       }
+      return normalized.toString();
+   }
 
-      /**
-       * Return comparable location of the object
-       *
-       * @param identifer
-       * @return
-       */
-      public String getPath(String identifer)
+   /**
+    * Number of stored objects of type. All versions and private working copy
+    * of document are counted. Objects of subtypes are not counted.
+    *
+    * @param typeId type id
+    * @return number of objects
+    */
+   public int getObjectCount(String typeId)
+   {
+      UsageStatistics.TypeUsage typeUsage = usage.getTypeUsage(typeId);
+      return typeUsage != null ? typeUsage.getObjectCount() : 0;
+   }
+
+   /**
+    * Statistics of repository content.
+    *
+    * @return number of stored objects by type id, only types what have at
+    *         least one object are included
+    */
+   public Map<String, Integer> getObjectCounts()
+   {
+      Map<String, Integer> counts = new HashMap<String, Integer>();
+      for (Map.Entry<String, UsageStatistics.TypeUsage> e : usage.getTypeUsages().entrySet())
+      {
+         counts.put(e.getKey(), e.getValue().getObjectCount());
+      }
+      return counts;
+   }
+
+   /**
+    * Statistics of repository usage. Content and estimated size of properties
+    * are available for whole storage and by object type.
+    *
+    * @return usage statistics
+    */
+   public UsageStatistics getUsageStatistics()
+   {
+      return usage;
+   }
+
+   /**
+    * Update statistics and persistent state after property of stored object
+    * was changed.
+    *
+    * @param entry object
+    * @param id property id
+    * @param oldValue previous value, may be null
+    * @param newValue new value, may be null
+    */
+   void entryChanged(Entry entry, String id, Value oldValue, Value newValue)
+   {
+      usage.changed(entry, id, oldValue, newValue);
+      if (ChildIndex.isOrderable(id))
       {
-         ObjectData obj = itemCache.get(identifer);
-         if (obj == null)
+         Set<String> p = parents.get(entry.getId());
+         if (p != null)
          {
-            try
+            for (String parentId : p)
             {
-               obj = storage.getObjectById(identifer);
+               ChildIndex index = childIndexes.get(parentId);
+               if (index != null)
+               {
+                  index.update(entry);
+               }
             }
-            catch (ObjectNotFoundException e)
+         }
+         checkedOut.update(entry, p);
+      }
+      objectChanged(entry.getId());
+   }
+
+   /**
+    * Mark object as changed for persistence. Must be called after any change
+    * of object or its place in folders hierarchy what is not done through its
+    * properties.
+    *
+    * @param id object id
+    */
+   void objectChanged(String id)
+   {
+      if (persistence != null)
+      {
+         persistence.touch(id);
+      }
+   }
+
+   /**
+    * Drop cached renditions of document and pre-generate new ones. Must be
+    * called after content of document is created or updated.
+    *
+    * @param document document
+    */
+   void contentChanged(DocumentData document)
+   {
+      if (renditionManager != null)
+      {
+         renditionManager.contentChanged(document);
+      }
+   }
+
+   /**
+    * Store new object and update statistics.
+    *
+    * @param entry new object
+    */
+   void addEntry(Entry entry)
+   {
+      usage.added(entry);
+      entry.setStorage(this);
+      entries.put(entry.getId(), entry);
+      // entry may be already filed in folders by name
+      Set<String> p = parents.get(entry.getId());
+      String name = entry.getName();
+      if (p != null && name != null)
+      {
+         for (String parentId : p)
+         {
+            ChildIndex index = childIndexes.get(parentId);
+            if (index != null && entry.getId().equals(getChildIdByName(parentId, name)))
             {
-               // XXX : correct ?
-               return null;
+               index.add(entry);
             }
-            itemCache.put(identifer, obj);
          }
-         if (obj.getBaseType() == BaseType.FOLDER)
+      }
+      objectChanged(entry.getId());
+   }
+
+   /**
+    * Remove object, update statistics and release its unique name.
+    *
+    * @param id object id
+    */
+   void removeEntry(String id)
+   {
+      Entry entry = entries.remove(id);
+      if (entry == null)
+      {
+         return;
+      }
+      entry.setStorage(null);
+      usage.removed(entry);
+      objectChanged(id);
+      ConcurrentMap<String, String> names = uniqueNames.get(entry.getBaseTypeId());
+      String name = entry.getName();
+      if (names != null && name != null)
+      {
+         names.remove(name, id);
+      }
+   }
+
+   /**
+    * Create empty indexes of children of new folder.
+    *
+    * @param folderId folder id
+    */
+   void addFolderIndexes(String folderId)
+   {
+      childIndexes.put(folderId, new ChildIndex());
+      childNames.put(folderId, new ConcurrentHashMap<String, String>());
+   }
+
+   /**
+    * Remove indexes of children of folder.
+    *
+    * @param folderId folder id
+    */
+   void removeFolderIndexes(String folderId)
+   {
+      childNames.remove(folderId);
+      childIndexes.remove(folderId);
+   }
+
+   /**
+    * @param folderId folder id
+    * @param name name of child
+    * @return id of child with given name or null if folder has not such child
+    *         or folderId is not id of folder
+    */
+   String getChildIdByName(String folderId, String name)
+   {
+      Map<String, String> names = childNames.get(folderId);
+      return names != null && name != null ? names.get(name) : null;
+   }
+
+   /**
+    * Add child name to index of folder. Check of name uniqueness and update
+    * are atomic.
+    *
+    * @param folderId folder id
+    * @param name name of child
+    * @param childId child id
+    * @return false if folder already has other child with the same name
+    */
+   boolean addChildName(String folderId, String name, String childId)
+   {
+      ConcurrentMap<String, String> names = childNames.get(folderId);
+      if (names == null || name == null)
+      {
+         return true;
+      }
+      String current = names.putIfAbsent(name, childId);
+      if (current == null)
+      {
+         // not stored yet if object is created, indexed in addEntry
+         Entry child = entries.get(childId);
+         ChildIndex index = childIndexes.get(folderId);
+         if (child != null && index != null)
+         {
+            index.add(child);
+         }
+         return true;
+      }
+      return current.equals(childId);
+   }
+
+   /**
+    * Pass child name to the object what replaces previous child, e.g. to new
+    * version of document what replaces previous latest version. Name is never
+    * free while it is passed.
+    *
+    * @param folderId folder id
+    * @param name name of child
+    * @param previousId id of previous child
+    * @param childId id of new child
+    * @return <code>false</code> if name is already mapped to other object
+    */
+   boolean replaceChildName(String folderId, String name, String previousId, String childId)
+   {
+      ConcurrentMap<String, String> names = childNames.get(folderId);
+      if (names == null || name == null)
+      {
+         return true;
+      }
+      if (names.replace(name, previousId, childId))
+      {
+         ChildIndex index = childIndexes.get(folderId);
+         if (index != null)
          {
-            if (((FolderData)obj).isRoot())
+            index.remove(previousId);
+            Entry child = entries.get(childId);
+            if (child != null)
             {
-               return obj.getName();
+               index.add(child);
             }
          }
-         Collection<FolderData> parents = obj.getParents();
-         if (parents.size() == 0)
+         return true;
+      }
+      return addChildName(folderId, name, childId);
+   }
+
+   /**
+    * Remove child name from index of folder if it is mapped to given child.
+    *
+    * @param folderId folder id
+    * @param name name of child
+    * @param childId child id
+    */
+   void removeChildName(String folderId, String name, String childId)
+   {
+      ConcurrentMap<String, String> names = childNames.get(folderId);
+      if (names != null && name != null && names.remove(name, childId))
+      {
+         // object may be already known in folder by new name
+         Entry child = entries.get(childId);
+         String current = child != null ? child.getName() : null;
+         ChildIndex index = childIndexes.get(folderId);
+         if (index != null && (current == null || !childId.equals(names.get(current))))
          {
-            return obj.getName();
+            index.remove(childId);
          }
-         return parents.iterator().next().getPath() + "/" + obj.getName();
+      }
+   }
+
+   protected String getCurrentUser()
+   {
+      UserContext ctx = UserContext.getCurrent();
+      return ctx != null ? ctx.getUserId() : getRepositoryInfo().getPrincipalAnonymous();
+   }
+
+   /**
+    * Check is max number of objects reached.
+    *
+    * @throws StorageException if no more objects may be added
+    */
+   void validateMaxItemsNumber() throws StorageException
+   {
+      long maxItemsNum = configuration.getMaxItemsNum();
+      if (maxItemsNum > -1 && usage.getObjectCount() >= maxItemsNum)
+      {
+         throw new StorageException("Unable add new object in storage. Max number '" + maxItemsNum
+            + "' of items is reached."
+            + " Increase or set storage configuration property 'org.xcmis.inmemory.maxitems'.");
       }
    }
 
+   /**
+    * Store content what fits into max memory size. Declared length is reserved
+    * before content is stored and bytes above it are reserved while content
+    * is read, so concurrent uploads can't exceed limit together and content
+    * what doesn't fit is never kept in blob store. Content shared between few
+    * objects is counted once.
+    *
+    * @param content content
+    * @return stored content
+    * @throws IOException if content can't be read or stored
+    * @throws StorageException if content exceeds max memory size
+    */
+   ContentValue createContent(ContentStream content) throws IOException, StorageException
+   {
+      long maxMem = configuration.getMaxMem();
+      InputStream stream = content.getStream();
+      if (maxMem < 0 || stream == null)
+      {
+         return new ContentValue(blobStore.create(stream));
+      }
+      long declared = Math.max(content.length(), 0);
+      if (!usage.reserve(declared, maxMem))
+      {
+         throw memSizeExceeded(maxMem);
+      }
+      ReservingInputStream reserving = new ReservingInputStream(stream, usage, declared, maxMem);
+      Blob blob = null;
+      try
+      {
+         blob = blobStore.create(reserving);
+      }
+      catch (IOException e)
+      {
+         if (reserving.exceeded)
+         {
+            // partially written content is discarded by blob store
+            throw memSizeExceeded(maxMem);
+         }
+         throw e;
+      }
+      finally
+      {
+         if (blob == null)
+         {
+            usage.unreserve(reserving.reserved);
+         }
+      }
+      usage.reserved(blob, reserving.reserved);
+      return new ContentValue(blob);
+   }
+
+   private static StorageException memSizeExceeded(long maxMem)
+   {
+      return new StorageException("Unable add new object in storage. Max allowed memory size '" + maxMem
+         + "' bytes is reached." + " Increase or set storage configuration property 'org.xcmis.inmemory.maxmem'.");
+   }
+
+   private SearchService getInitializedSearchService()
+   {
+      try
+      {
+         IndexConfiguration indexConfiguration =
+            persistence != null ? new IndexConfiguration(persistence.getIndexDirectory().getAbsolutePath(), "",
+               getRepositoryInfo().getRootFolderId()) : new IndexConfiguration(getRepositoryInfo().getRootFolderId());
+
+         QueryNameTypeManager typeManager = new QueryNameTypeManager(this);
+         CmisSchema schema = new CmisSchema(typeManager);
+         CmisSchemaTableResolver tableResolver = new CmisSchemaTableResolver(
+            new ToStringNameConverter(), schema, typeManager);
+
+         SearchServiceConfiguration searchConfiguration =
+            new SearchServiceConfiguration(schema, tableResolver, new CmisContentReader(this), indexConfiguration);
+
+         SearchService searchService = new SearchService(searchConfiguration);
+         searchService.start();
+         return searchService;
+
+      }
+      catch (SearchServiceException e)
+      {
+         LOG.error("Unable to initialize storage. ", e);
+      }
+      catch (MimeTypeException e)
+      {
+         LOG.error("Unable to initialize storage. ", e);
+      }
+      catch (IOException e)
+      {
+         LOG.error("Unable to initialize storage. ", e);
+      }
+
+      return null;
+
+   }
+
+   // -------------------------------------------------------
+
    /**
     * Single row from query result.
     */
-   private class ResultImpl implements Result
+   private class ResultImpl implements JoinResult
    {
 
-      private final String id;
+      private final String[] selectorNames;
+
+      private final String[] ids;
 
-      private final String[] properties;
+      private final String[][] properties;
+
+      /** Index of selector what gives object of result. */
+      private final int primary;
 
       private final Score score;
 
-      ResultImpl(String id, String[] properties, Score score)
+      ResultImpl(String[] selectorNames, String[] ids, String[][] properties, Score score)
       {
-         this.id = id;
+         this.selectorNames = selectorNames;
+         this.ids = ids;
          this.properties = properties;
          this.score = score;
+         int i = 0;
+         // left side of right outer join may be not matched
+         while (i < ids.length - 1 && ids[i] == null)
+         {
+            i++;
+         }
+         this.primary = i;
       }
 
       public String[] getPropertyNames()
       {
-         return properties;
+         return properties[primary];
       }
 
       public String getObjectId()
       {
-         return id;
+         return ids[primary];
+      }
+
+      public String[] getSelectorNames()
+      {
+         return selectorNames;
+      }
+
+      public String getObjectId(String selectorName)
+      {
+         int i = indexOf(selectorName);
+         return i < 0 ? null : ids[i];
+      }
+
+      public String[] getPropertyNames(String selectorName)
+      {
+         int i = indexOf(selectorName);
+         return i < 0 ? null : properties[i];
       }
 
       public Score getScore()
@@ -1534,28 +2098,113 @@ public class StorageImpl implements Storage
          return score;
       }
 
+      private int indexOf(String selectorName)
+      {
+         for (int i = 0; i < selectorNames.length; i++)
+         {
+            if (selectorNames[i].equals(selectorName))
+            {
+               return i;
+            }
+         }
+         return -1;
+      }
+
    }
 
    /**
-    * Iterator over query result's.
+    * Iterator over query result's. Each row gives one result, row of the join
+    * query carries objects of all selectors. Skipped rows are not loaded, index
+    * snapshot used by rows is released when iterator is exhausted or closed.
     */
-   private class QueryResultIterator extends LazyIterator<Result>
+   private class QueryResultIterator extends LazyIterator<Result> implements Closeable
    {
-      private final Iterator<ScoredRow> rows;
+      private final org.xcmis.search.model.Query qom;
 
-      private final Set<SelectorName> selectors;
+      private final Set<String> principals;
 
-      private final int size;
+      /** Rows, null until query is executed. */
+      private List<ScoredRow> rowList;
 
-      private final org.xcmis.search.model.Query qom;
+      private ListIterator<ScoredRow> rows;
+
+      /** Position of the result in field next. */
+      private int nextPosition;
 
-      QueryResultIterator(List<ScoredRow> rows, org.xcmis.search.model.Query qom)
+      /** Selectors in order of query source. */
+      private final String[] selectorNames;
+
+      /** Columns of each selector, the same for all rows. */
+      private final String[][] properties;
+
+      /** Name of score column or <code>null</code>. */
+      private final String scoreColumnName;
+
+      QueryResultIterator(org.xcmis.search.model.Query qom, Set<String> principals)
       {
-         this.size = rows.size();
-         this.rows = rows.iterator();
-         this.selectors = Visitors.getSelectorsReferencedBy(qom);
          this.qom = qom;
-         fetchNext();
+         this.principals = principals;
+
+         List<SelectorName> selectors = new ArrayList<SelectorName>();
+         collectSelectors(qom.getSource(), selectors);
+         this.selectorNames = new String[selectors.size()];
+         this.properties = new String[selectors.size()][];
+         String scoreColumn = null;
+         for (int i = 0; i < selectorNames.length; i++)
+         {
+            selectorNames[i] = selectors.get(i).getName();
+            List<String> selectorProperties = null;
+            for (Column column : qom.getColumns())
+            {
+               //TODO check
+               if (column.isFunction())
+               {
+                  scoreColumn = column.getColumnName();
+               }
+               else if (column.getPropertyName() != null
+                  && (column.getSelectorName() == null ? selectorNames.length == 1 : selectorNames[i].equals(column
+                     .getSelectorName().getName())))
+               {
+                  if (selectorProperties == null)
+                  {
+                     selectorProperties = new ArrayList<String>();
+                  }
+                  selectorProperties.add(column.getPropertyName());
+               }
+            }
+            properties[i] =
+               selectorProperties == null ? null : selectorProperties.toArray(new String[selectorProperties.size()]);
+         }
+         this.scoreColumnName = scoreColumn;
+         // report query errors immediately
+         execute();
+      }
+
+      /**
+       * {@inheritDoc}
+       */
+      /**
+       * {@inheritDoc}
+       */
+      @Override
+      public void skip(int skip) throws NoSuchElementException
+      {
+         if (skip > 0)
+         {
+            if (next == null)
+            {
+               throw new NoSuchElementException();
+            }
+            // each row gives one result, so skipped rows may be not fetched at all
+            int index = nextPosition + skip;
+            if (index >= rowList.size())
+            {
+               next = null;
+               throw new NoSuchElementException();
+            }
+            rows = rowList.listIterator(index);
+            fetchNext();
+         }
       }
 
       /**
@@ -1563,7 +2212,7 @@ public class StorageImpl implements Storage
        */
       public int size()
       {
-         return size;
+         return rowList.size();
       }
 
       /**
@@ -1572,40 +2221,62 @@ public class StorageImpl implements Storage
       protected void fetchNext()
       {
          next = null;
-         while (next == null && rows.hasNext())
+         if (rows.hasNext())
          {
+            nextPosition = rows.nextIndex();
             ScoredRow row = rows.next();
-            for (SelectorName selectorName : selectors)
+            String[] ids = new String[selectorNames.length];
+            for (int i = 0; i < selectorNames.length; i++)
             {
-               String objectId = row.getNodeIdentifer(selectorName.getName());
-               List<String> properties = null;
-               Score score = null;
-               for (Column column : qom.getColumns())
-               {
-                  //TODO check
-                  if (column.isFunction())
-                  {
-                     score = new Score(column.getColumnName(), BigDecimal.valueOf(row.getScore()));
-                  }
-                  else
-                  {
-                     if (selectorName.getName().equals(column.getSelectorName()))
-                     {
-                        if (column.getPropertyName() != null)
-                        {
-                           if (properties == null)
-                           {
-                              properties = new ArrayList<String>();
-                           }
-                           properties.add(column.getPropertyName());
-                        }
-                     }
-                  }
-               }
-               next =
-                  new ResultImpl(objectId, properties == null ? null : properties
-                     .toArray(new String[properties.size()]), score);
+               // null for not matched side of outer join
+               ids[i] = row.getNodeIdentifer(selectorNames[i]);
             }
+            Score score =
+               scoreColumnName == null ? null : new Score(scoreColumnName, BigDecimal.valueOf(row.getScore()));
+            next = new ResultImpl(selectorNames, ids, properties, score);
+         }
+         else
+         {
+            close();
+         }
+      }
+
+      /**
+       * Release rows of result, results what are not fetched yet are not
+       * available after closing.
+       */
+      public void close()
+      {
+         if (rowList instanceof Closeable)
+         {
+            try
+            {
+               ((Closeable)rowList).close();
+            }
+            catch (IOException e)
+            {
+               LOG.error("Unable to close query result: " + e.getLocalizedMessage(), e);
+            }
+         }
+      }
+
+      private void execute()
+      {
+         rowList = executeQuery(qom, principals);
+         rows = rowList.listIterator();
+         fetchNext();
+      }
+
+      private void collectSelectors(Source source, List<SelectorName> selectors)
+      {
+         if (source instanceof Join)
+         {
+            collectSelectors(((Join)source).getLeft(), selectors);
+            collectSelectors(((Join)source).getRight(), selectors);
+         }
+         else
+         {
+            selectors.add(((Selector)source).getAliasOrName());
          }
       }
    }
@@ -1631,4 +2302,67 @@ public class StorageImpl implements Storage
          }
       }
    }
+
+   /**
+    * Stream what reserves bytes in usage statistics while they are read and
+    * fails as soon as reservation exceeds limit.
+    */
+   private static final class ReservingInputStream extends FilterInputStream
+   {
+      private final UsageStatistics usage;
+
+      private final long limit;
+
+      private long read;
+
+      /** Number of bytes reserved, initially declared length of content. */
+      long reserved;
+
+      boolean exceeded;
+
+      ReservingInputStream(InputStream in, UsageStatistics usage, long reserved, long limit)
+      {
+         super(in);
+         this.usage = usage;
+         this.reserved = reserved;
+         this.limit = limit;
+      }
+
+      @Override
+      public int read() throws IOException
+      {
+         int b = super.read();
+         if (b != -1)
+         {
+            count(1);
+         }
+         return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         int r = super.read(b, off, len);
+         if (r > 0)
+         {
+            count(r);
+         }
+         return r;
+      }
+
+      private void count(int n) throws IOException
+      {
+         read += n;
+         if (read > reserved)
+         {
+            long more = read - reserved;
+            if (!usage.reserve(more, limit))
+            {
+               exceeded = true;
+               throw new IOException("Content exceeds max memory size.");
+            }
+            reserved += more;
+         }
+      }
+   }
 }
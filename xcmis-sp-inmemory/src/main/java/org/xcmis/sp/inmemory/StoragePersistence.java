@@ -0,0 +1,1530 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import org.xcmis.spi.CmisConstants;
+import org.xcmis.spi.CmisRuntimeException;
+import org.xcmis.spi.model.BaseType;
+import org.xcmis.spi.model.Choice;
+import org.xcmis.spi.model.ContentStreamAllowed;
+import org.xcmis.spi.model.DateResolution;
+import org.xcmis.spi.model.Precision;
+import org.xcmis.spi.model.PropertyDefinition;
+import org.xcmis.spi.model.PropertyType;
+import org.xcmis.spi.model.TypeDefinition;
+import org.xcmis.spi.model.Updatability;
+import org.xcmis.spi.utils.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps state of {@link StorageImpl} on disk as snapshot and journal of
+ * changes. Changed objects are collected in memory and their current state is
+ * appended to journal. By default journal is written and forced to disk before
+ * change is acknowledged, concurrent changes are written together and share
+ * one force (group commit). If synchronous journal is turned off journal is
+ * written periodically and changes made in last flush interval may be lost at
+ * crash. When journal becomes too big new journal is started and snapshot of
+ * whole storage is written in background. Content of documents is not copied
+ * in journal if it is kept in segment files of {@link MappedBlobStore}, only
+ * reference to segment is written. Sparse segments are compacted before
+ * snapshot is written and deleted after it.
+ * <p>
+ * Directory layout: <code>snapshot-N</code> contains state of storage at the
+ * time when <code>journal-N</code> was started, so storage is restored from
+ * the latest snapshot and all journals what are not older then it. Lucene
+ * index is kept in <code>index</code> and rebuilt if storage was not closed
+ * properly.
+ *
+ * @version $Id$
+ */
+final class StoragePersistence
+{
+   /** Default interval between writes of journal to disk in milliseconds. */
+   static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+   /** Default size of journal after which new snapshot is taken. */
+   static final long DEFAULT_MAX_JOURNAL_SIZE = 64L * 1024 * 1024;
+
+   private static final Logger LOG = Logger.getLogger(StoragePersistence.class);
+
+   private static final int MAGIC = 0x78434d53;
+
+   private static final int FORMAT_VERSION = 1;
+
+   private static final String SNAPSHOT = "snapshot-";
+
+   private static final String JOURNAL = "journal-";
+
+   private static final String TMP = ".tmp";
+
+   /** Marker of storage closed properly, index is consistent with storage. */
+   private static final String CLEAN = "clean";
+
+   private static final String INDEX = "index";
+
+   // Record tags.
+
+   private static final byte OBJECT = 1;
+
+   private static final byte REMOVED = 2;
+
+   private static final byte TYPES = 3;
+
+   private static final byte CHANGE_LOG = 4;
+
+   // Value tags.
+
+   private static final byte STRING = 1;
+
+   private static final byte BOOLEAN = 2;
+
+   private static final byte INTEGER = 3;
+
+   private static final byte DECIMAL = 4;
+
+   private static final byte DATE = 5;
+
+   private static final byte URI_VALUE = 6;
+
+   private static final byte CONTENT = 7;
+
+   private static final byte CONTENT_REF = 8;
+
+   // Kinds of object parents.
+
+   private static final byte NO_PARENTS = 0;
+
+   private static final byte EMPTY_PARENTS = 1;
+
+   private static final byte FOLDERS = 2;
+
+   private final StorageImpl storage;
+
+   private final File directory;
+
+   private final long flushInterval;
+
+   private final long maxJournalSize;
+
+   private final boolean syncJournal;
+
+   /** Number of requested commits of synchronous journal. */
+   private final AtomicLong commitRequests = new AtomicLong();
+
+   /** Number of requests what are covered by written journal. Guarded by lock. */
+   private long committed;
+
+   /** Ids of objects changed since last flush. */
+   private final Set<String> dirty = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+   private final AtomicBoolean typesDirty = new AtomicBoolean();
+
+   /** Guards journal. */
+   private final Object lock = new Object();
+
+   private long generation;
+
+   private FileOutputStream journalFile;
+
+   private DataOutputStream journal;
+
+   private long writtenSequence = -1;
+
+   private ScheduledExecutorService scheduler;
+
+   /**
+    * Writes snapshots, so journal is flushed at regular intervals while
+    * snapshot is written.
+    */
+   private ExecutorService snapshotWriter;
+
+   /** Snapshot is queued or written at the moment. */
+   private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+
+   private volatile boolean started;
+
+   StoragePersistence(StorageImpl storage, File directory, StorageConfiguration configuration)
+   {
+      this.storage = storage;
+      this.directory = directory;
+      this.flushInterval = configuration.getFlushInterval();
+      this.maxJournalSize = configuration.getMaxJournalSize();
+      this.syncJournal = configuration.isSyncJournal();
+      if (flushInterval <= 0)
+      {
+         throw new IllegalArgumentException("Flush interval must be positive.");
+      }
+   }
+
+   /**
+    * @return directory of Lucene index
+    */
+   File getIndexDirectory()
+   {
+      return new File(directory, INDEX);
+   }
+
+   /**
+    * Restore state of storage from the latest snapshot and journals. Must be
+    * called before storage is used and before search service is started.
+    *
+    * @throws IOException if state can't be read
+    */
+   void load() throws IOException
+   {
+      if (!directory.exists() && !directory.mkdirs())
+      {
+         throw new IOException("Unable create directory " + directory);
+      }
+      File clean = new File(directory, CLEAN);
+      if (!clean.delete())
+      {
+         // index may be not consistent with storage, rebuild it from scratch
+         delete(getIndexDirectory());
+      }
+
+      TreeMap<Long, File> snapshots = new TreeMap<Long, File>();
+      TreeMap<Long, File> journals = new TreeMap<Long, File>();
+      File[] files = directory.listFiles();
+      for (File file : files != null ? files : new File[0])
+      {
+         String name = file.getName();
+         if (name.endsWith(TMP))
+         {
+            // unfinished snapshot
+            file.delete();
+         }
+         else if (name.startsWith(SNAPSHOT))
+         {
+            snapshots.put(parseGeneration(name, SNAPSHOT), file);
+         }
+         else if (name.startsWith(JOURNAL))
+         {
+            journals.put(parseGeneration(name, JOURNAL), file);
+         }
+      }
+
+      State state = new State();
+      long from = 0;
+      if (!snapshots.isEmpty())
+      {
+         from = snapshots.lastKey();
+         read(snapshots.lastEntry().getValue(), state);
+         generation = from;
+      }
+      for (Map.Entry<Long, File> e : journals.tailMap(from).entrySet())
+      {
+         read(e.getValue(), state);
+         generation = e.getKey();
+      }
+      apply(state);
+      if (LOG.isDebugEnabled())
+      {
+         LOG.debug("Restored " + state.objects.size() + " objects from " + directory);
+      }
+   }
+
+   /**
+    * Write snapshot of current state and start write changes in journal.
+    *
+    * @throws IOException if snapshot can't be written
+    */
+   void start() throws IOException
+   {
+      started = true;
+      snapshot();
+      snapshotWriter = Executors.newSingleThreadExecutor(new ThreadFactory()
+      {
+         public Thread newThread(Runnable r)
+         {
+            Thread t = new Thread(r, "xcmis-storage-snapshot");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+      {
+         public Thread newThread(Runnable r)
+         {
+            Thread t = new Thread(r, "xcmis-storage-journal");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      scheduler.scheduleWithFixedDelay(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               flush();
+               if (getJournalSize() > maxJournalSize && snapshotScheduled.compareAndSet(false, true))
+               {
+                  scheduleSnapshot();
+               }
+            }
+            catch (IOException e)
+            {
+               LOG.error("Unable write storage journal. " + e.getMessage(), e);
+            }
+         }
+      }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+   }
+
+   private void scheduleSnapshot()
+   {
+      try
+      {
+         snapshotWriter.execute(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  snapshot();
+               }
+               catch (IOException e)
+               {
+                  LOG.error("Unable write storage snapshot. " + e.getMessage(), e);
+               }
+               finally
+               {
+                  snapshotScheduled.set(false);
+               }
+            }
+         });
+      }
+      catch (RejectedExecutionException e)
+      {
+         // storage is closing
+         snapshotScheduled.set(false);
+      }
+   }
+
+   /**
+    * Mark object as changed. Current state of object is written at next
+    * flush or before return if journal is synchronous.
+    *
+    * @param id object id
+    */
+   void touch(String id)
+   {
+      if (started)
+      {
+         dirty.add(id);
+         if (syncJournal)
+         {
+            commit();
+         }
+      }
+   }
+
+   /**
+    * Mark type definitions as changed.
+    */
+   void typesChanged()
+   {
+      if (started)
+      {
+         typesDirty.set(true);
+         if (syncJournal)
+         {
+            commit();
+         }
+      }
+   }
+
+   /**
+    * Wait until changes made by current thread are written in journal. Thread
+    * what gets lock writes changes of all threads, so threads what were
+    * waiting for lock at that time don't write journal again.
+    */
+   private void commit()
+   {
+      long request = commitRequests.incrementAndGet();
+      synchronized (lock)
+      {
+         if (committed >= request)
+         {
+            return;
+         }
+         // all changes marked before requests were counted are written by this flush
+         long covered = commitRequests.get();
+         try
+         {
+            flush();
+         }
+         catch (IOException e)
+         {
+            throw new CmisRuntimeException("Unable write storage journal. " + e.getMessage(), e);
+         }
+         committed = covered;
+      }
+   }
+
+   /**
+    * Write all changes collected since last flush in journal and force it to
+    * disk.
+    *
+    * @throws IOException if any i/o error occurs
+    */
+   void flush() throws IOException
+   {
+      synchronized (lock)
+      {
+         if (journal == null)
+         {
+            return;
+         }
+         if (storage.blobStore instanceof MappedBlobStore)
+         {
+            // referenced content must be on disk before journal
+            ((MappedBlobStore)storage.blobStore).force();
+         }
+         if (typesDirty.compareAndSet(true, false))
+         {
+            writeTypes(journal);
+         }
+         for (Iterator<String> i = dirty.iterator(); i.hasNext();)
+         {
+            String id = i.next();
+            i.remove();
+            writeObject(journal, id);
+         }
+         long sequence = storage.changes.getNextSequence();
+         if (sequence != writtenSequence)
+         {
+            writeChangeLog(journal, sequence);
+            writtenSequence = sequence;
+         }
+         journal.flush();
+         journalFile.getChannel().force(false);
+      }
+   }
+
+   /**
+    * Start new journal and write snapshot of current state. Storage is not
+    * locked while snapshot is written, objects changed at that time are
+    * written in new journal.
+    *
+    * @throws IOException if any i/o error occurs
+    */
+   void snapshot() throws IOException
+   {
+      MappedBlobStore blobStore =
+         storage.blobStore instanceof MappedBlobStore ? (MappedBlobStore)storage.blobStore : null;
+      if (blobStore != null)
+      {
+         compact(blobStore);
+      }
+      writeSnapshot(startJournal());
+      if (blobStore != null)
+      {
+         // neither snapshot nor journals refer to retired segments any more
+         blobStore.deleteRetired();
+      }
+   }
+
+   /**
+    * Move content of stored objects out of sparse segments. Changed objects
+    * are written in current journal, so snapshot and journals written after
+    * it don't refer to retired segments.
+    */
+   private void compact(MappedBlobStore blobStore) throws IOException
+   {
+      Set<Blob> live = Collections.newSetFromMap(new IdentityHashMap<Blob, Boolean>());
+      for (Entry entry : storage.entries.values())
+      {
+         for (Value value : entry.getValues().values())
+         {
+            if (value.isContent())
+            {
+               live.add(((ContentValue)value).getBlob());
+            }
+         }
+      }
+      Map<Blob, Blob> moved = blobStore.compact(live);
+      if (moved.isEmpty())
+      {
+         return;
+      }
+      for (Entry entry : storage.entries.values())
+      {
+         for (Map.Entry<String, Value> e : entry.getValues().entrySet())
+         {
+            Value value = e.getValue();
+            Blob copy = value.isContent() ? moved.get(((ContentValue)value).getBlob()) : null;
+            if (copy != null)
+            {
+               // content changed concurrently is not replaced
+               entry.replaceValue(e.getKey(), value, new ContentValue(copy));
+            }
+         }
+      }
+   }
+
+   /**
+    * Write all changes in current journal and start new one.
+    *
+    * @return generation of new journal
+    * @throws IOException if any i/o error occurs
+    */
+   long startJournal() throws IOException
+   {
+      synchronized (lock)
+      {
+         flush();
+         closeJournal();
+         long gen = ++generation;
+         journalFile = new FileOutputStream(new File(directory, JOURNAL + gen));
+         journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+         writeHeader(journal);
+         return gen;
+      }
+   }
+
+   /**
+    * Write snapshot of current state and remove files of the previous
+    * generations. Until snapshot is renamed to its final name state is
+    * restored from previous snapshot and all journals after it.
+    *
+    * @param gen generation of snapshot, the same as generation of journal
+    *        started before snapshot
+    * @throws IOException if any i/o error occurs
+    */
+   void writeSnapshot(long gen) throws IOException
+   {
+      File tmp = new File(directory, SNAPSHOT + gen + TMP);
+      FileOutputStream file = new FileOutputStream(tmp);
+      try
+      {
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+         writeHeader(out);
+         writeTypes(out);
+         for (String id : storage.entries.keySet())
+         {
+            writeObject(out, id);
+         }
+         writeChangeLog(out, storage.changes.getNextSequence());
+         out.flush();
+         file.getChannel().force(false);
+      }
+      finally
+      {
+         file.close();
+      }
+      if (!tmp.renameTo(new File(directory, SNAPSHOT + gen)))
+      {
+         throw new IOException("Unable rename snapshot " + tmp);
+      }
+
+      File[] files = directory.listFiles();
+      for (File f : files != null ? files : new File[0])
+      {
+         String name = f.getName();
+         if ((name.startsWith(SNAPSHOT) && !name.endsWith(TMP) && parseGeneration(name, SNAPSHOT) < gen)
+            || (name.startsWith(JOURNAL) && parseGeneration(name, JOURNAL) < gen))
+         {
+            f.delete();
+         }
+      }
+   }
+
+   /**
+    * Write all changes, close journal and mark storage as closed properly.
+    */
+   void close()
+   {
+      shutdown(scheduler);
+      shutdown(snapshotWriter);
+      synchronized (lock)
+      {
+         try
+         {
+            flush();
+            closeJournal();
+            new File(directory, CLEAN).createNewFile();
+         }
+         catch (IOException e)
+         {
+            LOG.error("Unable close storage journal. " + e.getMessage(), e);
+         }
+         started = false;
+      }
+   }
+
+   private static void shutdown(ExecutorService executor)
+   {
+      if (executor != null)
+      {
+         executor.shutdown();
+         try
+         {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   private long getJournalSize()
+   {
+      synchronized (lock)
+      {
+         return journal != null ? journal.size() : 0;
+      }
+   }
+
+   private void closeJournal() throws IOException
+   {
+      if (journal != null)
+      {
+         journal.close();
+         journal = null;
+         journalFile = null;
+      }
+   }
+
+   // ------------------------------------------------------------------ write
+
+   private void writeHeader(DataOutputStream out) throws IOException
+   {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+   }
+
+   private void writeChangeLog(DataOutputStream out, long sequence) throws IOException
+   {
+      out.writeByte(CHANGE_LOG);
+      out.writeLong(sequence);
+   }
+
+   /**
+    * Write all types what are not base types. Parent type is written before
+    * its children.
+    */
+   private void writeTypes(DataOutputStream out) throws IOException
+   {
+      List<TypeDefinition> list = new ArrayList<TypeDefinition>();
+      for (BaseType base : BaseType.values())
+      {
+         collectTypes(base.value(), list);
+      }
+      out.writeByte(TYPES);
+      out.writeInt(list.size());
+      for (TypeDefinition type : list)
+      {
+         writeType(out, type);
+      }
+   }
+
+   private void collectTypes(String parentId, List<TypeDefinition> list)
+   {
+      Set<String> ids = storage.typeChildren.get(parentId);
+      if (ids == null)
+      {
+         return;
+      }
+      for (String id : new ArrayList<String>(ids))
+      {
+         TypeDefinition type = storage.types.get(id);
+         if (type != null)
+         {
+            list.add(type);
+            collectTypes(id, list);
+         }
+      }
+   }
+
+   private void writeObject(DataOutputStream out, String id) throws IOException
+   {
+      Entry entry = storage.entries.get(id);
+      if (entry == null)
+      {
+         out.writeByte(REMOVED);
+         writeString(out, id);
+         return;
+      }
+      // collect state first, object may be changed at the same time
+      Map<String, Value> values = new HashMap<String, Value>(entry.getValues());
+      Map<String, Set<String>> permissions = new HashMap<String, Set<String>>(entry.getPermissions());
+      List<String> policies = new ArrayList<String>(entry.getPolicies());
+      Set<String> parents = storage.parents.get(id);
+      String versionSeriesId = getString(values, CmisConstants.VERSION_SERIES_ID);
+      List<String> versions = versionSeriesId != null ? storage.versions.get(versionSeriesId) : null;
+
+      out.writeByte(OBJECT);
+      writeString(out, id);
+      out.writeInt(values.size());
+      for (Map.Entry<String, Value> e : values.entrySet())
+      {
+         writeString(out, e.getKey());
+         writeValue(out, e.getValue());
+      }
+      out.writeInt(permissions.size());
+      for (Map.Entry<String, Set<String>> e : permissions.entrySet())
+      {
+         writeString(out, e.getKey());
+         writeStrings(out, new ArrayList<String>(e.getValue()));
+      }
+      writeStrings(out, policies);
+      if (parents == null)
+      {
+         out.writeByte(NO_PARENTS);
+      }
+      else if (parents == StorageImpl.EMPTY_PARENTS)
+      {
+         out.writeByte(EMPTY_PARENTS);
+      }
+      else
+      {
+         List<String> list = new ArrayList<String>(parents);
+         out.writeByte(FOLDERS);
+         out.writeInt(list.size());
+         String name = entry.getName();
+         for (String parent : list)
+         {
+            writeString(out, parent);
+            out.writeBoolean(id.equals(storage.getChildIdByName(parent, name)));
+         }
+      }
+      out.writeBoolean(storage.unfiled.contains(id));
+      writeStrings(out, versions != null ? new ArrayList<String>(versions) : null);
+   }
+
+   private void writeValue(DataOutputStream out, Value value) throws IOException
+   {
+      if (value.isContent())
+      {
+         Blob blob = ((ContentValue)value).getBlob();
+         if (blob instanceof MappedBlobStore.MappedBlob && storage.blobStore instanceof MappedBlobStore
+            && ((MappedBlobStore)storage.blobStore).isPersistent()
+            && !((MappedBlobStore)storage.blobStore).isRetired(blob))
+         {
+            MappedBlobStore.MappedBlob mapped = (MappedBlobStore.MappedBlob)blob;
+            out.writeByte(CONTENT_REF);
+            writeString(out, mapped.getSegment());
+            out.writeLong(mapped.getOffset());
+            out.writeLong(mapped.length());
+         }
+         else
+         {
+            out.writeByte(CONTENT);
+            out.writeLong(blob.length());
+            InputStream in = blob.getStream();
+            byte[] buf = new byte[8192];
+            int r;
+            while ((r = in.read(buf)) != -1)
+            {
+               out.write(buf, 0, r);
+            }
+         }
+      }
+      else if (value.isString())
+      {
+         out.writeByte(STRING);
+         writeArray(out, PropertyType.STRING, value.getStrings());
+      }
+      else if (value.isBoolean())
+      {
+         out.writeByte(BOOLEAN);
+         writeArray(out, PropertyType.BOOLEAN, value.getBooleans());
+      }
+      else if (value.isInteger())
+      {
+         out.writeByte(INTEGER);
+         writeArray(out, PropertyType.INTEGER, value.getIntegers());
+      }
+      else if (value.isDecimal())
+      {
+         out.writeByte(DECIMAL);
+         writeArray(out, PropertyType.DECIMAL, value.getDecimals());
+      }
+      else if (value.isDate())
+      {
+         out.writeByte(DATE);
+         writeArray(out, PropertyType.DATETIME, value.getDates());
+      }
+      else if (value.isURI())
+      {
+         out.writeByte(URI_VALUE);
+         writeArray(out, PropertyType.URI, value.getURI());
+      }
+      else
+      {
+         throw new IOException("Unsupported value " + value.getClass().getName());
+      }
+   }
+
+   private void writeType(DataOutputStream out, TypeDefinition type) throws IOException
+   {
+      writeString(out, type.getId());
+      writeString(out, type.getBaseId().value());
+      writeString(out, type.getQueryName());
+      writeString(out, type.getLocalName());
+      writeString(out, type.getLocalNamespace());
+      writeString(out, type.getParentId());
+      writeString(out, type.getDisplayName());
+      writeString(out, type.getDescription());
+      out.writeBoolean(type.isCreatable());
+      out.writeBoolean(type.isFileable());
+      out.writeBoolean(type.isQueryable());
+      out.writeBoolean(type.isFulltextIndexed());
+      out.writeBoolean(type.isIncludedInSupertypeQuery());
+      out.writeBoolean(type.isControllablePolicy());
+      out.writeBoolean(type.isControllableACL());
+      out.writeBoolean(type.isVersionable());
+      writeArray(out, PropertyType.STRING, type.getAllowedSourceTypes());
+      writeArray(out, PropertyType.STRING, type.getAllowedTargetTypes());
+      writeEnum(out, type.getContentStreamAllowed());
+      Collection<PropertyDefinition<?>> definitions = type.getPropertyDefinitions();
+      if (definitions == null)
+      {
+         out.writeInt(-1);
+         return;
+      }
+      out.writeInt(definitions.size());
+      for (PropertyDefinition<?> definition : definitions)
+      {
+         writePropertyDefinition(out, definition);
+      }
+   }
+
+   private void writePropertyDefinition(DataOutputStream out, PropertyDefinition<?> definition) throws IOException
+   {
+      PropertyType propertyType = definition.getPropertyType();
+      writeString(out, definition.getId());
+      writeString(out, definition.getQueryName());
+      writeString(out, definition.getLocalName());
+      writeString(out, definition.getLocalNamespace());
+      writeString(out, definition.getDisplayName());
+      writeString(out, definition.getDescription());
+      writeEnum(out, propertyType);
+      writeEnum(out, definition.getUpdatability());
+      out.writeBoolean(definition.getInherited() != null && definition.getInherited());
+      out.writeBoolean(definition.isRequired());
+      out.writeBoolean(definition.isQueryable());
+      out.writeBoolean(definition.isOrderable());
+      out.writeByte(definition.isOpenChoice() == null ? -1 : definition.isOpenChoice() ? 1 : 0);
+      out.writeBoolean(definition.isMultivalued());
+      writeEnum(out, definition.getDateResolution());
+      writeEnum(out, definition.getDecimalPrecision());
+      writeArray(out, propertyType, definition.getDefaultValue());
+      out.writeInt(definition.getMaxLength());
+      writeString(out, definition.getMinInteger() != null ? definition.getMinInteger().toString() : null);
+      writeString(out, definition.getMaxInteger() != null ? definition.getMaxInteger().toString() : null);
+      writeString(out, definition.getMinDecimal() != null ? definition.getMinDecimal().toString() : null);
+      writeString(out, definition.getMaxDecimal() != null ? definition.getMaxDecimal().toString() : null);
+      writeChoices(out, propertyType, definition.getChoices());
+   }
+
+   private void writeChoices(DataOutputStream out, PropertyType propertyType, List<? extends Choice<?>> choices)
+      throws IOException
+   {
+      out.writeInt(choices.size());
+      for (Choice<?> choice : choices)
+      {
+         writeString(out, choice.getDisplayName());
+         writeArray(out, propertyType, choice.getValues());
+         writeChoices(out, propertyType, choice.getChoices());
+      }
+   }
+
+   /**
+    * Write array of values of specified type. Array and its elements may be
+    * null.
+    */
+   private void writeArray(DataOutputStream out, PropertyType propertyType, Object[] values) throws IOException
+   {
+      if (values == null)
+      {
+         out.writeInt(-1);
+         return;
+      }
+      out.writeInt(values.length);
+      for (Object v : values)
+      {
+         switch (propertyType)
+         {
+            case BOOLEAN :
+               out.writeByte(v == null ? -1 : ((Boolean)v) ? 1 : 0);
+               break;
+            case DATETIME :
+               Calendar date = (Calendar)v;
+               out.writeBoolean(date != null);
+               if (date != null)
+               {
+                  out.writeLong(date.getTimeInMillis());
+                  writeString(out, date.getTimeZone().getID());
+               }
+               break;
+            default :
+               // strings, ids, html, numbers and URIs are kept as string
+               writeString(out, v != null ? v.toString() : null);
+               break;
+         }
+      }
+   }
+
+   private void writeStrings(DataOutputStream out, List<String> strings) throws IOException
+   {
+      writeArray(out, PropertyType.STRING, strings != null ? strings.toArray() : null);
+   }
+
+   private void writeEnum(DataOutputStream out, Enum<?> e) throws IOException
+   {
+      writeString(out, e != null ? e.name() : null);
+   }
+
+   private static void writeString(DataOutputStream out, String s) throws IOException
+   {
+      if (s == null)
+      {
+         out.writeInt(-1);
+         return;
+      }
+      byte[] bytes = s.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   // ------------------------------------------------------------------- read
+
+   /**
+    * Read records of snapshot or journal. Journal may be cut at crash, then
+    * incomplete last record is ignored.
+    */
+   private void read(File file, State state) throws IOException
+   {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try
+      {
+         if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+         {
+            throw new IOException("Unsupported format of " + file);
+         }
+         int tag;
+         while ((tag = in.read()) != -1)
+         {
+            switch (tag)
+            {
+               case OBJECT :
+                  readObject(in, state);
+                  break;
+               case REMOVED :
+                  state.objects.remove(readString(in));
+                  break;
+               case TYPES :
+                  int count = in.readInt();
+                  List<TypeDefinition> types = new ArrayList<TypeDefinition>(count);
+                  for (int i = 0; i < count; i++)
+                  {
+                     types.add(readType(in));
+                  }
+                  state.types = types;
+                  break;
+               case CHANGE_LOG :
+                  state.nextSequence = Math.max(state.nextSequence, in.readLong());
+                  break;
+               default :
+                  throw new IOException("Unknown record " + tag + " in " + file);
+            }
+         }
+      }
+      catch (EOFException e)
+      {
+         LOG.warn("Last record of " + file + " is incomplete and skipped.");
+      }
+      finally
+      {
+         in.close();
+      }
+   }
+
+   private void readObject(DataInputStream in, State state) throws IOException
+   {
+      ObjectState object = new ObjectState();
+      String id = readString(in);
+      int count = in.readInt();
+      object.values = new HashMap<String, Value>(count);
+      for (int i = 0; i < count; i++)
+      {
+         String name = readString(in);
+         object.values.put(name, readValue(in));
+      }
+      count = in.readInt();
+      object.permissions = new HashMap<String, Set<String>>(count);
+      for (int i = 0; i < count; i++)
+      {
+         String principal = readString(in);
+         object.permissions.put(principal, new HashSet<String>(readStrings(in)));
+      }
+      object.policies = new HashSet<String>(readStrings(in));
+      object.parentsKind = in.readByte();
+      if (object.parentsKind == FOLDERS)
+      {
+         count = in.readInt();
+         object.parents = new LinkedHashMap<String, Boolean>(count);
+         for (int i = 0; i < count; i++)
+         {
+            String parent = readString(in);
+            object.parents.put(parent, in.readBoolean());
+         }
+      }
+      object.unfiled = in.readBoolean();
+      List<String> versions = readStrings(in);
+
+      state.objects.remove(id);
+      state.objects.put(id, object);
+      String versionSeriesId = getString(object.values, CmisConstants.VERSION_SERIES_ID);
+      if (versionSeriesId != null && versions != null)
+      {
+         state.versions.put(versionSeriesId, versions);
+      }
+   }
+
+   private Value readValue(DataInputStream in) throws IOException
+   {
+      byte tag = in.readByte();
+      switch (tag)
+      {
+         case STRING :
+            return new StringValue((String[])readArray(in, PropertyType.STRING));
+         case BOOLEAN :
+            return new BooleanValue((Boolean[])readArray(in, PropertyType.BOOLEAN));
+         case INTEGER :
+            return new IntegerValue((BigInteger[])readArray(in, PropertyType.INTEGER));
+         case DECIMAL :
+            return new DecimalValue((BigDecimal[])readArray(in, PropertyType.DECIMAL));
+         case DATE :
+            return new DateValue((Calendar[])readArray(in, PropertyType.DATETIME));
+         case URI_VALUE :
+            return new UriValue((URI[])readArray(in, PropertyType.URI));
+         case CONTENT :
+            long length = in.readLong();
+            return new ContentValue(storage.blobStore.create(new BoundedInputStream(in, length)));
+         case CONTENT_REF :
+            String segment = readString(in);
+            long offset = in.readLong();
+            long size = in.readLong();
+            if (!(storage.blobStore instanceof MappedBlobStore))
+            {
+               throw new IOException("Content of segment " + segment + " can't be read by "
+                  + storage.blobStore.getClass().getName());
+            }
+            return new ContentValue(((MappedBlobStore)storage.blobStore).open(segment, offset, size));
+         default :
+            throw new IOException("Unknown value " + tag);
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   private TypeDefinition readType(DataInputStream in) throws IOException
+   {
+      TypeDefinition type = new TypeDefinition();
+      type.setId(readString(in));
+      type.setBaseId(BaseType.fromValue(readString(in)));
+      type.setQueryName(readString(in));
+      type.setLocalName(readString(in));
+      type.setLocalNamespace(readString(in));
+      type.setParentId(readString(in));
+      type.setDisplayName(readString(in));
+      type.setDescription(readString(in));
+      type.setCreatable(in.readBoolean());
+      type.setFileable(in.readBoolean());
+      type.setQueryable(in.readBoolean());
+      type.setFulltextIndexed(in.readBoolean());
+      type.setIncludedInSupertypeQuery(in.readBoolean());
+      type.setControllablePolicy(in.readBoolean());
+      type.setControllableACL(in.readBoolean());
+      type.setVersionable(in.readBoolean());
+      type.setAllowedSourceTypes((String[])readArray(in, PropertyType.STRING));
+      type.setAllowedTargetTypes((String[])readArray(in, PropertyType.STRING));
+      String contentStreamAllowed = readString(in);
+      type.setContentStreamAllowed(contentStreamAllowed != null ? ContentStreamAllowed.valueOf(contentStreamAllowed)
+         : null);
+      int count = in.readInt();
+      if (count >= 0)
+      {
+         Map<String, PropertyDefinition<?>> definitions = new HashMap<String, PropertyDefinition<?>>(count);
+         for (int i = 0; i < count; i++)
+         {
+            PropertyDefinition<?> definition = readPropertyDefinition(in);
+            definitions.put(definition.getId(), definition);
+         }
+         type.setPropertyDefinitions(definitions);
+      }
+      return type;
+   }
+
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   private PropertyDefinition<?> readPropertyDefinition(DataInputStream in) throws IOException
+   {
+      PropertyDefinition definition = new PropertyDefinition();
+      definition.setId(readString(in));
+      definition.setQueryName(readString(in));
+      definition.setLocalName(readString(in));
+      definition.setLocalNamespace(readString(in));
+      definition.setDisplayName(readString(in));
+      definition.setDescription(readString(in));
+      String s = readString(in);
+      PropertyType propertyType = s != null ? PropertyType.valueOf(s) : null;
+      definition.setPropertyType(propertyType);
+      s = readString(in);
+      definition.setUpdatability(s != null ? Updatability.valueOf(s) : null);
+      definition.setInherited(in.readBoolean());
+      definition.setRequired(in.readBoolean());
+      definition.setQueryable(in.readBoolean());
+      definition.setOrderable(in.readBoolean());
+      byte openChoice = in.readByte();
+      definition.setOpenChoice(openChoice < 0 ? null : Boolean.valueOf(openChoice == 1));
+      definition.setMultivalued(in.readBoolean());
+      s = readString(in);
+      definition.setDateResolution(s != null ? DateResolution.valueOf(s) : null);
+      s = readString(in);
+      definition.setDecimalPrecision(s != null ? Precision.valueOf(s) : null);
+      definition.setDefaultValue(readArray(in, propertyType));
+      definition.setMaxLength(in.readInt());
+      s = readString(in);
+      definition.setMinInteger(s != null ? new BigInteger(s) : null);
+      s = readString(in);
+      definition.setMaxInteger(s != null ? new BigInteger(s) : null);
+      s = readString(in);
+      definition.setMinDecimal(s != null ? new BigDecimal(s) : null);
+      s = readString(in);
+      definition.setMaxDecimal(s != null ? new BigDecimal(s) : null);
+      readChoices(in, propertyType, definition.getChoices());
+      return definition;
+   }
+
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   private void readChoices(DataInputStream in, PropertyType propertyType, List choices) throws IOException
+   {
+      int count = in.readInt();
+      for (int i = 0; i < count; i++)
+      {
+         Choice choice = new Choice();
+         choice.setDisplayName(readString(in));
+         choice.setValues(readArray(in, propertyType));
+         readChoices(in, propertyType, choice.getChoices());
+         choices.add(choice);
+      }
+   }
+
+   /**
+    * Read array written by {@link #writeArray(DataOutputStream, PropertyType, Object[])}.
+    * Component type of array is Boolean, BigInteger, BigDecimal, Calendar, URI
+    * or String depending on property type.
+    */
+   private Object[] readArray(DataInputStream in, PropertyType propertyType) throws IOException
+   {
+      int length = in.readInt();
+      if (length < 0)
+      {
+         return null;
+      }
+      PropertyType t = propertyType != null ? propertyType : PropertyType.STRING;
+      Object[] values;
+      switch (t)
+      {
+         case BOOLEAN :
+            values = new Boolean[length];
+            break;
+         case INTEGER :
+            values = new BigInteger[length];
+            break;
+         case DECIMAL :
+            values = new BigDecimal[length];
+            break;
+         case DATETIME :
+            values = new Calendar[length];
+            break;
+         case URI :
+            values = new URI[length];
+            break;
+         default :
+            values = new String[length];
+            break;
+      }
+      for (int i = 0; i < length; i++)
+      {
+         switch (t)
+         {
+            case BOOLEAN :
+               byte b = in.readByte();
+               values[i] = b < 0 ? null : Boolean.valueOf(b == 1);
+               break;
+            case DATETIME :
+               if (in.readBoolean())
+               {
+                  long time = in.readLong();
+                  Calendar date = Calendar.getInstance(TimeZone.getTimeZone(readString(in)));
+                  date.setTimeInMillis(time);
+                  values[i] = date;
+               }
+               break;
+            default :
+               String s = readString(in);
+               if (s != null)
+               {
+                  if (t == PropertyType.INTEGER)
+                  {
+                     values[i] = new BigInteger(s);
+                  }
+                  else if (t == PropertyType.DECIMAL)
+                  {
+                     values[i] = new BigDecimal(s);
+                  }
+                  else if (t == PropertyType.URI)
+                  {
+                     values[i] = URI.create(s);
+                  }
+                  else
+                  {
+                     values[i] = s;
+                  }
+               }
+               break;
+         }
+      }
+      return values;
+   }
+
+   private List<String> readStrings(DataInputStream in) throws IOException
+   {
+      String[] strings = (String[])readArray(in, PropertyType.STRING);
+      if (strings == null)
+      {
+         return null;
+      }
+      List<String> list = new ArrayList<String>(strings.length);
+      Collections.addAll(list, strings);
+      return list;
+   }
+
+   private static String readString(DataInputStream in) throws IOException
+   {
+      int length = in.readInt();
+      if (length < 0)
+      {
+         return null;
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, "UTF-8");
+   }
+
+   // ------------------------------------------------------------------ apply
+
+   /**
+    * Fill storage with restored state. Folders hierarchy, relationships,
+    * version series and unique names are rebuilt from objects.
+    */
+   private void apply(State state)
+   {
+      if (state.types != null)
+      {
+         for (TypeDefinition type : state.types)
+         {
+            storage.restoreType(type);
+         }
+      }
+
+      ObjectState root = state.objects.get(StorageImpl.ROOT_FOLDER_ID);
+      if (root != null)
+      {
+         storage.removeEntry(StorageImpl.ROOT_FOLDER_ID);
+      }
+      for (Map.Entry<String, ObjectState> e : state.objects.entrySet())
+      {
+         String id = e.getKey();
+         ObjectState object = e.getValue();
+         Entry entry = new Entry(object.values, object.policies, object.permissions);
+         storage.addEntry(entry);
+         if (entry.getBaseTypeId() == BaseType.FOLDER && !storage.children.containsKey(id))
+         {
+            storage.children.put(id, new CopyOnWriteArraySet<String>());
+            storage.addFolderIndexes(id);
+         }
+      }
+
+      for (Map.Entry<String, ObjectState> e : state.objects.entrySet())
+      {
+         String id = e.getKey();
+         ObjectState object = e.getValue();
+         Entry entry = storage.entries.get(id);
+         if (object.parentsKind == EMPTY_PARENTS)
+         {
+            storage.parents.put(id, StorageImpl.EMPTY_PARENTS);
+         }
+         else if (object.parentsKind == FOLDERS)
+         {
+            Set<String> parents = new CopyOnWriteArraySet<String>();
+            for (Map.Entry<String, Boolean> p : object.parents.entrySet())
+            {
+               String parentId = p.getKey();
+               Set<String> children = storage.children.get(parentId);
+               if (children == null)
+               {
+                  // parent was removed after last write of child
+                  continue;
+               }
+               parents.add(parentId);
+               children.add(id);
+               if (p.getValue())
+               {
+                  storage.addChildName(parentId, entry.getName(), id);
+               }
+            }
+            storage.parents.put(id, parents);
+         }
+         if (object.unfiled)
+         {
+            storage.unfiled.add(id);
+         }
+
+         BaseType baseType = entry.getBaseTypeId();
+         if (baseType == BaseType.POLICY || baseType == BaseType.RELATIONSHIP)
+         {
+            String name = entry.getName();
+            if (name != null)
+            {
+               storage.uniqueNames.get(baseType).put(name, id);
+            }
+         }
+         if (baseType == BaseType.RELATIONSHIP)
+         {
+            addRelationship(getString(object.values, CmisConstants.SOURCE_ID), id);
+            addRelationship(getString(object.values, CmisConstants.TARGET_ID), id);
+         }
+         if (baseType == BaseType.DOCUMENT
+            && PropertyDefinitions.PWC_LABEL.equals(getString(object.values, CmisConstants.VERSION_LABEL)))
+         {
+            storage.workingCopies.put(getString(object.values, CmisConstants.VERSION_SERIES_ID), id);
+            storage.checkedOut.add(entry, storage.parents.get(id), getString(object.values,
+               CmisConstants.VERSION_SERIES_CHECKED_OUT_BY));
+         }
+      }
+
+      for (Map.Entry<String, List<String>> e : state.versions.entrySet())
+      {
+         List<String> versions = new CopyOnWriteArrayList<String>();
+         for (String id : e.getValue())
+         {
+            if (storage.entries.containsKey(id))
+            {
+               versions.add(id);
+            }
+         }
+         if (versions.size() > 0)
+         {
+            storage.versions.put(e.getKey(), versions);
+         }
+      }
+
+      if (state.nextSequence > 0)
+      {
+         storage.changes.resume(state.nextSequence);
+      }
+   }
+
+   private void addRelationship(String objectId, String relationshipId)
+   {
+      if (objectId == null)
+      {
+         return;
+      }
+      Set<String> relationships = storage.relationships.get(objectId);
+      if (relationships == null)
+      {
+         relationships = new CopyOnWriteArraySet<String>();
+         storage.relationships.put(objectId, relationships);
+      }
+      relationships.add(relationshipId);
+   }
+
+   private static String getString(Map<String, Value> values, String id)
+   {
+      Value value = values.get(id);
+      if (value != null)
+      {
+         String[] strings = value.getStrings();
+         return strings != null && strings.length > 0 ? strings[0] : null;
+      }
+      return null;
+   }
+
+   private static long parseGeneration(String name, String prefix) throws IOException
+   {
+      String s = name.substring(prefix.length());
+      if (s.endsWith(TMP))
+      {
+         s = s.substring(0, s.length() - TMP.length());
+      }
+      try
+      {
+         return Long.parseLong(s);
+      }
+      catch (NumberFormatException e)
+      {
+         throw new IOException("Unexpected file " + name);
+      }
+   }
+
+   private static void delete(File file)
+   {
+      File[] files = file.listFiles();
+      if (files != null)
+      {
+         for (File f : files)
+         {
+            delete(f);
+         }
+      }
+      file.delete();
+   }
+
+   /**
+    * Restored state of storage.
+    */
+   private static final class State
+   {
+      final Map<String, ObjectState> objects = new LinkedHashMap<String, ObjectState>();
+
+      final Map<String, List<String>> versions = new HashMap<String, List<String>>();
+
+      List<TypeDefinition> types;
+
+      long nextSequence;
+   }
+
+   /**
+    * Restored state of one object.
+    */
+   private static final class ObjectState
+   {
+      Map<String, Value> values;
+
+      Map<String, Set<String>> permissions;
+
+      Set<String> policies;
+
+      byte parentsKind;
+
+      /** Parent folders, value is true if object is visible by name in folder. */
+      Map<String, Boolean> parents;
+
+      boolean unfiled;
+   }
+
+   /**
+    * Stream what reads specified number of bytes of underlying stream and
+    * doesn't close it.
+    */
+   private static final class BoundedInputStream extends InputStream
+   {
+      private final InputStream in;
+
+      private long remaining;
+
+      BoundedInputStream(InputStream in, long length)
+      {
+         this.in = in;
+         this.remaining = length;
+      }
+
+      @Override
+      public int read() throws IOException
+      {
+         if (remaining <= 0)
+         {
+            return -1;
+         }
+         int b = in.read();
+         if (b == -1)
+         {
+            throw new EOFException();
+         }
+         remaining--;
+         return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         if (remaining <= 0)
+         {
+            return -1;
+         }
+         int r = in.read(b, off, (int)Math.min(len, remaining));
+         if (r == -1)
+         {
+            throw new EOFException();
+         }
+         remaining -= r;
+         return r;
+      }
+
+      @Override
+      public void close()
+      {
+         // underlying stream is closed by reader
+      }
+   }
+}
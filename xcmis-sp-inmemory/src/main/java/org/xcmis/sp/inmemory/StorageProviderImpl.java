@@ -21,6 +21,7 @@ package org.xcmis.sp.inmemory;
 
 import org.xcmis.spi.Connection;
 import org.xcmis.spi.InvalidArgumentException;
+import org.xcmis.spi.ObjectTreeBuilder;
 import org.xcmis.spi.PermissionService;
 import org.xcmis.spi.RenditionManager;
 import org.xcmis.spi.StorageProvider;
@@ -40,6 +41,8 @@ public class StorageProviderImpl implements StorageProvider
 
    private RenditionManager renditionManager;
 
+   private ObjectTreeBuilder treeBuilder = ObjectTreeBuilder.SEQUENTIAL;
+
    /**
     * Instantiates a new storage provider impl.
     *
@@ -60,6 +63,18 @@ public class StorageProviderImpl implements StorageProvider
          new StorageImpl(storageConfig, renditionManager, new PermissionService());
    }
 
+   /**
+    * Instantiates a new storage provider impl.
+    *
+    * @param configuration storage configuration
+    */
+   public StorageProviderImpl(StorageConfiguration configuration)
+   {
+      this.storageConfig = configuration;
+      this.renditionManager = RenditionManager.getInstance();
+      this.storageImpl = new StorageImpl(storageConfig, renditionManager, new PermissionService());
+   }
+
    /**
     * @see org.xcmis.spi.StorageProvider#getConnection()
     */
@@ -70,7 +85,19 @@ public class StorageProviderImpl implements StorageProvider
          throw new InvalidArgumentException("CMIS repository does not exist.");
       }
 
-      return new InmemConnection(storageImpl);
+      InmemConnection connection = new InmemConnection(storageImpl);
+      connection.setTreeBuilder(treeBuilder);
+      return connection;
+   }
+
+   /**
+    * Set builder of object trees for connections to storage.
+    *
+    * @param treeBuilder tree builder
+    */
+   public void setTreeBuilder(ObjectTreeBuilder treeBuilder)
+   {
+      this.treeBuilder = treeBuilder;
    }
 
    /**
@@ -81,4 +108,15 @@ public class StorageProviderImpl implements StorageProvider
       return storageConfig.getId();
    }
 
+   /**
+    * Write all changes of persistent storage to disk and release its
+    * resources. Storage must not be used after closing.
+    *
+    * @see StorageImpl#close()
+    */
+   public void close()
+   {
+      storageImpl.close();
+   }
+
 }
@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals of stored objects, content and estimated size of properties.
+ * Totals are updated on each change of stored objects, so reading them and
+ * checking storage limits doesn't depend on number of objects. Content shared
+ * between few objects, e.g. by document and its private working copy, is
+ * counted once for type of object what stored it first.
+ * <p>
+ * Content what is going to be stored is reserved before it is written, see
+ * {@link #reserve(long, long)}, so concurrent uploads can't exceed limit of
+ * memory together. Reservation of created content is kept until content is
+ * stored by object or becomes unreachable.
+ *
+ * @version $Id$
+ */
+public class UsageStatistics
+{
+   /**
+    * Usage of storage by objects of one type. Objects of subtypes are not
+    * counted.
+    */
+   public static final class TypeUsage
+   {
+      private final AtomicInteger objects = new AtomicInteger();
+
+      private final AtomicLong contentBytes = new AtomicLong();
+
+      private final AtomicLong propertyBytes = new AtomicLong();
+
+      /**
+       * @return number of objects
+       */
+      public int getObjectCount()
+      {
+         return objects.get();
+      }
+
+      /**
+       * @return length of content of objects in bytes
+       */
+      public long getContentBytes()
+      {
+         return contentBytes.get();
+      }
+
+      /**
+       * @return estimated size of properties of objects in bytes
+       */
+      public long getPropertyBytes()
+      {
+         return propertyBytes.get();
+      }
+   }
+
+   /**
+    * Number of objects what refer to the same content.
+    */
+   private static final class BlobRef
+   {
+      final String typeId;
+
+      int count;
+
+      BlobRef(String typeId)
+      {
+         this.typeId = typeId;
+      }
+   }
+
+   /**
+    * Reservation of created content what is not stored by any object yet.
+    */
+   private static final class Reservation extends WeakReference<Blob>
+   {
+      final long length;
+
+      Reservation(Blob blob, ReferenceQueue<Blob> queue)
+      {
+         super(blob, queue);
+         this.length = blob.length();
+      }
+   }
+
+   /** Estimated overhead of property entry in map of entry values. */
+   private static final int PROPERTY_OVERHEAD = 64;
+
+   private final ConcurrentMap<String, TypeUsage> types = new ConcurrentHashMap<String, TypeUsage>();
+
+   private final AtomicInteger objects = new AtomicInteger();
+
+   private final AtomicLong contentBytes = new AtomicLong();
+
+   private final AtomicLong propertyBytes = new AtomicLong();
+
+   private final Map<Blob, BlobRef> blobs = new IdentityHashMap<Blob, BlobRef>();
+
+   /** Length of stored content plus length of reserved content. */
+   private final AtomicLong allocatedBytes = new AtomicLong();
+
+   /** Guarded by {@link #blobs}. */
+   private final List<Reservation> reservations = new ArrayList<Reservation>();
+
+   private final ReferenceQueue<Blob> abandoned = new ReferenceQueue<Blob>();
+
+   /**
+    * @return number of stored objects
+    */
+   public int getObjectCount()
+   {
+      return objects.get();
+   }
+
+   /**
+    * @return length of stored content in bytes
+    */
+   public long getContentBytes()
+   {
+      return contentBytes.get();
+   }
+
+   /**
+    * @return estimated size of properties of stored objects in bytes
+    */
+   public long getPropertyBytes()
+   {
+      return propertyBytes.get();
+   }
+
+   /**
+    * @return length of stored content and of content reserved for storing in
+    *         bytes
+    */
+   public long getAllocatedBytes()
+   {
+      releaseAbandoned();
+      return allocatedBytes.get();
+   }
+
+   /**
+    * Reserve bytes for content what is going to be written. Reservation
+    * succeeds only if stored and reserved content together don't exceed
+    * limit.
+    *
+    * @param length number of bytes
+    * @param limit max number of stored and reserved bytes
+    * @return true if bytes are reserved and false if limit is reached
+    */
+   boolean reserve(long length, long limit)
+   {
+      releaseAbandoned();
+      for (;;)
+      {
+         long current = allocatedBytes.get();
+         if (current + length > limit)
+         {
+            return false;
+         }
+         if (allocatedBytes.compareAndSet(current, current + length))
+         {
+            return true;
+         }
+      }
+   }
+
+   /**
+    * Give back bytes reserved by {@link #reserve(long, long)}, e.g. if content
+    * can't be written.
+    *
+    * @param length number of bytes
+    */
+   void unreserve(long length)
+   {
+      allocatedBytes.addAndGet(-length);
+   }
+
+   /**
+    * Bind reservation to created content. Reservation is adjusted to actual
+    * length of content and kept until content is stored by object or becomes
+    * unreachable.
+    *
+    * @param blob created content
+    * @param reserved number of bytes reserved for content
+    */
+   void reserved(Blob blob, long reserved)
+   {
+      synchronized (blobs)
+      {
+         if (blob.length() > 0 && !blobs.containsKey(blob))
+         {
+            reservations.add(new Reservation(blob, abandoned));
+            reserved -= blob.length();
+         }
+      }
+      unreserve(reserved);
+   }
+
+   /**
+    * @param typeId type id
+    * @return usage by objects of type or null if no one object of type was
+    *         stored
+    */
+   public TypeUsage getTypeUsage(String typeId)
+   {
+      return types.get(typeId);
+   }
+
+   /**
+    * @return usage by type id, only types what have at least one object are
+    *         included
+    */
+   public Map<String, TypeUsage> getTypeUsages()
+   {
+      Map<String, TypeUsage> usages = new HashMap<String, TypeUsage>();
+      for (Map.Entry<String, TypeUsage> e : types.entrySet())
+      {
+         if (e.getValue().getObjectCount() > 0)
+         {
+            usages.put(e.getKey(), e.getValue());
+         }
+      }
+      return usages;
+   }
+
+   /**
+    * Count new object.
+    *
+    * @param entry new object
+    */
+   void added(Entry entry)
+   {
+      TypeUsage usage = getOrCreate(entry.getTypeId());
+      usage.objects.incrementAndGet();
+      objects.incrementAndGet();
+      long size = 0;
+      for (Map.Entry<String, Value> e : entry.getValues().entrySet())
+      {
+         Value value = e.getValue();
+         if (value.isContent())
+         {
+            acquire(entry.getTypeId(), ((ContentValue)value).getBlob());
+         }
+         else
+         {
+            size += estimateSize(e.getKey(), value);
+         }
+      }
+      addPropertyBytes(usage, size);
+   }
+
+   /**
+    * Discount removed object.
+    *
+    * @param entry removed object
+    */
+   void removed(Entry entry)
+   {
+      TypeUsage usage = getOrCreate(entry.getTypeId());
+      usage.objects.decrementAndGet();
+      objects.decrementAndGet();
+      long size = 0;
+      for (Map.Entry<String, Value> e : entry.getValues().entrySet())
+      {
+         Value value = e.getValue();
+         if (value.isContent())
+         {
+            release(((ContentValue)value).getBlob());
+         }
+         else
+         {
+            size += estimateSize(e.getKey(), value);
+         }
+      }
+      addPropertyBytes(usage, -size);
+   }
+
+   /**
+    * Update totals after property of stored object was changed.
+    *
+    * @param entry object
+    * @param id property id
+    * @param oldValue previous value, may be null
+    * @param newValue new value, may be null
+    */
+   void changed(Entry entry, String id, Value oldValue, Value newValue)
+   {
+      if (oldValue != null && oldValue.isContent())
+      {
+         release(((ContentValue)oldValue).getBlob());
+      }
+      if (newValue != null && newValue.isContent())
+      {
+         acquire(entry.getTypeId(), ((ContentValue)newValue).getBlob());
+      }
+      long delta = estimateSize(id, newValue) - estimateSize(id, oldValue);
+      if (delta != 0)
+      {
+         addPropertyBytes(getOrCreate(entry.getTypeId()), delta);
+      }
+   }
+
+   /**
+    * Forget usage of removed type.
+    *
+    * @param typeId type id
+    */
+   void removeType(String typeId)
+   {
+      types.remove(typeId);
+   }
+
+   private TypeUsage getOrCreate(String typeId)
+   {
+      TypeUsage usage = types.get(typeId);
+      if (usage == null)
+      {
+         TypeUsage newUsage = new TypeUsage();
+         usage = types.putIfAbsent(typeId, newUsage);
+         if (usage == null)
+         {
+            usage = newUsage;
+         }
+      }
+      return usage;
+   }
+
+   private void addPropertyBytes(TypeUsage usage, long size)
+   {
+      usage.propertyBytes.addAndGet(size);
+      propertyBytes.addAndGet(size);
+   }
+
+   private void acquire(String typeId, Blob blob)
+   {
+      synchronized (blobs)
+      {
+         BlobRef ref = blobs.get(blob);
+         if (ref == null)
+         {
+            ref = new BlobRef(typeId);
+            blobs.put(blob, ref);
+            getOrCreate(typeId).contentBytes.addAndGet(blob.length());
+            contentBytes.addAndGet(blob.length());
+            if (!removeReservation(blob))
+            {
+               allocatedBytes.addAndGet(blob.length());
+            }
+         }
+         ref.count++;
+      }
+   }
+
+   private void release(Blob blob)
+   {
+      synchronized (blobs)
+      {
+         BlobRef ref = blobs.get(blob);
+         if (ref != null && --ref.count == 0)
+         {
+            blobs.remove(blob);
+            getOrCreate(ref.typeId).contentBytes.addAndGet(-blob.length());
+            contentBytes.addAndGet(-blob.length());
+            allocatedBytes.addAndGet(-blob.length());
+         }
+      }
+   }
+
+   /**
+    * Reservation of content is taken over by stored content. Must be called
+    * with lock on {@link #blobs}.
+    */
+   private boolean removeReservation(Blob blob)
+   {
+      for (int i = 0; i < reservations.size(); i++)
+      {
+         if (reservations.get(i).get() == blob)
+         {
+            reservations.remove(i);
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Give back reservations of content what became unreachable without being
+    * stored.
+    */
+   private void releaseAbandoned()
+   {
+      Reservation r;
+      while ((r = (Reservation)abandoned.poll()) != null)
+      {
+         boolean removed;
+         synchronized (blobs)
+         {
+            removed = reservations.remove(r);
+         }
+         if (removed)
+         {
+            allocatedBytes.addAndGet(-r.length);
+         }
+      }
+   }
+
+   /**
+    * Estimate heap size of property. Content is not included.
+    *
+    * @param id property id
+    * @param value property value
+    * @return estimated size in bytes
+    */
+   static long estimateSize(String id, Value value)
+   {
+      if (value == null || value.isContent())
+      {
+         return 0;
+      }
+      long size = PROPERTY_OVERHEAD + 2L * id.length();
+      if (value.isString())
+      {
+         for (String s : value.getStrings())
+         {
+            size += s != null ? 40 + 2L * s.length() : 8;
+         }
+      }
+      else if (value.isURI())
+      {
+         for (URI uri : value.getURI())
+         {
+            size += uri != null ? 80 + 4L * uri.toString().length() : 8;
+         }
+      }
+      else if (value.isDate())
+      {
+         size += 120L * value.getDates().length;
+      }
+      else if (value.isInteger())
+      {
+         for (BigInteger i : value.getIntegers())
+         {
+            size += i != null ? 40 + i.bitLength() / 8 : 8;
+         }
+      }
+      else if (value.isDecimal())
+      {
+         for (BigDecimal d : value.getDecimals())
+         {
+            size += d != null ? 72 + d.unscaledValue().bitLength() / 8 : 8;
+         }
+      }
+      else if (value.isBoolean())
+      {
+         size += 8L * value.getBooleans().length;
+      }
+      return size;
+   }
+}
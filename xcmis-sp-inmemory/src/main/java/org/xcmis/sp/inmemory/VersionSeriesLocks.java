@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks for version series. Versioning operations (checkout, checkin,
+ * cancel checkout, delete of all versions) on the same version series are
+ * serialized while operations on different series may run concurrently unless
+ * their ids fall into the same stripe. Locks are reentrant.
+ *
+ * @version $Id$
+ */
+final class VersionSeriesLocks
+{
+   /** Default number of stripes. */
+   static final int DEFAULT_STRIPES = 64;
+
+   private final Lock[] locks;
+
+   private final int mask;
+
+   /**
+    * @param stripes number of stripes, rounded up to power of two
+    */
+   VersionSeriesLocks(int stripes)
+   {
+      if (stripes <= 0)
+      {
+         throw new IllegalArgumentException("Number of stripes must be positive.");
+      }
+      int size = Integer.highestOneBit(stripes);
+      if (size < stripes)
+      {
+         size <<= 1;
+      }
+      locks = new Lock[size];
+      for (int i = 0; i < size; i++)
+      {
+         locks[i] = new ReentrantLock();
+      }
+      mask = size - 1;
+   }
+
+   /**
+    * @param versionSeriesId version series id
+    * @return lock guarding version series
+    */
+   Lock getLock(String versionSeriesId)
+   {
+      int h = versionSeriesId.hashCode();
+      // spread bits, ids may differ in high bits only
+      h ^= (h >>> 20) ^ (h >>> 12);
+      h ^= (h >>> 7) ^ (h >>> 4);
+      return locks[h & mask];
+   }
+}
@@ -21,7 +21,6 @@ package org.xcmis.sp.inmemory.query;
 
 import org.xcmis.search.SearchService;
 import org.xcmis.search.content.ContentEntry;
-import org.xcmis.search.content.IndexModificationException;
 import org.xcmis.search.content.Property;
 import org.xcmis.search.content.Property.BinaryValue;
 import org.xcmis.search.content.Property.ContentValue;
@@ -34,6 +33,12 @@ import org.xcmis.spi.FolderData;
 import org.xcmis.spi.ObjectData;
 import org.xcmis.spi.PolicyData;
 import org.xcmis.spi.RelationshipData;
+import org.xcmis.spi.model.ACLCapability;
+import org.xcmis.spi.model.AccessControlEntry;
+import org.xcmis.spi.model.PermissionMapping;
+import org.xcmis.spi.model.RepositoryInfo;
+import org.xcmis.spi.model.Permission.BasicPermissions;
+import org.xcmis.spi.utils.CmisUtils;
 import org.xcmis.spi.utils.Logger;
 
 import java.io.IOException;
@@ -41,8 +46,12 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author <a href="mailto:andrew00x@gmail.com">Andrey Parfonov</a>
@@ -54,68 +63,96 @@ public class IndexListener
    private static final Logger LOG = Logger.getLogger(IndexListener.class);
 
    /**
-    * Index storage.
+    * Max time in milliseconds to wait for index before query.
     */
-   private final SearchService searchService;
+   public static final long VISIBILITY_TIMEOUT = 30000;
 
    private final ContentEntryAdapter contentEntryAdapter;
 
-   public IndexListener(SearchService searchService)
+   /**
+    * Modifications are indexed asynchronously, request thread only converts
+    * object to {@link ContentEntry}.
+    */
+   private final IndexUpdateQueue updateQueue;
+
+   public IndexListener(SearchService searchService, RepositoryInfo repositoryInfo)
+   {
+      this(new IndexUpdateQueue(searchService), repositoryInfo);
+   }
+
+   public IndexListener(IndexUpdateQueue updateQueue, RepositoryInfo repositoryInfo)
    {
-      if (searchService == null)
-         throw new IllegalArgumentException("The searchService argument may not be null");
-      this.searchService = searchService;
-      this.contentEntryAdapter = new ContentEntryAdapter();
+      if (updateQueue == null)
+         throw new IllegalArgumentException("The updateQueue argument may not be null");
+      this.contentEntryAdapter = new ContentEntryAdapter(repositoryInfo);
+      this.updateQueue = updateQueue;
    }
 
    public void created(ObjectData object)
+   {
+      add(object, false);
+   }
+
+   public void removed(Set<String> removed)
+   {
+      updateQueue.remove(removed);
+   }
+
+   public void updated(ObjectData object)
+   {
+      add(object, true);
+   }
+
+   /**
+    * Wait until all modifications made before are visible for the queries.
+    * Query is not blocked longer than {@link #VISIBILITY_TIMEOUT} if index is
+    * updated slowly or not updated at all.
+    */
+   public void awaitVisibility()
    {
       try
       {
-         searchService.update(contentEntryAdapter.createEntry(object), null);
-      }
-      catch (IndexModificationException e)
-      {
-         if (LOG.isDebugEnabled())
+         if (!updateQueue.awaitVisibility(VISIBILITY_TIMEOUT, TimeUnit.MILLISECONDS))
          {
-            LOG.debug(e.getLocalizedMessage());
+            LOG.warn("Index is not updated in " + VISIBILITY_TIMEOUT
+               + " ms, query may not see last modifications");
          }
       }
-      catch (IOException e)
+      catch (InterruptedException e)
       {
-         if (LOG.isDebugEnabled())
-         {
-            LOG.debug(e.getLocalizedMessage());
-         }
+         Thread.currentThread().interrupt();
+         LOG.warn("Interrupted while waiting for index, query may not see last modifications");
+      }
+      catch (IllegalStateException e)
+      {
+         LOG.error(e.getLocalizedMessage() + ", query may not see last modifications");
       }
    }
 
-   public void removed(Set<String> removed)
+   /**
+    * Index all pending modifications and stop indexing.
+    */
+   public void stop()
    {
       try
       {
-         searchService.update(Collections.EMPTY_LIST, removed);
+         updateQueue.stop();
       }
-      catch (IndexModificationException e)
+      catch (InterruptedException e)
       {
-         if (LOG.isDebugEnabled())
-         {
-            LOG.debug(e.getLocalizedMessage());
-         }
+         Thread.currentThread().interrupt();
+         LOG.warn("Interrupted while stopping index updates, last modifications may be not indexed");
       }
    }
 
-   public void updated(ObjectData object)
+   private void add(ObjectData object, boolean replace)
    {
       try
       {
-         searchService.update(contentEntryAdapter.createEntry(object), object.getObjectId());
-      }
-      catch (IndexModificationException e)
-      {
-         if (LOG.isDebugEnabled())
+         ContentEntry entry = contentEntryAdapter.createEntry(object);
+         if (entry != null)
          {
-            LOG.debug(e.getLocalizedMessage());
+            updateQueue.add(entry, replace);
          }
       }
       catch (IOException e)
@@ -133,6 +170,37 @@ public class IndexListener
     */
    public static class ContentEntryAdapter
    {
+      /**
+       * Principal what means any user.
+       */
+      private final String principalAnyone;
+
+      /**
+       * Permissions required to get properties of object, all of them must be
+       * granted to principal.
+       */
+      private final Collection<String> readPermissions;
+
+      /**
+       * @param repositoryInfo repository info, provides principal what means
+       *        any user and permission mapping
+       */
+      public ContentEntryAdapter(RepositoryInfo repositoryInfo)
+      {
+         this.principalAnyone = repositoryInfo.getPrincipalAnyone();
+         Collection<String> permissions = null;
+         ACLCapability aclCapability = repositoryInfo.getAclCapability();
+         if (aclCapability != null && aclCapability.getMapping() != null)
+         {
+            permissions = aclCapability.getMapping().getPermissions(PermissionMapping.CAN_GET_PROPERTIES_OBJECT);
+         }
+         if (permissions == null || permissions.size() == 0)
+         {
+            permissions = Collections.singleton(BasicPermissions.CMIS_READ.value());
+         }
+         this.readPermissions = new HashSet<String>(permissions);
+      }
+
       /**
        * Convert {@link ObjectData} to {@link ContentEntry}.
        *
@@ -172,7 +240,7 @@ public class IndexListener
          //mark parent of root as parent
          mockEntry.parentIdentifiers.add("");
          return new ContentEntry(mockEntry.name, mockEntry.getTableNames(), mockEntry.identifier, mockEntry
-            .getParentIdentifiers(), mockEntry.getProperties());
+            .getParentIdentifiers(), mockEntry.getProperties(), mockEntry.principals);
       }
 
       /**
@@ -185,7 +253,7 @@ public class IndexListener
          //mark parent of root as parent
          mockEntry.parentIdentifiers.add("");
          return new ContentEntry(mockEntry.name, mockEntry.getTableNames(), mockEntry.identifier, mockEntry
-            .getParentIdentifiers(), mockEntry.getProperties());
+            .getParentIdentifiers(), mockEntry.getProperties(), mockEntry.principals);
       }
 
       private MockContentEntry fillCommonInformation(ObjectData objectData)
@@ -194,6 +262,7 @@ public class IndexListener
          contentEntry.tableNames.add(objectData.getTypeDefinition().getQueryName());
          contentEntry.identifier = objectData.getObjectId();
          contentEntry.name = objectData.getName();
+         contentEntry.principals = getReadPrincipals(objectData);
          for (FolderData folder : objectData.getParents())
          {
             contentEntry.parentIdentifiers.add(folder.getObjectId());
@@ -209,6 +278,45 @@ public class IndexListener
          return contentEntry;
       }
 
+      /**
+       * Get principals allowed to read object. Permissions are resolved in the
+       * same way as by {@link org.xcmis.spi.PermissionService}: object with
+       * empty ACL is readable by everyone, permissions of 'any principal'
+       * override permissions of the other principals.
+       *
+       * @param objectData ObjectData
+       * @return principals or null if object is readable by everyone
+       */
+      private String[] getReadPrincipals(ObjectData objectData)
+      {
+         List<AccessControlEntry> acl = objectData.getACL(false);
+         if (acl.size() == 0)
+         {
+            return null;
+         }
+         Map<String, Set<String>> permissions = new HashMap<String, Set<String>>();
+         CmisUtils.addAclToPermissionMap(permissions, acl);
+         Set<String> anyone = permissions.get(principalAnyone);
+         if (anyone != null)
+         {
+            return canRead(anyone) ? null : new String[0];
+         }
+         List<String> principals = new ArrayList<String>();
+         for (Map.Entry<String, Set<String>> e : permissions.entrySet())
+         {
+            if (canRead(e.getValue()))
+            {
+               principals.add(e.getKey());
+            }
+         }
+         return principals.toArray(new String[principals.size()]);
+      }
+
+      private boolean canRead(Set<String> permissions)
+      {
+         return permissions.contains(BasicPermissions.CMIS_ALL.value()) || permissions.containsAll(readPermissions);
+      }
+
       private <G> Property<G> convertProperty(org.xcmis.spi.model.Property<G> property)
       {
          Collection<ContentValue<G>> value = new ArrayList<ContentValue<G>>();
@@ -230,7 +338,7 @@ public class IndexListener
       {
          MockContentEntry mockEntry = fillCommonInformation(objectData);
          return new ContentEntry(mockEntry.name, mockEntry.getTableNames(), mockEntry.identifier, mockEntry
-            .getParentIdentifiers(), mockEntry.getProperties());
+            .getParentIdentifiers(), mockEntry.getProperties(), mockEntry.principals);
       }
 
       /**
@@ -253,7 +361,7 @@ public class IndexListener
             mockEntry.properties.add(new Property<InputStream>(PropertyType.BINARY, "content", vals));
          }
          return new ContentEntry(mockEntry.name, mockEntry.getTableNames(), mockEntry.identifier, mockEntry
-            .getParentIdentifiers(), mockEntry.getProperties());
+            .getParentIdentifiers(), mockEntry.getProperties(), mockEntry.principals);
       }
    }
 
@@ -284,6 +392,12 @@ public class IndexListener
        */
       List<Property> properties;
 
+      /**
+       * Principals allowed to read entry, null if entry is readable by
+       * everyone.
+       */
+      String[] principals;
+
       /**
        *
        */
@@ -0,0 +1,583 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory.query;
+
+import org.xcmis.search.content.ContentEntry;
+import org.xcmis.search.content.ContentModificationListener;
+import org.xcmis.search.content.IndexModificationException;
+import org.xcmis.search.content.Property;
+import org.xcmis.search.content.Property.ContentValue;
+import org.xcmis.search.value.PropertyType;
+import org.xcmis.spi.utils.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of the index modifications. Modifications are applied to
+ * {@link ContentModificationListener} by background thread in batches. Batch
+ * is sent when it reaches batch size or when flush interval elapsed after first
+ * modification in queue. Repeated modifications of the same object are
+ * coalesced, so only last state of object is indexed, streams of binary values
+ * of replaced and not indexed states are closed. Producers are blocked
+ * while queue is full, modification is never dropped because producer is
+ * interrupted. Background thread is started again by next modification if it
+ * is terminated.
+ * <p>
+ * Use {@link #awaitVisibility(long, TimeUnit)} to see results of all
+ * modifications made before in the queries.
+ *
+ * @version $Id$
+ */
+public class IndexUpdateQueue
+{
+   private static final Logger LOG = Logger.getLogger(IndexUpdateQueue.class);
+
+   /**
+    * Default max number of the objects in one batch.
+    */
+   public static final int DEFAULT_BATCH_SIZE = 100;
+
+   /**
+    * Default max number of the objects in queue.
+    */
+   public static final int DEFAULT_CAPACITY = 10000;
+
+   /**
+    * Default time to collect batch in milliseconds.
+    */
+   public static final long DEFAULT_FLUSH_INTERVAL = 100;
+
+   private final ContentModificationListener listener;
+
+   private final int batchSize;
+
+   private final int capacity;
+
+   private final long flushIntervalNanos;
+
+   private final ReentrantLock lock = new ReentrantLock();
+
+   /**
+    * Signaled when modification added or flush requested.
+    */
+   private final Condition notEmpty = lock.newCondition();
+
+   /**
+    * Signaled when batch is taken from queue.
+    */
+   private final Condition notFull = lock.newCondition();
+
+   /**
+    * Signaled when batch is applied.
+    */
+   private final Condition applied = lock.newCondition();
+
+   /**
+    * Pending modifications in order of last modification.
+    */
+   private final LinkedHashMap<String, PendingUpdate> pending = new LinkedHashMap<String, PendingUpdate>();
+
+   /**
+    * Sequence number of the last modification.
+    */
+   private long lastSequence;
+
+   /**
+    * All modifications with sequence number less or equals are applied.
+    */
+   private long appliedSequence;
+
+   /**
+    * Number of threads waiting for visibility. Queue is flushed without delay
+    * while somebody is waiting.
+    */
+   private int visibilityWaiters;
+
+   private boolean stopped;
+
+   /**
+    * Background thread, null if it is not started yet or terminated.
+    */
+   private Thread worker;
+
+   /**
+    * Create queue with default parameters.
+    *
+    * @param listener listener of the index modifications
+    */
+   public IndexUpdateQueue(ContentModificationListener listener)
+   {
+      this(listener, DEFAULT_BATCH_SIZE, DEFAULT_CAPACITY, DEFAULT_FLUSH_INTERVAL);
+   }
+
+   /**
+    * @param listener listener of the index modifications
+    * @param batchSize max number of the objects in one batch
+    * @param capacity max number of the objects in queue
+    * @param flushInterval time to collect batch in milliseconds
+    */
+   public IndexUpdateQueue(ContentModificationListener listener, int batchSize, int capacity, long flushInterval)
+   {
+      if (listener == null)
+      {
+         throw new IllegalArgumentException("The listener argument may not be null");
+      }
+      if (batchSize <= 0 || capacity < batchSize)
+      {
+         throw new IllegalArgumentException("Batch size must be positive and not greater than capacity");
+      }
+      this.listener = listener;
+      this.batchSize = batchSize;
+      this.capacity = capacity;
+      this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+   }
+
+   /**
+    * Add object to index. Interrupt while waiting for space in queue doesn't
+    * cancel modification, interrupt status is restored after modification is
+    * added.
+    *
+    * @param entry object to index
+    * @param replace true if previous version of object may be in index
+    */
+   public void add(ContentEntry entry, boolean replace)
+   {
+      lock.lock();
+      try
+      {
+         boolean created = !replace && !pending.containsKey(entry.getIdentifier());
+         PendingUpdate update = enqueue(entry.getIdentifier());
+         if (update.entry != entry)
+         {
+            closeStreams(update.entry);
+         }
+         update.entry = entry;
+         update.created |= created;
+         // object what is not indexed yet can't be removed from index
+         update.remove |= replace && !update.created;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Remove objects from index. Interrupt while waiting for space in queue
+    * doesn't cancel modification, see {@link #add(ContentEntry, boolean)}.
+    *
+    * @param identifiers identifiers of the objects
+    */
+   public void remove(Set<String> identifiers)
+   {
+      lock.lock();
+      try
+      {
+         for (String identifier : identifiers)
+         {
+            PendingUpdate update = enqueue(identifier);
+            closeStreams(update.entry);
+            update.entry = null;
+            update.remove = !update.created;
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Wait until all modifications added before are applied.
+    *
+    * @param timeout max time to wait
+    * @param unit unit of <code>timeout</code>
+    * @return true if modifications are applied, false if timeout elapsed
+    * @throws InterruptedException if interrupted while waiting
+    * @throws IllegalStateException if background thread is terminated before
+    *            modifications are applied
+    */
+   public boolean awaitVisibility(long timeout, TimeUnit unit) throws InterruptedException
+   {
+      lock.lock();
+      try
+      {
+         long target = lastSequence;
+         if (appliedSequence >= target)
+         {
+            return true;
+         }
+         visibilityWaiters++;
+         try
+         {
+            notEmpty.signal();
+            long nanos = unit.toNanos(timeout);
+            while (appliedSequence < target)
+            {
+               if (worker == null)
+               {
+                  throw new IllegalStateException("Index update thread is terminated, " + pending.size()
+                     + " modifications are not applied");
+               }
+               if (nanos <= 0)
+               {
+                  return false;
+               }
+               nanos = applied.awaitNanos(nanos);
+            }
+            return true;
+         }
+         finally
+         {
+            visibilityWaiters--;
+         }
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Apply all pending modifications and stop background thread.
+    *
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public void stop() throws InterruptedException
+   {
+      Thread thread;
+      lock.lock();
+      try
+      {
+         stopped = true;
+         notEmpty.signalAll();
+         notFull.signalAll();
+         thread = worker;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+      if (thread != null)
+      {
+         thread.join();
+      }
+   }
+
+   /**
+    * @return number of the objects in queue
+    */
+   public int size()
+   {
+      lock.lock();
+      try
+      {
+         return pending.size();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Get pending modification of object, wait for space in queue if object is
+    * not in queue yet. Must be called under lock.
+    */
+   private PendingUpdate enqueue(String identifier)
+   {
+      if (stopped)
+      {
+         throw new IllegalStateException("Index update queue is stopped");
+      }
+      PendingUpdate update = pending.remove(identifier);
+      if (update == null)
+      {
+         while (pending.size() >= capacity)
+         {
+            // queue is drained only by background thread
+            startWorker();
+            // modification must not be lost, interrupt status is kept
+            notFull.awaitUninterruptibly();
+            if (stopped)
+            {
+               throw new IllegalStateException("Index update queue is stopped");
+            }
+         }
+         update = new PendingUpdate(identifier);
+      }
+      // keep queue ordered by sequence number
+      update.sequence = ++lastSequence;
+      pending.put(identifier, update);
+      startWorker();
+      notEmpty.signal();
+      return update;
+   }
+
+   /**
+    * Start background thread if it is not started yet or terminated. Must be
+    * called under lock.
+    */
+   private void startWorker()
+   {
+      if (worker == null)
+      {
+         worker = new Thread(new Worker(), "xcmis-index-update");
+         worker.setDaemon(true);
+         worker.start();
+      }
+   }
+
+   /**
+    * Forget terminated background thread and wake up threads what wait for
+    * it.
+    */
+   private void workerTerminated()
+   {
+      lock.lock();
+      try
+      {
+         if (worker == Thread.currentThread())
+         {
+            worker = null;
+         }
+         applied.signalAll();
+         notFull.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Take next batch, wait while batch is collected.
+    *
+    * @return batch or null if queue is stopped and empty
+    */
+   private List<PendingUpdate> takeBatch() throws InterruptedException
+   {
+      lock.lock();
+      try
+      {
+         while (pending.isEmpty())
+         {
+            if (stopped)
+            {
+               return null;
+            }
+            notEmpty.await();
+         }
+         long nanos = flushIntervalNanos;
+         while (pending.size() < batchSize && visibilityWaiters == 0 && !stopped && nanos > 0)
+         {
+            nanos = notEmpty.awaitNanos(nanos);
+         }
+         List<PendingUpdate> batch = new ArrayList<PendingUpdate>(Math.min(batchSize, pending.size()));
+         Iterator<PendingUpdate> iterator = pending.values().iterator();
+         while (iterator.hasNext() && batch.size() < batchSize)
+         {
+            batch.add(iterator.next());
+            iterator.remove();
+         }
+         notFull.signalAll();
+         return batch;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Mark batch as applied. Batch is taken from head of the queue, so all
+    * modifications before head of the queue are applied.
+    */
+   private void batchApplied()
+   {
+      lock.lock();
+      try
+      {
+         appliedSequence = pending.isEmpty() ? lastSequence : pending.values().iterator().next().sequence - 1;
+         applied.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   private void apply(List<PendingUpdate> batch)
+   {
+      try
+      {
+         update(batch);
+      }
+      catch (IndexModificationException e)
+      {
+         // don't lose whole batch because of one bad object
+         for (PendingUpdate update : batch)
+         {
+            try
+            {
+               update(Collections.singletonList(update));
+            }
+            catch (IndexModificationException e1)
+            {
+               LOG.error("Unable to index object " + update.identifier + ": " + e1.getLocalizedMessage(), e1);
+               closeStreams(update.entry);
+            }
+         }
+      }
+      catch (RuntimeException e)
+      {
+         LOG.error("Unable to apply index modifications: " + e.getLocalizedMessage(), e);
+         for (PendingUpdate update : batch)
+         {
+            closeStreams(update.entry);
+         }
+      }
+   }
+
+   /**
+    * Close streams of binary values of entry what is not indexed.
+    *
+    * @param entry replaced or discarded entry, may be null
+    */
+   private static void closeStreams(ContentEntry entry)
+   {
+      if (entry == null || entry.getProperties() == null)
+      {
+         return;
+      }
+      for (Property<?> property : entry.getProperties())
+      {
+         if (property.getType() != PropertyType.BINARY || property.getValue() == null)
+         {
+            continue;
+         }
+         for (ContentValue<?> value : property.getValue())
+         {
+            Object stream = value.getValue();
+            if (stream instanceof InputStream)
+            {
+               try
+               {
+                  ((InputStream)stream).close();
+               }
+               catch (IOException e)
+               {
+                  LOG.warn("Unable to close stream of object " + entry.getIdentifier() + ": "
+                     + e.getLocalizedMessage());
+               }
+            }
+         }
+      }
+   }
+
+   private void update(List<PendingUpdate> batch) throws IndexModificationException
+   {
+      List<ContentEntry> added = new ArrayList<ContentEntry>(batch.size());
+      Set<String> removed = new HashSet<String>();
+      for (PendingUpdate update : batch)
+      {
+         if (update.entry != null)
+         {
+            added.add(update.entry);
+         }
+         if (update.remove)
+         {
+            removed.add(update.identifier);
+         }
+      }
+      if (added.size() > 0 || removed.size() > 0)
+      {
+         listener.update(added, removed);
+      }
+   }
+
+   /**
+    * Last state of object what must be indexed.
+    */
+   private static class PendingUpdate
+   {
+      final String identifier;
+
+      /**
+       * Entry to index, null if object is removed.
+       */
+      ContentEntry entry;
+
+      /**
+       * Remove previous version of object from index.
+       */
+      boolean remove;
+
+      /**
+       * Object is created after last applied batch, so it is not in index.
+       */
+      boolean created;
+
+      long sequence;
+
+      PendingUpdate(String identifier)
+      {
+         this.identifier = identifier;
+      }
+   }
+
+   /**
+    * Apply batches until queue is stopped.
+    */
+   private class Worker implements Runnable
+   {
+      public void run()
+      {
+         try
+         {
+            List<PendingUpdate> batch;
+            while ((batch = takeBatch()) != null)
+            {
+               apply(batch);
+               batchApplied();
+            }
+         }
+         catch (InterruptedException e)
+         {
+            LOG.warn("Index update thread is interrupted, " + size() + " modifications are not applied");
+            Thread.currentThread().interrupt();
+         }
+         finally
+         {
+            workerTerminated();
+         }
+      }
+   }
+}
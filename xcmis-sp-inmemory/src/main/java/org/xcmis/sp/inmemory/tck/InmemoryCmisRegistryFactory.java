@@ -19,18 +19,28 @@
 
 package org.xcmis.sp.inmemory.tck;
 
+import org.xcmis.sp.inmemory.StorageConfiguration;
 import org.xcmis.spi.CmisRegistry;
 import org.xcmis.spi.CmisRegistryFactory;
+import org.xcmis.spi.ObjectTreeBuilder;
+import org.xcmis.spi.RenditionCache;
 import org.xcmis.spi.RenditionManager;
 import org.xcmis.spi.utils.Logger;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author <a href="mailto:andrew00x@gmail.com">Andrey Parfonov</a>
@@ -42,6 +52,11 @@ public class InmemoryCmisRegistryFactory implements CmisRegistryFactory
 
    private static final Logger LOG = Logger.getLogger(InmemoryCmisRegistryFactory.class);
 
+   /** Max number of thumbnails waiting for pre-generation. */
+   private static final int RENDITION_QUEUE_SIZE = 1000;
+
+   private static final AtomicInteger THREAD_NUMBER = new AtomicInteger(1);
+
    private CmisRegistry reg = new CmisRegistry();
 
    public InmemoryCmisRegistryFactory()
@@ -81,6 +96,25 @@ public class InmemoryCmisRegistryFactory implements CmisRegistryFactory
             renditionManager.addRenditionProviders(Arrays.asList(renditionProvider.split(",")));
          }
 
+         String sCacheMaxMem = (String)properties.get("org.xcmis.storage.renditionCache.maxMem");
+         if (sCacheMaxMem != null && sCacheMaxMem.length() > 0)
+         {
+            try
+            {
+               configureRenditionCache(Long.parseLong(sCacheMaxMem), //
+                  (String)properties.get("org.xcmis.storage.renditionCache.dir"), //
+                  (String)properties.get("org.xcmis.storage.renditionCache.threads"));
+            }
+            catch (NumberFormatException ne)
+            {
+               LOG.error("Unable convert '" + sCacheMaxMem + "' to long. ");
+            }
+         }
+
+         ObjectTreeBuilder treeBuilder = createTreeBuilder( //
+            (String)properties.get("org.xcmis.storage.tree.threads"), //
+            (String)properties.get("org.xcmis.storage.tree.maxNodes"));
+
          String sids = (String)properties.get("org.xcmis.storage.id");
          if (sids != null)
          {
@@ -117,11 +151,24 @@ public class InmemoryCmisRegistryFactory implements CmisRegistryFactory
                         LOG.error("Unable convert '" + sMaxMem + "' to long. ");
                      }
                   }
-                  reg.addStorage(new org.xcmis.sp.inmemory.StorageProviderImpl(id, //
+                  StorageConfiguration configuration = new StorageConfiguration(id, //
                      name != null && name.length() > 0 ? name : id, //
                      description != null && description.length() > 0 ? description : id, //
                      maxMem, //
-                     maxItemsNum));
+                     maxItemsNum);
+                  String persistenceDir = (String)properties.get("org.xcmis.storage." + id + ".persistenceDir");
+                  if (persistenceDir != null && persistenceDir.length() > 0)
+                  {
+                     configuration.setPersistenceDirectory(persistenceDir);
+                  }
+                  org.xcmis.sp.inmemory.StorageProviderImpl storageProvider =
+                     new org.xcmis.sp.inmemory.StorageProviderImpl(configuration);
+                  storageProvider.setTreeBuilder(treeBuilder);
+                  reg.addStorage(storageProvider);
+                  if (configuration.getPersistenceDirectory() != null)
+                  {
+                     closeOnShutdown(storageProvider);
+                  }
                   LOG.info("Register storage " + id);
                }
             }
@@ -134,6 +181,104 @@ public class InmemoryCmisRegistryFactory implements CmisRegistryFactory
       }
    }
 
+   /**
+    * Close storage when JVM exits, so changes are written to disk and storage
+    * is not recovered as crashed at next start.
+    *
+    * @param storageProvider storage provider
+    */
+   private void closeOnShutdown(final org.xcmis.sp.inmemory.StorageProviderImpl storageProvider)
+   {
+      Runtime.getRuntime().addShutdownHook(new Thread("xcmis-storage-shutdown-" + storageProvider.getStorageID())
+      {
+         @Override
+         public void run()
+         {
+            storageProvider.close();
+         }
+      });
+   }
+
+   private void configureRenditionCache(long maxMem, String dir, String sThreads)
+   {
+      RenditionManager renditionManager = RenditionManager.getInstance();
+      renditionManager.setCache(new RenditionCache(maxMem, dir != null && dir.length() > 0 ? new File(dir) : null));
+      int threads = 0;
+      if (sThreads != null && sThreads.length() > 0)
+      {
+         try
+         {
+            threads = Integer.parseInt(sThreads);
+         }
+         catch (NumberFormatException ne)
+         {
+            LOG.error("Unable convert '" + sThreads + "' to int. ");
+         }
+      }
+      if (threads > 0)
+      {
+         // thumbnails what don't fit in queue are produced on first request
+         ThreadPoolExecutor executor =
+            new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+               RENDITION_QUEUE_SIZE), new ThreadFactory()
+            {
+               public Thread newThread(Runnable r)
+               {
+                  Thread thread = new Thread(r, "xcmis-rendition-" + THREAD_NUMBER.getAndIncrement());
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            });
+         executor.allowCoreThreadTimeOut(true);
+         renditionManager.setExecutor(executor);
+      }
+   }
+
+   private ObjectTreeBuilder createTreeBuilder(String sThreads, String sMaxNodes)
+   {
+      int threads = 0;
+      if (sThreads != null && sThreads.length() > 0)
+      {
+         try
+         {
+            threads = Integer.parseInt(sThreads);
+         }
+         catch (NumberFormatException ne)
+         {
+            LOG.error("Unable convert '" + sThreads + "' to int. ");
+         }
+      }
+      int maxNodes = -1;
+      if (sMaxNodes != null && sMaxNodes.length() > 0)
+      {
+         try
+         {
+            maxNodes = Integer.parseInt(sMaxNodes);
+         }
+         catch (NumberFormatException ne)
+         {
+            LOG.error("Unable convert '" + sMaxNodes + "' to int. ");
+         }
+      }
+      if (threads <= 0 && maxNodes <= 0)
+      {
+         return ObjectTreeBuilder.SEQUENTIAL;
+      }
+      if (threads <= 0)
+      {
+         return new ObjectTreeBuilder(null, 0, maxNodes);
+      }
+      return new ObjectTreeBuilder(Executors.newFixedThreadPool(threads, new ThreadFactory()
+      {
+         public Thread newThread(Runnable r)
+         {
+            Thread thread = new Thread(r, "xcmis-tree-" + THREAD_NUMBER.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+         }
+      }), threads, maxNodes);
+   }
+
    public CmisRegistry getRegistry()
    {
       return reg;
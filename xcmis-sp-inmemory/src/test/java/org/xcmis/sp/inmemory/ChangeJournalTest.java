@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import junit.framework.TestCase;
+
+import org.xcmis.spi.ConstraintException;
+import org.xcmis.spi.ItemsIterator;
+import org.xcmis.spi.model.ChangeEvent;
+import org.xcmis.spi.model.ChangeType;
+
+import java.util.Calendar;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @version $Id$
+ */
+public class ChangeJournalTest extends TestCase
+{
+   public void testSeekByToken() throws Exception
+   {
+      ChangeJournal journal = new ChangeJournal(4, -1);
+      assertNull(journal.getLatestToken());
+      assertEquals(0, journal.getEvents(null).size());
+      String token = null;
+      for (int i = 0; i < 10; i++)
+      {
+         ChangeEvent event = journal.add("object" + i, ChangeType.CREATED, Calendar.getInstance());
+         if (i == 5)
+         {
+            token = event.getLogToken();
+         }
+      }
+      ItemsIterator<ChangeEvent> events = journal.getEvents(token);
+      assertEquals(5, events.size());
+      assertEquals("object5", events.next().getObjectId());
+      events.skip(2);
+      assertEquals("object8", events.next().getObjectId());
+      assertEquals("object9", events.next().getObjectId());
+      assertFalse(events.hasNext());
+      assertEquals(journal.getLatestToken(), journal.getEvents(journal.getLatestToken()).next().getLogToken());
+
+      assertNoEvent(journal, "unknown");
+      assertNoEvent(journal, "10");
+   }
+
+   public void testTruncate() throws Exception
+   {
+      ChangeJournal journal = new ChangeJournal(4, 6);
+      String first = journal.add("object0", ChangeType.CREATED, Calendar.getInstance()).getLogToken();
+      for (int i = 1; i < 10; i++)
+      {
+         journal.add("object" + i, ChangeType.CREATED, Calendar.getInstance());
+      }
+      assertNoEvent(journal, first);
+      ItemsIterator<ChangeEvent> events = journal.getEvents(null);
+      // whole segments are dropped
+      assertEquals(6, events.size());
+      assertEquals("object4", events.next().getObjectId());
+   }
+
+   public void testReadWhileTruncate() throws Exception
+   {
+      final ChangeJournal journal = new ChangeJournal(2, 4);
+      final AtomicBoolean stop = new AtomicBoolean();
+      Thread writer = new Thread()
+      {
+         @Override
+         public void run()
+         {
+            for (int i = 0; !stop.get(); i++)
+            {
+               journal.add("object" + i, ChangeType.CREATED, Calendar.getInstance());
+            }
+         }
+      };
+      writer.start();
+      try
+      {
+         long deadline = System.currentTimeMillis() + 1000;
+         while (System.currentTimeMillis() < deadline)
+         {
+            ItemsIterator<ChangeEvent> events = journal.getEvents(null);
+            long previous = -1;
+            while (events.hasNext())
+            {
+               // all events of range are kept in order
+               long sequence = Long.parseLong(events.next().getLogToken());
+               assertTrue(previous < 0 || sequence == previous + 1);
+               previous = sequence;
+            }
+            String token = journal.getLatestToken();
+            if (token == null)
+            {
+               continue;
+            }
+            try
+            {
+               ItemsIterator<ChangeEvent> latest = journal.getEvents(token);
+               assertEquals(token, latest.next().getLogToken());
+            }
+            catch (ConstraintException e)
+            {
+               // truncated meanwhile
+            }
+         }
+      }
+      finally
+      {
+         stop.set(true);
+         writer.join();
+      }
+   }
+
+   public void testConcurrentAppend() throws Exception
+   {
+      final ChangeJournal journal = new ChangeJournal(16, -1);
+      final int threads = 8;
+      final int events = 500;
+      final CountDownLatch start = new CountDownLatch(1);
+      Thread[] writers = new Thread[threads];
+      for (int t = 0; t < threads; t++)
+      {
+         writers[t] = new Thread()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  start.await();
+               }
+               catch (InterruptedException e)
+               {
+                  return;
+               }
+               for (int i = 0; i < events; i++)
+               {
+                  journal.add(getName(), ChangeType.UPDATED, Calendar.getInstance());
+               }
+            }
+         };
+         writers[t].start();
+      }
+      start.countDown();
+      for (Thread writer : writers)
+      {
+         writer.join();
+      }
+      ItemsIterator<ChangeEvent> all = journal.getEvents(null);
+      assertEquals(threads * events, all.size());
+      for (long expected = 0; all.hasNext(); expected++)
+      {
+         assertEquals(Long.toString(expected), all.next().getLogToken());
+      }
+   }
+
+   private void assertNoEvent(ChangeJournal journal, String token)
+   {
+      try
+      {
+         journal.getEvents(token);
+         fail("ConstraintException expected.");
+      }
+      catch (ConstraintException e)
+      {
+         // expected
+      }
+   }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import org.xcmis.spi.CmisConstants;
+
+import java.math.BigInteger;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Compare heap used by objects stored in {@link Entry} with the former layout:
+ * map of values per object, values of dates kept as calendars, nothing is
+ * shared between objects. Not run as part of tests, start it with enough heap,
+ * e.g. <code>-Xmx4g</code> for default number of objects:
+ *
+ * <pre>
+ * java -Xmx4g -cp ... org.xcmis.sp.inmemory.EntryMemoryBenchmark [number of objects]
+ * </pre>
+ *
+ * @version $Id$
+ */
+public class EntryMemoryBenchmark
+{
+   /**
+    * Former layout of stored object.
+    */
+   private static final class LegacyEntry
+   {
+      final Map<String, Value> values = new ConcurrentHashMap<String, Value>();
+
+      final Map<String, Set<String>> permissions = new ConcurrentHashMap<String, Set<String>>();
+
+      final Set<String> policies = new CopyOnWriteArraySet<String>();
+   }
+
+   /**
+    * Former value of date property.
+    */
+   private static final class LegacyDateValue extends Value
+   {
+      private final Calendar[] values;
+
+      LegacyDateValue(Calendar value)
+      {
+         this.values = new Calendar[]{value};
+      }
+
+      @Override
+      public Calendar[] getDates()
+      {
+         return values;
+      }
+
+      @Override
+      public boolean isDate()
+      {
+         return true;
+      }
+   }
+
+   public static void main(String[] args)
+   {
+      int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+      long before = usedMemory();
+      Object[] legacy = new Object[count];
+      for (int i = 0; i < count; i++)
+      {
+         LegacyEntry entry = new LegacyEntry();
+         Map<String, Value> values = entry.values;
+         Calendar date = Calendar.getInstance();
+         values.put(CmisConstants.OBJECT_ID, new StringValue(UUID.randomUUID().toString()));
+         values.put(CmisConstants.NAME, new StringValue("document" + i));
+         values.put(CmisConstants.OBJECT_TYPE_ID, new StringValue("cmis:document"));
+         values.put(CmisConstants.BASE_TYPE_ID, new StringValue("cmis:document"));
+         values.put(CmisConstants.CREATED_BY, new StringValue("root"));
+         values.put(CmisConstants.LAST_MODIFIED_BY, new StringValue("root"));
+         values.put(CmisConstants.CREATION_DATE, new LegacyDateValue(date));
+         values.put(CmisConstants.LAST_MODIFICATION_DATE, new LegacyDateValue((Calendar)date.clone()));
+         values.put(CmisConstants.IS_LATEST_VERSION, new BooleanValue(true));
+         values.put(CmisConstants.IS_MAJOR_VERSION, new BooleanValue(true));
+         values.put(CmisConstants.IS_LATEST_MAJOR_VERSION, new BooleanValue(true));
+         values.put(CmisConstants.IS_VERSION_SERIES_CHECKED_OUT, new BooleanValue(false));
+         values.put(CmisConstants.IS_IMMUTABLE, new BooleanValue(false));
+         values.put(CmisConstants.VERSION_SERIES_ID, new StringValue(UUID.randomUUID().toString()));
+         values.put(CmisConstants.VERSION_LABEL, new StringValue("latest"));
+         values.put(CmisConstants.CONTENT_STREAM_LENGTH, new IntegerValue(BigInteger.ZERO));
+         legacy[i] = entry;
+      }
+      long legacySize = usedMemory() - before;
+      if (legacy.length != count)
+      {
+         // keep objects reachable until measured
+         throw new IllegalStateException();
+      }
+      legacy = null;
+
+      before = usedMemory();
+      Object[] compact = new Object[count];
+      for (int i = 0; i < count; i++)
+      {
+         Entry entry = new Entry();
+         Calendar date = Calendar.getInstance();
+         entry.setValue(CmisConstants.OBJECT_ID, new StringValue(UUID.randomUUID().toString()));
+         entry.setValue(CmisConstants.NAME, new StringValue("document" + i));
+         entry.setValue(CmisConstants.OBJECT_TYPE_ID, new StringValue("cmis:document"));
+         entry.setValue(CmisConstants.BASE_TYPE_ID, new StringValue("cmis:document"));
+         entry.setValue(CmisConstants.CREATED_BY, new StringValue("root"));
+         entry.setValue(CmisConstants.LAST_MODIFIED_BY, new StringValue("root"));
+         entry.setValue(CmisConstants.CREATION_DATE, new DateValue(date));
+         entry.setValue(CmisConstants.LAST_MODIFICATION_DATE, new DateValue(date));
+         entry.setValue(CmisConstants.IS_LATEST_VERSION, new BooleanValue(true));
+         entry.setValue(CmisConstants.IS_MAJOR_VERSION, new BooleanValue(true));
+         entry.setValue(CmisConstants.IS_LATEST_MAJOR_VERSION, new BooleanValue(true));
+         entry.setValue(CmisConstants.IS_VERSION_SERIES_CHECKED_OUT, new BooleanValue(false));
+         entry.setValue(CmisConstants.IS_IMMUTABLE, new BooleanValue(false));
+         entry.setValue(CmisConstants.VERSION_SERIES_ID, new StringValue(UUID.randomUUID().toString()));
+         entry.setValue(CmisConstants.VERSION_LABEL, new StringValue("latest"));
+         entry.setValue(CmisConstants.CONTENT_STREAM_LENGTH, new IntegerValue(BigInteger.ZERO));
+         compact[i] = entry;
+      }
+      long compactSize = usedMemory() - before;
+
+      System.out.println("Objects: " + count);
+      System.out.println("Former layout, bytes per object: " + legacySize / count);
+      System.out.println("Compact layout, bytes per object: " + compactSize / count);
+      if (compact.length != count)
+      {
+         // keep objects reachable until measured
+         throw new IllegalStateException();
+      }
+   }
+
+   private static long usedMemory()
+   {
+      Runtime runtime = Runtime.getRuntime();
+      for (int i = 0; i < 4; i++)
+      {
+         System.gc();
+         try
+         {
+            Thread.sleep(100);
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @version $Id$
+ */
+public class MappedBlobStoreTest extends TestCase
+{
+   private MappedBlobStore store;
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      store = new MappedBlobStore(null, 16, 1024);
+   }
+
+   @Override
+   protected void tearDown() throws Exception
+   {
+      store.close();
+      super.tearDown();
+   }
+
+   public void testInline() throws Exception
+   {
+      byte[] content = bytes(16);
+      Blob blob = store.create(new ByteArrayInputStream(content));
+      assertTrue(blob instanceof MappedBlobStore.InlineBlob);
+      assertEquals(16, blob.length());
+      assertTrue(Arrays.equals(content, read(blob.getStream())));
+      assertEquals(0, store.getSegmentCount());
+
+      assertEquals(0, store.create(null).length());
+      assertEquals(0, store.create(new ByteArrayInputStream(new byte[0])).length());
+   }
+
+   public void testSpill() throws Exception
+   {
+      byte[] content1 = bytes(17);
+      byte[] content2 = bytes(700);
+      Blob blob1 = store.create(new ByteArrayInputStream(content1));
+      Blob blob2 = store.create(new ByteArrayInputStream(content2));
+      assertTrue(blob1 instanceof MappedBlobStore.MappedBlob);
+      assertEquals(17, blob1.length());
+      assertEquals(700, blob2.length());
+      assertEquals(1, store.getSegmentCount());
+
+      // each stream is independent view of content
+      InputStream in = blob2.getStream();
+      assertEquals(content2[0] & 0xff, in.read());
+      assertTrue(Arrays.equals(content2, read(blob2.getStream())));
+      assertTrue(Arrays.equals(content1, read(blob1.getStream())));
+
+      // segment size is exceeded, next content goes to new segment
+      Blob blob3 = store.create(new ByteArrayInputStream(bytes(500)));
+      assertEquals(1, store.getSegmentCount());
+      Blob blob4 = store.create(new ByteArrayInputStream(bytes(20)));
+      assertEquals(2, store.getSegmentCount());
+      assertEquals(500, blob3.length());
+      assertEquals(20, blob4.length());
+      assertTrue(Arrays.equals(content2, read(blob2.getStream())));
+   }
+
+   private byte[] bytes(int length)
+   {
+      byte[] bytes = new byte[length];
+      new Random(length).nextBytes(bytes);
+      return bytes;
+   }
+
+   private byte[] read(InputStream in) throws Exception
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[7];
+      int r;
+      while ((r = in.read(buf)) != -1)
+      {
+         out.write(buf, 0, r);
+      }
+      return out.toByteArray();
+   }
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import org.xcmis.spi.Connection;
+import org.xcmis.spi.FolderData;
+import org.xcmis.spi.InvalidArgumentException;
+import org.xcmis.spi.ItemsTree;
+import org.xcmis.spi.ItemsTreeVisitor;
+import org.xcmis.spi.ObjectTreeBuilder;
+import org.xcmis.spi.model.CmisObject;
+import org.xcmis.spi.model.IncludeRelationships;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @version $Id$
+ */
+public class ObjectTreeBuilderTest extends BaseTest
+{
+
+   private ExecutorService executor;
+
+   private FolderData treeFolder;
+
+   public void setUp() throws Exception
+   {
+      super.setUp();
+      executor = Executors.newFixedThreadPool(2);
+      treeFolder = createFolder(rootFolder, "tree");
+      for (int i = 0; i < 3; i++)
+      {
+         FolderData folder = createFolder(treeFolder, "folder" + i);
+         createDocument(folder, "document" + i, documentTypeDefinition, null, null);
+         FolderData subFolder = createFolder(folder, "subFolder" + i);
+         createDocument(subFolder, "subDocument" + i, documentTypeDefinition, null, null);
+      }
+   }
+
+   protected void tearDown() throws Exception
+   {
+      executor.shutdownNow();
+      super.tearDown();
+   }
+
+   public void testParallelTreeSameAsSequential() throws Exception
+   {
+      Connection connection = new InmemConnection(storage);
+      List<String> sequential = new ArrayList<String>();
+      flatten(getDescendants(connection, -1), 0, sequential);
+
+      connection.setTreeBuilder(new ObjectTreeBuilder(executor, 2, -1));
+      List<String> parallel = new ArrayList<String>();
+      flatten(getDescendants(connection, -1), 0, parallel);
+
+      assertEquals(12, sequential.size());
+      assertEquals(sequential, parallel);
+
+      List<String> folders = new ArrayList<String>();
+      flatten(connection.getFolderTree(treeFolder.getObjectId(), 2, false, IncludeRelationships.NONE, true, false,
+         null, null), 0, folders);
+      assertEquals(6, folders.size());
+   }
+
+   public void testStreamTree() throws Exception
+   {
+      Connection connection = new InmemConnection(storage);
+      List<String> expected = new ArrayList<String>();
+      flatten(getDescendants(connection, 2), 0, expected);
+
+      connection.setTreeBuilder(new ObjectTreeBuilder(executor, 2, -1));
+      final List<String> visited = new ArrayList<String>();
+      final int[] open = new int[1];
+      connection.getDescendants(treeFolder.getObjectId(), 2, false, IncludeRelationships.NONE, true, false, null,
+         null, new ItemsTreeVisitor<CmisObject>()
+         {
+            public boolean enter(CmisObject container, int level)
+            {
+               visited.add(level + ":" + container.getPathSegment());
+               open[0]++;
+               return true;
+            }
+
+            public void leave(CmisObject container, int level)
+            {
+               open[0]--;
+            }
+         });
+      assertEquals(expected, visited);
+      assertEquals(0, open[0]);
+   }
+
+   public void testStopStreaming() throws Exception
+   {
+      Connection connection = new InmemConnection(storage);
+      connection.setTreeBuilder(new ObjectTreeBuilder(executor, 2, -1));
+      final List<String> visited = new ArrayList<String>();
+      connection.getDescendants(treeFolder.getObjectId(), -1, false, IncludeRelationships.NONE, true, false, null,
+         null, new ItemsTreeVisitor<CmisObject>()
+         {
+            public boolean enter(CmisObject container, int level)
+            {
+               visited.add(container.getPathSegment());
+               return visited.size() < 2;
+            }
+
+            public void leave(CmisObject container, int level)
+            {
+            }
+         });
+      assertEquals(2, visited.size());
+   }
+
+   public void testMaxNodes() throws Exception
+   {
+      Connection connection = new InmemConnection(storage);
+      connection.setTreeBuilder(new ObjectTreeBuilder(executor, 2, 5));
+      assertEquals(3, getDescendants(connection, 1).size());
+      try
+      {
+         getDescendants(connection, -1);
+         fail("InvalidArgumentException expected. ");
+      }
+      catch (InvalidArgumentException e)
+      {
+         // expected
+      }
+   }
+
+   public void testInterruptTraversal() throws Exception
+   {
+      Connection connection = new InmemConnection(storage);
+      for (ObjectTreeBuilder builder : new ObjectTreeBuilder[]{ObjectTreeBuilder.SEQUENTIAL,
+         new ObjectTreeBuilder(executor, 2, -1)})
+      {
+         connection.setTreeBuilder(builder);
+         Thread.currentThread().interrupt();
+         try
+         {
+            getDescendants(connection, -1);
+            fail("CancellationException expected. ");
+         }
+         catch (CancellationException e)
+         {
+            // expected
+         }
+         finally
+         {
+            assertTrue(Thread.interrupted());
+         }
+
+         // interrupted while visitor handles object
+         final List<String> visited = new ArrayList<String>();
+         try
+         {
+            connection.getDescendants(treeFolder.getObjectId(), -1, false, IncludeRelationships.NONE, true, false,
+               null, null, new ItemsTreeVisitor<CmisObject>()
+               {
+                  public boolean enter(CmisObject container, int level)
+                  {
+                     visited.add(container.getPathSegment());
+                     Thread.currentThread().interrupt();
+                     return true;
+                  }
+
+                  public void leave(CmisObject container, int level)
+                  {
+                  }
+               });
+            fail("CancellationException expected. ");
+         }
+         catch (CancellationException e)
+         {
+            // expected
+         }
+         finally
+         {
+            assertTrue(Thread.interrupted());
+         }
+         assertEquals(1, visited.size());
+      }
+   }
+
+   private List<ItemsTree<CmisObject>> getDescendants(Connection connection, int depth) throws Exception
+   {
+      return connection.getDescendants(treeFolder.getObjectId(), depth, false, IncludeRelationships.NONE, true,
+         false, null, null);
+   }
+
+   private void flatten(List<ItemsTree<CmisObject>> tree, int level, List<String> result)
+   {
+      for (ItemsTree<CmisObject> node : tree)
+      {
+         result.add(level + ":" + node.getContainer().getPathSegment());
+         if (node.getChildren() != null)
+         {
+            flatten(node.getChildren(), level + 1, result);
+         }
+      }
+   }
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import org.xcmis.spi.DocumentData;
+import org.xcmis.spi.ObjectData;
+import org.xcmis.spi.PermissionService;
+import org.xcmis.spi.model.AccessControlEntry;
+import org.xcmis.spi.model.AllowableActions;
+import org.xcmis.spi.model.Permission.BasicPermissions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Allowable actions calculated from cached permissions.
+ *
+ * @version $Id$
+ */
+public class PermissionServiceTest extends BaseTest
+{
+   public void testCachePermissionsByACLVersion() throws Exception
+   {
+      PermissionService service = storage.permissionService;
+      DocumentData document = createDocument(rootFolder, "permissions", documentTypeDefinition, null, null);
+      List<AccessControlEntry> acl = new ArrayList<AccessControlEntry>();
+      acl.add(new AccessControlEntry("reader", new HashSet<String>(Arrays.asList(BasicPermissions.CMIS_READ
+         .value()))));
+      document.setACL(acl);
+      service.clearCache();
+
+      AllowableActions actions = service.calculateAllowableActions(document, "reader", storage.getRepositoryInfo());
+      assertTrue(actions.isCanGetProperties());
+      assertFalse(actions.isCanUpdateProperties());
+      assertFalse(actions.isCanDeleteObject());
+      assertEquals(1, service.getCacheSize());
+
+      actions = service.calculateAllowableActions(document, "other", storage.getRepositoryInfo());
+      assertFalse(actions.isCanGetProperties());
+      service.calculateAllowableActions(document, "reader", storage.getRepositoryInfo());
+      assertEquals(2, service.getCacheSize());
+
+      // new ACL has new version, cached permissions are not used
+      acl.add(new AccessControlEntry("reader", new HashSet<String>(Arrays.asList(BasicPermissions.CMIS_WRITE
+         .value()))));
+      document.setACL(acl);
+      actions = service.calculateAllowableActions(document, "reader", storage.getRepositoryInfo());
+      assertTrue(actions.isCanUpdateProperties());
+      assertTrue(actions.isCanDeleteObject());
+      assertEquals(3, service.getCacheSize());
+
+      // 'any principal' is checked first
+      acl.add(new AccessControlEntry(storage.getRepositoryInfo().getPrincipalAnyone(), new HashSet<String>(Arrays
+         .asList(BasicPermissions.CMIS_ALL.value()))));
+      document.setACL(acl);
+      assertTrue(service.calculateAllowableActions(document, "other", storage.getRepositoryInfo())
+         .isCanDeleteObject());
+   }
+
+   public void testSameActionsAsUncached() throws Exception
+   {
+      PermissionService uncached = new PermissionService(0);
+      DocumentData document = createDocument(rootFolder, "uncached", documentTypeDefinition, null, null);
+      List<AccessControlEntry> acl = new ArrayList<AccessControlEntry>();
+      acl.add(new AccessControlEntry("writer", new HashSet<String>(Arrays.asList(BasicPermissions.CMIS_READ
+         .value(), BasicPermissions.CMIS_WRITE.value()))));
+      acl.add(new AccessControlEntry("reader", new HashSet<String>(Arrays.asList(BasicPermissions.CMIS_READ
+         .value()))));
+      document.setACL(acl);
+
+      for (String user : new String[]{"writer", "reader", "other"})
+      {
+         for (ObjectData object : new ObjectData[]{document, rootFolder})
+         {
+            AllowableActions expected = uncached.calculateAllowableActions(object, user, storage.getRepositoryInfo());
+            AllowableActions actual =
+               storage.permissionService.calculateAllowableActions(object, user, storage.getRepositoryInfo());
+            assertEquals(toString(expected), toString(actual));
+         }
+      }
+      assertEquals(0, uncached.getCacheSize());
+   }
+
+   private static String toString(AllowableActions actions)
+   {
+      return actions.isCanGetProperties() + " " + actions.isCanUpdateProperties() + " " + actions.isCanDeleteObject()
+         + " " + actions.isCanGetChildren() + " " + actions.isCanCheckOut() + " " + actions.isCanSetContentStream()
+         + " " + actions.isCanApplyACL() + " " + actions.isCanGetACL();
+   }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import org.xcmis.search.query.QueryCache;
+import org.xcmis.spi.ItemsIterator;
+import org.xcmis.spi.model.BaseType;
+import org.xcmis.spi.model.ContentStreamAllowed;
+import org.xcmis.spi.model.PropertyDefinition;
+import org.xcmis.spi.model.TypeDefinition;
+import org.xcmis.spi.model.VersioningState;
+import org.xcmis.spi.query.Query;
+import org.xcmis.spi.query.Result;
+
+import java.util.HashMap;
+
+/**
+ * @version $Id$
+ */
+public class QueryCacheTest extends BaseTest
+{
+   public void testNormalizeStatement() throws Exception
+   {
+      assertEquals("SELECT * FROM cmis:document WHERE cmis:name = 'a  b'", StorageImpl
+         .normalizeStatement("  SELECT *\n\tFROM   cmis:document WHERE cmis:name = 'a  b'  "));
+      assertEquals("SELECT * FROM cmis:document WHERE cmis:name = 'it\\'s  x'", StorageImpl
+         .normalizeStatement("SELECT * FROM cmis:document WHERE cmis:name = 'it\\'s  x'"));
+   }
+
+   public void testReuseParsedQueryAndPlan() throws Exception
+   {
+      createDocument(rootFolder, "doc1", documentTypeDefinition, null, VersioningState.MAJOR);
+      QueryCache<String, org.xcmis.search.model.Query> parsed = storage.getParsedQueryCache();
+      long planHits = storage.searchService.getQueryPlanCache().getHitCount();
+
+      assertEquals(1, count("SELECT * FROM cmis:document WHERE cmis:name = 'doc1'"));
+      assertEquals(1, count("SELECT *  FROM cmis:document\nWHERE cmis:name = 'doc1'"));
+      assertEquals(1, parsed.getHitCount());
+      assertEquals(1, parsed.getMissCount());
+      assertEquals(planHits + 1, storage.searchService.getQueryPlanCache().getHitCount());
+
+      // literal is part of statement
+      assertEquals(0, count("SELECT * FROM cmis:document WHERE cmis:name = 'doc2'"));
+      assertEquals(2, parsed.getMissCount());
+   }
+
+   public void testInvalidateOnTypeChange() throws Exception
+   {
+      count("SELECT * FROM cmis:document");
+      assertTrue(storage.getParsedQueryCache().size() > 0);
+      assertTrue(storage.searchService.getQueryPlanCache().size() > 0);
+
+      storage.addType(new TypeDefinition("cmis:cached", BaseType.DOCUMENT, "cmis:cached", "cmis:cached", "",
+         "cmis:document", "cmis:cached", "Cmis cached", true, true, true, true, true, true, true, true, null, null,
+         ContentStreamAllowed.ALLOWED, new HashMap<String, PropertyDefinition<?>>()));
+      assertEquals(0, storage.getParsedQueryCache().size());
+      assertEquals(0, storage.searchService.getQueryPlanCache().size());
+
+      count("SELECT * FROM cmis:cached");
+      storage.removeType("cmis:cached");
+      assertEquals(0, storage.getParsedQueryCache().size());
+      assertEquals(0, storage.searchService.getQueryPlanCache().size());
+   }
+
+   public void testPageDoesNotDependOnPreviousRequests() throws Exception
+   {
+      for (int i = 0; i < 20; i++)
+      {
+         createDocument(rootFolder, String.format("doc%02d", i), documentTypeDefinition, null, VersioningState.MAJOR);
+      }
+      String statement = "SELECT * FROM cmis:document ORDER BY cmis:name";
+      ItemsIterator<Result> first = storage.query(new Query(statement, false));
+      assertEquals(20, first.size());
+      for (int i = 0; i < 5; i++)
+      {
+         assertEquals(String.format("doc%02d", i), name(first.next()));
+      }
+
+      // sorted before the last seen row, next request sees current result
+      createDocument(rootFolder, "doc015", documentTypeDefinition, null, VersioningState.MAJOR);
+      ItemsIterator<Result> page = storage.query(new Query(statement, false));
+      page.skip(5);
+      assertEquals("doc04", name(page.next()));
+      assertEquals(21, page.size());
+
+      // the same page requested again is the same
+      page = storage.query(new Query(statement, false));
+      page.skip(5);
+      assertEquals("doc04", name(page.next()));
+
+      // iterator created before modification is not affected by other requests
+      assertEquals("doc05", name(first.next()));
+   }
+
+   public void testDefaultOrderByName() throws Exception
+   {
+      for (int i = 9; i >= 0; i--)
+      {
+         createDocument(rootFolder, "doc" + i, documentTypeDefinition, null, VersioningState.MAJOR);
+      }
+      ItemsIterator<Result> result = storage.query(new Query("SELECT * FROM cmis:document", false));
+      result.skip(3);
+      for (int i = 3; i < 10; i++)
+      {
+         assertEquals("doc" + i, name(result.next()));
+      }
+      assertFalse(result.hasNext());
+   }
+
+   private String name(Result result) throws Exception
+   {
+      return storage.getObjectById(result.getObjectId()).getName();
+   }
+
+   private int count(String statement) throws Exception
+   {
+      int count = 0;
+      for (ItemsIterator<Result> result = storage.query(new Query(statement, false)); result.hasNext(); result.next())
+      {
+         count++;
+      }
+      return count;
+   }
+}
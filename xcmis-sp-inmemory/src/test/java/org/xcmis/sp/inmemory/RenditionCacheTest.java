@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import org.xcmis.spi.BaseContentStream;
+import org.xcmis.spi.ContentStream;
+import org.xcmis.spi.DocumentData;
+import org.xcmis.spi.RenditionCache;
+import org.xcmis.spi.RenditionContentStream;
+import org.xcmis.spi.RenditionFilter;
+import org.xcmis.spi.RenditionManager;
+import org.xcmis.spi.RenditionProvider;
+import org.xcmis.spi.model.VersioningState;
+import org.xcmis.spi.utils.MimeType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @version $Id$
+ */
+public class RenditionCacheTest extends BaseTest
+{
+   private final AtomicInteger produced = new AtomicInteger();
+
+   private File directory;
+
+   private RenditionManager manager;
+
+   @Override
+   public void setUp() throws Exception
+   {
+      super.setUp();
+      directory = File.createTempFile("xcmis-renditions", "");
+      directory.delete();
+      manager = createManager(new RenditionCache(1024 * 1024, directory));
+      storage.renditionManager = manager;
+   }
+
+   @Override
+   protected void tearDown() throws Exception
+   {
+      File[] dirs = directory.listFiles();
+      if (dirs != null)
+      {
+         for (File dir : dirs)
+         {
+            for (File file : dir.listFiles())
+            {
+               file.delete();
+            }
+            dir.delete();
+         }
+      }
+      directory.delete();
+      super.tearDown();
+   }
+
+   public void testCacheByChangeToken() throws Exception
+   {
+      DocumentData document = createDocument(rootFolder, "doc", documentTypeDefinition, text("first"),
+         VersioningState.MAJOR);
+      String streamId = storage.getRenditions(document).next().getStreamId();
+
+      assertEquals("thumbnail:first", read(document.getContentStream(streamId)));
+      assertEquals("thumbnail:first", read(document.getContentStream(streamId)));
+      assertEquals(1, produced.get());
+      assertEquals(1, manager.getCache().getHitCount());
+
+      document.setContentStream(text("second"));
+      assertEquals("thumbnail:second", read(document.getContentStream(streamId)));
+      assertEquals(2, produced.get());
+
+      // on-disk tier survives restart
+      storage.renditionManager = createManager(new RenditionCache(1024 * 1024, directory));
+      assertEquals("thumbnail:second", read(document.getContentStream(streamId)));
+      assertEquals(2, produced.get());
+
+      storage.deleteObject(document, true);
+      assertEquals(0, directory.listFiles().length);
+   }
+
+   public void testPregenerateThumbnails() throws Exception
+   {
+      manager.setExecutor(new Executor()
+      {
+         public void execute(Runnable command)
+         {
+            command.run();
+         }
+      });
+      DocumentData document = createDocument(rootFolder, "doc", documentTypeDefinition, text("content"),
+         VersioningState.MAJOR);
+      assertEquals(1, produced.get());
+
+      String streamId = storage.getRenditions(document).next().getStreamId();
+      assertEquals("thumbnail:content", read(document.getContentStream(streamId)));
+      assertEquals(1, produced.get());
+
+      document.setContentStream(text("updated"));
+      assertEquals(2, produced.get());
+      assertEquals("thumbnail:updated", read(document.getContentStream(streamId)));
+      assertEquals(2, produced.get());
+   }
+
+   private RenditionManager createManager(RenditionCache cache)
+   {
+      final RenditionProvider provider = new RenditionProvider()
+      {
+         public RenditionContentStream getRenditionStream(ContentStream stream) throws IOException
+         {
+            produced.incrementAndGet();
+            return new RenditionContentStream(("thumbnail:" + read(stream)).getBytes(), null, getProducedMediaType(),
+               getKind(), getHeight(), getWidth());
+         }
+
+         public MimeType[] getSupportedMediaType()
+         {
+            return new MimeType[]{new MimeType("text", "*")};
+         }
+
+         public MimeType getProducedMediaType()
+         {
+            return new MimeType("image", "png");
+         }
+
+         public String getKind()
+         {
+            return RenditionFilter.THUMBNAIL;
+         }
+
+         public int getHeight()
+         {
+            return 100;
+         }
+
+         public int getWidth()
+         {
+            return 100;
+         }
+      };
+      RenditionManager renditionManager = new RenditionManager()
+      {
+         {
+            renditionProviders.put(provider.getSupportedMediaType()[0], provider);
+         }
+      };
+      renditionManager.setCache(cache);
+      return renditionManager;
+   }
+
+   public void testLargeRenditionOnDisk() throws Exception
+   {
+      RenditionCache cache = new RenditionCache(16, directory);
+      String large = "large rendition what doesn't fit in memory";
+      MimeType png = new MimeType("image", "png");
+      // length is unknown
+      RenditionContentStream stream =
+         cache.put("obj", "token", "stream", new RenditionContentStream(new ByteArrayInputStream(large.getBytes()),
+            null, png, "cmis:thumbnail", 10, 20));
+      assertEquals(large, read(stream));
+      assertEquals(large.length(), stream.length());
+      assertEquals(0, cache.getMemorySize());
+      // length is known
+      cache.put("obj", "token", "known", new RenditionContentStream(new ByteArrayInputStream(large.getBytes()), large
+         .length(), null, png, "cmis:thumbnail", 10, 20));
+      assertEquals(0, cache.getMemorySize());
+
+      RenditionContentStream cached = cache.get("obj", "token", "stream");
+      assertEquals(large, read(cached));
+      assertEquals(10, cached.getHeight());
+      assertEquals(large, read(cache.get("obj", "token", "known")));
+      assertEquals(0, cache.getMemorySize());
+
+      // without on-disk tier rendition is passed through
+      RenditionCache memory = new RenditionCache(16);
+      assertEquals(large, read(memory.put("obj", "token", "stream", new RenditionContentStream(
+         new ByteArrayInputStream(large.getBytes()), null, png, "cmis:thumbnail", 10, 20))));
+      assertNull(memory.get("obj", "token", "stream"));
+      cache.remove("obj");
+   }
+
+   private ContentStream text(String text)
+   {
+      return new BaseContentStream(text.getBytes(), null, new MimeType("text", "plain"));
+   }
+
+   private String read(ContentStream stream) throws IOException
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      InputStream in = stream.getStream();
+      byte[] buf = new byte[1024];
+      int r;
+      while ((r = in.read(buf)) != -1)
+      {
+         out.write(buf, 0, r);
+      }
+      in.close();
+      return out.toString();
+   }
+}
@@ -0,0 +1,436 @@
+/**
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import junit.framework.TestCase;
+
+import org.xcmis.spi.BaseContentStream;
+import org.xcmis.spi.CmisConstants;
+import org.xcmis.spi.ConstraintException;
+import org.xcmis.spi.DocumentData;
+import org.xcmis.spi.FolderData;
+import org.xcmis.spi.ItemsIterator;
+import org.xcmis.spi.ObjectNotFoundException;
+import org.xcmis.spi.PermissionService;
+import org.xcmis.spi.UserContext;
+import org.xcmis.spi.model.BaseType;
+import org.xcmis.spi.model.ChangeEvent;
+import org.xcmis.spi.model.ChangeType;
+import org.xcmis.spi.model.ContentStreamAllowed;
+import org.xcmis.spi.model.Property;
+import org.xcmis.spi.model.PropertyDefinition;
+import org.xcmis.spi.model.PropertyType;
+import org.xcmis.spi.model.TypeDefinition;
+import org.xcmis.spi.model.Updatability;
+import org.xcmis.spi.model.VersioningState;
+import org.xcmis.spi.model.impl.StringProperty;
+import org.xcmis.spi.query.Query;
+import org.xcmis.spi.query.Result;
+import org.xcmis.spi.utils.MimeType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @version $Id$
+ */
+public class StoragePersistenceTest extends TestCase
+{
+   private File directory;
+
+   private StorageImpl storage;
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      directory = File.createTempFile("xcmis-storage", "");
+      directory.delete();
+      UserContext.setCurrent(new UserContext("root"));
+      storage = open();
+   }
+
+   @Override
+   protected void tearDown() throws Exception
+   {
+      storage.close();
+      delete(directory);
+      super.tearDown();
+   }
+
+   public void testRestart() throws Exception
+   {
+      FolderData root = (FolderData)storage.getObjectById(StorageImpl.ROOT_FOLDER_ID);
+      FolderData folder = createFolder(root, "folder");
+      byte[] large = new byte[100];
+      Arrays.fill(large, (byte)'a');
+      DocumentData document = createDocument(folder, "document", "cmis:document", large);
+      root.addObject(document);
+      DocumentData pwc = document.checkout();
+      DocumentData removed = createDocument(root, "removed", "cmis:document", null);
+      storage.deleteObject(removed, true);
+
+      PropertyDefinition<String> definition =
+         new PropertyDefinition<String>("persisted:text", "persisted:text", "persisted:text", null, "persisted:text",
+            "text", PropertyType.STRING, Updatability.READWRITE, false, false, true, true, null, false, null,
+            new String[]{"default"});
+      Map<String, PropertyDefinition<?>> definitions = new HashMap<String, PropertyDefinition<?>>();
+      definitions.put(definition.getId(), definition);
+      storage.addType(new TypeDefinition("persisted:document", BaseType.DOCUMENT, "persisted:document",
+         "persisted:document", "", "cmis:document", "persisted:document", "", true, true, true, true, true, true,
+         true, true, null, null, ContentStreamAllowed.ALLOWED, definitions));
+      DocumentData typed = createDocument(folder, "typed", "persisted:document", "small".getBytes());
+
+      String token = storage.getRepositoryInfo().getLatestChangeLogToken();
+      storage.close();
+      storage = open();
+
+      assertEquals(folder.getObjectId(), storage.getObjectByPath("/folder").getObjectId());
+      assertEquals(document.getObjectId(), storage.getObjectByPath("/folder/document").getObjectId());
+      assertEquals(document.getObjectId(), storage.getObjectByPath("/document").getObjectId());
+      assertEquals(2, storage.getObjectById(document.getObjectId()).getParents().size());
+      assertNotFound("/removed");
+      assertTrue(Arrays.equals(large, read(((DocumentData)storage.getObjectById(document.getObjectId()))
+         .getContentStream().getStream())));
+      assertTrue(Arrays.equals(large, read(((DocumentData)storage.getObjectById(pwc.getObjectId()))
+         .getContentStream().getStream())));
+      assertEquals(pwc.getObjectId(), storage.workingCopies.get(document.getVersionSeriesId()));
+      assertEquals(1, storage.getCheckedOutDocuments(null, null).size());
+
+      TypeDefinition type = storage.getTypeDefinition("persisted:document", true);
+      assertEquals("cmis:document", type.getParentId());
+      assertEquals("default", type.getPropertyDefinition("persisted:text").getDefaultValue()[0]);
+      assertEquals("small", new String(read(((DocumentData)storage.getObjectById(typed.getObjectId()))
+         .getContentStream().getStream())));
+      assertEquals(5, storage.getUsageStatistics().getObjectCount());
+
+      // checkin after restart replaces document in folders
+      Map<String, Property<?>> properties = new HashMap<String, Property<?>>();
+      properties.put(CmisConstants.NAME, nameProperty("document2"));
+      ((DocumentData)storage.getObjectById(pwc.getObjectId())).checkin(true, null, properties, null, null, null);
+      assertEquals(pwc.getObjectId(), storage.getObjectByPath("/folder/document2").getObjectId());
+      assertNotFound("/folder/document");
+      assertEquals(0, storage.getCheckedOutDocuments(null, null).size());
+
+      // events before restart are not available
+      try
+      {
+         storage.getChangeLog(token);
+         fail("ConstraintException expected.");
+      }
+      catch (ConstraintException e)
+      {
+         // expected
+      }
+      createDocument(folder, "created", "cmis:document", null);
+      ItemsIterator<ChangeEvent> changes =
+         storage.getChangeLog(storage.getRepositoryInfo().getLatestChangeLogToken());
+      assertEquals(ChangeType.CREATED, changes.next().getType());
+      assertTrue(Long.parseLong(storage.getRepositoryInfo().getLatestChangeLogToken()) > Long.parseLong(token));
+
+      assertEquals(1, count("SELECT * FROM cmis:document WHERE cmis:name = 'typed'"));
+   }
+
+   public void testRecoverJournal() throws Exception
+   {
+      FolderData root = (FolderData)storage.getObjectById(StorageImpl.ROOT_FOLDER_ID);
+      DocumentData document = createDocument(root, "journaled", "cmis:document", null);
+      storage.persistence.flush();
+      storage.close();
+
+      // storage was not closed properly and last record was not written completely
+      new File(directory, "clean").delete();
+      File journal = null;
+      for (File file : directory.listFiles())
+      {
+         if (file.getName().startsWith("journal-"))
+         {
+            journal = file;
+         }
+      }
+      FileOutputStream out = new FileOutputStream(journal, true);
+      out.write(new byte[]{1, 0, 0});
+      out.close();
+
+      storage = open();
+      assertEquals(document.getObjectId(), storage.getObjectByPath("/journaled").getObjectId());
+      // index is rebuilt
+      assertEquals(1, count("SELECT * FROM cmis:document WHERE cmis:name = 'journaled'"));
+   }
+
+   public void testCrashDuringSnapshot() throws Exception
+   {
+      FolderData root = (FolderData)storage.getObjectById(StorageImpl.ROOT_FOLDER_ID);
+      DocumentData before = createDocument(root, "before", "cmis:document", null);
+      long generation = storage.persistence.startJournal();
+      DocumentData after = createDocument(root, "after", "cmis:document", null);
+      storage.persistence.flush();
+
+      // process crashed while snapshot was written
+      File snapshot = new File(directory, "snapshot-" + generation + ".tmp");
+      FileOutputStream out = new FileOutputStream(snapshot);
+      out.write(new byte[]{0x78, 0x43, 0x4d});
+      out.close();
+      storage.close();
+      new File(directory, "clean").delete();
+
+      storage = open();
+      assertFalse(snapshot.exists());
+      assertEquals(before.getObjectId(), storage.getObjectByPath("/before").getObjectId());
+      assertEquals(after.getObjectId(), storage.getObjectByPath("/after").getObjectId());
+      assertEquals(1, count("SELECT * FROM cmis:document WHERE cmis:name = 'after'"));
+   }
+
+   public void testTruncatedJournal() throws Exception
+   {
+      // changes of second document are written in journal at once
+      storage.close();
+      storage = open(false);
+      FolderData root = (FolderData)storage.getObjectById(StorageImpl.ROOT_FOLDER_ID);
+      DocumentData first = createDocument(root, "first", "cmis:document", null);
+      storage.persistence.flush();
+      File journal = getJournal();
+      long length = journal.length();
+      createDocument(root, "second", "cmis:document", null);
+      storage.persistence.flush();
+      assertTrue(journal.length() > length);
+      storage.close();
+
+      // process crashed while changes of second document were written
+      new File(directory, "clean").delete();
+      RandomAccessFile file = new RandomAccessFile(journal, "rw");
+      file.setLength(length + (journal.length() - length) / 2);
+      file.close();
+
+      storage = open();
+      assertEquals(first.getObjectId(), storage.getObjectByPath("/first").getObjectId());
+      assertNotFound("/second");
+      assertEquals(1, count("SELECT * FROM cmis:document WHERE cmis:name = 'first'"));
+      assertEquals(0, count("SELECT * FROM cmis:document WHERE cmis:name = 'second'"));
+
+      // storage is usable after recovery
+      root = (FolderData)storage.getObjectById(StorageImpl.ROOT_FOLDER_ID);
+      createDocument(root, "second", "cmis:document", null);
+      storage.close();
+      storage = open();
+      assertNotNull(storage.getObjectByPath("/second"));
+   }
+
+   public void testSyncJournal() throws Exception
+   {
+      FolderData root = (FolderData)storage.getObjectById(StorageImpl.ROOT_FOLDER_ID);
+      DocumentData document = createDocument(root, "synced", "cmis:document", new byte[100]);
+
+      // process crashed right after document was created, journal was not flushed by timer
+      File copy = File.createTempFile("xcmis-storage", "");
+      copy.delete();
+      copy(directory, copy);
+      storage.close();
+      delete(directory);
+      directory = copy;
+
+      storage = open();
+      assertEquals(document.getObjectId(), storage.getObjectByPath("/synced").getObjectId());
+      assertEquals(100, read(((DocumentData)storage.getObjectById(document.getObjectId())).getContentStream()
+         .getStream()).length);
+   }
+
+   public void testCompactContentSegments() throws Exception
+   {
+      FolderData root = (FolderData)storage.getObjectById(StorageImpl.ROOT_FOLDER_ID);
+      byte[] kept = new byte[100];
+      Arrays.fill(kept, (byte)'k');
+      DocumentData document = createDocument(root, "kept", "cmis:document", kept);
+      DocumentData pwc = document.checkout();
+      for (int i = 0; i < 3; i++)
+      {
+         storage.deleteObject(createDocument(root, "removed" + i, "cmis:document", new byte[100]), true);
+      }
+      File content = new File(directory, "content");
+      File[] before = content.listFiles();
+      assertEquals(1, before.length);
+      assertEquals(400, before[0].length());
+
+      storage.persistence.snapshot();
+      assertFalse(before[0].exists());
+      File[] after = content.listFiles();
+      assertEquals(1, after.length);
+      assertEquals(100, after[0].length());
+      // document and private working copy still share content
+      assertSame(getBlob(document), getBlob(pwc));
+      assertEquals(100, storage.getUsageStatistics().getContentBytes());
+
+      storage.close();
+      storage = open();
+      assertTrue(Arrays.equals(kept, read(((DocumentData)storage.getObjectById(document.getObjectId()))
+         .getContentStream().getStream())));
+      assertTrue(Arrays.equals(kept, read(((DocumentData)storage.getObjectById(pwc.getObjectId()))
+         .getContentStream().getStream())));
+   }
+
+   public void testCloseProvider() throws Exception
+   {
+      storage.close();
+      StorageConfiguration configuration = new StorageConfiguration("persisted", "persisted", null, -1, -1);
+      configuration.setPersistenceDirectory(directory.getAbsolutePath());
+      StorageProviderImpl provider = new StorageProviderImpl(configuration);
+      assertFalse(new File(directory, "clean").exists());
+      provider.close();
+      assertTrue(new File(directory, "clean").exists());
+      storage = open();
+   }
+
+   private File getJournal()
+   {
+      // journals before last snapshot are removed
+      for (File file : directory.listFiles())
+      {
+         if (file.getName().startsWith("journal-"))
+         {
+            return file;
+         }
+      }
+      return null;
+   }
+
+   private StorageImpl open()
+   {
+      return open(true);
+   }
+
+   private StorageImpl open(boolean syncJournal)
+   {
+      StorageConfiguration configuration = new StorageConfiguration("persisted", "persisted", null, -1, -1);
+      configuration.setPersistenceDirectory(directory.getAbsolutePath());
+      configuration.setMaxInlineContentSize(10);
+      configuration.setSyncJournal(syncJournal);
+      return new StorageImpl(configuration, null, new PermissionService());
+   }
+
+   private Blob getBlob(DocumentData document)
+   {
+      return ((ContentValue)storage.entries.get(document.getObjectId()).getValue(PropertyDefinitions.CONTENT))
+         .getBlob();
+   }
+
+   private FolderData createFolder(FolderData parent, String name) throws Exception
+   {
+      Map<String, Property<?>> properties = new HashMap<String, Property<?>>();
+      properties.put(CmisConstants.NAME, nameProperty(name));
+      return storage.createFolder(parent, storage.getTypeDefinition("cmis:folder", true), properties, null, null);
+   }
+
+   private DocumentData createDocument(FolderData parent, String name, String typeId, byte[] content)
+      throws Exception
+   {
+      Map<String, Property<?>> properties = new HashMap<String, Property<?>>();
+      properties.put(CmisConstants.NAME, nameProperty(name));
+      return storage.createDocument(parent, storage.getTypeDefinition(typeId, true), properties,
+         content != null ? new BaseContentStream(content, null, new MimeType("text", "plain")) : null, null, null,
+         VersioningState.MAJOR);
+   }
+
+   private Property<?> nameProperty(String name)
+   {
+      PropertyDefinition<?> def = PropertyDefinitions.getPropertyDefinition("cmis:document", CmisConstants.NAME);
+      return new StringProperty(def.getId(), def.getQueryName(), def.getLocalName(), def.getDisplayName(), name);
+   }
+
+   private int count(String statement) throws Exception
+   {
+      int count = 0;
+      for (ItemsIterator<Result> result = storage.query(new Query(statement, false)); result.hasNext(); result.next())
+      {
+         count++;
+      }
+      return count;
+   }
+
+   private void assertNotFound(String path)
+   {
+      try
+      {
+         storage.getObjectByPath(path);
+         fail("ObjectNotFoundException expected for " + path);
+      }
+      catch (ObjectNotFoundException e)
+      {
+         // expected
+      }
+   }
+
+   private static byte[] read(InputStream in) throws Exception
+   {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[1024];
+      int r;
+      while ((r = in.read(buf)) != -1)
+      {
+         out.write(buf, 0, r);
+      }
+      return out.toByteArray();
+   }
+
+   private static void copy(File from, File to) throws Exception
+   {
+      to.mkdirs();
+      for (File file : from.listFiles())
+      {
+         File target = new File(to, file.getName());
+         if (file.isDirectory())
+         {
+            copy(file, target);
+         }
+         else
+         {
+            FileInputStream in = new FileInputStream(file);
+            FileOutputStream out = new FileOutputStream(target);
+            try
+            {
+               out.write(read(in));
+            }
+            finally
+            {
+               in.close();
+               out.close();
+            }
+         }
+      }
+   }
+
+   private static void delete(File file)
+   {
+      File[] files = file.listFiles();
+      if (files != null)
+      {
+         for (File f : files)
+         {
+            delete(f);
+         }
+      }
+      file.delete();
+   }
+}
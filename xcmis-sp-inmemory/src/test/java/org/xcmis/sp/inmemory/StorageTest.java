@@ -20,22 +20,45 @@ package org.xcmis.sp.inmemory;
 
 import org.xcmis.spi.BaseContentStream;
 import org.xcmis.spi.CmisConstants;
+import org.xcmis.spi.Connection;
+import org.xcmis.spi.ConstraintException;
 import org.xcmis.spi.ContentStream;
 import org.xcmis.spi.DocumentData;
+import org.xcmis.spi.FetchHints;
 import org.xcmis.spi.FolderData;
 import org.xcmis.spi.ItemsIterator;
+import org.xcmis.spi.ItemsList;
+import org.xcmis.spi.NameConstraintViolationException;
 import org.xcmis.spi.ObjectData;
+import org.xcmis.spi.ObjectNotFoundException;
+import org.xcmis.spi.PermissionService;
+import org.xcmis.spi.PolicyData;
+import org.xcmis.spi.PropertyFilter;
+import org.xcmis.spi.RelationshipData;
+import org.xcmis.spi.RenditionManager;
+import org.xcmis.spi.StorageException;
+import org.xcmis.spi.UserContext;
 import org.xcmis.spi.model.AccessControlEntry;
+import org.xcmis.spi.model.BaseType;
 import org.xcmis.spi.model.ChangeEvent;
 import org.xcmis.spi.model.ChangeType;
+import org.xcmis.spi.model.CmisObject;
+import org.xcmis.spi.model.ContentStreamAllowed;
+import org.xcmis.spi.model.IncludeRelationships;
 import org.xcmis.spi.model.Property;
 import org.xcmis.spi.model.PropertyDefinition;
+import org.xcmis.spi.model.TypeDefinition;
 import org.xcmis.spi.model.VersioningState;
 import org.xcmis.spi.model.impl.StringProperty;
 import org.xcmis.spi.utils.MimeType;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -43,6 +66,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
@@ -216,6 +240,658 @@ public class StorageTest extends BaseTest
 
    }
 
+   public void testNameCollision() throws Exception
+   {
+      FolderData folder = createFolder(rootFolder, "nameCollisionFolder");
+      DocumentData document = createDocument(folder, "doc", documentTypeDefinition, null, null);
+      try
+      {
+         createDocument(folder, "doc", documentTypeDefinition, null, null);
+         fail("NameConstraintViolationException expected.");
+      }
+      catch (NameConstraintViolationException e)
+      {
+         // expected
+      }
+      try
+      {
+         createFolder(folder, "doc");
+         fail("NameConstraintViolationException expected.");
+      }
+      catch (NameConstraintViolationException e)
+      {
+         // expected
+      }
+
+      DocumentData other = createDocument(rootFolder, "doc", documentTypeDefinition, null, null);
+      try
+      {
+         storage.moveObject(other, folder, rootFolder);
+         fail("NameConstraintViolationException expected.");
+      }
+      catch (NameConstraintViolationException e)
+      {
+         // expected
+      }
+
+      // name is released after rename
+      document.setProperty(nameProperty("renamed"));
+      storage.moveObject(other, folder, rootFolder);
+      assertEquals(other.getObjectId(), storage.getObjectByPath("/nameCollisionFolder/doc").getObjectId());
+      assertEquals(document.getObjectId(), storage.getObjectByPath("/nameCollisionFolder/renamed").getObjectId());
+      try
+      {
+         document.setProperty(nameProperty("doc"));
+         fail("NameConstraintViolationException expected.");
+      }
+      catch (NameConstraintViolationException e)
+      {
+         // expected
+      }
+   }
+
+   public void testMoveMultifiledObject() throws Exception
+   {
+      FolderData folder1 = createFolder(rootFolder, "moveMultifiledFolder1");
+      FolderData folder2 = createFolder(rootFolder, "moveMultifiledFolder2");
+      DocumentData document = createDocument(folder1, "doc", documentTypeDefinition, null, null);
+      folder2.addObject(document);
+
+      // name in target folder is mapped to the same object
+      storage.moveObject(document, folder2, folder1);
+      assertEquals(document.getObjectId(), storage.getObjectByPath("/moveMultifiledFolder2/doc").getObjectId());
+      assertEquals(1, document.getParents().size());
+      assertEquals(folder2.getObjectId(), document.getParents().iterator().next().getObjectId());
+      try
+      {
+         storage.getObjectByPath("/moveMultifiledFolder1/doc");
+         fail("ObjectNotFoundException expected.");
+      }
+      catch (ObjectNotFoundException e)
+      {
+         // expected
+      }
+   }
+
+   public void testGetObjectByPath() throws Exception
+   {
+      FolderData folder1 = createFolder(rootFolder, "pathFolder1");
+      FolderData folder2 = createFolder(folder1, "pathFolder2");
+      DocumentData document = createDocument(folder2, "pathDocument", documentTypeDefinition, null, null);
+
+      assertEquals(rootFolder.getObjectId(), storage.getObjectByPath("/").getObjectId());
+      assertEquals(folder2.getObjectId(), storage.getObjectByPath("/pathFolder1/pathFolder2").getObjectId());
+      assertEquals(document.getObjectId(), storage.getObjectByPath("/pathFolder1/pathFolder2/pathDocument")
+         .getObjectId());
+      assertNotFound("/pathFolder1/pathDocument");
+      // document has no children
+      assertNotFound("/pathFolder1/pathFolder2/pathDocument/child");
+
+      folder1.addObject(document);
+      assertEquals(document.getObjectId(), storage.getObjectByPath("/pathFolder1/pathDocument").getObjectId());
+      folder1.removeObject(document);
+      assertNotFound("/pathFolder1/pathDocument");
+
+      storage.deleteObject(document, true);
+      assertNotFound("/pathFolder1/pathFolder2/pathDocument");
+      createDocument(folder2, "pathDocument", documentTypeDefinition, null, null);
+   }
+
+   public void testGetObjectsByIds() throws Exception
+   {
+      FolderData folder = createFolder(rootFolder, "batchFolder");
+      DocumentData document = createDocument(folder, "batchDocument", documentTypeDefinition, null, null);
+
+      Map<String, ObjectData> objects =
+         storage.getObjectsByIds(Arrays.asList(document.getObjectId(), "unknown", folder.getObjectId()), null,
+            null);
+      assertEquals(2, objects.size());
+      Iterator<String> ids = objects.keySet().iterator();
+      assertEquals(document.getObjectId(), ids.next());
+      assertEquals(folder.getObjectId(), ids.next());
+      assertEquals("batchDocument", objects.get(document.getObjectId()).getName());
+      assertEquals(BaseType.FOLDER, objects.get(folder.getObjectId()).getBaseType());
+   }
+
+   public void testListsFetchPagesWithHints() throws Exception
+   {
+      final List<FetchHints> requested = new ArrayList<FetchHints>();
+      storage =
+         new StorageImpl(new StorageConfiguration("hints", "hints", null, -1, -1), RenditionManager.getInstance(),
+            new PermissionService())
+         {
+            @Override
+            public Map<String, ObjectData> getObjectsByIds(Collection<String> objectIds,
+               PropertyFilter propertyFilter, FetchHints hints)
+            {
+               requested.add(hints);
+               return super.getObjectsByIds(objectIds, propertyFilter, hints);
+            }
+         };
+      rootFolder = (FolderData)storage.getObjectById(storage.getRepositoryInfo().getRootFolderId());
+      List<DocumentData> documents = new ArrayList<DocumentData>();
+      for (int i = 0; i < 150; i++)
+      {
+         documents.add(createDocument(rootFolder, String.format("doc%03d", i), documentTypeDefinition, null, null));
+      }
+      Connection connection = new InmemConnection(storage);
+
+      requested.clear();
+      ItemsList<CmisObject> children =
+         connection.getChildren(rootFolder.getObjectId(), true, IncludeRelationships.NONE, true, false, null, null,
+            null, 120, 5);
+      assertEquals(120, children.getItems().size());
+      assertEquals("doc005", children.getItems().get(0).getPathSegment());
+      assertEquals("doc124", children.getItems().get(119).getPathSegment());
+      assertTrue(children.isHasMoreItems());
+      // one call per page
+      assertEquals(2, requested.size());
+      for (FetchHints hints : requested)
+      {
+         assertTrue(hints.isIncludeAllowableActions());
+      }
+
+      documents.get(10).checkout();
+      documents.get(20).checkout();
+      requested.clear();
+      ItemsList<CmisObject> checkedOut =
+         connection.getCheckedOutDocs(null, false, IncludeRelationships.SOURCE, false, null, null, null, -1, 0);
+      assertEquals(2, checkedOut.getItems().size());
+      assertEquals(1, requested.size());
+      assertFalse(requested.get(0).isIncludeAllowableActions());
+      assertEquals(IncludeRelationships.SOURCE, requested.get(0).getIncludeRelationships());
+   }
+
+   public void testPathOfCheckedInDocument() throws Exception
+   {
+      DocumentData document = createDocument(rootFolder, "versioned", documentTypeDefinition, null, null);
+      DocumentData pwc = document.checkout();
+      assertEquals(document.getObjectId(), storage.getObjectByPath("/versioned").getObjectId());
+
+      Map<String, Property<?>> properties = new HashMap<String, Property<?>>();
+      properties.put(CmisConstants.NAME, nameProperty("versioned2"));
+      pwc.checkin(true, null, properties, null, null, null);
+
+      assertEquals(pwc.getObjectId(), storage.getObjectByPath("/versioned2").getObjectId());
+      assertNotFound("/versioned");
+      createDocument(rootFolder, "versioned", documentTypeDefinition, null, null);
+   }
+
+   public void testContentExceedsMaxMem() throws Exception
+   {
+      File dir = File.createTempFile("content", "test");
+      dir.delete();
+      MappedBlobStore blobStore = new MappedBlobStore(dir, 16, 1024 * 1024);
+      StorageConfiguration configuration = new StorageConfiguration("maxmem", "maxmem", null, 1000, -1);
+      configuration.setBlobStore(blobStore);
+      storage = new StorageImpl(configuration, RenditionManager.getInstance(), new PermissionService());
+      rootFolder = (FolderData)storage.getObjectById(storage.getRepositoryInfo().getRootFolderId());
+      try
+      {
+         DocumentData document = createDocument(rootFolder, "maxmem", documentTypeDefinition, null, null);
+         // declared length is checked before content is read
+         ByteArrayInputStream declared = new ByteArrayInputStream(new byte[5000]);
+         try
+         {
+            document.setContentStream(new BaseContentStream(declared, 5000, "a", new MimeType("text", "plain")));
+            fail("StorageException expected.");
+         }
+         catch (StorageException e)
+         {
+            // expected
+         }
+         assertEquals(5000, declared.available());
+
+         // unknown length, reading is stopped at limit and content is not kept
+         try
+         {
+            document.setContentStream(new BaseContentStream(new ByteArrayInputStream(new byte[5000]), "a",
+               new MimeType("text", "plain")));
+            fail("StorageException expected.");
+         }
+         catch (StorageException e)
+         {
+            // expected
+         }
+         assertNull(document.getContentStream());
+         long stored = 0;
+         File[] segments = dir.listFiles();
+         for (int i = 0; segments != null && i < segments.length; i++)
+         {
+            stored += segments[i].length();
+         }
+         assertEquals(0, stored);
+
+         document.setContentStream(new BaseContentStream(new byte[500], "a", new MimeType("text", "plain")));
+         assertEquals(500, document.getContentStream().length());
+      }
+      finally
+      {
+         blobStore.close();
+         File[] files = dir.listFiles();
+         for (int i = 0; files != null && i < files.length; i++)
+         {
+            files[i].delete();
+         }
+         dir.delete();
+      }
+   }
+
+   public void testConcurrentContentReservesMaxMem() throws Exception
+   {
+      StorageConfiguration configuration = new StorageConfiguration("reserve", "reserve", null, 1000, -1);
+      storage = new StorageImpl(configuration, RenditionManager.getInstance(), new PermissionService());
+      rootFolder = (FolderData)storage.getObjectById(storage.getRepositoryInfo().getRootFolderId());
+      final DocumentData first = createDocument(rootFolder, "first", documentTypeDefinition, null, null);
+      final DocumentData second = createDocument(rootFolder, "second", documentTypeDefinition, null, null);
+      // second upload is done while first one is read, each fits alone but not together
+      InputStream interleaved = new InputStream()
+      {
+         private int read;
+
+         @Override
+         public int read()
+         {
+            throw new UnsupportedOperationException();
+         }
+
+         @Override
+         public int read(byte[] b, int off, int len) throws IOException
+         {
+            if (read == 300)
+            {
+               try
+               {
+                  second.setContentStream(new BaseContentStream(new ByteArrayInputStream(new byte[600]), "a",
+                     new MimeType("text", "plain")));
+               }
+               catch (Exception e)
+               {
+                  throw new IOException(e.getMessage());
+               }
+            }
+            if (read == 600)
+            {
+               return -1;
+            }
+            int r = Math.min(len, 300);
+            read += r;
+            return r;
+         }
+      };
+      try
+      {
+         first.setContentStream(new BaseContentStream(interleaved, "a", new MimeType("text", "plain")));
+         fail("StorageException expected.");
+      }
+      catch (StorageException e)
+      {
+         // expected
+      }
+      assertNull(first.getContentStream());
+      assertEquals(600, second.getContentStream().length());
+      assertEquals(600, storage.getUsageStatistics().getAllocatedBytes());
+
+      second.setContentStream(null);
+      assertEquals(0, storage.getUsageStatistics().getAllocatedBytes());
+   }
+
+   public void testCheckinFailedContent() throws Exception
+   {
+      DocumentData document = createDocument(rootFolder, "versionedFailed", documentTypeDefinition, null, null);
+      DocumentData pwc = document.checkout();
+
+      Map<String, Property<?>> properties = new HashMap<String, Property<?>>();
+      properties.put(CmisConstants.NAME, nameProperty("renamedFailed"));
+      InputStream broken = new InputStream()
+      {
+         @Override
+         public int read() throws IOException
+         {
+            throw new IOException("broken");
+         }
+      };
+      try
+      {
+         pwc.checkin(true, null, properties, new BaseContentStream(broken, "a", new MimeType("text", "plain")), null,
+            null);
+         fail("StorageException expected.");
+      }
+      catch (StorageException e)
+      {
+         // expected
+      }
+      // neither name nor version state is changed
+      assertTrue(((DocumentData)storage.getObjectById(document.getObjectId())).isVersionSeriesCheckedOut());
+      assertEquals(document.getObjectId(), storage.getObjectByPath("/versionedFailed").getObjectId());
+      assertNotFound("/renamedFailed");
+      createDocument(rootFolder, "renamedFailed", documentTypeDefinition, null, null);
+   }
+
+   public void testCheckinNameConflict() throws Exception
+   {
+      DocumentData document = createDocument(rootFolder, "versionedConflict", documentTypeDefinition, null, null);
+      createDocument(rootFolder, "takenName", documentTypeDefinition, null, null);
+      DocumentData pwc = document.checkout();
+
+      Map<String, Property<?>> properties = new HashMap<String, Property<?>>();
+      properties.put(CmisConstants.NAME, nameProperty("takenName"));
+      try
+      {
+         pwc.checkin(true, null, properties, null, null, null);
+         fail("NameConstraintViolationException expected.");
+      }
+      catch (NameConstraintViolationException e)
+      {
+         // expected
+      }
+      // version state is not changed
+      DocumentData latest = (DocumentData)storage.getObjectById(document.getObjectId());
+      assertTrue(latest.isLatestVersion());
+      assertTrue(latest.isVersionSeriesCheckedOut());
+      assertEquals(pwc.getObjectId(), latest.getVersionSeriesCheckedOutId());
+      assertEquals(document.getObjectId(), storage.getObjectByPath("/versionedConflict").getObjectId());
+
+      // name is passed from previous version to new one
+      pwc.checkin(true, null, null, null, null, null);
+      assertEquals(pwc.getObjectId(), storage.getObjectByPath("/versionedConflict").getObjectId());
+   }
+
+   public void testOrderedChildren() throws Exception
+   {
+      FolderData folder = createFolder(rootFolder, "orderedFolder");
+      DocumentData b = createDocument(folder, "b", documentTypeDefinition, null, null);
+      DocumentData c = createDocument(folder, "c", documentTypeDefinition, null, null);
+      DocumentData a = createDocument(folder, "a", documentTypeDefinition, null, null);
+      createFolder(folder, "d");
+
+      assertEquals(Arrays.asList("a", "b", "c", "d"), names(folder.getChildren(null)));
+      assertEquals(Arrays.asList("d", "c", "b", "a"), names(folder.getChildren("cmis:name DESC,cmis:objectId")));
+      // not supported order, ordered by name
+      assertEquals(Arrays.asList("a", "b", "c", "d"), names(folder.getChildren("cmis:objectId DESC")));
+
+      Calendar date = Calendar.getInstance();
+      date.add(Calendar.DAY_OF_MONTH, 1);
+      storage.entries.get(a.getObjectId()).setValue(CmisConstants.LAST_MODIFICATION_DATE, new DateValue(date));
+      assertEquals("a", names(folder.getChildren("cmis:lastModificationDate DESC")).get(0));
+      date.add(Calendar.DAY_OF_MONTH, -2);
+      storage.entries.get(c.getObjectId()).setValue(CmisConstants.CREATION_DATE, new DateValue(date));
+      assertEquals("c", names(folder.getChildren("cmis:creationDate")).get(0));
+      assertEquals("c", names(folder.getChildren("cmis:creationDate DESC")).get(3));
+
+      ItemsIterator<ObjectData> page = folder.getChildren("cmis:name");
+      assertEquals(4, page.size());
+      page.skip(2);
+      assertEquals("c", page.next().getName());
+      page.skip(1);
+      assertFalse(page.hasNext());
+      page = folder.getChildren("cmis:name");
+      page.skip(4);
+      assertFalse(page.hasNext());
+      try
+      {
+         folder.getChildren("cmis:name").skip(5);
+         fail("NoSuchElementException expected.");
+      }
+      catch (NoSuchElementException e)
+      {
+         // expected
+      }
+
+      a.setProperty(nameProperty("e"));
+      assertEquals(Arrays.asList("b", "c", "d", "e"), names(folder.getChildren(null)));
+
+      DocumentData pwc = b.checkout();
+      assertEquals(Arrays.asList("b", "c", "d", "e"), names(folder.getChildren(null)));
+      Map<String, Property<?>> properties = new HashMap<String, Property<?>>();
+      properties.put(CmisConstants.NAME, nameProperty("f"));
+      pwc.checkin(true, null, properties, null, null, null);
+      List<ObjectData> children = new ArrayList<ObjectData>();
+      for (ItemsIterator<ObjectData> i = folder.getChildren(null); i.hasNext();)
+      {
+         children.add(i.next());
+      }
+      assertEquals(4, children.size());
+      assertEquals(pwc.getObjectId(), children.get(3).getObjectId());
+
+      storage.deleteObject(a, true);
+      assertEquals(Arrays.asList("c", "d", "f"), names(folder.getChildren(null)));
+   }
+
+   public void testCheckedOutDocuments() throws Exception
+   {
+      FolderData folder1 = createFolder(rootFolder, "checkedOut1");
+      FolderData folder2 = createFolder(rootFolder, "checkedOut2");
+      DocumentData a = createDocument(folder1, "a", documentTypeDefinition, null, null);
+      DocumentData b = createDocument(folder1, "b", documentTypeDefinition, null, null);
+      DocumentData c = createDocument(folder2, "c", documentTypeDefinition, null, null);
+      createDocument(folder2, "d", documentTypeDefinition, null, null);
+
+      DocumentData pwcA = a.checkout();
+      UserContext.setCurrent(new UserContext("user"));
+      DocumentData pwcB = b.checkout();
+      DocumentData pwcC = c.checkout();
+      UserContext.setCurrent(new UserContext(principal));
+
+      assertEquals(Arrays.asList("a", "b", "c"), names(storage.getCheckedOutDocuments(null, null)));
+      assertEquals(Arrays.asList("b", "a"), names(storage.getCheckedOutDocuments(folder1,
+         "cmis:name DESC")));
+      assertEquals(Arrays.asList("c"), names(storage.getCheckedOutDocuments(folder2, null)));
+      assertEquals(Arrays.asList("b", "c"), names(storage.getCheckedOutDocuments(null, "user", null)));
+      assertEquals(Arrays.asList("b"), names(storage.getCheckedOutDocuments(folder1, "user", null)));
+      assertEquals(0, storage.getCheckedOutDocuments(null, "nobody", null).size());
+
+      ItemsIterator<DocumentData> page = storage.getCheckedOutDocuments(null, null);
+      assertEquals(3, page.size());
+      page.skip(1);
+      assertEquals(pwcB.getObjectId(), page.next().getObjectId());
+
+      storage.moveObject(pwcB, folder2, folder1);
+      assertEquals(Arrays.asList("a"), names(storage.getCheckedOutDocuments(folder1, null)));
+      assertEquals(Arrays.asList("b", "c"), names(storage.getCheckedOutDocuments(folder2, null)));
+
+      pwcA.checkin(true, null, null, null, null, null);
+      pwcC.cancelCheckout();
+      assertEquals(Arrays.asList("b"), names(storage.getCheckedOutDocuments(null, null)));
+      assertEquals(0, storage.getCheckedOutDocuments(folder1, null).size());
+      assertEquals(Arrays.asList("b"), names(storage.getCheckedOutDocuments(null, "user", null)));
+
+      storage.deleteObject(b, true);
+      assertEquals(0, storage.getCheckedOutDocuments(null, null).size());
+   }
+
+   private static List<String> names(ItemsIterator<? extends ObjectData> children)
+   {
+      List<String> names = new ArrayList<String>();
+      while (children.hasNext())
+      {
+         names.add(children.next().getName());
+      }
+      return names;
+   }
+
+   public void testShareContentWithPWC() throws Exception
+   {
+      byte[] bytes = new byte[MappedBlobStore.DEFAULT_MAX_INLINE_SIZE + 1];
+      Arrays.fill(bytes, (byte)'a');
+      DocumentData document =
+         createDocument(rootFolder, "sharedContent", documentTypeDefinition, new BaseContentStream(bytes, null,
+            new MimeType("text", "plain")), null);
+      DocumentData pwc = document.checkout();
+      Value content = storage.entries.get(document.getObjectId()).getValue(PropertyDefinitions.CONTENT);
+      assertSame(content, storage.entries.get(pwc.getObjectId()).getValue(PropertyDefinitions.CONTENT));
+      assertEquals(bytes.length, pwc.getContentStream().length());
+
+      pwc.setContentStream(new BaseContentStream("updated".getBytes(), null, new MimeType("text", "plain")));
+      assertEquals(bytes.length, document.getContentStream().length());
+      assertEquals(7, pwc.getContentStream().length());
+   }
+
+   public void testUsageStatistics() throws Exception
+   {
+      UsageStatistics usage = storage.getUsageStatistics();
+      assertEquals(1, usage.getObjectCount());
+      assertEquals(0, usage.getContentBytes());
+      long propertyBytes = usage.getPropertyBytes();
+      assertTrue(propertyBytes > 0);
+
+      DocumentData document =
+         createDocument(rootFolder, "usage", documentTypeDefinition, new BaseContentStream(new byte[100], null,
+            new MimeType("text", "plain")), null);
+      assertEquals(2, usage.getObjectCount());
+      assertEquals(100, usage.getContentBytes());
+      assertEquals(100, usage.getTypeUsage("cmis:document").getContentBytes());
+      assertTrue(usage.getPropertyBytes() > propertyBytes);
+
+      // PWC shares content
+      DocumentData pwc = document.checkout();
+      assertEquals(3, usage.getObjectCount());
+      assertEquals(100, usage.getContentBytes());
+      pwc.setContentStream(new BaseContentStream(new byte[10], null, new MimeType("text", "plain")));
+      assertEquals(110, usage.getContentBytes());
+      pwc.cancelCheckout();
+      assertEquals(100, usage.getContentBytes());
+
+      storage.deleteObject(document, true);
+      assertEquals(1, usage.getObjectCount());
+      assertEquals(0, usage.getContentBytes());
+      assertEquals(propertyBytes, usage.getPropertyBytes());
+      assertEquals(0, usage.getTypeUsage("cmis:document").getPropertyBytes());
+   }
+
+   public void testMaxItemsNumber() throws Exception
+   {
+      StorageImpl limited =
+         new StorageImpl(new StorageConfiguration("limited", "limited", null, 150, 2), null, new PermissionService());
+      FolderData root = (FolderData)limited.getObjectById(limited.getRepositoryInfo().getRootFolderId());
+      Map<String, Property<?>> properties = new HashMap<String, Property<?>>();
+      properties.put(CmisConstants.NAME, nameProperty("limited1"));
+      DocumentData document =
+         limited.createDocument(root, documentTypeDefinition, properties, new BaseContentStream(new byte[100], null,
+            new MimeType("text", "plain")), null, null, VersioningState.MAJOR);
+      try
+      {
+         document.setContentStream(new BaseContentStream(new byte[100], null, new MimeType("text", "plain")));
+         fail("StorageException expected.");
+      }
+      catch (StorageException e)
+      {
+         // expected
+      }
+      properties.put(CmisConstants.NAME, nameProperty("limited2"));
+      try
+      {
+         limited.createDocument(root, documentTypeDefinition, properties, null, null, null, VersioningState.MAJOR);
+         fail("StorageException expected.");
+      }
+      catch (StorageException e)
+      {
+         // expected
+      }
+   }
+
+   public void testPolicyNameUniqueness() throws Exception
+   {
+      PolicyData policy = createPolicy("uniquePolicy");
+      try
+      {
+         createPolicy("uniquePolicy");
+         fail("NameConstraintViolationException expected.");
+      }
+      catch (NameConstraintViolationException e)
+      {
+         // expected
+      }
+      // names of documents don't conflict with names of policies
+      createDocument(rootFolder, "uniquePolicy", documentTypeDefinition, null, null);
+
+      storage.deleteObject(policy, true);
+      createPolicy("uniquePolicy");
+   }
+
+   public void testRelationshipNameUniqueness() throws Exception
+   {
+      TypeDefinition relationshipType = storage.getTypeDefinition("cmis:relationship", true);
+      DocumentData source = createDocument(rootFolder, "relSource", documentTypeDefinition, null, null);
+      DocumentData target = createDocument(rootFolder, "relTarget", documentTypeDefinition, null, null);
+      RelationshipData relationship = createRelationship("uniqueRelationship", source, target, relationshipType);
+      try
+      {
+         createRelationship("uniqueRelationship", target, source, relationshipType);
+         fail("NameConstraintViolationException expected.");
+      }
+      catch (NameConstraintViolationException e)
+      {
+         // expected
+      }
+      storage.deleteObject(relationship, true);
+      createRelationship("uniqueRelationship", target, source, relationshipType);
+   }
+
+   public void testObjectCounts() throws Exception
+   {
+      assertEquals(1, storage.getObjectCount("cmis:folder"));
+      assertEquals(0, storage.getObjectCount("cmis:document"));
+
+      storage.addType(new TypeDefinition("cmis:counted", BaseType.DOCUMENT, "cmis:counted", "cmis:counted", "",
+         "cmis:document", "cmis:counted", "Cmis counted", true, true, true, true, true, true, true, true, null, null,
+         ContentStreamAllowed.ALLOWED, new HashMap<String, PropertyDefinition<?>>()));
+      TypeDefinition countedType = storage.getTypeDefinition("cmis:counted", true);
+      DocumentData document = createDocument(rootFolder, "counted", countedType, null, null);
+      DocumentData pwc = document.checkout();
+      assertEquals(2, storage.getObjectCount("cmis:counted"));
+      assertEquals(Integer.valueOf(2), storage.getObjectCounts().get("cmis:counted"));
+      assertNull(storage.getObjectCounts().get("cmis:document"));
+
+      try
+      {
+         storage.removeType("cmis:counted");
+         fail("ConstraintException expected.");
+      }
+      catch (ConstraintException e)
+      {
+         // expected
+      }
+
+      pwc.cancelCheckout();
+      assertEquals(1, storage.getObjectCount("cmis:counted"));
+      storage.deleteObject(document, true);
+      assertEquals(0, storage.getObjectCount("cmis:counted"));
+      storage.removeType("cmis:counted");
+   }
+
+   private void assertNotFound(String path)
+   {
+      try
+      {
+         storage.getObjectByPath(path);
+         fail("ObjectNotFoundException expected for " + path);
+      }
+      catch (ObjectNotFoundException e)
+      {
+         // expected
+      }
+   }
+
+   private PolicyData createPolicy(String name) throws Exception
+   {
+      TypeDefinition policyType = storage.getTypeDefinition("cmis:policy", true);
+      Map<String, Property<?>> properties = new HashMap<String, Property<?>>();
+      PropertyDefinition<?> def = PropertyDefinitions.getPropertyDefinition("cmis:policy", CmisConstants.NAME);
+      properties.put(CmisConstants.NAME, new StringProperty(def.getId(), def.getQueryName(), def.getLocalName(), def
+         .getDisplayName(), name));
+      def = PropertyDefinitions.getPropertyDefinition("cmis:policy", CmisConstants.POLICY_TEXT);
+      properties.put(CmisConstants.POLICY_TEXT, new StringProperty(def.getId(), def.getQueryName(), def
+         .getLocalName(), def.getDisplayName(), "text"));
+      return storage.createPolicy(null, policyType, properties, null, null);
+   }
+
+   private Property<?> nameProperty(String name)
+   {
+      PropertyDefinition<?> def = PropertyDefinitions.getPropertyDefinition("cmis:document", CmisConstants.NAME);
+      return new StringProperty(def.getId(), def.getQueryName(), def.getLocalName(), def.getDisplayName(), name);
+   }
+
    private int getSize(Iterator<String> iterator)
    {
       int result = 0;
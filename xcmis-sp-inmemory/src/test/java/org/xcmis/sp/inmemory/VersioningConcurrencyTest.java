@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory;
+
+import org.xcmis.spi.DocumentData;
+import org.xcmis.spi.FolderData;
+import org.xcmis.spi.VersioningException;
+import org.xcmis.spi.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent checkout and checkin of documents.
+ *
+ * @version $Id$
+ */
+public class VersioningConcurrencyTest extends BaseTest
+{
+   private static final Logger LOG = Logger.getLogger(VersioningConcurrencyTest.class);
+
+   private static final int CYCLES = 200;
+
+   public void testCheckoutSameSeries() throws Exception
+   {
+      final DocumentData document = createDocument(rootFolder, "sameSeries", documentTypeDefinition, null, null);
+      final int threads = 8;
+      final CountDownLatch start = new CountDownLatch(1);
+      final AtomicInteger checkedOut = new AtomicInteger();
+      final AtomicInteger rejected = new AtomicInteger();
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try
+      {
+         List<Future<Object>> results = new ArrayList<Future<Object>>();
+         for (int i = 0; i < threads; i++)
+         {
+            results.add(executor.submit(new Callable<Object>()
+            {
+               public Object call() throws Exception
+               {
+                  start.await();
+                  try
+                  {
+                     document.checkout();
+                     checkedOut.incrementAndGet();
+                  }
+                  catch (VersioningException e)
+                  {
+                     rejected.incrementAndGet();
+                  }
+                  return null;
+               }
+            }));
+         }
+         start.countDown();
+         for (Future<Object> result : results)
+         {
+            result.get();
+         }
+      }
+      finally
+      {
+         executor.shutdown();
+      }
+      assertEquals(1, checkedOut.get());
+      assertEquals(threads - 1, rejected.get());
+      assertEquals(1, storage.getCheckedOutDocuments(null, null).size());
+   }
+
+   public void testCheckinDifferentSeries() throws Exception
+   {
+      double single = run(1);
+      double multi = run(4);
+      LOG.info("Checkout and checkin cycles per second, 1 thread: " + (long)single + ", 4 threads: " + (long)multi
+         + ", available processors: " + Runtime.getRuntime().availableProcessors());
+   }
+
+   /**
+    * Run checkout and checkin cycles over one document per thread.
+    *
+    * @param threads number of threads
+    * @return number of cycles per second
+    */
+   private double run(int threads) throws Exception
+   {
+      FolderData folder = createFolder(rootFolder, "series" + threads);
+      final DocumentData[] documents = new DocumentData[threads];
+      for (int i = 0; i < threads; i++)
+      {
+         documents[i] = createDocument(folder, "doc" + i, documentTypeDefinition, null, null);
+      }
+      final CountDownLatch start = new CountDownLatch(1);
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      long time;
+      try
+      {
+         List<Future<Object>> results = new ArrayList<Future<Object>>();
+         for (int i = 0; i < threads; i++)
+         {
+            final DocumentData document = documents[i];
+            results.add(executor.submit(new Callable<Object>()
+            {
+               public Object call() throws Exception
+               {
+                  start.await();
+                  for (int c = 0; c < CYCLES; c++)
+                  {
+                     document.checkout().checkin(true, null, null, null, null, null);
+                  }
+                  return null;
+               }
+            }));
+         }
+         time = System.nanoTime();
+         start.countDown();
+         for (Future<Object> result : results)
+         {
+            result.get();
+         }
+         time = System.nanoTime() - time;
+      }
+      finally
+      {
+         executor.shutdown();
+      }
+      for (DocumentData document : documents)
+      {
+         assertEquals(CYCLES + 1, storage.getAllVersions(document.getVersionSeriesId()).size());
+      }
+      assertEquals(threads, folder.getChildren(null).size());
+      return threads * CYCLES * 1e9 / time;
+   }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.sp.inmemory.query;
+
+import junit.framework.TestCase;
+
+import org.xcmis.search.content.ContentEntry;
+import org.xcmis.search.content.ContentModificationListener;
+import org.xcmis.search.content.IndexModificationException;
+import org.xcmis.search.content.Property;
+import org.xcmis.search.content.Property.BinaryValue;
+import org.xcmis.search.content.command.InvocationContext;
+import org.xcmis.search.value.PropertyType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @version $Id$
+ */
+public class IndexUpdateQueueTest extends TestCase
+{
+   private RecordingListener listener;
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      listener = new RecordingListener();
+   }
+
+   public void testCoalesceModificationsOfSameObject() throws Exception
+   {
+      IndexUpdateQueue queue = new IndexUpdateQueue(listener, 10, 100, 60000);
+      queue.add(entry("doc1"), false);
+      queue.add(entry("doc2"), false);
+      assertTrue(queue.awaitVisibility(10, TimeUnit.SECONDS));
+      assertEquals(1, listener.batches);
+
+      ContentEntry first = entry("doc1");
+      ContentEntry last = entry("doc1");
+      queue.add(first, true);
+      queue.add(last, true);
+      queue.remove(Collections.singleton("doc2"));
+      assertEquals(2, queue.size());
+
+      assertTrue(queue.awaitVisibility(10, TimeUnit.SECONDS));
+      assertEquals(2, listener.batches);
+      assertEquals(3, listener.added.size());
+      assertSame(last, listener.added.get(2));
+      assertEquals(new HashSet<String>(Arrays.asList("doc1", "doc2")), listener.removed);
+      queue.stop();
+   }
+
+   public void testCloseStreamsOfDroppedEntries() throws Exception
+   {
+      IndexUpdateQueue queue = new IndexUpdateQueue(listener, 10, 100, 60000);
+      ClosableStream replaced = new ClosableStream();
+      ClosableStream removed = new ClosableStream();
+      ClosableStream indexed = new ClosableStream();
+      queue.add(entry("doc1", replaced), false);
+      queue.add(entry("doc1", indexed), true);
+      queue.add(entry("doc2", removed), false);
+      queue.remove(Collections.singleton("doc2"));
+      assertTrue(replaced.closed);
+      assertTrue(removed.closed);
+
+      assertTrue(queue.awaitVisibility(10, TimeUnit.SECONDS));
+      assertEquals(1, listener.added.size());
+      // stream of indexed entry is owned by indexer
+      assertFalse(indexed.closed);
+      queue.stop();
+   }
+
+   public void testSkipRemovalOfNotIndexedObject() throws Exception
+   {
+      IndexUpdateQueue queue = new IndexUpdateQueue(listener, 10, 100, 60000);
+      ContentEntry last = entry("doc1");
+      queue.add(entry("doc1"), false);
+      queue.add(last, true);
+      queue.add(entry("doc2"), false);
+      queue.remove(Collections.singleton("doc2"));
+
+      assertTrue(queue.awaitVisibility(10, TimeUnit.SECONDS));
+      assertEquals(1, listener.batches);
+      assertEquals(1, listener.added.size());
+      assertSame(last, listener.added.get(0));
+      assertTrue(listener.removed.isEmpty());
+      queue.stop();
+   }
+
+   public void testBatchBySize() throws Exception
+   {
+      IndexUpdateQueue queue = new IndexUpdateQueue(listener, 3, 100, 60000);
+      for (int i = 0; i < 7; i++)
+      {
+         queue.add(entry("doc" + i), false);
+      }
+      assertTrue(queue.awaitVisibility(10, TimeUnit.SECONDS));
+      assertEquals(7, listener.added.size());
+      assertEquals(3, listener.batches);
+      queue.stop();
+   }
+
+   public void testBatchByTime() throws Exception
+   {
+      IndexUpdateQueue queue = new IndexUpdateQueue(listener, 100, 100, 10);
+      queue.add(entry("doc1"), false);
+      long deadline = System.currentTimeMillis() + 10000;
+      while (listener.batches == 0 && System.currentTimeMillis() < deadline)
+      {
+         Thread.sleep(10);
+      }
+      assertEquals(1, listener.added.size());
+      queue.stop();
+   }
+
+   public void testBlockProducerWhenFull() throws Exception
+   {
+      final CountDownLatch release = new CountDownLatch(1);
+      final RecordingListener blockingListener = new RecordingListener()
+      {
+         @Override
+         public synchronized void update(List<ContentEntry> addedEntries, Set<String> removedEntries)
+            throws IndexModificationException
+         {
+            try
+            {
+               release.await();
+            }
+            catch (InterruptedException e)
+            {
+               throw new IndexModificationException(e);
+            }
+            super.update(addedEntries, removedEntries);
+         }
+      };
+      final IndexUpdateQueue queue = new IndexUpdateQueue(blockingListener, 1, 2, 0);
+      final CountDownLatch added = new CountDownLatch(1);
+      final AtomicBoolean interrupted = new AtomicBoolean();
+      Thread producer = new Thread()
+      {
+         @Override
+         public void run()
+         {
+            // first is taken by worker, next two fill queue
+            for (int i = 0; i < 4; i++)
+            {
+               queue.add(entry("doc" + i), false);
+            }
+            interrupted.set(isInterrupted());
+            added.countDown();
+         }
+      };
+      producer.start();
+      Thread.sleep(200);
+      assertEquals(1, added.getCount());
+      // interrupt doesn't drop modification
+      producer.interrupt();
+      Thread.sleep(100);
+      assertEquals(1, added.getCount());
+      release.countDown();
+      producer.join(10000);
+      assertEquals(0, added.getCount());
+      assertTrue(interrupted.get());
+      assertTrue(queue.awaitVisibility(10, TimeUnit.SECONDS));
+      assertEquals(4, blockingListener.added.size());
+      queue.stop();
+   }
+
+   public void testFailVisibilityWhenWorkerTerminated() throws Exception
+   {
+      final AtomicBoolean fail = new AtomicBoolean(true);
+      RecordingListener failingListener = new RecordingListener()
+      {
+         @Override
+         public synchronized void update(List<ContentEntry> addedEntries, Set<String> removedEntries)
+            throws IndexModificationException
+         {
+            if (fail.getAndSet(false))
+            {
+               throw new Error("worker is terminated");
+            }
+            super.update(addedEntries, removedEntries);
+         }
+      };
+      IndexUpdateQueue queue = new IndexUpdateQueue(failingListener, 10, 100, 60000);
+      queue.add(entry("doc1"), false);
+      long start = System.currentTimeMillis();
+      try
+      {
+         queue.awaitVisibility(10, TimeUnit.SECONDS);
+         fail();
+      }
+      catch (IllegalStateException e)
+      {
+         // worker is terminated
+      }
+      assertTrue(System.currentTimeMillis() - start < 5000);
+
+      // next modification starts worker again
+      queue.add(entry("doc2"), false);
+      assertTrue(queue.awaitVisibility(10, TimeUnit.SECONDS));
+      assertEquals(1, failingListener.added.size());
+      queue.stop();
+   }
+
+   public void testBoundedVisibilityWait() throws Exception
+   {
+      final CountDownLatch release = new CountDownLatch(1);
+      RecordingListener blockingListener = new RecordingListener()
+      {
+         @Override
+         public synchronized void update(List<ContentEntry> addedEntries, Set<String> removedEntries)
+            throws IndexModificationException
+         {
+            try
+            {
+               release.await();
+            }
+            catch (InterruptedException e)
+            {
+               throw new IndexModificationException(e);
+            }
+            super.update(addedEntries, removedEntries);
+         }
+      };
+      IndexUpdateQueue queue = new IndexUpdateQueue(blockingListener, 10, 100, 0);
+      queue.add(entry("doc1"), false);
+      assertFalse(queue.awaitVisibility(100, TimeUnit.MILLISECONDS));
+      release.countDown();
+      assertTrue(queue.awaitVisibility(10, TimeUnit.SECONDS));
+      queue.stop();
+   }
+
+   private static ContentEntry entry(String id)
+   {
+      return new ContentEntry(id, new String[]{"cmis:document"}, id, new String[]{"root"}, new Property[0]);
+   }
+
+   private static ContentEntry entry(String id, InputStream content)
+   {
+      return new ContentEntry(id, new String[]{"cmis:document"}, id, new String[]{"root"},
+         new Property[]{new Property<InputStream>(PropertyType.BINARY, "content", new BinaryValue(content,
+            "text/plain", null, 0))});
+   }
+
+   private static class ClosableStream extends ByteArrayInputStream
+   {
+      volatile boolean closed;
+
+      ClosableStream()
+      {
+         super(new byte[0]);
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+         closed = true;
+      }
+   }
+
+   private static class RecordingListener implements ContentModificationListener
+   {
+      final List<ContentEntry> added = Collections.synchronizedList(new ArrayList<ContentEntry>());
+
+      final Set<String> removed = Collections.synchronizedSet(new HashSet<String>());
+
+      volatile int batches;
+
+      public void update(ContentEntry addedEntry, String removedEntry) throws IndexModificationException
+      {
+         throw new UnsupportedOperationException();
+      }
+
+      public void update(List<ContentEntry> addedEntries, Set<String> removedEntries,
+         InvocationContext invocationContext) throws IndexModificationException
+      {
+         throw new UnsupportedOperationException();
+      }
+
+      public synchronized void update(List<ContentEntry> addedEntries, Set<String> removedEntries)
+         throws IndexModificationException
+      {
+         added.addAll(addedEntries);
+         removed.addAll(removedEntries);
+         batches++;
+      }
+   }
+}
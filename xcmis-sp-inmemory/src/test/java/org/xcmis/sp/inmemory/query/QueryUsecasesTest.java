@@ -19,27 +19,43 @@
 
 package org.xcmis.sp.inmemory.query;
 
+import org.xcmis.search.content.ContentEntry;
+import org.xcmis.sp.inmemory.InmemConnection;
+import org.xcmis.sp.inmemory.query.IndexListener.ContentEntryAdapter;
 import org.xcmis.spi.BaseContentStream;
 import org.xcmis.spi.CmisConstants;
 import org.xcmis.spi.ContentStream;
 import org.xcmis.spi.DocumentData;
 import org.xcmis.spi.FolderData;
 import org.xcmis.spi.ItemsIterator;
+import org.xcmis.spi.ItemsList;
+import org.xcmis.spi.PermissionService;
+import org.xcmis.spi.UserContext;
+import org.xcmis.spi.model.AccessControlEntry;
 import org.xcmis.spi.model.CapabilityJoin;
 import org.xcmis.spi.model.CapabilityQuery;
+import org.xcmis.spi.model.CmisObject;
+import org.xcmis.spi.model.IncludeRelationships;
+import org.xcmis.spi.model.PermissionMapping;
 import org.xcmis.spi.model.RepositoryCapabilities;
 import org.xcmis.spi.model.TypeDefinition;
 import org.xcmis.spi.model.UnfileObject;
 import org.xcmis.spi.model.impl.BooleanProperty;
 import org.xcmis.spi.model.impl.DecimalProperty;
 import org.xcmis.spi.model.impl.StringProperty;
+import org.xcmis.spi.query.JoinResult;
 import org.xcmis.spi.query.Query;
 import org.xcmis.spi.query.Result;
 import org.xcmis.spi.utils.MimeType;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created by The eXo Platform SAS. <br/>
@@ -81,7 +97,7 @@ public class QueryUsecasesTest extends BaseQueryTest
    {
       RepositoryCapabilities repCapabilities = storage.getRepositoryInfo().getCapabilities();
       assertEquals(CapabilityQuery.BOTHCOMBINED, repCapabilities.getCapabilityQuery());
-      assertEquals(CapabilityJoin.NONE, repCapabilities.getCapabilityJoin());
+      assertEquals(CapabilityJoin.INNERANDOUTER, repCapabilities.getCapabilityJoin());
       assertFalse(repCapabilities.isCapabilityPWCSearchable());
       assertFalse(repCapabilities.isCapabilityAllVersionsSearchable());
    }
@@ -322,52 +338,88 @@ public class QueryUsecasesTest extends BaseQueryTest
 
    }
 
-   //
-   //   /**
-   //    * Test JOIN with condition constraint.
-   //    * <p>
-   //    * Initial data:
-   //    * <ul>
-   //    * <li>folder1: <b>folderName</b> - folderOne
-   //    * <li>doc1: <b>Title</b> - node1 <b>parentFolderName</b> - folderOne
-   //    * <li>folder2: b>folderName</b> - folderTwo
-   //    * <li>doc2: <b>Title</b> - node2 <b>parentFolderName</b> - folderThree
-   //    * </ul>
-   //    * <p>
-   //    * Query : Select all documents and folders where folders folderName equal to
-   //    * document parentFolderName.
-   //    * <p>
-   //    * Expected result: doc1 and folder1
-   //    *
-   //    * @throws Exception if an unexpected error occurs
-   //    */
-   //   // XXX temporary excluded
-   //   public void _testJoinWithCondition() throws Exception
-   //   {
-   //      // create data
-   //      Document folder1 = this.createFolder(root, "folder1");
-   //      folder1.setString("folderName", "folderOne");
-   //
-   //      Document doc1 = createDocument(folder1.getObjectId(), "node1", "hello world".getBytes(), "text/plain");
-   //      doc1.setString("parentFolderName", "folderOne");
-   //
-   //      Document folder2 = this.createFolder(root, "folder2");
-   //      folder2.setString("folderName", "folderTwo");
-   //
-   //      Document doc2 = createDocument(folder2.getObjectId(), "node1", "hello world".getBytes(), "text/plain");
-   //      doc2.setString("parentFolderName", "folderThree");
-   //
-   //      String statement =
-   //         "SELECT doc.* FROM " + NASA_DOCUMENT + " AS doc LEFT JOIN " + JcrCMIS.NT_FOLDER
-   //            + " AS folder ON (doc.parentFolderName = folder.folderName)";
-   //
-   //      Query query = new Query(statement, true);
-   //      ItemsIterator<Result> result = storage.query(query);
-   //
-   //      assertEquals(1, result.size());
-   //      // TODO check results - must doc1 and folder1
-   //   }
-   //
+   /**
+    * Test JOIN with condition constraint.
+    * <p>
+    * Initial data:
+    * <ul>
+    * <li>doc1: <b>commander</b> - Neil A. Armstrong
+    * <li>doc2: <b>commander</b> - Neil A. Armstrong
+    * <li>doc3: <b>commander</b> - Charles Conrad, Jr.
+    * </ul>
+    * <p>
+    * Query : Select all documents joined with documents that have the same
+    * commander, where commander of the left document is Neil A. Armstrong.
+    * <p>
+    * Expected result: four rows (doc1, doc1), (doc1, doc2), (doc2, doc1),
+    * (doc2, doc2)
+    *
+    * @throws Exception if an unexpected error occurs
+    */
+   public void testJoinWithCondition() throws Exception
+   {
+      // create data
+      MimeType contentType = MimeType.fromString("text/plain");
+      FolderData folder = createFolder(testRoot, "testJoinWithCondition");
+
+      DocumentData doc1 = createDocument(folder, "node1", nasaDocumentTypeDefinition, new byte[0], contentType);
+      doc1.setProperty(new StringProperty(PROPERTY_COMMANDER, PROPERTY_COMMANDER, PROPERTY_COMMANDER,
+         PROPERTY_COMMANDER, "Neil A. Armstrong"));
+
+      DocumentData doc2 = createDocument(folder, "node2", nasaDocumentTypeDefinition, new byte[0], contentType);
+      doc2.setProperty(new StringProperty(PROPERTY_COMMANDER, PROPERTY_COMMANDER, PROPERTY_COMMANDER,
+         PROPERTY_COMMANDER, "Neil A. Armstrong"));
+
+      DocumentData doc3 = createDocument(folder, "node3", nasaDocumentTypeDefinition, new byte[0], contentType);
+      doc3.setProperty(new StringProperty(PROPERTY_COMMANDER, PROPERTY_COMMANDER, PROPERTY_COMMANDER,
+         PROPERTY_COMMANDER, "Charles Conrad, Jr."));
+
+      String statement =
+         "SELECT * FROM " + NASA_DOCUMENT + " AS doc JOIN " + NASA_DOCUMENT + " AS other ON (doc."
+            + PROPERTY_COMMANDER + " = other." + PROPERTY_COMMANDER + ") WHERE doc." + PROPERTY_COMMANDER
+            + " = 'Neil A. Armstrong'";
+
+      Query query = new Query(statement, true);
+      ItemsIterator<Result> result = storage.query(query);
+
+      assertEquals(4, result.size());
+      Set<String> rows = new HashSet<String>();
+      while (result.hasNext())
+      {
+         JoinResult row = (JoinResult)result.next();
+         assertEquals(Arrays.asList("doc", "other"), Arrays.asList(row.getSelectorNames()));
+         assertEquals(row.getObjectId("doc"), row.getObjectId());
+         rows.add(row.getObjectId("doc") + "," + row.getObjectId("other"));
+      }
+      Set<String> expected = new HashSet<String>();
+      for (DocumentData left : new DocumentData[]{doc1, doc2})
+      {
+         for (DocumentData right : new DocumentData[]{doc1, doc2})
+         {
+            expected.add(left.getObjectId() + "," + right.getObjectId());
+         }
+      }
+      assertEquals(expected, rows);
+
+      // objects of joined selector are separate objects of the row
+      ItemsList<CmisObject> list =
+         new InmemConnection(storage).query(statement, true, false, IncludeRelationships.NONE, false, null, -1, 0);
+      assertEquals(4, list.getItems().size());
+      rows.clear();
+      for (CmisObject object : list.getItems())
+      {
+         assertEquals(Collections.singleton("other"), object.getJoinedObjects().keySet());
+         CmisObject other = object.getJoinedObjects().get("other");
+         for (String propertyId : object.getProperties().keySet())
+         {
+            assertFalse(propertyId, propertyId.startsWith("other."));
+         }
+         rows.add(object.getProperties().get(CmisConstants.OBJECT_ID).getValues().get(0) + ","
+            + other.getProperties().get(CmisConstants.OBJECT_ID).getValues().get(0));
+      }
+      assertEquals(expected, rows);
+   }
+
    /**
     * Test LIKE constraint.
     * <p>
@@ -1153,6 +1205,105 @@ public class QueryUsecasesTest extends BaseQueryTest
 
    }
 
+   /**
+    * Test result is trimmed to the documents readable by current user.
+    * <p>
+    * Initial data:
+    * <p>
+    * document1: readable by root, document2: readable by user, document3:
+    * 'any principal' may only write, document4: empty ACL.
+    * <p>
+    * Query : Select all documents.
+    * <p>
+    * Expected result: document1 and document4 for root, document2 and
+    * document4 for user.
+    *
+    * @throws Exception if an unexpected error occurs
+    */
+   public void testSecurityTrimmedQuery() throws Exception
+   {
+      DocumentData doc1 = createDocument(testRoot, "doc1", nasaDocumentTypeDefinition, new byte[0],
+         MimeType.fromString("text/plain"));
+      doc1.setACL(acl("root", "cmis:read"));
+      DocumentData doc2 = createDocument(testRoot, "doc2", nasaDocumentTypeDefinition, new byte[0],
+         MimeType.fromString("text/plain"));
+      doc2.setACL(acl("user", "cmis:all"));
+      DocumentData doc3 = createDocument(testRoot, "doc3", nasaDocumentTypeDefinition, new byte[0],
+         MimeType.fromString("text/plain"));
+      doc3.setACL(acl(storage.getRepositoryInfo().getPrincipalAnyone(), "cmis:write"));
+      DocumentData doc4 = createDocument(testRoot, "doc4", nasaDocumentTypeDefinition, new byte[0],
+         MimeType.fromString("text/plain"));
+
+      String statement = "SELECT * FROM " + NASA_DOCUMENT;
+      ItemsIterator<Result> result = storage.query(new Query(statement, true));
+      assertEquals(2, result.size());
+      checkResult(result, new DocumentData[]{doc1, doc4});
+
+      UserContext.setCurrent(new UserContext("user"));
+      try
+      {
+         result = storage.query(new Query(statement, true));
+         assertEquals(2, result.size());
+         checkResult(result, new DocumentData[]{doc2, doc4});
+      }
+      finally
+      {
+         UserContext.setCurrent(new UserContext(principal));
+      }
+
+      // index follows ACL modifications
+      doc2.setACL(acl("root", "cmis:read"));
+      result = storage.query(new Query(statement, true));
+      assertEquals(3, result.size());
+      checkResult(result, new DocumentData[]{doc1, doc2, doc4});
+   }
+
+   /**
+    * Test principals allowed to read object are resolved by permission mapping
+    * of the repository.
+    *
+    * @throws Exception if an unexpected error occurs
+    */
+   public void testReadPrincipalsFollowPermissionMapping() throws Exception
+   {
+      DocumentData doc1 = createDocument(testRoot, "doc1", nasaDocumentTypeDefinition, new byte[0],
+         MimeType.fromString("text/plain"));
+      List<AccessControlEntry> acl = new ArrayList<AccessControlEntry>();
+      acl.addAll(acl("root", "cmis:read"));
+      acl.addAll(acl("user", "cmis:write"));
+      acl.addAll(acl("admin", "cmis:all"));
+      doc1.setACL(acl);
+
+      PermissionMapping mapping = storage.getRepositoryInfo().getAclCapability().getMapping();
+      PermissionService permissionService = new PermissionService();
+      assertFalse(permissionService.calculateAllowableActions(doc1, "user", storage.getRepositoryInfo())
+         .isCanGetProperties());
+      Collection<String> getProperties = mapping.getPermissions(PermissionMapping.CAN_GET_PROPERTIES_OBJECT);
+      mapping.put(PermissionMapping.CAN_GET_PROPERTIES_OBJECT, Arrays.asList("cmis:write"));
+      try
+      {
+         // key replaced, size of mapping is the same
+         assertTrue(permissionService.calculateAllowableActions(doc1, "user", storage.getRepositoryInfo())
+            .isCanGetProperties());
+         ContentEntry entry = new ContentEntryAdapter(storage.getRepositoryInfo()).createEntry(doc1);
+         assertEquals(new HashSet<String>(Arrays.asList("user", "admin")), new HashSet<String>(Arrays.asList(entry
+            .getPrincipals())));
+      }
+      finally
+      {
+         mapping.put(PermissionMapping.CAN_GET_PROPERTIES_OBJECT, getProperties);
+      }
+      ContentEntry entry = new ContentEntryAdapter(storage.getRepositoryInfo()).createEntry(doc1);
+      assertEquals(new HashSet<String>(Arrays.asList("root", "admin")), new HashSet<String>(Arrays.asList(entry
+         .getPrincipals())));
+   }
+
+   private List<AccessControlEntry> acl(String principal, String permission)
+   {
+      return Collections.singletonList(new AccessControlEntry(principal, new HashSet<String>(Arrays
+         .asList(permission))));
+   }
+
    /**
     * Test fulltext constraint.
     * <p>
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xcmis.spi;
+
+/**
+ * Object what is able to tell version of its ACL. Implementations of
+ * {@link ObjectData} may implement this interface to let
+ * {@link PermissionService} cache permissions of object between calls.
+ *
+ * @version $Id$
+ */
+public interface ACLVersioned
+{
+
+   /**
+    * Get version of ACL. Version must be changed each time when ACL is
+    * changed and must not be the same for different ACLs in one storage,
+    * even of different objects.
+    *
+    * @return version of ACL
+    */
+   long getACLVersion();
+
+}
@@ -45,12 +45,14 @@ import org.xcmis.spi.model.VersioningState;
 import org.xcmis.spi.model.Permission.BasicPermissions;
 import org.xcmis.spi.model.impl.DecimalProperty;
 import org.xcmis.spi.model.impl.IdProperty;
+import org.xcmis.spi.query.JoinResult;
 import org.xcmis.spi.query.Query;
 import org.xcmis.spi.query.Result;
 import org.xcmis.spi.query.Score;
 import org.xcmis.spi.utils.CmisUtils;
 import org.xcmis.spi.utils.Logger;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -84,13 +86,29 @@ public abstract class Connection
 
    private static final Logger LOG = Logger.getLogger(Connection.class);
 
+   /** Max number of objects materialized by one call to the storage. */
+   static final int FETCH_SIZE = 100;
+
    protected Storage storage;
 
+   private ObjectTreeBuilder treeBuilder = ObjectTreeBuilder.SEQUENTIAL;
+
    public Connection(Storage storage)
    {
       this.storage = storage;
    }
 
+   /**
+    * Set builder of object trees for {@link #getDescendants} and
+    * {@link #getFolderTree}. By default trees are built by current thread.
+    *
+    * @param treeBuilder tree builder
+    */
+   public void setTreeBuilder(ObjectTreeBuilder treeBuilder)
+   {
+      this.treeBuilder = treeBuilder != null ? treeBuilder : ObjectTreeBuilder.SEQUENTIAL;
+   }
+
    /**
     * Adds an existing fileable non-folder object to a folder.
     *
@@ -1456,16 +1474,23 @@ public abstract class Connection
          includeRelationships = IncludeRelationships.NONE; // Default.
       }
 
+      FetchHints hints =
+         new FetchHints(includeAllowableActions, includeRelationships, false, false, parsedRenditionFilter);
+
       ItemsList<CmisObject> checkedout = new ItemsList<CmisObject>();
-      for (int count = 0; iterator.hasNext() && (maxItems < 0 || count < maxItems); count++)
+      int count = 0;
+      while (iterator.hasNext() && (maxItems < 0 || count < maxItems))
       {
-         ObjectData pwcData = iterator.next();
-
-         CmisObject pwc =
-            getCmisObject(pwcData, includeAllowableActions, includeRelationships, false, false, includeObjectInfo,
-               parsedPropertyFilter, parsedRenditionFilter);
+         for (ObjectData pwcData : fetchPage(iterator, maxItems < 0 ? FETCH_SIZE : Math.min(FETCH_SIZE, maxItems
+            - count), parsedPropertyFilter, hints))
+         {
+            CmisObject pwc =
+               getCmisObject(pwcData, includeAllowableActions, includeRelationships, false, false,
+                  includeObjectInfo, parsedPropertyFilter, parsedRenditionFilter);
 
-         checkedout.getItems().add(pwc);
+            checkedout.getItems().add(pwc);
+            count++;
+         }
       }
 
       checkedout.setHasMoreItems(iterator.hasNext());
@@ -1575,21 +1600,28 @@ public abstract class Connection
          includeRelationships = IncludeRelationships.NONE; // Default
       }
 
+      FetchHints hints =
+         new FetchHints(includeAllowableActions, includeRelationships, false, false, parsedRenditionFilter);
+
       ItemsList<CmisObject> cmisChildren = new ItemsList<CmisObject>();
-      for (int count = 0; iterator.hasNext() && (maxItems < 0 || count < maxItems); count++)
+      int count = 0;
+      while (iterator.hasNext() && (maxItems < 0 || count < maxItems))
       {
-         ObjectData childData = iterator.next();
+         for (ObjectData childData : fetchPage(iterator, maxItems < 0 ? FETCH_SIZE : Math.min(FETCH_SIZE, maxItems
+            - count), parsedPropertyFilter, hints))
+         {
+            CmisObject child =
+               getCmisObject(childData, includeAllowableActions, includeRelationships, false, false,
+                  includeObjectInfo, parsedPropertyFilter, parsedRenditionFilter);
 
-         CmisObject child =
-            getCmisObject(childData, includeAllowableActions, includeRelationships, false, false, includeObjectInfo,
-               parsedPropertyFilter, parsedRenditionFilter);
+            if (includePathSegments)
+            {
+               child.setPathSegment(childData.getName());
+            }
 
-         if (includePathSegments)
-         {
-            child.setPathSegment(childData.getName());
+            cmisChildren.getItems().add(child);
+            count++;
          }
-
-         cmisChildren.getItems().add(child);
       }
 
       // Indicate that we have some more results.
@@ -1834,6 +1866,54 @@ public abstract class Connection
          includeObjectInfo, propertyFilter, renditionFilter);
    }
 
+   /**
+    * Get descendants of folder as {@link #getDescendants(String, int, boolean,
+    * IncludeRelationships, boolean, boolean, String, String)} does but pass
+    * them to <code>visitor</code> as soon as they are retrieved instead of
+    * building whole tree in memory. Traversal is stopped if visitor returns
+    * <code>false</code> or if current thread is interrupted.
+    *
+    * @param folderId folder id
+    * @param depth depth for discover descendants if -1 then discovery
+    *        descendants at all levels
+    * @param includeAllowableActions if <code>true</code> then allowable actions
+    *        should be included in response
+    * @param includeRelationships indicates what relationships of object must be
+    *        returned
+    * @param includePathSegments if <code>true</code> then returns a PathSegment
+    *        for each child object
+    * @param includeObjectInfo if <code>true</code> then in result must be
+    *        included external information about each object. See
+    *        {@link ObjectInfo}
+    * @param propertyFilter comma-delimited list of property definition Query
+    *        Names
+    * @param renditionFilter renditions kinds or mimetypes that must be included
+    *        in result
+    * @param visitor receives descendants in depth-first order
+    * @throws ObjectNotFoundException if object with <code>folderId</code> was
+    *         not found
+    * @throws InvalidArgumentException if object with id <code>folderId</code>
+    *         is not a Folder or if <code>depth != -1 && !(depth >= 1)</code>
+    *         or if tree contains more objects than allowed by tree builder
+    * @throws FilterNotValidException if <code>propertyFilter</code> or
+    *         <code>renditionFilter</code> has invalid syntax
+    * @see #setTreeBuilder(ObjectTreeBuilder)
+    */
+   public void getDescendants(String folderId, int depth, boolean includeAllowableActions,
+      IncludeRelationships includeRelationships, boolean includePathSegments, boolean includeObjectInfo,
+      String propertyFilter, String renditionFilter, ItemsTreeVisitor<CmisObject> visitor)
+      throws ObjectNotFoundException, FilterNotValidException
+   {
+      checkConnection();
+      if (depth != -1 && !(depth >= 1))
+      {
+         throw new InvalidArgumentException("Invalid depth parameter. Must be 1 or greater then 1 or -1 but " + depth
+            + " specified.");
+      }
+      walkObjectTree(folderId, depth, null, includeAllowableActions, includeRelationships, includePathSegments,
+         includeObjectInfo, propertyFilter, renditionFilter, visitor);
+   }
+
    /**
     * Get parent for specified folder. This method MUST NOT be used for getting
     * parents of other fileable objects.
@@ -1965,6 +2045,54 @@ public abstract class Connection
          includePathSegments, includeObjectInfo, propertyFilter, renditionFilter);
    }
 
+   /**
+    * Get folder tree as {@link #getFolderTree(String, int, boolean,
+    * IncludeRelationships, boolean, boolean, String, String)} does but pass
+    * folders to <code>visitor</code> as soon as they are retrieved instead of
+    * building whole tree in memory. Traversal is stopped if visitor returns
+    * <code>false</code> or if current thread is interrupted.
+    *
+    * @param folderId folder id
+    * @param depth depth for discover descendants if -1 then discovery
+    *        descendants at all levels
+    * @param includeAllowableActions if <code>true</code> then allowable actions
+    *        should be included in response
+    * @param includeRelationships indicates what relationships of object must be
+    *        returned
+    * @param includePathSegments if <code>true</code> then returns a PathSegment
+    *        for each child object
+    * @param includeObjectInfo if <code>true</code> then in result must be
+    *        included external information about each object. See
+    *        {@link ObjectInfo}
+    * @param propertyFilter comma-delimited list of property definition Query
+    *        Names
+    * @param renditionFilter renditions kinds or mimetypes that must be included
+    *        in result
+    * @param visitor receives folders in depth-first order
+    * @throws ObjectNotFoundException if object with <code>folderId</code> was
+    *         not found
+    * @throws InvalidArgumentException if object with id <code>folderId</code>
+    *         is not a Folder or if <code>depth != -1 && !(depth >= 1)</code>
+    *         or if tree contains more objects than allowed by tree builder
+    * @throws FilterNotValidException if <code>propertyFilter</code> or
+    *         <code>renditionFilter</code> has invalid syntax
+    * @see #setTreeBuilder(ObjectTreeBuilder)
+    */
+   public void getFolderTree(String folderId, int depth, boolean includeAllowableActions,
+      IncludeRelationships includeRelationships, boolean includePathSegments, boolean includeObjectInfo,
+      String propertyFilter, String renditionFilter, ItemsTreeVisitor<CmisObject> visitor)
+      throws ObjectNotFoundException, FilterNotValidException
+   {
+      checkConnection();
+      if (depth != -1 && !(depth >= 1))
+      {
+         throw new InvalidArgumentException("Invalid depth parameter. Must be 1 or greater then 1 or -1 but " + depth
+            + " specified.");
+      }
+      walkObjectTree(folderId, depth, BaseType.FOLDER, includeAllowableActions, includeRelationships,
+         includePathSegments, includeObjectInfo, propertyFilter, renditionFilter, visitor);
+   }
+
    /**
     * Get object.
     *
@@ -2823,73 +2951,157 @@ public abstract class Connection
       ItemsIterator<Result> iterator = storage.query(new Query(statement, searchAllVersions));
       try
       {
-         if (skipCount > 0)
+         try
          {
-            iterator.skip(skipCount);
+            if (skipCount > 0)
+            {
+               iterator.skip(skipCount);
+            }
+         }
+         catch (NoSuchElementException nse)
+         {
+            throw new InvalidArgumentException("skipCount parameter is greater then total number of items");
          }
-      }
-      catch (NoSuchElementException nse)
-      {
-         throw new InvalidArgumentException("skipCount parameter is greater then total number of items");
-      }
 
-      if (includeRelationships == null)
-      {
-         includeRelationships = IncludeRelationships.NONE; // Default.
-      }
+         if (includeRelationships == null)
+         {
+            includeRelationships = IncludeRelationships.NONE; // Default.
+         }
 
-      RenditionFilter parsedRenditionFilter = new RenditionFilter(renditionFilter);
+         RenditionFilter parsedRenditionFilter = new RenditionFilter(renditionFilter);
 
-      ItemsList<CmisObject> list = new ItemsList<CmisObject>();
+         ItemsList<CmisObject> list = new ItemsList<CmisObject>();
 
-      for (int count = 0; iterator.hasNext() && (maxItems < 0 || count < maxItems); count++)
-      {
-         Result result = iterator.next();
-         StringBuilder propertyFilter = new StringBuilder();
-         if (result.getPropertyNames() != null)
+         FetchHints hints =
+            new FetchHints(includeAllowableActions, includeRelationships, false, false, parsedRenditionFilter);
+
+         int count = 0;
+         while (iterator.hasNext() && (maxItems < 0 || count < maxItems))
          {
-            for (String s : result.getPropertyNames())
+            // Materialize results page by page instead of one object per result.
+            List<Result> page = new ArrayList<Result>();
+            List<String> ids = new ArrayList<String>();
+            while (iterator.hasNext() && page.size() < FETCH_SIZE && (maxItems < 0 || count < maxItems))
             {
-               if (propertyFilter.length() > 0)
+               Result result = iterator.next();
+               page.add(result);
+               if (result instanceof JoinResult)
                {
-                  propertyFilter.append(',');
+                  // row of join query carries object of each selector
+                  JoinResult row = (JoinResult)result;
+                  for (String selectorName : row.getSelectorNames())
+                  {
+                     String id = row.getObjectId(selectorName);
+                     if (id != null)
+                     {
+                        ids.add(id);
+                     }
+                  }
                }
-               propertyFilter.append(s);
+               else
+               {
+                  ids.add(result.getObjectId());
+               }
+               count++;
             }
-         }
 
-         ObjectData data = null;
-         try
-         {
-            data = storage.getObjectById(result.getObjectId());
+            Map<String, ObjectData> objects = storage.getObjectsByIds(ids, null, hints);
+
+            for (Result result : page)
+            {
+               ObjectData data = objects.get(result.getObjectId());
+               if (data == null)
+               {
+                  // If object was removed but found in index
+                  LOG.warn("Object " + result.getObjectId() + " was removed.");
+                  continue;
+               }
+
+               CmisObject object =
+                  getCmisObject(data, includeAllowableActions, includeRelationships, false, false, includeObjectInfo,
+                     toPropertyFilter(result.getPropertyNames()), parsedRenditionFilter);
+
+               if (result instanceof JoinResult)
+               {
+                  // objects of other selectors of join are returned separately
+                  JoinResult row = (JoinResult)result;
+                  boolean primary = true;
+                  for (String selectorName : row.getSelectorNames())
+                  {
+                     String joinedId = row.getObjectId(selectorName);
+                     if (joinedId == null)
+                     {
+                        continue;
+                     }
+                     if (primary)
+                     {
+                        // object of first matched selector is the result object itself
+                        primary = false;
+                        continue;
+                     }
+                     ObjectData joined = objects.get(joinedId);
+                     if (joined == null)
+                     {
+                        continue;
+                     }
+                     object.getJoinedObjects().put(
+                        selectorName,
+                        getCmisObject(joined, includeAllowableActions, IncludeRelationships.NONE, false, false,
+                           includeObjectInfo, toPropertyFilter(row.getPropertyNames(selectorName)),
+                           RenditionFilter.NONE_FILTER));
+                  }
+               }
+
+               Score score = result.getScore();
+               if (score != null)
+               {
+                  String scoreColumnName = score.getScoreColumnName();
+                  DecimalProperty scoreProperty =
+                     new DecimalProperty(scoreColumnName, scoreColumnName, scoreColumnName, scoreColumnName, score
+                        .getScoreValue());
+                  object.getProperties().put(scoreColumnName, scoreProperty);
+               }
+               list.getItems().add(object);
+            }
          }
-         catch (ObjectNotFoundException e)
+
+         // Indicate that we have some more results.
+         list.setHasMoreItems(iterator.hasNext());
+         list.setNumItems(iterator.size()); // ItemsIterator gives -1 if total number is unknown
+         return list;
+      }
+      finally
+      {
+         // release index snapshot of the rows what are not fetched
+         if (iterator instanceof Closeable)
          {
-            // If object was removed but found in index
-            LOG.warn("Object " + result.getObjectId() + " was removed.");
-            continue;
+            try
+            {
+               ((Closeable)iterator).close();
+            }
+            catch (IOException e)
+            {
+               LOG.error("Unable to close query result: " + e.getLocalizedMessage(), e);
+            }
          }
+      }
+   }
 
-         CmisObject object =
-            getCmisObject(data, includeAllowableActions, includeRelationships, false, false, includeObjectInfo,
-               new PropertyFilter(propertyFilter.toString()), parsedRenditionFilter);
-
-         Score score = result.getScore();
-         if (score != null)
+   private static PropertyFilter toPropertyFilter(String[] propertyNames) throws FilterNotValidException
+   {
+      StringBuilder propertyFilter = new StringBuilder();
+      if (propertyNames != null)
+      {
+         for (String s : propertyNames)
          {
-            String scoreColumnName = score.getScoreColumnName();
-            DecimalProperty scoreProperty =
-               new DecimalProperty(scoreColumnName, scoreColumnName, scoreColumnName, scoreColumnName, score
-                  .getScoreValue());
-            object.getProperties().put(scoreColumnName, scoreProperty);
+            if (propertyFilter.length() > 0)
+            {
+               propertyFilter.append(',');
+            }
+            propertyFilter.append(s);
          }
-         list.getItems().add(object);
       }
-
-      // Indicate that we have some more results.
-      list.setHasMoreItems(iterator.hasNext());
-      list.setNumItems(iterator.size()); // ItemsIterator gives -1 if total number is unknown
-      return list;
+      return new PropertyFilter(propertyFilter.toString());
    }
 
    /**
@@ -3147,10 +3359,61 @@ public abstract class Connection
       return object.getObjectId();
    }
 
+   /**
+    * Materialize next page of objects. If iterator gives ids of objects then
+    * whole page is fetched from storage at once.
+    *
+    * @param iterator source of objects
+    * @param max max number of objects in page
+    * @param propertyFilter properties what will be requested
+    * @param hints information what will be requested for each object
+    * @return objects of page, objects removed after their ids were taken are
+    *         not included
+    */
+   List<ObjectData> fetchPage(ItemsIterator<? extends ObjectData> iterator, int max,
+      PropertyFilter propertyFilter, FetchHints hints)
+   {
+      if (iterator instanceof ObjectIdIterator<?>)
+      {
+         ObjectIdIterator<?> ids = (ObjectIdIterator<?>)iterator;
+         List<String> page = new ArrayList<String>();
+         while (page.size() < max && ids.hasNext())
+         {
+            page.add(ids.nextObjectId());
+         }
+         return new ArrayList<ObjectData>(storage.getObjectsByIds(page, propertyFilter, hints).values());
+      }
+      List<ObjectData> page = new ArrayList<ObjectData>();
+      while (page.size() < max && iterator.hasNext())
+      {
+         page.add(iterator.next());
+      }
+      return page;
+   }
+
    private List<ItemsTree<CmisObject>> getObjectTree(String folderId, int depth, BaseType typeFilter,
       boolean includeAllowableActions, IncludeRelationships includeRelationships, boolean includePathSegments,
       boolean includeObjectInfo, String propertyFilter, String renditionFilter) throws ObjectNotFoundException,
       InvalidArgumentException, FilterNotValidException
+   {
+      FolderData folder = getTreeRoot(folderId);
+      return treeBuilder.newTraversal(this, typeFilter, includeAllowableActions, includeRelationships,
+         includePathSegments, includeObjectInfo, new PropertyFilter(propertyFilter),
+         new RenditionFilter(renditionFilter)).build(folder, depth);
+   }
+
+   private void walkObjectTree(String folderId, int depth, BaseType typeFilter, boolean includeAllowableActions,
+      IncludeRelationships includeRelationships, boolean includePathSegments, boolean includeObjectInfo,
+      String propertyFilter, String renditionFilter, ItemsTreeVisitor<CmisObject> visitor)
+      throws ObjectNotFoundException, InvalidArgumentException, FilterNotValidException
+   {
+      FolderData folder = getTreeRoot(folderId);
+      treeBuilder.newTraversal(this, typeFilter, includeAllowableActions, includeRelationships, includePathSegments,
+         includeObjectInfo, new PropertyFilter(propertyFilter), new RenditionFilter(renditionFilter)).walk(folder,
+         depth, visitor);
+   }
+
+   private FolderData getTreeRoot(String folderId) throws ObjectNotFoundException
    {
       ObjectData folder = storage.getObjectById(folderId);
 
@@ -3159,39 +3422,7 @@ public abstract class Connection
          throw new InvalidArgumentException("Can't get children. Object " + folderId + " is not a Folder.");
       }
 
-      List<ItemsTree<CmisObject>> tree = new ArrayList<ItemsTree<CmisObject>>();
-      PropertyFilter parsedPropertyFilter = new PropertyFilter(propertyFilter);
-      RenditionFilter parsedRenditionFilter = new RenditionFilter(renditionFilter);
-
-      for (ItemsIterator<ObjectData> children = ((FolderData)folder).getChildren(null); children.hasNext();)
-      {
-         ObjectData childData = children.next();
-
-         if (typeFilter != null && childData.getBaseType() != typeFilter)
-         {
-            continue;
-         }
-
-         CmisObject container =
-            getCmisObject(childData, includeAllowableActions, includeRelationships, false, false, includeObjectInfo,
-               parsedPropertyFilter, parsedRenditionFilter);
-
-         if (includePathSegments)
-         {
-            container.setPathSegment(childData.getName());
-         }
-
-         List<ItemsTree<CmisObject>> subTree =
-            (childData.getBaseType() == BaseType.FOLDER && (depth > 1 || depth == -1)) //
-               ? getObjectTree(childData.getObjectId(), depth != -1 ? depth - 1 : depth, typeFilter,
-                  includeAllowableActions, includeRelationships, includePathSegments, includeObjectInfo,
-                  propertyFilter, renditionFilter) //
-               : null;
-
-         tree.add(new ItemsTree<CmisObject>(container, subTree));
-      }
-
-      return tree;
+      return (FolderData)folder;
    }
 
    private List<ItemsTree<TypeDefinition>> getTypeTree(String typeId, int depth, boolean includePropertyDefinition)
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.spi;
+
+import org.xcmis.spi.model.IncludeRelationships;
+
+/**
+ * Tells storage what will be requested for each object fetched by
+ * {@link Storage#getObjectsByIds(java.util.Collection, PropertyFilter, FetchHints)}
+ * so storage may load it together with objects instead of loading it on each
+ * request. Storage may ignore hints.
+ *
+ * @version $Id$
+ */
+public final class FetchHints
+{
+
+   /** Hints for objects what are used without any additional information. */
+   public static final FetchHints NONE = new FetchHints(false, IncludeRelationships.NONE, false, false, null);
+
+   private final boolean includeAllowableActions;
+
+   private final IncludeRelationships includeRelationships;
+
+   private final boolean includePolicyIds;
+
+   private final boolean includeAcl;
+
+   private final RenditionFilter renditionFilter;
+
+   /**
+    * @param includeAllowableActions allowable actions of objects will be
+    *        calculated
+    * @param includeRelationships relationships of objects will be requested,
+    *        may be <code>null</code> if relationships will not be requested
+    * @param includePolicyIds policies applied to objects will be requested
+    * @param includeAcl ACL of objects will be requested
+    * @param renditionFilter renditions of objects will be requested, may be
+    *        <code>null</code> if renditions will not be requested
+    */
+   public FetchHints(boolean includeAllowableActions, IncludeRelationships includeRelationships,
+      boolean includePolicyIds, boolean includeAcl, RenditionFilter renditionFilter)
+   {
+      this.includeAllowableActions = includeAllowableActions;
+      this.includeRelationships = includeRelationships == null ? IncludeRelationships.NONE : includeRelationships;
+      this.includePolicyIds = includePolicyIds;
+      this.includeAcl = includeAcl;
+      this.renditionFilter = renditionFilter;
+   }
+
+   /**
+    * @return <code>true</code> if allowable actions of objects will be
+    *         calculated
+    */
+   public boolean isIncludeAllowableActions()
+   {
+      return includeAllowableActions;
+   }
+
+   /**
+    * @return relationships of objects what will be requested, never
+    *         <code>null</code>
+    */
+   public IncludeRelationships getIncludeRelationships()
+   {
+      return includeRelationships;
+   }
+
+   /**
+    * @return <code>true</code> if policies applied to objects will be
+    *         requested
+    */
+   public boolean isIncludePolicyIds()
+   {
+      return includePolicyIds;
+   }
+
+   /**
+    * @return <code>true</code> if ACL of objects will be requested
+    */
+   public boolean isIncludeAcl()
+   {
+      return includeAcl;
+   }
+
+   /**
+    * @return filter of renditions what will be requested or <code>null</code>
+    *         if renditions will not be requested
+    */
+   public RenditionFilter getRenditionFilter()
+   {
+      return renditionFilter;
+   }
+}
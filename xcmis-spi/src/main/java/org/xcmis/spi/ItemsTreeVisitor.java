@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.spi;
+
+/**
+ * Receives nodes of tree in depth-first order while tree is traversed. All
+ * methods are called by thread which started traversal.
+ *
+ * @version $Id$
+ */
+public interface ItemsTreeVisitor<T>
+{
+
+   /**
+    * Called for node before any of its children.
+    *
+    * @param container element (node) in tree hierarchy
+    * @param level level of node, 0 for children of tree root
+    * @return <code>false</code> to stop traversal
+    */
+   boolean enter(T container, int level);
+
+   /**
+    * Called for node after all its children.
+    *
+    * @param container element (node) in tree hierarchy
+    * @param level level of node, 0 for children of tree root
+    */
+   void leave(T container, int level);
+
+}
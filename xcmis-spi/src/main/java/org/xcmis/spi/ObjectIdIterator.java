@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xcmis.spi;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator over objects what is able to give identifier of the next object
+ * without loading it. Caller may take page of identifiers and fetch all
+ * objects of page together with information it needs by
+ * {@link Storage#getObjectsByIds(java.util.Collection, PropertyFilter, FetchHints)}.
+ * {@link #next()} and {@link #nextObjectId()} move the same cursor.
+ *
+ * @param <T> type of objects
+ * @version $Id$
+ */
+public interface ObjectIdIterator<T extends ObjectData> extends ItemsIterator<T>
+{
+
+   /**
+    * Get identifier of next object. Object may be removed before it is
+    * fetched from storage, so caller must be ready to object is not found.
+    *
+    * @return identifier of next object
+    * @throws NoSuchElementException if iterator has no more items
+    */
+   String nextObjectId() throws NoSuchElementException;
+
+}
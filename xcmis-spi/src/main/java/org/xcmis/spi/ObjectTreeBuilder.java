@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.spi;
+
+import org.xcmis.spi.model.BaseType;
+import org.xcmis.spi.model.CmisObject;
+import org.xcmis.spi.model.IncludeRelationships;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Builds trees of objects for {@link Connection#getDescendants} and
+ * {@link Connection#getFolderTree}. Subtrees of child folders are forked to
+ * executor while current thread goes on with its own part of tree. Forked task
+ * which is not started yet when its result is required is run by joining
+ * thread, so traversal never waits for free thread of executor. Number of tasks
+ * forked at the same time is limited by parallelism level, it is shared between
+ * all traversals started by the same builder.
+ *
+ * @version $Id$
+ */
+public final class ObjectTreeBuilder
+{
+
+   /** Builds tree in current thread and does not limit number of objects. */
+   public static final ObjectTreeBuilder SEQUENTIAL = new ObjectTreeBuilder(null, 0, -1);
+
+   private final ExecutorService executor;
+
+   private final Semaphore permits;
+
+   private final int maxNodes;
+
+   /**
+    * @param executor executor for forked tasks. If <code>null</code> then tree
+    *        is built by current thread only
+    * @param parallelism max number of tasks forked at the same time
+    * @param maxNodes max number of objects in one tree or -1 if unbounded
+    */
+   public ObjectTreeBuilder(ExecutorService executor, int parallelism, int maxNodes)
+   {
+      if (parallelism < 0)
+      {
+         throw new IllegalArgumentException("Parallelism level may not be negative.");
+      }
+      this.executor = executor;
+      this.permits = new Semaphore(executor != null ? parallelism : 0);
+      this.maxNodes = maxNodes;
+   }
+
+   /**
+    * @return max number of objects in one tree or -1 if unbounded
+    */
+   public int getMaxNodes()
+   {
+      return maxNodes;
+   }
+
+   Traversal newTraversal(Connection connection, BaseType typeFilter, boolean includeAllowableActions,
+      IncludeRelationships includeRelationships, boolean includePathSegments, boolean includeObjectInfo,
+      PropertyFilter propertyFilter, RenditionFilter renditionFilter)
+   {
+      return new Traversal(connection, typeFilter, includeAllowableActions, includeRelationships, includePathSegments,
+         includeObjectInfo, propertyFilter, renditionFilter);
+   }
+
+   private static int nextDepth(int depth)
+   {
+      return depth != -1 ? depth - 1 : depth;
+   }
+
+   private static final class Node
+   {
+      final CmisObject object;
+
+      /** Folder to descend into or <code>null</code> if node is leaf. */
+      final FolderData folder;
+
+      Node(CmisObject object, FolderData folder)
+      {
+         this.object = object;
+         this.folder = folder;
+      }
+   }
+
+   /**
+    * One traversal of tree. It is cancelled if max number of objects is
+    * exceeded, if visitor stops it or if thread which started it is
+    * interrupted.
+    */
+   final class Traversal
+   {
+
+      private final Connection connection;
+
+      private final BaseType typeFilter;
+
+      private final boolean includeAllowableActions;
+
+      private final IncludeRelationships includeRelationships;
+
+      private final boolean includePathSegments;
+
+      private final boolean includeObjectInfo;
+
+      private final PropertyFilter propertyFilter;
+
+      private final RenditionFilter renditionFilter;
+
+      private final FetchHints hints;
+
+      /** Caller, forked tasks check permissions on behalf of it. */
+      private final UserContext userContext = UserContext.getCurrent();
+
+      /** Thread which started traversal, traversal is cancelled if it is interrupted. */
+      private final Thread owner = Thread.currentThread();
+
+      private final AtomicInteger nodes = new AtomicInteger();
+
+      private final AtomicBoolean cancelled = new AtomicBoolean();
+
+      private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+      Traversal(Connection connection, BaseType typeFilter, boolean includeAllowableActions,
+         IncludeRelationships includeRelationships, boolean includePathSegments, boolean includeObjectInfo,
+         PropertyFilter propertyFilter, RenditionFilter renditionFilter)
+      {
+         this.connection = connection;
+         this.typeFilter = typeFilter;
+         this.includeAllowableActions = includeAllowableActions;
+         this.includeRelationships = includeRelationships;
+         this.includePathSegments = includePathSegments;
+         this.includeObjectInfo = includeObjectInfo;
+         this.propertyFilter = propertyFilter;
+         this.renditionFilter = renditionFilter;
+         this.hints = new FetchHints(includeAllowableActions, includeRelationships, false, false, renditionFilter);
+      }
+
+      /**
+       * Build whole tree.
+       *
+       * @param folder root of tree
+       * @param depth depth of tree or -1 for all levels
+       * @return children of <code>folder</code> with their subtrees
+       */
+      List<ItemsTree<CmisObject>> build(FolderData folder, int depth)
+      {
+         return build(loadLevel(folder, depth), depth);
+      }
+
+      /**
+       * Pass objects of tree to visitor as soon as they are loaded. Children of
+       * folders which are not visited yet are loaded in parallel.
+       *
+       * @param folder root of tree
+       * @param depth depth of tree or -1 for all levels
+       * @param visitor visitor
+       */
+      void walk(FolderData folder, int depth, ItemsTreeVisitor<CmisObject> visitor)
+      {
+         walk(loadLevel(folder, depth), depth, 0, visitor);
+      }
+
+      private List<ItemsTree<CmisObject>> build(List<Node> level, final int depth)
+      {
+         List<FutureTask<List<ItemsTree<CmisObject>>>> subTrees =
+            new ArrayList<FutureTask<List<ItemsTree<CmisObject>>>>(level.size());
+         for (final Node node : level)
+         {
+            subTrees.add(node.folder != null //
+               ? fork(new Callable<List<ItemsTree<CmisObject>>>()
+               {
+                  public List<ItemsTree<CmisObject>> call()
+                  {
+                     int next = nextDepth(depth);
+                     return build(loadLevel(node.folder, next), next);
+                  }
+               }) //
+               : null);
+         }
+
+         List<ItemsTree<CmisObject>> tree = new ArrayList<ItemsTree<CmisObject>>(level.size());
+         boolean done = false;
+         try
+         {
+            for (int i = 0; i < level.size(); i++)
+            {
+               checkCancelled();
+               FutureTask<List<ItemsTree<CmisObject>>> subTree = subTrees.get(i);
+               tree.add(new ItemsTree<CmisObject>(level.get(i).object, subTree != null ? join(subTree) : null));
+            }
+            done = true;
+         }
+         finally
+         {
+            if (!done)
+            {
+               cancel(subTrees);
+            }
+         }
+         return tree;
+      }
+
+      private boolean walk(List<Node> level, int depth, int treeLevel, ItemsTreeVisitor<CmisObject> visitor)
+      {
+         final int next = nextDepth(depth);
+         List<FutureTask<List<Node>>> subLevels = new ArrayList<FutureTask<List<Node>>>(level.size());
+         for (final Node node : level)
+         {
+            subLevels.add(node.folder != null //
+               ? fork(new Callable<List<Node>>()
+               {
+                  public List<Node> call()
+                  {
+                     return loadLevel(node.folder, next);
+                  }
+               }) //
+               : null);
+         }
+
+         boolean done = false;
+         try
+         {
+            for (int i = 0; i < level.size(); i++)
+            {
+               checkCancelled();
+               Node node = level.get(i);
+               if (!visitor.enter(node.object, treeLevel))
+               {
+                  return false;
+               }
+               FutureTask<List<Node>> subLevel = subLevels.get(i);
+               if (subLevel != null && !walk(join(subLevel), next, treeLevel + 1, visitor))
+               {
+                  return false;
+               }
+               visitor.leave(node.object, treeLevel);
+            }
+            done = true;
+            return true;
+         }
+         finally
+         {
+            if (!done)
+            {
+               cancel(subLevels);
+            }
+         }
+      }
+
+      private List<Node> loadLevel(FolderData folder, int depth)
+      {
+         List<Node> level = new ArrayList<Node>();
+         ItemsIterator<ObjectData> children = folder.getChildren(null);
+         while (children.hasNext())
+         {
+            checkCancelled();
+            for (ObjectData child : connection.fetchPage(children, Connection.FETCH_SIZE, propertyFilter, hints))
+            {
+               checkCancelled();
+               if (typeFilter != null && child.getBaseType() != typeFilter)
+               {
+                  continue;
+               }
+               if (maxNodes > 0 && nodes.incrementAndGet() > maxNodes)
+               {
+                  throw fail(new InvalidArgumentException("Tree contains more than " + maxNodes
+                     + " objects. Use smaller depth."));
+               }
+
+               CmisObject object =
+                  connection.getCmisObject(child, includeAllowableActions, includeRelationships, false, false,
+                     includeObjectInfo, propertyFilter, renditionFilter);
+               if (includePathSegments)
+               {
+                  object.setPathSegment(child.getName());
+               }
+
+               boolean descend = child.getBaseType() == BaseType.FOLDER && (depth > 1 || depth == -1);
+               level.add(new Node(object, descend ? (FolderData)child : null));
+            }
+         }
+         return level;
+      }
+
+      private <V> FutureTask<V> fork(final Callable<V> callable)
+      {
+         Callable<V> task = new Callable<V>()
+         {
+            public V call() throws Exception
+            {
+               UserContext previous = UserContext.getCurrent();
+               if (previous == userContext)
+               {
+                  return callable.call();
+               }
+               UserContext.setCurrent(userContext);
+               try
+               {
+                  return callable.call();
+               }
+               finally
+               {
+                  UserContext.setCurrent(previous);
+               }
+            }
+         };
+
+         if (executor != null && permits.tryAcquire())
+         {
+            FutureTask<V> future = new FutureTask<V>(task)
+            {
+               @Override
+               protected void done()
+               {
+                  permits.release();
+               }
+            };
+            try
+            {
+               executor.execute(future);
+            }
+            catch (RejectedExecutionException ree)
+            {
+               // Will be run by thread which joins it.
+            }
+            return future;
+         }
+         return new FutureTask<V>(task);
+      }
+
+      private <V> V join(FutureTask<V> future)
+      {
+         // Does nothing if task is already started by executor.
+         future.run();
+         try
+         {
+            return future.get();
+         }
+         catch (InterruptedException ie)
+         {
+            Thread.currentThread().interrupt();
+            throw fail(new CancellationException("Tree traversal interrupted."));
+         }
+         catch (ExecutionException ee)
+         {
+            Throwable cause = ee.getCause();
+            if (failure.get() != null)
+            {
+               throw failure.get();
+            }
+            if (cause instanceof RuntimeException)
+            {
+               throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error)
+            {
+               throw (Error)cause;
+            }
+            throw new CmisRuntimeException(cause.getMessage(), cause);
+         }
+      }
+
+      private void cancel(List<? extends FutureTask<?>> tasks)
+      {
+         cancelled.set(true);
+         for (FutureTask<?> task : tasks)
+         {
+            if (task != null)
+            {
+               task.cancel(false);
+            }
+         }
+      }
+
+      private void checkCancelled()
+      {
+         if (failure.get() != null)
+         {
+            throw failure.get();
+         }
+         if (owner.isInterrupted() || Thread.currentThread().isInterrupted())
+         {
+            // interrupted status is kept for caller
+            throw fail(new CancellationException("Tree traversal interrupted."));
+         }
+         if (cancelled.get())
+         {
+            throw new CancellationException("Tree traversal cancelled.");
+         }
+      }
+
+      private RuntimeException fail(RuntimeException e)
+      {
+         failure.compareAndSet(null, e);
+         cancelled.set(true);
+         return failure.get();
+      }
+   }
+
+}
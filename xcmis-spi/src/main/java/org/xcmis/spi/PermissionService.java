@@ -31,7 +31,9 @@ import org.xcmis.spi.model.Permission.BasicPermissions;
 import org.xcmis.spi.utils.CmisUtils;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -45,6 +47,53 @@ import java.util.Set;
 public class PermissionService
 {
 
+   /** Default max number of cached permission sets. */
+   public static final int DEFAULT_CACHE_SIZE = 10000;
+
+   /** Mask of permissions what allow all operations. */
+   private static final long ALL = -1L;
+
+   /** Mask of permissions what can't be represented by compiled mapping. */
+   private static final long UNKNOWN = Long.MIN_VALUE;
+
+   private final int cacheSize;
+
+   /**
+    * Permissions granted to user by ACL of given version, as mask of compiled
+    * permission mapping.
+    */
+   private final Map<CacheKey, Long> cache;
+
+   private volatile CompiledMapping compiledMapping;
+
+   public PermissionService()
+   {
+      this(DEFAULT_CACHE_SIZE);
+   }
+
+   /**
+    * @param cacheSize max number of cached permission sets, 0 to disable
+    *        caching
+    */
+   public PermissionService(final int cacheSize)
+   {
+      if (cacheSize < 0)
+      {
+         throw new IllegalArgumentException("Cache size may not be negative");
+      }
+      this.cacheSize = cacheSize;
+      this.cache = new LinkedHashMap<CacheKey, Long>(16, 0.75f, true)
+      {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<CacheKey, Long> eldest)
+         {
+            return size() > cacheSize;
+         }
+      };
+   }
+
    /**
     * Calculate allowable actions for specified object.
     *
@@ -67,7 +116,7 @@ public class PermissionService
          userId = repositoryInfo.getPrincipalAnonymous();
       }
 
-      PermissionMapping permissionMapping = repositoryInfo.getAclCapability().getMapping();
+      Evaluator permissions = new Evaluator(object, userId, repositoryInfo);
 
       AllowableActions actions = new AllowableActions();
       TypeDefinition type = object.getTypeDefinition();
@@ -79,8 +128,7 @@ public class PermissionService
          {
             if (capabilities.isCapabilityGetDescendants()
                && BaseType.FOLDER == type.getBaseId()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_GET_DESCENDENTS_FOLDER),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_GET_DESCENDENTS_FOLDER))
             {
                actions.setCanGetDescendants(true);
             }
@@ -89,8 +137,7 @@ public class PermissionService
          {
             if (capabilities.isCapabilityGetFolderTree()
                && BaseType.FOLDER == type.getBaseId()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_GET_FOLDER_TREE_FOLDER),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_GET_FOLDER_TREE_FOLDER))
             {
                actions.setCanGetFolderTree(true);
             }
@@ -98,8 +145,7 @@ public class PermissionService
          else if (AllowableActions.CAN_GET_CHILDREN.equals(action))
          {
             if (BaseType.FOLDER == type.getBaseId()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_GET_CHILDREN_FOLDER),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_GET_CHILDREN_FOLDER))
             {
                actions.setCanGetChildren(true);
             }
@@ -107,8 +153,7 @@ public class PermissionService
          else if (AllowableActions.CAN_GET_OBJECT_PARENTS.equals(action))
          {
             if (type.isFileable()
-               && hasPermission(object, permissionMapping
-                  .getPermissions(PermissionMapping.CAN_GET_OBJECT_PARENTS_OBJECT), userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_GET_OBJECT_PARENTS_OBJECT))
             {
                actions.setCanGetObjectParents(true);
             }
@@ -116,8 +161,7 @@ public class PermissionService
          else if (AllowableActions.CAN_GET_FOLDER_PARENT.equals(action))
          {
             if (BaseType.FOLDER == type.getBaseId()
-               && hasPermission(object, permissionMapping
-                  .getPermissions(PermissionMapping.CAN_GET_FOLDER_PARENT_FOLDER), userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_GET_FOLDER_PARENT_FOLDER))
             {
                actions.setCanGetFolderParent(true);
             }
@@ -125,8 +169,7 @@ public class PermissionService
          else if (AllowableActions.CAN_CREATE_DOCUMENT.equals(action))
          {
             if (BaseType.FOLDER == type.getBaseId()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_CREATE_DOCUMENT_FOLDER),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_CREATE_DOCUMENT_FOLDER))
             {
                actions.setCanCreateDocument(true);
             }
@@ -134,8 +177,7 @@ public class PermissionService
          else if (AllowableActions.CAN_CREATE_FOLDER.equals(action))
          {
             if (BaseType.FOLDER == type.getBaseId()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_CREATE_FOLDER_FOLDER),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_CREATE_FOLDER_FOLDER))
             {
                actions.setCanCreateFolder(true);
             }
@@ -143,18 +185,15 @@ public class PermissionService
          else if (AllowableActions.CAN_CREATE_RELATIONSHIP.equals(action))
          {
             if (BaseType.RELATIONSHIP != type.getBaseId()
-               && hasPermission(object, permissionMapping
-                  .getPermissions(PermissionMapping.CAN_CREATE_RELATIONSHIP_SOURCE), userId, repositoryInfo)
-               && hasPermission(object, permissionMapping
-                  .getPermissions(PermissionMapping.CAN_CREATE_RELATIONSHIP_TARGET), userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_CREATE_RELATIONSHIP_SOURCE)
+               && permissions.has(PermissionMapping.CAN_CREATE_RELATIONSHIP_TARGET))
             {
                actions.setCanCreateRelationship(true);
             }
          }
          else if (AllowableActions.CAN_GET_PROPERTIES.equals(action))
          {
-            if (hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_GET_PROPERTIES_OBJECT),
-               userId, repositoryInfo))
+            if (permissions.has(PermissionMapping.CAN_GET_PROPERTIES_OBJECT))
             {
                actions.setCanGetProperties(true);
             }
@@ -162,16 +201,14 @@ public class PermissionService
          else if (AllowableActions.CAN_GET_CONTENT_STREAM.equals(action))
          {
             if (BaseType.DOCUMENT == type.getBaseId()
-               && hasPermission(object, permissionMapping
-                  .getPermissions(PermissionMapping.CAN_GET_CONTENT_STREAM_OBJECT), userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_GET_CONTENT_STREAM_OBJECT))
             {
                actions.setCanGetContentStream(true);
             }
          }
          else if (AllowableActions.CAN_UPDATE_PROPERTIES.equals(action))
          {
-            if (hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_UPDATE_PROPERTIES_OBJECT),
-               userId, repositoryInfo))
+            if (permissions.has(PermissionMapping.CAN_UPDATE_PROPERTIES_OBJECT))
             {
                actions.setCanUpdateProperties(true);
             }
@@ -179,8 +216,7 @@ public class PermissionService
          else if (AllowableActions.CAN_MOVE_OBJECT.equals(action))
          {
             if (type.isFileable()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_MOVE_OBJECT_OBJECT),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_MOVE_OBJECT_OBJECT))
             {
                actions.setCanMoveObject(true);
             }
@@ -190,14 +226,12 @@ public class PermissionService
             if (BaseType.FOLDER == type.getBaseId())
             {
                if (!((FolderData)object).hasChildren()
-                  && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_DELETE_OBJECT),
-                     userId, repositoryInfo))
+                  && permissions.has(PermissionMapping.CAN_DELETE_OBJECT))
                {
                   actions.setCanDeleteObject(true);
                }
             }
-            else if (hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_DELETE_OBJECT),
-               userId, repositoryInfo))
+            else if (permissions.has(PermissionMapping.CAN_DELETE_OBJECT))
             {
                actions.setCanDeleteObject(true);
             }
@@ -205,8 +239,7 @@ public class PermissionService
          else if (AllowableActions.CAN_DELETE_TREE.equals(action))
          {
             if (BaseType.FOLDER == type.getBaseId()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_DELETE_TREE_FOLDER),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_DELETE_TREE_FOLDER))
             {
                actions.setCanDeleteTree(true);
             }
@@ -214,8 +247,7 @@ public class PermissionService
          else if (AllowableActions.CAN_SET_CONTENT_STREAM.equals(action))
          {
             if (BaseType.DOCUMENT == type.getBaseId()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_SET_CONTENT_DOCUMENT),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_SET_CONTENT_DOCUMENT))
             {
                actions.setCanSetContentStream(true);
             }
@@ -223,9 +255,7 @@ public class PermissionService
          else if (AllowableActions.CAN_DELETE_CONTENT_STREAM.equals(action))
          {
             if (BaseType.DOCUMENT == type.getBaseId()
-               && hasPermission(object,
-                  permissionMapping.getPermissions(PermissionMapping.CAN_DELETE_CONTENT_DOCUMENT), userId,
-                  repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_DELETE_CONTENT_DOCUMENT))
             {
                actions.setCanDeleteContentStream(true);
             }
@@ -233,8 +263,7 @@ public class PermissionService
          else if (AllowableActions.CAN_GET_RENDITIONS.equals(action))
          {
             if (BaseType.DOCUMENT == type.getBaseId()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_GET_RENDITIONS_OBJECT),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_GET_RENDITIONS_OBJECT))
             {
                actions.setCanGetRenditions(true);
             }
@@ -242,8 +271,7 @@ public class PermissionService
          else if (AllowableActions.CAN_ADD_TO_FOLDER.equals(action))
          {
             if (type.isFileable()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_ADD_TO_FOLDER_OBJECT),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_ADD_TO_FOLDER_OBJECT))
             {
                actions.setCanAddObjectToFolder(true);
             }
@@ -252,8 +280,7 @@ public class PermissionService
          {
             if (type.isFileable() //
                && type.getBaseId() != BaseType.FOLDER //
-               && hasPermission(object, permissionMapping
-                  .getPermissions(PermissionMapping.CAN_REMOVE_OBJECT_FROM_FOLDER_OBJECT), userId, repositoryInfo) //
+               && permissions.has(PermissionMapping.CAN_REMOVE_OBJECT_FROM_FOLDER_OBJECT) //
                && (repositoryInfo.getCapabilities().isCapabilityUnfiling() || object.getParents().size() > 1))
             {
                actions.setCanRemoveObjectFromFolder(true);
@@ -262,8 +289,7 @@ public class PermissionService
          else if (AllowableActions.CAN_CHECKOUT.equals(action))
          {
             if (type.isVersionable()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_CHECKOUT_DOCUMENT),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_CHECKOUT_DOCUMENT))
             {
                actions.setCanCheckOut(true);
             }
@@ -272,8 +298,7 @@ public class PermissionService
          {
             if (type.isVersionable()
                && ((DocumentData)object).isVersionSeriesCheckedOut()
-               && hasPermission(object, permissionMapping
-                  .getPermissions(PermissionMapping.CAN_CANCEL_CHECKOUT_DOCUMENT), userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_CANCEL_CHECKOUT_DOCUMENT))
             {
                actions.setCanCancelCheckOut(true);
             }
@@ -282,8 +307,7 @@ public class PermissionService
          {
             if (type.isVersionable()
                && ((DocumentData)object).isPWC()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_CHECKIN_DOCUMENT),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_CHECKIN_DOCUMENT))
             {
                actions.setCanCancelCheckOut(true);
             }
@@ -291,8 +315,7 @@ public class PermissionService
          else if (AllowableActions.CAN_GET_ALL_VERSIONS.equals(action))
          {
             if (BaseType.DOCUMENT == type.getBaseId()
-               && hasPermission(object, permissionMapping
-                  .getPermissions(PermissionMapping.CAN_GET_ALL_VERSIONS_DOCUMENT), userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_GET_ALL_VERSIONS_DOCUMENT))
             {
                actions.setCanGetAllVersions(true);
             }
@@ -300,8 +323,7 @@ public class PermissionService
          else if (AllowableActions.CAN_GET_OBJECT_RELATIONSHIPS.equals(action))
          {
             if (BaseType.RELATIONSHIP != type.getBaseId()
-               && hasPermission(object, permissionMapping
-                  .getPermissions(PermissionMapping.CAN_GET_OBJECT_RELATIONSHIPS_OBJECT), userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_GET_OBJECT_RELATIONSHIPS_OBJECT))
             {
                actions.setCanGetObjectRelationships(true);
             }
@@ -309,8 +331,7 @@ public class PermissionService
          else if (AllowableActions.CAN_ADD_POLICY.equals(action))
          {
             if (type.isControllablePolicy()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_ADD_POLICY_OBJECT),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_ADD_POLICY_OBJECT))
             {
                actions.setCanApplyPolicy(true);
             }
@@ -318,8 +339,7 @@ public class PermissionService
          else if (AllowableActions.CAN_REMOVE_POLICY.equals(action))
          {
             if (type.isControllablePolicy()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_REMOVE_POLICY_OBJECT),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_REMOVE_POLICY_OBJECT))
             {
                actions.setCanRemovePolicy(true);
             }
@@ -327,8 +347,7 @@ public class PermissionService
          else if (AllowableActions.CAN_GET_APPLIED_POLICIES.equals(action))
          {
             if (type.isControllablePolicy()
-               && hasPermission(object, permissionMapping
-                  .getPermissions(PermissionMapping.CAN_GET_APPLIED_POLICIES_OBJECT), userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_GET_APPLIED_POLICIES_OBJECT))
             {
                actions.setCanGetAppliedPolicies(true);
             }
@@ -336,8 +355,7 @@ public class PermissionService
          else if (AllowableActions.CAN_GET_ACL.equals(action))
          {
             if (type.isControllableACL()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_GET_ACL_OBJECT), userId,
-                  repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_GET_ACL_OBJECT))
             {
                actions.setCanGetACL(true);
             }
@@ -345,8 +363,7 @@ public class PermissionService
          else if (AllowableActions.CAN_APPLY_ACL.equals(action))
          {
             if (type.isControllableACL()
-               && hasPermission(object, permissionMapping.getPermissions(PermissionMapping.CAN_APPLY_ACL_OBJECT),
-                  userId, repositoryInfo))
+               && permissions.has(PermissionMapping.CAN_APPLY_ACL_OBJECT))
             {
                actions.setCanApplyACL(true);
             }
@@ -375,10 +392,88 @@ public class PermissionService
       {
          userId = repositoryInfo.getPrincipalAnonymous();
       }
+      CompiledMapping mapping = getCompiledMapping(repositoryInfo.getAclCapability().getMapping());
+      long required = mapping.required(permissions);
+      if (required == UNKNOWN)
+      {
+         // permission is not used in mapping, check it directly
+         Set<String> granted = getGrantedPermissions(object, userId, repositoryInfo);
+         return granted == null || granted.contains(BasicPermissions.CMIS_ALL.value())
+            || granted.containsAll(permissions);
+      }
+      long effective = getEffectivePermissions(object, userId, repositoryInfo, mapping);
+      return (effective & required) == required;
+   }
+
+   /**
+    * Remove all cached permissions.
+    */
+   public void clearCache()
+   {
+      synchronized (cache)
+      {
+         cache.clear();
+      }
+   }
+
+   /**
+    * @return number of cached permission sets
+    */
+   public int getCacheSize()
+   {
+      synchronized (cache)
+      {
+         return cache.size();
+      }
+   }
+
+   /**
+    * Get permissions granted to user by ACL of object as bit mask of mapping.
+    * Result is cached if object tells version of its ACL.
+    */
+   private long getEffectivePermissions(ObjectData object, String userId, RepositoryInfo repositoryInfo,
+      CompiledMapping mapping)
+   {
+      CacheKey key = null;
+      if (cacheSize > 0 && object instanceof ACLVersioned)
+      {
+         key = new CacheKey(((ACLVersioned)object).getACLVersion(), userId, mapping);
+         Long cached;
+         synchronized (cache)
+         {
+            cached = cache.get(key);
+         }
+         if (cached != null)
+         {
+            return cached;
+         }
+      }
+      Set<String> granted = getGrantedPermissions(object, userId, repositoryInfo);
+      long effective =
+         granted == null || granted.contains(BasicPermissions.CMIS_ALL.value()) ? ALL : mapping.mask(granted);
+      if (key != null)
+      {
+         synchronized (cache)
+         {
+            cache.put(key, effective);
+         }
+      }
+      return effective;
+   }
+
+   /**
+    * Get permissions granted to user by ACL of object. Permissions of 'any
+    * principal' are used if ACL has them, otherwise permissions of user.
+    *
+    * @return granted permissions or null if object has empty ACL, so all
+    *         operations are allowed
+    */
+   private Set<String> getGrantedPermissions(ObjectData object, String userId, RepositoryInfo repositoryInfo)
+   {
       List<AccessControlEntry> acl = object.getACL(false);
       if (acl.size() == 0)
       {
-         return true;
+         return null;
       }
       Map<String, Set<String>> map = new HashMap<String, Set<String>>();
       CmisUtils.addAclToPermissionMap(map, acl);
@@ -389,14 +484,208 @@ public class PermissionService
          Set<String> p = map.get(principal);
          if (p != null)
          {
-            if (p.contains(BasicPermissions.CMIS_ALL.value()))
+            return p;
+         }
+      }
+      return Collections.emptySet();
+   }
+
+   private CompiledMapping getCompiledMapping(PermissionMapping permissionMapping)
+   {
+      CompiledMapping mapping = compiledMapping;
+      if (mapping == null || !mapping.isCompiledFrom(permissionMapping))
+      {
+         mapping = new CompiledMapping(permissionMapping);
+         compiledMapping = mapping;
+      }
+      return mapping;
+   }
+
+   /**
+    * Permission mapping where each permission is represented by bit of mask.
+    */
+   private static final class CompiledMapping
+   {
+      private final PermissionMapping source;
+
+      /** Modification counter of source mapping at the time of compilation. */
+      private final int modCount;
+
+      private final Map<String, Long> bits = new HashMap<String, Long>();
+
+      /** Required permissions by permission key, null if key is not mapped. */
+      private final Map<String, Long> keys = new HashMap<String, Long>();
+
+      CompiledMapping(PermissionMapping source)
+      {
+         this.source = source;
+         // read counter first, concurrent update makes mapping be compiled again
+         this.modCount = source.getModificationCount();
+         Map<String, Collection<String>> all = source.getAll();
+         for (Map.Entry<String, Collection<String>> e : all.entrySet())
+         {
+            Collection<String> permissions = e.getValue();
+            if (permissions == null || permissions.size() == 0)
+            {
+               continue;
+            }
+            long mask = 0;
+            for (String permission : permissions)
             {
-               // All operations allowed.
-               return true;
+               Long bit = bits.get(permission);
+               if (bit == null)
+               {
+                  if (bits.size() == 63)
+                  {
+                     // too many permissions, not compiled
+                     mask = UNKNOWN;
+                     break;
+                  }
+                  bit = 1L << bits.size();
+                  bits.put(permission, bit);
+               }
+               mask |= bit;
             }
-            return p.containsAll(permissions);
+            keys.put(e.getKey(), mask);
+         }
+      }
+
+      boolean isCompiledFrom(PermissionMapping mapping)
+      {
+         return source == mapping && modCount == mapping.getModificationCount();
+      }
+
+      /**
+       * @param key permission key
+       * @return mask of required permissions or {@link PermissionService#UNKNOWN}
+       */
+      long required(String key)
+      {
+         Long mask = keys.get(key);
+         if (mask == null)
+         {
+            throw new CmisRuntimeException("Permissions set may not be null or empty.");
+         }
+         return mask;
+      }
+
+      /**
+       * @param permissions required permissions
+       * @return mask of permissions or {@link PermissionService#UNKNOWN} if
+       *         any of permissions is not used in mapping
+       */
+      long required(Collection<String> permissions)
+      {
+         long mask = 0;
+         for (String permission : permissions)
+         {
+            Long bit = bits.get(permission);
+            if (bit == null)
+            {
+               return UNKNOWN;
+            }
+            mask |= bit;
+         }
+         return mask;
+      }
+
+      /**
+       * @param permissions granted permissions
+       * @return mask of permissions, permissions not used in mapping are
+       *         ignored
+       */
+      long mask(Collection<String> permissions)
+      {
+         long mask = 0;
+         for (String permission : permissions)
+         {
+            Long bit = bits.get(permission);
+            if (bit != null)
+            {
+               mask |= bit;
+            }
+         }
+         return mask;
+      }
+   }
+
+   private static final class CacheKey
+   {
+      private final long version;
+
+      private final String userId;
+
+      private final CompiledMapping mapping;
+
+      CacheKey(long version, String userId, CompiledMapping mapping)
+      {
+         this.version = version;
+         this.userId = userId;
+         this.mapping = mapping;
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (!(obj instanceof CacheKey))
+         {
+            return false;
+         }
+         CacheKey other = (CacheKey)obj;
+         return version == other.version && userId.equals(other.userId) && mapping == other.mapping;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return (int)(version ^ (version >>> 32)) * 31 + userId.hashCode();
+      }
+   }
+
+   /**
+    * Check of permissions for one object and one user. Permissions granted to
+    * user are resolved once on first check.
+    */
+   private final class Evaluator
+   {
+      private final ObjectData object;
+
+      private final String userId;
+
+      private final RepositoryInfo repositoryInfo;
+
+      private final CompiledMapping mapping;
+
+      private long effective;
+
+      private boolean resolved;
+
+      Evaluator(ObjectData object, String userId, RepositoryInfo repositoryInfo)
+      {
+         this.object = object;
+         this.userId = userId;
+         this.repositoryInfo = repositoryInfo;
+         this.mapping = getCompiledMapping(repositoryInfo.getAclCapability().getMapping());
+      }
+
+      /**
+       * @param key permission key
+       * @return true if user has all permissions required by key
+       */
+      boolean has(String key)
+      {
+         long required = mapping.required(key);
+         if (required == UNKNOWN)
+         {
+            return hasPermission(object, repositoryInfo.getAclCapability().getMapping().getPermissions(key), userId,
+               repositoryInfo);
+         }
+         if (!resolved)
+         {
+            effective = getEffectivePermissions(object, userId, repositoryInfo, mapping);
+            resolved = true;
          }
+         return (effective & required) == required;
       }
-      return false;
    }
 }
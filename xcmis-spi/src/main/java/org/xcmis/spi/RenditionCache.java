@@ -0,0 +1,613 @@
+/**
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xcmis.spi;
+
+import org.xcmis.spi.utils.Logger;
+import org.xcmis.spi.utils.MimeType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of produced renditions. Rendition is identified by object id, change
+ * token of object and stream id, so any change of object makes cached
+ * renditions of it unreachable. Cache has in-memory tier bounded by total size
+ * of renditions and optional on-disk tier what keeps renditions between
+ * restarts. On disk only last produced rendition of each stream of object is
+ * kept. Rendition larger than in-memory tier is not buffered in memory, it is
+ * written to on-disk tier while it is read and streamed from there.
+ *
+ * @version $Id$
+ */
+public class RenditionCache
+{
+
+   private static final Logger LOG = Logger.getLogger(RenditionCache.class);
+
+   private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+   private static final int BUFFER_SIZE = 8192;
+
+   private final long maxMemorySize;
+
+   /** Max size of rendition what may be kept in memory. */
+   private final long maxBufferSize;
+
+   private final File directory;
+
+   private final Map<Key, CachedRendition> entries;
+
+   private long memorySize;
+
+   private final AtomicLong hits = new AtomicLong();
+
+   private final AtomicLong misses = new AtomicLong();
+
+   /**
+    * @param maxMemorySize max total size of renditions kept in memory in bytes
+    */
+   public RenditionCache(long maxMemorySize)
+   {
+      this(maxMemorySize, null);
+   }
+
+   /**
+    * @param maxMemorySize max total size of renditions kept in memory in bytes
+    * @param directory directory of on-disk tier, may be null if renditions
+    *        should be kept in memory only
+    */
+   public RenditionCache(long maxMemorySize, File directory)
+   {
+      if (maxMemorySize < 0)
+      {
+         throw new IllegalArgumentException("Cache size may not be negative");
+      }
+      if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+      {
+         throw new IllegalArgumentException("Unable create rendition cache directory " + directory);
+      }
+      this.maxMemorySize = maxMemorySize;
+      this.maxBufferSize = Math.min(maxMemorySize, Integer.MAX_VALUE - BUFFER_SIZE);
+      this.directory = directory;
+      this.entries = new LinkedHashMap<Key, CachedRendition>(16, 0.75f, true);
+   }
+
+   /**
+    * Get cached rendition.
+    *
+    * @param objectId object id
+    * @param changeToken change token of object
+    * @param streamId rendition stream id
+    * @return rendition stream or <code>null</code> if rendition is not cached
+    */
+   public RenditionContentStream get(String objectId, String changeToken, String streamId)
+   {
+      Key key = new Key(objectId, changeToken, streamId);
+      CachedRendition rendition;
+      synchronized (entries)
+      {
+         rendition = entries.get(key);
+      }
+      if (rendition == null && directory != null)
+      {
+         rendition = read(key);
+         if (rendition != null && rendition.bytes != null)
+         {
+            putInMemory(key, rendition);
+         }
+      }
+      RenditionContentStream stream = null;
+      if (rendition != null)
+      {
+         try
+         {
+            stream = rendition.toStream();
+         }
+         catch (IOException e)
+         {
+            // file is removed concurrently
+            LOG.warn("Unable read cached rendition " + rendition.file + ". " + e.getMessage());
+         }
+      }
+      if (stream == null)
+      {
+         misses.incrementAndGet();
+         return null;
+      }
+      hits.incrementAndGet();
+      return stream;
+   }
+
+   /**
+    * Cache rendition. Rendition stream is read fully. Rendition larger than
+    * in-memory tier is written to on-disk tier without buffering, if cache has
+    * no on-disk tier such rendition is not cached.
+    *
+    * @param objectId object id
+    * @param changeToken change token of object
+    * @param streamId rendition stream id
+    * @param stream rendition stream
+    * @return new stream of the cached rendition, given stream is consumed
+    * @throws IOException if stream can't be read or large rendition can't be
+    *         written to on-disk tier
+    */
+   public RenditionContentStream put(String objectId, String changeToken, String streamId,
+      RenditionContentStream stream) throws IOException
+   {
+      Key key = new Key(objectId, changeToken, streamId);
+      long length = stream.length();
+      InputStream in = stream.getStream();
+      if (length > maxBufferSize)
+      {
+         return spill(key, stream, in);
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(length > 0 ? (int)length : BUFFER_SIZE);
+      boolean spilled = false;
+      try
+      {
+         byte[] buf = new byte[BUFFER_SIZE];
+         int r;
+         while ((r = in.read(buf)) != -1)
+         {
+            bytes.write(buf, 0, r);
+            if (bytes.size() > maxBufferSize)
+            {
+               // length is unknown, rendition doesn't fit in memory
+               spilled = true;
+               return spill(key, stream, new SequenceInputStream(new ByteArrayInputStream(bytes.toByteArray()), in));
+            }
+         }
+      }
+      finally
+      {
+         if (!spilled)
+         {
+            in.close();
+         }
+      }
+      CachedRendition rendition =
+         new CachedRendition(bytes.toByteArray(), stream.getFileName(), stream.getMediaType().toString(), stream
+            .getKind(), stream.getHeight(), stream.getWidth());
+      putInMemory(key, rendition);
+      if (directory != null)
+      {
+         write(key, rendition);
+      }
+      return rendition.toStream();
+   }
+
+   /**
+    * Write rendition what doesn't fit in memory to on-disk tier and stream it
+    * from there.
+    */
+   private RenditionContentStream spill(Key key, RenditionContentStream stream, InputStream in) throws IOException
+   {
+      if (directory == null)
+      {
+         // nowhere to keep it, rendition is passed through
+         return new RenditionContentStream(in, stream.getFileName(), stream.getMediaType(), stream.getKind(), stream
+            .getHeight(), stream.getWidth());
+      }
+      CachedRendition header =
+         new CachedRendition(null, stream.getFileName(), stream.getMediaType().toString(), stream.getKind(), stream
+            .getHeight(), stream.getWidth());
+      try
+      {
+         writeFile(key, header, in);
+      }
+      finally
+      {
+         in.close();
+      }
+      CachedRendition rendition = read(key);
+      if (rendition == null)
+      {
+         throw new IOException("Unable read cached rendition " + getFile(key));
+      }
+      return rendition.toStream();
+   }
+
+   /**
+    * Remove all cached renditions of object.
+    *
+    * @param objectId object id
+    */
+   public void remove(String objectId)
+   {
+      synchronized (entries)
+      {
+         for (Iterator<Map.Entry<Key, CachedRendition>> i = entries.entrySet().iterator(); i.hasNext();)
+         {
+            Map.Entry<Key, CachedRendition> e = i.next();
+            if (e.getKey().objectId.equals(objectId))
+            {
+               memorySize -= e.getValue().bytes.length;
+               i.remove();
+            }
+         }
+      }
+      if (directory != null)
+      {
+         File dir = new File(directory, digest(objectId));
+         File[] files = dir.listFiles();
+         if (files != null)
+         {
+            for (File file : files)
+            {
+               if (!file.delete())
+               {
+                  LOG.warn("Unable remove cached rendition " + file);
+               }
+            }
+         }
+         dir.delete();
+      }
+   }
+
+   /**
+    * @return total size of renditions kept in memory in bytes
+    */
+   public long getMemorySize()
+   {
+      synchronized (entries)
+      {
+         return memorySize;
+      }
+   }
+
+   /**
+    * @return max total size of renditions kept in memory in bytes
+    */
+   public long getMaxMemorySize()
+   {
+      return maxMemorySize;
+   }
+
+   /**
+    * @return number of lookups what found cached rendition
+    */
+   public long getHitCount()
+   {
+      return hits.get();
+   }
+
+   /**
+    * @return number of lookups what didn't find cached rendition
+    */
+   public long getMissCount()
+   {
+      return misses.get();
+   }
+
+   private void putInMemory(Key key, CachedRendition rendition)
+   {
+      if (rendition.bytes.length > maxMemorySize)
+      {
+         return;
+      }
+      synchronized (entries)
+      {
+         CachedRendition previous = entries.put(key, rendition);
+         if (previous != null)
+         {
+            memorySize -= previous.bytes.length;
+         }
+         memorySize += rendition.bytes.length;
+         for (Iterator<CachedRendition> i = entries.values().iterator(); memorySize > maxMemorySize && i.hasNext();)
+         {
+            memorySize -= i.next().bytes.length;
+            i.remove();
+         }
+      }
+   }
+
+   private CachedRendition read(Key key)
+   {
+      File file = getFile(key);
+      if (!file.exists())
+      {
+         return null;
+      }
+      try
+      {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+         try
+         {
+            if (!key.changeToken.equals(in.readUTF()))
+            {
+               // rendition of previous version of object
+               return null;
+            }
+            String fileName = in.readBoolean() ? in.readUTF() : null;
+            String mediaType = in.readUTF();
+            String kind = in.readBoolean() ? in.readUTF() : null;
+            int height = in.readInt();
+            int width = in.readInt();
+            int length = in.readInt();
+            if (length > maxBufferSize)
+            {
+               // large rendition is streamed from file, content is at the end of file
+               return new CachedRendition(file, file.length() - length, length, fileName, mediaType, kind, height,
+                  width);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new CachedRendition(bytes, fileName, mediaType, kind, height, width);
+         }
+         finally
+         {
+            in.close();
+         }
+      }
+      catch (IOException e)
+      {
+         LOG.warn("Unable read cached rendition " + file + ". " + e.getMessage());
+         return null;
+      }
+   }
+
+   private void write(Key key, CachedRendition rendition)
+   {
+      try
+      {
+         writeFile(key, rendition, new ByteArrayInputStream(rendition.bytes));
+      }
+      catch (IOException e)
+      {
+         LOG.warn("Unable save cached rendition " + getFile(key) + ". " + e.getMessage());
+      }
+   }
+
+   /**
+    * Write rendition with content read from stream. Stream is not closed.
+    */
+   private void writeFile(Key key, CachedRendition rendition, InputStream content) throws IOException
+   {
+      File file = getFile(key);
+      File dir = file.getParentFile();
+      if (!dir.isDirectory() && !dir.mkdirs())
+      {
+         throw new IOException("Unable create directory " + dir);
+      }
+      // write to temporary file first, concurrent readers never see partial file
+      File tmp = new File(dir, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+      try
+      {
+         long lengthOffset;
+         long length = 0;
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+         try
+         {
+            out.writeUTF(key.changeToken);
+            out.writeBoolean(rendition.fileName != null);
+            if (rendition.fileName != null)
+            {
+               out.writeUTF(rendition.fileName);
+            }
+            out.writeUTF(rendition.mediaType);
+            out.writeBoolean(rendition.kind != null);
+            if (rendition.kind != null)
+            {
+               out.writeUTF(rendition.kind);
+            }
+            out.writeInt(rendition.height);
+            out.writeInt(rendition.width);
+            // length is written when content is read
+            lengthOffset = out.size();
+            out.writeInt(0);
+            byte[] buf = new byte[BUFFER_SIZE];
+            int r;
+            while ((r = content.read(buf)) != -1)
+            {
+               out.write(buf, 0, r);
+               length += r;
+            }
+         }
+         finally
+         {
+            out.close();
+         }
+         if (length > Integer.MAX_VALUE)
+         {
+            throw new IOException("Rendition larger than " + Integer.MAX_VALUE + " bytes is not supported.");
+         }
+         RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+         try
+         {
+            raf.seek(lengthOffset);
+            raf.writeInt((int)length);
+         }
+         finally
+         {
+            raf.close();
+         }
+         file.delete();
+         if (!tmp.renameTo(file))
+         {
+            throw new IOException("Unable rename " + tmp);
+         }
+      }
+      finally
+      {
+         tmp.delete();
+      }
+   }
+
+   private File getFile(Key key)
+   {
+      return new File(new File(directory, digest(key.objectId)), digest(key.streamId));
+   }
+
+   private static String digest(String value)
+   {
+      try
+      {
+         byte[] hash = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+         char[] hex = new char[hash.length * 2];
+         for (int i = 0; i < hash.length; i++)
+         {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+         }
+         return new String(hex);
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new CmisRuntimeException(e.getMessage(), e);
+      }
+      catch (IOException e)
+      {
+         throw new CmisRuntimeException(e.getMessage(), e);
+      }
+   }
+
+   private static final class Key
+   {
+      private final String objectId;
+
+      private final String changeToken;
+
+      private final String streamId;
+
+      Key(String objectId, String changeToken, String streamId)
+      {
+         this.objectId = objectId;
+         this.changeToken = changeToken;
+         this.streamId = streamId;
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (this == obj)
+         {
+            return true;
+         }
+         if (!(obj instanceof Key))
+         {
+            return false;
+         }
+         Key other = (Key)obj;
+         return objectId.equals(other.objectId) && changeToken.equals(other.changeToken)
+            && streamId.equals(other.streamId);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return (objectId.hashCode() * 31 + changeToken.hashCode()) * 31 + streamId.hashCode();
+      }
+   }
+
+   /**
+    * Rendition kept in memory or large rendition streamed from file.
+    */
+   private static final class CachedRendition
+   {
+      /** Content of rendition, null if rendition is streamed from file. */
+      private final byte[] bytes;
+
+      private final File file;
+
+      private final long offset;
+
+      private final long length;
+
+      private final String fileName;
+
+      private final String mediaType;
+
+      private final String kind;
+
+      private final int height;
+
+      private final int width;
+
+      CachedRendition(byte[] bytes, String fileName, String mediaType, String kind, int height, int width)
+      {
+         this(bytes, null, 0, bytes != null ? bytes.length : -1, fileName, mediaType, kind, height, width);
+      }
+
+      CachedRendition(File file, long offset, long length, String fileName, String mediaType, String kind,
+         int height, int width)
+      {
+         this(null, file, offset, length, fileName, mediaType, kind, height, width);
+      }
+
+      private CachedRendition(byte[] bytes, File file, long offset, long length, String fileName, String mediaType,
+         String kind, int height, int width)
+      {
+         this.bytes = bytes;
+         this.file = file;
+         this.offset = offset;
+         this.length = length;
+         this.fileName = fileName;
+         this.mediaType = mediaType;
+         this.kind = kind;
+         this.height = height;
+         this.width = width;
+      }
+
+      RenditionContentStream toStream() throws IOException
+      {
+         if (bytes != null)
+         {
+            return new RenditionContentStream(bytes, fileName, MimeType.fromString(mediaType), kind, height, width);
+         }
+         FileInputStream in = new FileInputStream(file);
+         try
+         {
+            long skipped = 0;
+            while (skipped < offset)
+            {
+               long n = in.skip(offset - skipped);
+               if (n <= 0)
+               {
+                  throw new IOException("Unexpected end of file " + file);
+               }
+               skipped += n;
+            }
+         }
+         catch (IOException e)
+         {
+            in.close();
+            throw e;
+         }
+         return new RenditionContentStream(new BufferedInputStream(in), length, fileName, MimeType
+            .fromString(mediaType), kind, height, width);
+      }
+   }
+}
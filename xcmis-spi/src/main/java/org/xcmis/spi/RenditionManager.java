@@ -31,6 +31,8 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -122,10 +124,121 @@ public class RenditionManager
          }
       });
 
+   /**
+    * Cache of produced renditions, null if renditions are produced on each
+    * request.
+    */
+   private volatile RenditionCache cache;
+
+   /**
+    * Executor to pre-generate thumbnails, null if thumbnails are produced on
+    * first request.
+    */
+   private volatile Executor executor;
+
    protected RenditionManager()
    {
    }
 
+   /**
+    * @return cache of produced renditions or <code>null</code> if renditions
+    *         are not cached
+    */
+   public RenditionCache getCache()
+   {
+      return cache;
+   }
+
+   /**
+    * @param cache cache of produced renditions, may be <code>null</code> to
+    *        disable caching
+    */
+   public void setCache(RenditionCache cache)
+   {
+      this.cache = cache;
+   }
+
+   /**
+    * Set executor to pre-generate thumbnails of created or updated documents.
+    * Thumbnails are pre-generated only if cache is set.
+    *
+    * @param executor executor, may be <code>null</code> to produce
+    *        thumbnails on first request
+    */
+   public void setExecutor(Executor executor)
+   {
+      this.executor = executor;
+   }
+
+   /**
+    * Must be called when content of object is created or updated. Removes
+    * cached renditions of object and pre-generates thumbnails of it if
+    * executor is set.
+    *
+    * @param object created or updated object
+    */
+   public void contentChanged(final ObjectData object)
+   {
+      RenditionCache c = cache;
+      if (c == null)
+      {
+         return;
+      }
+      c.remove(object.getObjectId());
+      Executor exec = executor;
+      if (exec == null)
+      {
+         return;
+      }
+      for (ItemsIterator<Rendition> i = getRenditions(object); i.hasNext();)
+      {
+         Rendition rendition = i.next();
+         if (RenditionFilter.THUMBNAIL.equals(rendition.getKind()))
+         {
+            final String streamId = rendition.getStreamId();
+            try
+            {
+               exec.execute(new Runnable()
+               {
+                  public void run()
+                  {
+                     try
+                     {
+                        getStream(object, streamId);
+                     }
+                     catch (Exception e)
+                     {
+                        LOG.warn("Unable pre-generate rendition of " + object.getObjectId() + ". " + e.getMessage());
+                     }
+                  }
+               });
+            }
+            catch (RejectedExecutionException ree)
+            {
+               if (LOG.isDebugEnabled())
+               {
+                  LOG.debug("Rendition of " + object.getObjectId() + " is not pre-generated. " + ree.getMessage());
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Must be called when object is removed. Removes cached renditions of
+    * object.
+    *
+    * @param objectId id of removed object
+    */
+   public void removed(String objectId)
+   {
+      RenditionCache c = cache;
+      if (c != null)
+      {
+         c.remove(objectId);
+      }
+   }
+
    public void addRenditionProviders(List<String> provs)
    {
       if (provs != null && !provs.isEmpty())
@@ -231,7 +344,9 @@ public class RenditionManager
    }
 
    /**
-    * Get rendition stream for objects with specified stream id.
+    * Get rendition stream for objects with specified stream id. Rendition is
+    * taken from cache if cache is set and rendition of current version of
+    * object is already produced.
     *
     * @param streamId stream id
     * @param obj ObjectData
@@ -245,8 +360,25 @@ public class RenditionManager
       // Not support other than document objects
       if (object.getBaseType() == BaseType.DOCUMENT && ((DocumentData)object).hasContent())
       {
+         // token is read before content, so rendition is never cached with
+         // token of the newer content
+         String changeToken = object.getChangeToken();
+         RenditionCache c = changeToken != null ? cache : null;
+         if (c != null)
+         {
+            RenditionContentStream cached = c.get(object.getObjectId(), changeToken, streamId);
+            if (cached != null)
+            {
+               return cached;
+            }
+         }
          MimeType mime = MimeType.fromString(decode(streamId));
-         return getStream(((DocumentData)object).getContentStream(), mime);
+         RenditionContentStream stream = getStream(((DocumentData)object).getContentStream(), mime);
+         if (stream != null && c != null)
+         {
+            stream = c.put(object.getObjectId(), changeToken, streamId, stream);
+         }
+         return stream;
       }
       return null;
    }
@@ -362,6 +362,26 @@ public interface Storage extends TypeManager
     */
    ObjectData getObjectById(String objectId) throws ObjectNotFoundException;
 
+   /**
+    * Get objects by unique identifiers. List operations use this method to
+    * fetch page of objects at once, so storage may load all of them, and
+    * information requested by <code>hints</code>, in one round trip.
+    *
+    * Implementation Compatibility: MUST be implemented. Implementation may
+    * simply get objects one by one, see
+    * {@link org.xcmis.spi.basic.BasicStorage#getObjectsByIds(Collection, PropertyFilter, FetchHints)}
+    *
+    * @param objectIds objects' IDs
+    * @param propertyFilter properties what will be requested, may be
+    *        <code>null</code> if all properties may be requested
+    * @param hints information what will be requested for each object, may be
+    *        <code>null</code>
+    * @return objects by ID in order of <code>objectIds</code>. Objects what
+    *         are not found are not included in result
+    */
+   Map<String, ObjectData> getObjectsByIds(Collection<String> objectIds, PropertyFilter propertyFilter,
+      FetchHints hints);
+
    /**
     * Get object by path.
     *
@@ -22,6 +22,7 @@ import org.xcmis.spi.CmisRuntimeException;
 import org.xcmis.spi.ConstraintException;
 import org.xcmis.spi.ContentStream;
 import org.xcmis.spi.DocumentData;
+import org.xcmis.spi.FetchHints;
 import org.xcmis.spi.FolderData;
 import org.xcmis.spi.InvalidArgumentException;
 import org.xcmis.spi.ItemsIterator;
@@ -31,6 +32,7 @@ import org.xcmis.spi.ObjectData;
 import org.xcmis.spi.ObjectNotFoundException;
 import org.xcmis.spi.PermissionService;
 import org.xcmis.spi.PolicyData;
+import org.xcmis.spi.PropertyFilter;
 import org.xcmis.spi.RelationshipData;
 import org.xcmis.spi.Storage;
 import org.xcmis.spi.StorageException;
@@ -57,6 +59,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -197,6 +200,29 @@ public abstract class BasicStorage implements Storage
       return CmisUtils.emptyItemsIterator();
    }
 
+   /**
+    * {@inheritDoc}
+    *
+    * Objects are fetched one by one with {@link #getObjectById(String)}.
+    */
+   public Map<String, ObjectData> getObjectsByIds(Collection<String> objectIds, PropertyFilter propertyFilter,
+      FetchHints hints)
+   {
+      Map<String, ObjectData> objects = new LinkedHashMap<String, ObjectData>();
+      for (String objectId : objectIds)
+      {
+         try
+         {
+            objects.put(objectId, getObjectById(objectId));
+         }
+         catch (ObjectNotFoundException e)
+         {
+            // not included in result
+         }
+      }
+      return objects;
+   }
+
    /**
     * {@inheritDoc}
     */
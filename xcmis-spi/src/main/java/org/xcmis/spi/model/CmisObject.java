@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -45,6 +46,8 @@ public class CmisObject
 
    private String pathSegment;
 
+   private Map<String, CmisObject> joinedObjects;
+
    public CmisObject()
    {
    }
@@ -153,6 +156,20 @@ public class CmisObject
       return relationships;
    }
 
+   /**
+    * @return objects of the other selectors of join query row mapped to
+    *         selector name. Object of the first matched selector is this
+    *         object itself. Never <code>null</code>
+    */
+   public Map<String, CmisObject> getJoinedObjects()
+   {
+      if (joinedObjects == null)
+      {
+         joinedObjects = new LinkedHashMap<String, CmisObject>();
+      }
+      return joinedObjects;
+   }
+
    /**
     * @return content stream renditions. There is no rendition contents stream
     *         just information about available renditions. Even object has not
@@ -135,6 +135,9 @@ public final class PermissionMapping
 
    private final Map<String, Collection<String>> all = new HashMap<String, Collection<String>>();
 
+   /** Number of modifications of mapping. */
+   private volatile int modCount;
+
    public PermissionMapping(Map<String, Collection<String>> map)
    {
       if (map == null)
@@ -155,6 +158,16 @@ public final class PermissionMapping
    public void put(String key, Collection<String> permissions)
    {
       all.put(key, permissions);
+      modCount++;
+   }
+
+   /**
+    * @return modification counter of mapping, changed each time when mapping
+    *         is updated with {@link #put(String, Collection)}
+    */
+   public int getModificationCount()
+   {
+      return modCount;
    }
 
    /**
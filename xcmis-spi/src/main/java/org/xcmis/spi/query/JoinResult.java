@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2010 eXo Platform SAS.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.xcmis.spi.query;
+
+/**
+ * Query result of join query. Row of the join query carries object of each
+ * selector, {@link #getObjectId()} and {@link #getPropertyNames()} give object
+ * of the first matched selector.
+ * 
+ * @version $Id$
+ */
+public interface JoinResult extends Result
+{
+
+   /**
+    * @return selector names in order of the query source
+    */
+   String[] getSelectorNames();
+
+   /**
+    * @param selectorName selector name
+    * @return id of object selected by selector or <code>null</code> if the
+    *         selector is not matched side of outer join
+    */
+   String getObjectId(String selectorName);
+
+   /**
+    * @param selectorName selector name
+    * @return property names of selector specified in the SELECT clause or
+    *         <code>null</code> that minds all properties
+    */
+   String[] getPropertyNames(String selectorName);
+
+}